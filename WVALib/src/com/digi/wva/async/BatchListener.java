@@ -0,0 +1,47 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A listener which is handed several events at once.
+ *
+ * <p>When a device is set to deliver events in batches (see
+ * {@code Device.setMaxBatchSize}), each batch taken from the event queue
+ * results in a single call to {@link #onUpdates(List)} for each BatchListener
+ * it concerns, rather than one call per event. An application which posts
+ * updates to its UI thread can then post once per batch.</p>
+ *
+ * <p>A BatchListener is used wherever a {@link WvaListener} is expected, such
+ * as when subscribing, or can be given to {@code Vehicle.setBatchListener} to
+ * receive every event. Plain WvaListeners keep receiving one call per event,
+ * whether or not batches are enabled.</p>
+ */
+public abstract class BatchListener extends WvaListener {
+
+    /**
+     * Called with events taken from the queue together, in the order they
+     * were received.
+     *
+     * @param events The events. The list is only valid for the duration of
+     *               the call; copy it to keep it.
+     */
+    public abstract void onUpdates(List<Event> events);
+
+    /**
+     * Delivers a single update as a batch of one.
+     */
+    @Override
+    public void onUpdate(String endpoint, VehicleResponse response) {
+        List<Event> events = new ArrayList<Event>(1);
+        events.add(new Event("subscription", endpoint, null, null, response));
+        onUpdates(events);
+    }
+}
@@ -0,0 +1,186 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.async;
+
+import android.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener which only ever delivers the newest value of each endpoint.
+ *
+ * <p>Updates are not handled on the thread which receives them. Instead,
+ * each one overwrites the pending value for its endpoint, and the endpoints
+ * which have pending values are delivered to
+ * {@link #onUpdate(String, VehicleResponse, int)} on the given executor,
+ * along with the number of updates which were merged into that delivery. A
+ * listener which falls behind therefore never works through stale values:
+ * after a burst, it sees one delivery per endpoint.</p>
+ *
+ * <p>To use it, pass a CoalescingListener wherever a {@link WvaListener} is
+ * expected, such as when subscribing. Since intermediate values are thrown
+ * away, it is not suited to alarms.</p>
+ *
+ * <p>Only the listener's own work is merged. Every update is still cached
+ * by the Vehicle, and kept in histories and aggregates, on the thread
+ * handling the data stream, since those need every value.</p>
+ *
+ * <p>If the executor refuses a delivery, for instance because it has been
+ * shut down, the pending values stay pending and another delivery is
+ * attempted with the next update.</p>
+ */
+public abstract class CoalescingListener extends WvaListener {
+    private static final String TAG = "com.digi.wva.async.CoalescingListener";
+
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes =
+            new ConcurrentHashMap<String, Mailbox>();
+    private final Queue<Mailbox> dirty = new ConcurrentLinkedQueue<Mailbox>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile long deliveredCount;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                Mailbox m;
+                while ((m = dirty.poll()) != null) {
+                    VehicleResponse response;
+                    int merged;
+                    synchronized (m) {
+                        response = m.response;
+                        merged = m.merged;
+                        m.response = null;
+                        m.merged = 0;
+                        m.dirty = false;
+                    }
+                    deliveredCount++;
+                    onUpdate(m.endpoint, response, merged);
+                }
+            } finally {
+                scheduled.set(false);
+                // Something may have arrived after the last poll
+                if (!dirty.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param executor Runs the deliveries. They are made one at a time, so a
+     *                 thread pool will not run them concurrently.
+     */
+    public CoalescingListener(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Called on the executor with the newest value of an endpoint.
+     *
+     * @param endpoint the endpoint which was updated
+     * @param response its newest value
+     * @param merged the number of updates received since the previous
+     *               delivery for this endpoint; 1 if none were skipped
+     */
+    public abstract void onUpdate(String endpoint, VehicleResponse response, int merged);
+
+    /**
+     * Records an update, to be delivered later. Called by the library on the
+     * thread which received the update.
+     */
+    @Override
+    public final void onUpdate(String endpoint, VehicleResponse response) {
+        Mailbox m = mailboxes.get(endpoint);
+        if (m == null) {
+            Mailbox created = new Mailbox(endpoint);
+            m = mailboxes.putIfAbsent(endpoint, created);
+            if (m == null) {
+                m = created;
+            }
+        }
+
+        boolean newlyDirty;
+        synchronized (m) {
+            m.response = response;
+            m.merged++;
+            newlyDirty = !m.dirty;
+            m.dirty = true;
+        }
+        receivedCount.incrementAndGet();
+        if (newlyDirty) {
+            dirty.add(m);
+        }
+        // Also after a refused delivery, which left endpoints dirty
+        if (!scheduled.get()) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                if (rejectedCount.getAndIncrement() == 0) {
+                    Log.e(TAG, "Executor refused a delivery; values stay pending", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of updates received
+     */
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return the number of times the executor refused to run a delivery
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the number of deliveries made; the difference from
+     *         {@link #getReceivedCount()} is the number of updates merged away
+     *         (or still pending)
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * The pending value of one endpoint.
+     */
+    private static final class Mailbox {
+        final String endpoint;
+        VehicleResponse response;
+        int merged;
+        boolean dirty;
+
+        Mailbox(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+}
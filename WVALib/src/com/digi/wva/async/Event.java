@@ -16,13 +16,32 @@ import org.json.JSONObject;
 import java.util.Iterator;
 
 
+/**
+ * An update received on the data stream, for a subscription or an alarm.
+ *
+ * <p>An Event decoded straight from the received bytes holds its value and
+ * timestamps as primitives, and only creates the {@link VehicleResponse}
+ * and DateTime objects when {@link #getResponse()} or {@link #getSent()}
+ * is first called. Listeners which only need the numbers, such as a
+ * {@link PrimitiveListener}, read them with {@link #getValue()} and
+ * {@link #getValueMillis()} and never cause those objects to be made.</p>
+ */
 public class Event {
     public static final String TAG = "com.digi.wva.Event";
+    /** The time given for a value or message which has no timestamp. */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
     private String type;
 	private String endpoint;
-    private DateTime sent;
+    private volatile DateTime sent;
     private String shortName;
-	private VehicleResponse resp;
+	private volatile VehicleResponse resp;
+
+    // Set when the event was made from primitives
+    private boolean primitive;
+    private long sentMillis;
+    private double value;
+    private long valueMillis;
 
     public Event(String et, String endpoint, DateTime sent, String shortName,
                  VehicleResponse resp) {
@@ -33,6 +52,24 @@ public class Event {
         this.sent = sent;
     }
 
+    /**
+     * Creates an event from primitives, without creating its VehicleResponse
+     * or DateTimes until they are asked for.
+     *
+     * @param sentMillis When the message was sent, or {@link #NO_TIME}
+     * @param valueMillis When the value was sampled, or {@link #NO_TIME}
+     */
+    public Event(String et, String endpoint, long sentMillis, String shortName,
+                 double value, long valueMillis) {
+        this.type = et;
+        this.endpoint = endpoint;
+        this.shortName = shortName;
+        this.primitive = true;
+        this.sentMillis = sentMillis;
+        this.value = value;
+        this.valueMillis = valueMillis;
+    }
+
     protected Event() {
         type = null;
         endpoint = null;
@@ -111,15 +148,73 @@ public class Event {
 	}
 	
 	public VehicleResponse getResponse() {
-		return this.resp;
+        VehicleResponse r = resp;
+        if (r == null && primitive) {
+            r = new VehicleResponse();
+            r.value = value;
+            r.time = (valueMillis == NO_TIME) ? null : new DateTime(valueMillis);
+            resp = r;
+        }
+		return r;
 	}
+
+    /**
+     * @return whether the event carries a value
+     */
+    public boolean hasValue() {
+        if (primitive) {
+            return true;
+        }
+        VehicleResponse r = resp;
+        return r != null && r.value != null;
+    }
+
+    /**
+     * @return the event's value, or NaN if it has none
+     */
+    public double getValue() {
+        if (primitive) {
+            return value;
+        }
+        VehicleResponse r = resp;
+        return (r != null && r.value != null) ? r.value : Double.NaN;
+    }
+
+    /**
+     * @return when the value was sampled, in milliseconds since the epoch,
+     *         or {@link #NO_TIME} if it has no timestamp
+     */
+    public long getValueMillis() {
+        if (primitive) {
+            return valueMillis;
+        }
+        VehicleResponse r = resp;
+        return (r != null && r.time != null) ? r.time.getMillis() : NO_TIME;
+    }
 	
 	public String getEndpoint() {
 		return this.endpoint;
 	}
 
     public DateTime getSent() {
-        return sent;
+        DateTime d = sent;
+        if (d == null && primitive && sentMillis != NO_TIME) {
+            d = new DateTime(sentMillis);
+            sent = d;
+        }
+        return d;
+    }
+
+    /**
+     * @return when the message was sent, in milliseconds since the epoch,
+     *         or {@link #NO_TIME} if that is not known
+     */
+    public long getSentMillis() {
+        if (primitive) {
+            return sentMillis;
+        }
+        DateTime d = sent;
+        return (d != null) ? d.getMillis() : NO_TIME;
     }
 
     public String getShortName() {
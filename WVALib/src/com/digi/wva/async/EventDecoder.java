@@ -0,0 +1,731 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.async;
+
+import android.util.Log;
+import com.digi.wva.util.TimestampParser;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decodes event channel messages straight from the received bytes, without
+ * going through org.json.
+ *
+ * <p>The decoder only understands the shape of the messages the WVA sends
+ * for subscriptions and alarms:</p>
+ *
+ * <pre>
+ * {"data": {"uri": "vehicle/data/EngineSpeed",
+ *           "timestamp": "2013-06-13T12:00:00Z",
+ *           "short_name": "EngineSpeed~sub",
+ *           "EngineSpeed": {"value": 1200.5, "timestamp": "2013-06-13T12:00:00Z"}}}
+ * </pre>
+ *
+ * <p>with "alarm" in place of "data" for alarms. Fields may come in any order
+ * and unknown fields are skipped. The result is kept in fields of the
+ * decoder which are overwritten by the next call to
+ * {@link #decode(byte[], int, int)}; endpoint and short names are looked up
+ * in a cache, so once every endpoint has been seen, decoding allocates
+ * nothing.</p>
+ *
+ * <p>Anything else, such as strings containing escapes, values which are
+ * not numbers or timestamps in an unexpected format, is rejected, and
+ * {@link #decodeEvent(byte[], int, int)} falls back to
+ * {@link Event#fromTCP(JSONObject)} for it.</p>
+ *
+ * <p>A decoder is not thread safe; use one per connection.</p>
+ */
+public class EventDecoder {
+    private static final String TAG = "com.digi.wva.async.EventDecoder";
+    public static final String TYPE_SUBSCRIPTION = "subscription";
+    public static final String TYPE_ALARM = "alarm";
+
+    private static final byte[] KEY_DATA = ascii("data");
+    private static final byte[] KEY_ALARM = ascii("alarm");
+    private static final byte[] KEY_URI = ascii("uri");
+    private static final byte[] KEY_TIMESTAMP = ascii("timestamp");
+    private static final byte[] KEY_SHORT_NAME = ascii("short_name");
+    private static final byte[] KEY_VALUE = ascii("value");
+
+    /** Powers of ten which are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long NO_TIME = TimestampParser.INVALID;
+    /** Object-valued fields remembered while the uri is not yet known. */
+    private static final int MAX_CANDIDATES = 8;
+
+    private final StringCache strings = new StringCache();
+    private final TimestampParser timestamps = new TimestampParser();
+
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    // The decoded event
+    private String type;
+    private String endpoint;
+    private String shortName;
+    private long sentMillis;
+    private double value;
+    private long valueMillis;
+
+    // Scratch state for the message being decoded
+    private int endpointStart;
+    private int endpointEnd;
+    private int shortNameStart;
+    private int shortNameEnd;
+    private boolean haveValue;
+    private final int[] candidateKeyStart = new int[MAX_CANDIDATES];
+    private final int[] candidateKeyEnd = new int[MAX_CANDIDATES];
+    private final int[] candidateValueStart = new int[MAX_CANDIDATES];
+    private int candidates;
+    private double parsedValue;
+    private long parsedMillis;
+
+    private long decodedCount;
+    private long fallbackCount;
+
+    /**
+     * Decodes one complete message into this decoder's fields.
+     *
+     * @param frame buffer holding the message
+     * @param offset index of the first byte of the message
+     * @param length length of the message
+     * @return true if the message was a subscription or alarm event in the
+     *         expected shape, false if it was not recognised
+     */
+    public boolean decode(byte[] frame, int offset, int length) {
+        buf = frame;
+        pos = offset;
+        end = offset + length;
+        boolean ok = decodeMessage();
+        buf = null;
+        if (ok) {
+            decodedCount++;
+        }
+        return ok;
+    }
+
+    /**
+     * Turns one complete message into an Event, decoding it directly if
+     * possible and through {@link Event#fromTCP(JSONObject)} otherwise.
+     *
+     * @return the event, or null if the message was not a valid event
+     */
+    public Event decodeEvent(byte[] frame, int offset, int length) {
+        if (decode(frame, offset, length)) {
+            return toEvent();
+        }
+        return decodeFallback(frame, offset, length);
+    }
+
+    /**
+     * Turns one complete message into an Event through
+     * {@link Event#fromTCP(JSONObject)}, for messages which
+     * {@link #decode(byte[], int, int)} did not recognise.
+     *
+     * @return the event, or null if the message was not a valid event
+     */
+    public Event decodeFallback(byte[] frame, int offset, int length) {
+        fallbackCount++;
+
+        JSONObject obj;
+        try {
+            obj = new JSONObject(new String(frame, offset, length, "UTF-8"));
+        } catch (JSONException je) {
+            Log.i(TAG, "Discarding malformed message");
+            return null;
+        } catch (UnsupportedEncodingException uee) {
+            Log.wtf(TAG, "UTF-8 not supported");
+            return null;
+        }
+        return Event.fromTCP(obj);
+    }
+
+    /**
+     * @return a new Event holding the most recently decoded message, whose
+     *         VehicleResponse is only created if it is asked for
+     */
+    public Event toEvent() {
+        return new Event(type, endpoint, sentMillis, shortName, value, valueMillis);
+    }
+
+    /**
+     * @return {@link #TYPE_SUBSCRIPTION} or {@link #TYPE_ALARM}
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getShortName() {
+        return shortName;
+    }
+
+    /**
+     * @return the time the message was sent, in milliseconds since the epoch
+     */
+    public long getSentMillis() {
+        return sentMillis;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return the time of the value, in milliseconds since the epoch
+     */
+    public long getValueMillis() {
+        return valueMillis;
+    }
+
+    /**
+     * @return the number of messages decoded directly
+     */
+    public long getDecodedCount() {
+        return decodedCount;
+    }
+
+    /**
+     * @return the number of messages passed on to org.json
+     */
+    public long getFallbackCount() {
+        return fallbackCount;
+    }
+
+    private boolean decodeMessage() {
+        String foundType = null;
+        if (!expect('{')) {
+            return false;
+        }
+        if (peek() == '}') {
+            return false;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            if (!skipSimpleString()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            if (!expect(':')) {
+                return false;
+            }
+            skipWhitespace();
+
+            if (equalsKey(keyStart, keyEnd, KEY_DATA) || equalsKey(keyStart, keyEnd, KEY_ALARM)) {
+                if (foundType != null || !decodeInner()) {
+                    return false;
+                }
+                foundType = (buf[keyStart] == 'd') ? TYPE_SUBSCRIPTION : TYPE_ALARM;
+            } else if (!skipValue()) {
+                return false;
+            }
+
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            byte b = buf[pos++];
+            if (b == '}') {
+                break;
+            } else if (b != ',') {
+                return false;
+            }
+        }
+        if (foundType == null) {
+            return false;
+        }
+        type = foundType;
+        return true;
+    }
+
+    /**
+     * Decodes the object under "data" or "alarm".
+     */
+    private boolean decodeInner() {
+        endpointStart = -1;
+        shortNameStart = -1;
+        candidates = 0;
+        haveValue = false;
+        long sent = NO_TIME;
+
+        if (!expect('{')) {
+            return false;
+        }
+        if (peek() == '}') {
+            return false;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            if (!skipSimpleString()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            if (!expect(':')) {
+                return false;
+            }
+            skipWhitespace();
+
+            if (equalsKey(keyStart, keyEnd, KEY_URI)) {
+                int start = pos + 1;
+                if (!skipSimpleString()) {
+                    return false;
+                }
+                endpointEnd = pos - 1;
+                endpointStart = start;
+                for (int i = endpointEnd - 1; i >= start; i--) {
+                    if (buf[i] == '/') {
+                        endpointStart = i + 1;
+                        break;
+                    }
+                }
+            } else if (equalsKey(keyStart, keyEnd, KEY_TIMESTAMP)) {
+                int start = pos + 1;
+                if (!skipSimpleString()) {
+                    return false;
+                }
+                sent = timestamps.parse(buf, start, pos - 1);
+                if (sent == NO_TIME) {
+                    return false;
+                }
+            } else if (equalsKey(keyStart, keyEnd, KEY_SHORT_NAME)) {
+                shortNameStart = pos + 1;
+                if (!skipSimpleString()) {
+                    return false;
+                }
+                shortNameEnd = pos - 1;
+            } else if (peek() == '{') {
+                if (endpointStart >= 0) {
+                    // Already know which endpoint this is about
+                    if (equalsRange(keyStart, keyEnd, endpointStart, endpointEnd)) {
+                        if (!decodeValue()) {
+                            return false;
+                        }
+                        value = parsedValue;
+                        valueMillis = parsedMillis;
+                        haveValue = true;
+                    } else if (!skipValue()) {
+                        return false;
+                    }
+                } else {
+                    // The uri comes later; remember where this one is
+                    if (candidates == MAX_CANDIDATES) {
+                        return false;
+                    }
+                    candidateKeyStart[candidates] = keyStart;
+                    candidateKeyEnd[candidates] = keyEnd;
+                    candidateValueStart[candidates] = pos;
+                    candidates++;
+                    if (!skipValue()) {
+                        return false;
+                    }
+                }
+            } else if (!skipValue()) {
+                return false;
+            }
+
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            byte b = buf[pos++];
+            if (b == '}') {
+                break;
+            } else if (b != ',') {
+                return false;
+            }
+        }
+
+        if (endpointStart < 0 || shortNameStart < 0 || sent == NO_TIME) {
+            return false;
+        }
+        if (!haveValue) {
+            int messageEnd = pos;
+            for (int i = 0; i < candidates && !haveValue; i++) {
+                if (equalsRange(candidateKeyStart[i], candidateKeyEnd[i], endpointStart, endpointEnd)) {
+                    pos = candidateValueStart[i];
+                    if (!decodeValue()) {
+                        return false;
+                    }
+                    value = parsedValue;
+                    valueMillis = parsedMillis;
+                    haveValue = true;
+                }
+            }
+            pos = messageEnd;
+            if (!haveValue) {
+                return false;
+            }
+        }
+        endpoint = strings.get(buf, endpointStart, endpointEnd);
+        shortName = strings.get(buf, shortNameStart, shortNameEnd);
+        sentMillis = sent;
+        return true;
+    }
+
+    /**
+     * Decodes {"value": number, "timestamp": string} into parsedValue and
+     * parsedMillis.
+     */
+    private boolean decodeValue() {
+        boolean gotValue = false;
+        long millis = NO_TIME;
+        if (!expect('{')) {
+            return false;
+        }
+        if (peek() == '}') {
+            return false;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            if (!skipSimpleString()) {
+                return false;
+            }
+            int keyEnd = pos - 1;
+            if (!expect(':')) {
+                return false;
+            }
+            skipWhitespace();
+
+            if (equalsKey(keyStart, keyEnd, KEY_VALUE)) {
+                if (!parseNumber()) {
+                    return false;
+                }
+                gotValue = true;
+            } else if (equalsKey(keyStart, keyEnd, KEY_TIMESTAMP)) {
+                int start = pos + 1;
+                if (!skipSimpleString()) {
+                    return false;
+                }
+                millis = timestamps.parse(buf, start, pos - 1);
+                if (millis == NO_TIME) {
+                    return false;
+                }
+            } else if (!skipValue()) {
+                return false;
+            }
+
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            byte b = buf[pos++];
+            if (b == '}') {
+                break;
+            } else if (b != ',') {
+                return false;
+            }
+        }
+        parsedMillis = millis;
+        return gotValue && millis != NO_TIME;
+    }
+
+    /**
+     * Parses a JSON number at pos into parsedValue.
+     */
+    private boolean parseNumber() {
+        int start = pos;
+        boolean negative = false;
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        int digitsStart = pos;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            if (significant < 18) {
+                mantissa = mantissa * 10 + (buf[pos] - '0');
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+                significant++;
+            }
+            pos++;
+        }
+        if (pos == digitsStart) {
+            return false;
+        }
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    exponent--;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                } else {
+                    significant++;
+                }
+                pos++;
+            }
+            if (pos == fractionStart) {
+                return false;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+                negativeExponent = (buf[pos] == '-');
+                pos++;
+            }
+            int expStart = pos;
+            int exp = 0;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                if (exp < 10000) {
+                    exp = exp * 10 + (buf[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == expStart) {
+                return false;
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+
+        double v;
+        if (significant <= 15 && exponent >= -22 && exponent <= 22) {
+            // Both operands are exact, so the result is correctly rounded.
+            v = (exponent < 0) ? mantissa / POWERS_OF_TEN[-exponent]
+                               : mantissa * POWERS_OF_TEN[exponent];
+            if (negative) {
+                v = -v;
+            }
+        } else {
+            char[] chars = new char[pos - start];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) buf[start + i];
+            }
+            v = Double.parseDouble(new String(chars));
+        }
+        parsedValue = v;
+        return true;
+    }
+
+    private int peek() {
+        skipWhitespace();
+        return (pos < end) ? buf[pos] : -1;
+    }
+
+    private boolean expect(char c) {
+        skipWhitespace();
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Skips a string without escapes, leaving pos after the closing quote.
+     * Escapes are not expected in keys or names in WVA messages, so they are
+     * rejected like any other unexpected input.
+     */
+    private boolean skipSimpleString() {
+        if (pos >= end || buf[pos] != '"') {
+            return false;
+        }
+        for (int i = pos + 1; i < end; i++) {
+            byte b = buf[i];
+            if (b == '"') {
+                pos = i + 1;
+                return true;
+            } else if (b == '\\') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Skips any JSON value, including strings with escapes.
+     */
+    private boolean skipValue() {
+        int depth = 0;
+        boolean inString = false;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (inString) {
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    inString = false;
+                    if (depth == 0) {
+                        pos++;
+                        return true;
+                    }
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    return true;
+                }
+                if (--depth == 0) {
+                    pos++;
+                    return true;
+                }
+            } else if (b == ',' && depth == 0) {
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    private boolean equalsKey(int start, int stop, byte[] key) {
+        if (stop - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsRange(int start1, int stop1, int start2, int stop2) {
+        if (stop1 - start1 != stop2 - start2) {
+            return false;
+        }
+        for (int i = 0; i < stop1 - start1; i++) {
+            if (buf[start1 + i] != buf[start2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /**
+     * Maps byte ranges to Strings, so the same endpoint and short names are
+     * not decoded again for every message.
+     */
+    private static final class StringCache {
+        private static final int MAX_SIZE = 4096;
+
+        private byte[][] keys = new byte[256][];
+        private String[] values = new String[256];
+        private int size;
+
+        String get(byte[] b, int start, int stop) {
+            int hash = 0;
+            for (int i = start; i < stop; i++) {
+                hash = 31 * hash + b[i];
+            }
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null) {
+                if (matches(keys[slot], b, start, stop)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            byte[] key = new byte[stop - start];
+            System.arraycopy(b, start, key, 0, key.length);
+            String value;
+            try {
+                value = new String(key, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e.toString());
+            }
+
+            if (size >= MAX_SIZE) {
+                // Not a name we expect to see again; don't let the cache grow
+                return value;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                mask = keys.length - 1;
+                slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return value;
+        }
+
+        private static boolean matches(byte[] key, byte[] b, int start, int stop) {
+            if (key.length != stop - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != b[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            values = new String[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                byte[] key = oldKeys[i];
+                if (key == null) {
+                    continue;
+                }
+                int hash = 0;
+                for (byte k : key) {
+                    hash = 31 * hash + k;
+                }
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.async;
+
+/**
+ * A listener which is given each update as plain numbers.
+ *
+ * <p>Events decoded from the data stream hold their value and timestamps as
+ * primitives; a {@link VehicleResponse} and its DateTime are only created
+ * when a listener asks for them. A PrimitiveListener never does, so as long
+ * as every listener of an event is one, delivering the event allocates
+ * nothing beyond the Event itself.</p>
+ *
+ * <p>A PrimitiveListener is used wherever a {@link WvaListener} is expected,
+ * such as when subscribing. The endpoint is given by its ID in the Vehicle's
+ * {@code EndpointCatalog}, whose {@code nameOf} gives its name. Events with
+ * no value are not delivered.</p>
+ */
+public abstract class PrimitiveListener extends WvaListener {
+
+    /**
+     * Called with each update, on the thread or executor the listener was
+     * added with.
+     *
+     * @param endpointId The endpoint's ID in the Vehicle's catalog
+     * @param epochMillis When the value was sampled, in milliseconds since
+     *                    the epoch, or {@link Event#NO_TIME} if it has no
+     *                    timestamp
+     * @param value The value
+     */
+    public abstract void onUpdate(int endpointId, long epochMillis, double value);
+
+    /**
+     * Not called for a PrimitiveListener: updates are given to
+     * {@link #onUpdate(int, long, double)} instead.
+     */
+    @Override
+    public final void onUpdate(String endpoint, VehicleResponse response) {
+    }
+}
@@ -7,9 +7,8 @@
  
 package com.digi.wva.async;
 
+import com.digi.wva.util.WvaUtil;
 import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,8 +17,6 @@ import org.json.JSONObject;
  * with the device.
  */
 public class VehicleResponse {
-	private static final DateTimeFormatter formatMillis = ISODateTimeFormat.dateTime();
-	private static final DateTimeFormatter format = ISODateTimeFormat.dateTimeNoMillis();
 	public Double value;
 	public DateTime time;
 
@@ -37,16 +34,8 @@ public class VehicleResponse {
      *         {"value":<float>, "timestamp":<ISO8601 timestamp>}
      */
 	public VehicleResponse(JSONObject jObj) throws JSONException {
-		ISODateTimeFormat.dateTimeParser();
 		this.value = jObj.getDouble("value");
-		try {
-			this.time = format.parseDateTime(jObj.getString("timestamp"));
-		} catch (IllegalArgumentException e) {
-			// Real WVA sends timestamps without milliseconds. If not connected
-			// to "real" WVA (i.e. spoofer), we might be sending out timestamps
-			// with milliseconds. In that case, parse it out here.
-			this.time = formatMillis.parseDateTime(jObj.getString("timestamp"));
-		}
+		this.time = WvaUtil.dateTimeFromString(jObj.getString("timestamp"));
 	}
 }
 
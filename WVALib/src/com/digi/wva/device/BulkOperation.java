@@ -0,0 +1,189 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.exc.WvaException;
+import org.apache.http.client.HttpResponseException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends one web service request per endpoint, keeping at most a given
+ * number in flight: each response sends the next request, so that a few
+ * kept-alive connections stay busy rather than a request waiting on every
+ * other. A failed request is sent again, up to a given number of times,
+ * unless the WVA refused it outright; when every endpoint is done, one
+ * {@link BulkResult} is handed to the callback.
+ *
+ * <p>Responses may arrive on any thread, including the one sending the
+ * request. Only one thread sends requests at a time, and a response which
+ * arrives while it does leaves its follow-up to that thread, so that a
+ * client which answers in-line does not recurse once per endpoint.</p>
+ */
+abstract class BulkOperation {
+    private final List<String> endpoints;
+    private final int concurrency;
+    private final int retries;
+    private final WvaCallback<BulkResult> callback;
+
+    // Guarded by this
+    private int next;
+    private int outstanding;
+    private boolean sending;
+    private boolean finished;
+    private final LinkedList<String> toRetry = new LinkedList<String>();
+    private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+    private final List<String> succeeded = new ArrayList<String>();
+    private final Map<String, Throwable> failed = new LinkedHashMap<String, Throwable>();
+    private int retriedCount;
+    private long startNanos;
+
+    /**
+     * @param endpoints The endpoints, each sent once however often it appears
+     * @param concurrency The most requests in flight at once
+     * @param retries How many times a failed request is sent again
+     * @param callback Given the result, or null
+     */
+    BulkOperation(Collection<String> endpoints, int concurrency, int retries,
+                  WvaCallback<BulkResult> callback) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative");
+        }
+        this.endpoints = new ArrayList<String>(new LinkedHashSet<String>(endpoints));
+        this.concurrency = concurrency;
+        this.retries = retries;
+        this.callback = callback;
+    }
+
+    /**
+     * Sends the request for one endpoint, calling done when it completes.
+     *
+     * @throws Exception if the request cannot be made; it is not retried
+     */
+    abstract void send(String endpoint, WvaCallback<Void> done) throws Exception;
+
+    /**
+     * @return whether a request which failed with this error did what was
+     *         wanted anyway
+     */
+    boolean isHarmless(Throwable error) {
+        return false;
+    }
+
+    /**
+     * @return whether sending the request again might succeed: not if the
+     *         WVA answered with a client error, other than a timeout or
+     *         being too busy
+     */
+    boolean isRetriable(Throwable error) {
+        if (error instanceof HttpResponseException) {
+            int status = ((HttpResponseException) error).getStatusCode();
+            return status < 400 || status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    void start() {
+        synchronized (this) {
+            startNanos = System.nanoTime();
+        }
+        pump();
+    }
+
+    private void pump() {
+        boolean done = false;
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        while (true) {
+            String endpoint;
+            synchronized (this) {
+                if (outstanding < concurrency && !toRetry.isEmpty()) {
+                    endpoint = toRetry.poll();
+                } else if (outstanding < concurrency && next < endpoints.size()) {
+                    endpoint = endpoints.get(next++);
+                } else {
+                    sending = false;
+                    if (outstanding == 0 && toRetry.isEmpty() && next == endpoints.size() && !finished) {
+                        finished = true;
+                        done = true;
+                    }
+                    break;
+                }
+                outstanding++;
+            }
+            launch(endpoint);
+        }
+        if (done) {
+            finish();
+        }
+    }
+
+    private void launch(final String endpoint) {
+        try {
+            send(endpoint, new WvaCallback<Void>() {
+                @Override
+                public void onResponse(Throwable error, Void response) {
+                    completed(endpoint, error, true);
+                }
+            });
+        } catch (Exception e) {
+            completed(endpoint, e, false);
+        }
+    }
+
+    private void completed(String endpoint, Throwable error, boolean mayRetry) {
+        synchronized (this) {
+            outstanding--;
+            if (error == null || isHarmless(error)) {
+                succeeded.add(endpoint);
+            } else {
+                Integer tried = attempts.get(endpoint);
+                int retried = (tried == null) ? 0 : tried;
+                if (mayRetry && retried < retries && isRetriable(error)) {
+                    attempts.put(endpoint, retried + 1);
+                    retriedCount++;
+                    toRetry.add(endpoint);
+                } else {
+                    failed.put(endpoint, error);
+                }
+            }
+        }
+        pump();
+    }
+
+    private void finish() {
+        BulkResult result;
+        Throwable error = null;
+        synchronized (this) {
+            result = new BulkResult(succeeded, failed, retriedCount,
+                    (System.nanoTime() - startNanos) / 1000000);
+            if (!failed.isEmpty()) {
+                error = new WvaException(failed.size() + " of " + endpoints.size() + " requests failed",
+                        failed.values().iterator().next());
+            }
+        }
+        if (callback != null) {
+            callback.onResponse(error, result);
+        }
+    }
+}
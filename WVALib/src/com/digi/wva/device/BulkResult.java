@@ -0,0 +1,74 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of subscribing to, or unsubscribing from, many endpoints at
+ * once with {@link Vehicle#subscribeAll} or {@link Vehicle#unsubscribeAll}.
+ */
+public final class BulkResult {
+    private final List<String> succeeded;
+    private final Map<String, Throwable> failed;
+    private final int retriedCount;
+    private final long elapsedMillis;
+
+    BulkResult(List<String> succeeded, Map<String, Throwable> failed, int retriedCount,
+               long elapsedMillis) {
+        this.succeeded = Collections.unmodifiableList(succeeded);
+        this.failed = Collections.unmodifiableMap(failed);
+        this.retriedCount = retriedCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the endpoints whose requests succeeded, in the order they did
+     */
+    public List<String> getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return the endpoints whose requests failed, even after retrying, with
+     *         the error of the last attempt
+     */
+    public Map<String, Throwable> getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return whether every request succeeded
+     */
+    public boolean isComplete() {
+        return failed.isEmpty();
+    }
+
+    /**
+     * @return the number of requests sent again after failing
+     */
+    public int getRetriedCount() {
+        return retriedCount;
+    }
+
+    /**
+     * @return how long it took from the first request being sent to the
+     *         last response, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkResult[" + succeeded.size() + " succeeded, " + failed.size() + " failed, "
+                + retriedCount + " retried, " + elapsedMillis + " ms]";
+    }
+}
@@ -0,0 +1,152 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the records written by a {@link CaptureWriter}, one read from
+ * the socket at a time.
+ */
+public class CaptureReader {
+    private final List<File> files;
+    private int fileIndex;
+    private MappedByteBuffer segment;
+    private long segmentStartMillis;
+
+    private long nanos;
+    private int length;
+    private int remaining;
+
+    /**
+     * @param files the capture files, in the order they were written
+     */
+    public CaptureReader(List<File> files) {
+        this.files = new ArrayList<File>(files);
+    }
+
+    /**
+     * Finds the files of a capture.
+     *
+     * @return the files in the directory written with the given prefix,
+     *         in the order they were written
+     */
+    public static List<File> findFiles(File directory, final String prefix) {
+        File[] found = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(CaptureWriter.SUFFIX)
+                        && name.length() == prefix.length() + 6 + CaptureWriter.SUFFIX.length();
+            }
+        });
+        if (found == null) {
+            return new ArrayList<File>();
+        }
+        // Zero-padded indices sort by name
+        Arrays.sort(found);
+        return new ArrayList<File>(Arrays.asList(found));
+    }
+
+    /**
+     * Moves on to the next record, skipping whatever is left of this one.
+     *
+     * @return false at the end of the capture
+     * @throws IOException if a file cannot be read or is not a capture
+     */
+    public boolean next() throws IOException {
+        if (segment != null && remaining > 0) {
+            segment.position(segment.position() + remaining);
+        }
+        remaining = 0;
+        while (true) {
+            if (segment == null) {
+                if (fileIndex == files.size()) {
+                    return false;
+                }
+                open(files.get(fileIndex++));
+            }
+            if (segment.remaining() >= CaptureWriter.RECORD_HEADER_SIZE) {
+                int len = segment.getInt();
+                if (len > 0) {
+                    length = len;
+                    remaining = len;
+                    nanos = segment.getLong();
+                    if (len > segment.remaining()) {
+                        throw new IOException("Capture record runs past the end of its file");
+                    }
+                    return true;
+                }
+            }
+            // The unused end of a file is zeroes
+            segment = null;
+        }
+    }
+
+    private void open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        byte[] magic = new byte[CaptureWriter.MAGIC.length];
+        if (segment.remaining() < CaptureWriter.HEADER_SIZE) {
+            throw new IOException(file + " is not a capture file");
+        }
+        segment.get(magic);
+        if (!Arrays.equals(magic, CaptureWriter.MAGIC)) {
+            throw new IOException(file + " is not a capture file");
+        }
+        segmentStartMillis = segment.getLong();
+    }
+
+    /**
+     * @return when the current record was received, from
+     *         {@link System#nanoTime()} on the capturing device
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the number of bytes in the current record
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the wall-clock time at which the current file was started
+     */
+    public long getSegmentStartMillis() {
+        return segmentStartMillis;
+    }
+
+    /**
+     * Copies bytes of the current record which have not been read yet.
+     *
+     * @return the number of bytes copied; 0 once the record is used up
+     */
+    public int read(byte[] b, int offset, int count) {
+        int n = Math.min(count, remaining);
+        if (n <= 0) {
+            return 0;
+        }
+        segment.get(b, offset, n);
+        remaining -= n;
+        return n;
+    }
+}
@@ -0,0 +1,184 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a capture made by a {@link CaptureWriter} back into a Device, in
+ * place of its connection to the WVA. See
+ * {@link Device#replayDataStream(CaptureReplay, DeviceConnectionListener)}.
+ *
+ * <p>The bytes are handed to the Device's TCPReceiver in the same pieces in
+ * which they were originally read, and, unless played at
+ * {@link #MAX_SPEED}, with the same gaps between them, divided by the
+ * speed.</p>
+ */
+public class CaptureReplay {
+    /** Plays the capture as fast as the Device will take it. */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final List<File> files;
+    private final double speed;
+
+    /**
+     * Plays the capture in real time.
+     */
+    public CaptureReplay(List<File> files) {
+        this(files, 1.0);
+    }
+
+    /**
+     * @param files the capture files, in the order they were written, as
+     *              returned by {@link CaptureWriter#getFiles()} or
+     *              {@link CaptureReader#findFiles(File, String)}
+     * @param speed how many times faster than real time to play; 1 for real
+     *              time, or {@link #MAX_SPEED}
+     */
+    public CaptureReplay(List<File> files, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("speed must be positive");
+        }
+        this.files = new ArrayList<File>(files);
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Opens the capture as a stream. Each read returns at most one of the
+     * original reads, once it is due. The stream ends with the capture.
+     */
+    public InputStream openStream() {
+        return new ReplayStream(new CaptureReader(files), speed);
+    }
+
+    /**
+     * @return a stand-in for the WVA's socket, for a TCPReceiver to read
+     *         from; it is never connected
+     */
+    Socket openSocket() {
+        return new ReplaySocket(openStream());
+    }
+
+    private static final class ReplayStream extends InputStream {
+        private final CaptureReader reader;
+        private final double speed;
+        private final byte[] single = new byte[1];
+        private long firstNanos;
+        private long startNanos;
+        private boolean started;
+        private boolean ended;
+        private volatile boolean closed;
+
+        ReplayStream(CaptureReader reader, double speed) {
+            this.reader = reader;
+            this.speed = speed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return (n < 0) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                if (closed) {
+                    throw new IOException("Replay closed");
+                }
+                if (ended) {
+                    return -1;
+                }
+                int n = reader.read(b, offset, length);
+                if (n > 0) {
+                    return n;
+                }
+                if (!reader.next()) {
+                    ended = true;
+                    continue;
+                }
+                waitFor(reader.getNanos());
+            }
+        }
+
+        private void waitFor(long recordNanos) throws IOException {
+            if (!started) {
+                started = true;
+                firstNanos = recordNanos;
+                startNanos = System.nanoTime();
+                return;
+            }
+            if (speed == MAX_SPEED) {
+                return;
+            }
+            long due = startNanos + (long) ((recordNanos - firstNanos) / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Replay interrupted");
+                }
+                if (closed) {
+                    throw new IOException("Replay closed");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Only what TCPReceiver uses of a socket.
+     */
+    private static final class ReplaySocket extends Socket {
+        private final InputStream in;
+        private volatile boolean closed;
+
+        ReplaySocket(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            in.close();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+    }
+}
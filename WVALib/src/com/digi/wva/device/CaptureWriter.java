@@ -0,0 +1,184 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the raw bytes received on a data stream, each read tagged with
+ * the {@link System#nanoTime()} at which it arrived, so that the stream can
+ * later be fed back through a Device by {@link CaptureReplay}.
+ *
+ * <p>Records are appended to memory-mapped files of a fixed size, which
+ * makes writing one little more than a copy. When a file is full, the next
+ * one is started; {@link #setMaxSegments(int)} bounds how many are kept.
+ * Files are named {@code <prefix>-00000.wvacap}, {@code <prefix>-00001.wvacap}
+ * and so on; a writer replaces any earlier capture with the same prefix in
+ * its directory.</p>
+ *
+ * <p>Give each Device its own writer (see
+ * {@link Device#setCaptureWriter(CaptureWriter)}).</p>
+ */
+public class CaptureWriter {
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final String SUFFIX = ".wvacap";
+    static final byte[] MAGIC = { 'W', 'V', 'A', 'C', 'A', 'P', '0', '1' };
+    /** Magic, then the wall-clock time the segment was started. */
+    static final int HEADER_SIZE = MAGIC.length + 8;
+    /** Length, then receive time. */
+    static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private int maxSegments = Integer.MAX_VALUE;
+
+    private final List<File> files = new ArrayList<File>();
+    private int nextIndex;
+    private MappedByteBuffer segment;
+    private boolean closed;
+
+    private long records;
+    private long bytes;
+
+    /**
+     * Uses segments of {@link #DEFAULT_SEGMENT_SIZE} bytes.
+     */
+    public CaptureWriter(File directory, String prefix) throws IOException {
+        this(directory, prefix, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory where to put the capture files
+     * @param prefix the start of each file's name
+     * @param segmentSize the size of each file, in bytes; must hold at least
+     *                    one full read from the socket
+     * @throws IOException if an earlier capture's files cannot be deleted or
+     *                     the first file cannot be created
+     */
+    public CaptureWriter(File directory, String prefix, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_HEADER_SIZE + TCPReceiver.READ_BUFFER_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small to hold a read");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        for (File old : CaptureReader.findFiles(directory, prefix)) {
+            if (!old.delete()) {
+                throw new IOException("Cannot delete " + old);
+            }
+        }
+        roll();
+    }
+
+    /**
+     * Sets how many files to keep; when another is started, the oldest ones
+     * are deleted.
+     */
+    public synchronized void setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be at least 1");
+        }
+        this.maxSegments = maxSegments;
+        trim();
+    }
+
+    /**
+     * Appends one read from the socket.
+     *
+     * @param receiveNanos when the bytes were received, from
+     *                     {@link System#nanoTime()}
+     * @throws IOException if a new file was needed and could not be created
+     */
+    public synchronized void write(byte[] b, int offset, int length, long receiveNanos)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Capture is closed");
+        }
+        if (length <= 0) {
+            return;
+        }
+        if (RECORD_HEADER_SIZE + length > segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("Record of " + length + " bytes cannot fit");
+        }
+        if (segment.remaining() < RECORD_HEADER_SIZE + length) {
+            roll();
+        }
+        segment.putInt(length);
+        segment.putLong(receiveNanos);
+        segment.put(b, offset, length);
+        records++;
+        bytes += length;
+    }
+
+    private void roll() throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        File file = new File(directory, String.format("%s-%05d%s", prefix, nextIndex++, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Mapping only grows a file, so clear whatever was there first
+            raf.setLength(0);
+            // The mapping outlives the file handle
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+        segment.put(MAGIC);
+        segment.putLong(System.currentTimeMillis());
+        files.add(file);
+        trim();
+    }
+
+    private void trim() {
+        while (files.size() > maxSegments) {
+            File oldest = files.remove(0);
+            if (!oldest.delete()) {
+                oldest.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Writes everything out to the files. Nothing more can be written.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            segment.force();
+        }
+    }
+
+    /**
+     * @return the capture files kept so far, oldest first
+     */
+    public synchronized List<File> getFiles() {
+        return new ArrayList<File>(files);
+    }
+
+    /**
+     * @return the number of reads recorded
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    /**
+     * @return the number of bytes of stream recorded
+     */
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+}
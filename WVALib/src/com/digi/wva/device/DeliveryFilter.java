@@ -0,0 +1,202 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import java.util.Arrays;
+
+/**
+ * Decides which updates reach one listener, so that a listener is not handed
+ * values which have barely changed, or more values than it can use. Set on a
+ * listener with {@link ListenerRegistration#setFilter(DeliveryFilter)}.
+ *
+ * <p>An update is suppressed if it arrives sooner than the minimum interval
+ * after the last update delivered for the same endpoint, or if its value is
+ * within the deadband of the last value delivered. The deadband is ignored,
+ * though, once the maximum silence has passed since the last delivery, so
+ * that a steady value is still heard of now and then. The first update for
+ * each endpoint, and any update without a value, is delivered. Times are
+ * those of the updates themselves, or the time of arrival if they have
+ * none.</p>
+ *
+ * <p>A filter keeps the last value delivered for each endpoint, so it belongs
+ * to one listener. It is called on the thread handling the data stream and
+ * allocates nothing, except to make room the first time it sees an endpoint
+ * with a higher ID in the {@link EndpointCatalog}.</p>
+ */
+public final class DeliveryFilter {
+    private final double absoluteDeadband;
+    private final double percentDeadband;
+    private final long minIntervalMillis;
+    private final long maxSilenceMillis;
+
+    // Per endpoint ID; a time of Long.MIN_VALUE means nothing delivered yet
+    private double[] lastValues = new double[0];
+    private long[] lastTimes = new long[0];
+
+    private volatile long passedCount;
+    private volatile long deadbandCount;
+    private volatile long intervalCount;
+    private volatile long heartbeatCount;
+
+    /**
+     * @param absoluteDeadband Suppress values which differ from the last one
+     *                         delivered by no more than this; 0 for none
+     * @param percentDeadband Suppress values which differ from the last one
+     *                        delivered by no more than this percentage of it;
+     *                        0 for none
+     * @param minIntervalMillis The least time between deliveries for an
+     *                          endpoint; 0 for none
+     * @param maxSilenceMillis How long after a delivery to deliver the next
+     *                         update whatever its value; 0 for never
+     */
+    public DeliveryFilter(double absoluteDeadband, double percentDeadband,
+                          long minIntervalMillis, long maxSilenceMillis) {
+        if (!(absoluteDeadband >= 0) || !(percentDeadband >= 0)) {
+            throw new IllegalArgumentException("deadbands must not be negative");
+        }
+        if (minIntervalMillis < 0 || maxSilenceMillis < 0) {
+            throw new IllegalArgumentException("intervals must not be negative");
+        }
+        this.absoluteDeadband = absoluteDeadband;
+        this.percentDeadband = percentDeadband;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxSilenceMillis = maxSilenceMillis;
+    }
+
+    /**
+     * @return a filter suppressing values within an absolute deadband
+     */
+    public static DeliveryFilter deadband(double absolute) {
+        return new DeliveryFilter(absolute, 0, 0, 0);
+    }
+
+    /**
+     * @return a filter delivering at most one update per interval per endpoint
+     */
+    public static DeliveryFilter minInterval(long millis) {
+        return new DeliveryFilter(0, 0, millis, 0);
+    }
+
+    /**
+     * Decides whether to deliver an update, remembering it if so.
+     *
+     * @param id The endpoint's ID in the Vehicle's catalog
+     * @param timeMillis When the update was sampled
+     * @param value The update's value, or NaN if it has none
+     */
+    synchronized boolean accept(int id, long timeMillis, double value) {
+        if (id < 0 || Double.isNaN(value)) {
+            passedCount++;
+            return true;
+        }
+        if (id >= lastTimes.length) {
+            grow(id + 1);
+        }
+        long lastTime = lastTimes[id];
+        if (lastTime != Long.MIN_VALUE) {
+            long since = timeMillis - lastTime;
+            if (since < minIntervalMillis) {
+                intervalCount++;
+                return false;
+            }
+            boolean silent = maxSilenceMillis > 0 && since >= maxSilenceMillis;
+            if (withinDeadband(lastValues[id], value)) {
+                if (!silent) {
+                    deadbandCount++;
+                    return false;
+                }
+                heartbeatCount++;
+            }
+        }
+        lastTimes[id] = timeMillis;
+        lastValues[id] = value;
+        passedCount++;
+        return true;
+    }
+
+    private boolean withinDeadband(double last, double value) {
+        double change = Math.abs(value - last);
+        if (absoluteDeadband > 0 && change <= absoluteDeadband) {
+            return true;
+        }
+        return percentDeadband > 0 && change <= Math.abs(last) * percentDeadband / 100;
+    }
+
+    private void grow(int size) {
+        int capacity = Math.max(size, lastTimes.length * 2);
+        int from = lastTimes.length;
+        double[] values = new double[capacity];
+        long[] times = new long[capacity];
+        System.arraycopy(lastValues, 0, values, 0, from);
+        System.arraycopy(lastTimes, 0, times, 0, from);
+        Arrays.fill(times, from, capacity, Long.MIN_VALUE);
+        lastValues = values;
+        lastTimes = times;
+    }
+
+    /**
+     * Forgets the values delivered, so the next update for each endpoint is
+     * delivered. The counts are kept.
+     */
+    public synchronized void reset() {
+        Arrays.fill(lastTimes, Long.MIN_VALUE);
+    }
+
+    public double getAbsoluteDeadband() {
+        return absoluteDeadband;
+    }
+
+    public double getPercentDeadband() {
+        return percentDeadband;
+    }
+
+    public long getMinIntervalMillis() {
+        return minIntervalMillis;
+    }
+
+    public long getMaxSilenceMillis() {
+        return maxSilenceMillis;
+    }
+
+    /**
+     * @return the number of updates delivered
+     */
+    public long getPassedCount() {
+        return passedCount;
+    }
+
+    /**
+     * @return the number of updates suppressed for being within the deadband
+     */
+    public long getDeadbandCount() {
+        return deadbandCount;
+    }
+
+    /**
+     * @return the number of updates suppressed for arriving within the
+     *         minimum interval
+     */
+    public long getIntervalCount() {
+        return intervalCount;
+    }
+
+    /**
+     * @return the number of updates within the deadband delivered because
+     *         the maximum silence had passed
+     */
+    public long getHeartbeatCount() {
+        return heartbeatCount;
+    }
+
+    /**
+     * @return the number of updates suppressed for any reason
+     */
+    public long getSuppressedCount() {
+        return deadbandCount + intervalCount;
+    }
+}
@@ -0,0 +1,507 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.Event;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An endpoint whose value is computed by this library from the values of
+ * other endpoints, added with {@link Vehicle#addDerived(String, String)}.
+ *
+ * <p>The value is given by an expression over endpoint names and numbers,
+ * with {@code + - * /}, comparisons ({@code < <= > >= == !=}, giving 1 or
+ * 0), {@code && ||}, parentheses, and the functions {@code min(a, b)},
+ * {@code max(a, b)}, {@code abs(a)}, {@code sqrt(a)}, {@code if(c, a, b)}
+ * and {@code integrate(a)}, the integral of a over time in seconds. For
+ * instance:</p>
+ * <pre>
+ *     VehicleSpeed / EngineSpeed
+ *     integrate(EngineSpeed &gt; 0 &amp;&amp; VehicleSpeed &lt; 1)
+ * </pre>
+ *
+ * <p>The expression is compiled once, to a program for a small stack
+ * machine, and run again whenever one of the endpoints it reads is updated.
+ * Running it reads their cached values and allocates nothing. A value is
+ * published only if it is a finite number different from the last one
+ * published; until every endpoint read has a value, nothing is.</p>
+ */
+public final class DerivedEndpoint {
+    // Opcodes; CONST, INPUT and INTEGRATE are followed by an operand
+    private static final int CONST = 0;
+    private static final int INPUT = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int NEG = 6;
+    private static final int LT = 7;
+    private static final int LE = 8;
+    private static final int GT = 9;
+    private static final int GE = 10;
+    private static final int EQ = 11;
+    private static final int NE = 12;
+    private static final int AND = 13;
+    private static final int OR = 14;
+    private static final int MIN = 15;
+    private static final int MAX = 16;
+    private static final int ABS = 17;
+    private static final int SQRT = 18;
+    private static final int IF = 19;
+    private static final int INTEGRATE = 20;
+
+    private final String name;
+    private final String shortName;
+    private final String expression;
+    private final List<String> inputs;
+    private final int[] code;
+    private final double[] constants;
+
+    // Working state, guarded by this
+    private final int[] inputIds;
+    private final double[] stack;
+    private final long[] integralTimes;
+    private final double[] integralValues;
+    private final double[] integralSums;
+    private double last = Double.NaN;
+    private volatile boolean removed;
+
+    private volatile long evaluationCount;
+    private volatile long publishedCount;
+
+    private DerivedEndpoint(String name, String expression, Compiler compiled) {
+        this.name = name;
+        this.shortName = name + Vehicle.SUB_SUFFIX;
+        this.expression = expression;
+        this.inputs = Collections.unmodifiableList(new ArrayList<String>(compiled.inputs));
+        this.code = compiled.code();
+        this.constants = compiled.constants();
+        this.inputIds = new int[inputs.size()];
+        Arrays.fill(inputIds, -1);
+        this.stack = new double[Math.max(1, compiled.maxDepth)];
+        this.integralTimes = new long[compiled.integrals];
+        Arrays.fill(integralTimes, Long.MIN_VALUE);
+        this.integralValues = new double[compiled.integrals];
+        this.integralSums = new double[compiled.integrals];
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression cannot be parsed
+     */
+    static DerivedEndpoint compile(String name, String expression) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("name must not be empty");
+        }
+        Compiler compiler = new Compiler(expression);
+        compiler.compile();
+        return new DerivedEndpoint(name, expression, compiler);
+    }
+
+    /**
+     * Looks the inputs up in a catalog, which must know all of them.
+     */
+    synchronized void bind(EndpointCatalog catalog) {
+        for (int i = 0; i < inputIds.length; i++) {
+            inputIds[i] = catalog.idOf(inputs.get(i));
+        }
+    }
+
+    /**
+     * @return the IDs of the inputs, as last bound
+     */
+    synchronized int[] getInputIds() {
+        return inputIds.clone();
+    }
+
+    /**
+     * Runs the program on the cached values.
+     *
+     * @param timeMillis the time of the update which prompted this
+     * @return the value to publish, or NaN if there is none
+     */
+    synchronized double evaluate(AtomicReferenceArray<Event> values, long timeMillis) {
+        evaluationCount++;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case INPUT: {
+                    int id = inputIds[code[pc++]];
+                    Event input = (id < 0) ? null : values.get(id);
+                    if (input == null || !input.hasValue()) {
+                        return Double.NaN;
+                    }
+                    stack[sp++] = input.getValue();
+                    break;
+                }
+                case ADD: sp--; stack[sp - 1] += stack[sp]; break;
+                case SUB: sp--; stack[sp - 1] -= stack[sp]; break;
+                case MUL: sp--; stack[sp - 1] *= stack[sp]; break;
+                case DIV: sp--; stack[sp - 1] /= stack[sp]; break;
+                case NEG: stack[sp - 1] = -stack[sp - 1]; break;
+                case LT: sp--; stack[sp - 1] = truth(stack[sp - 1] < stack[sp]); break;
+                case LE: sp--; stack[sp - 1] = truth(stack[sp - 1] <= stack[sp]); break;
+                case GT: sp--; stack[sp - 1] = truth(stack[sp - 1] > stack[sp]); break;
+                case GE: sp--; stack[sp - 1] = truth(stack[sp - 1] >= stack[sp]); break;
+                case EQ: sp--; stack[sp - 1] = truth(stack[sp - 1] == stack[sp]); break;
+                case NE: sp--; stack[sp - 1] = truth(stack[sp - 1] != stack[sp]); break;
+                case AND: sp--; stack[sp - 1] = truth(stack[sp - 1] != 0 && stack[sp] != 0); break;
+                case OR: sp--; stack[sp - 1] = truth(stack[sp - 1] != 0 || stack[sp] != 0); break;
+                case MIN: sp--; stack[sp - 1] = Math.min(stack[sp - 1], stack[sp]); break;
+                case MAX: sp--; stack[sp - 1] = Math.max(stack[sp - 1], stack[sp]); break;
+                case ABS: stack[sp - 1] = Math.abs(stack[sp - 1]); break;
+                case SQRT: stack[sp - 1] = Math.sqrt(stack[sp - 1]); break;
+                case IF:
+                    sp -= 2;
+                    stack[sp - 1] = (stack[sp - 1] != 0) ? stack[sp] : stack[sp + 1];
+                    break;
+                case INTEGRATE: {
+                    int i = code[pc++];
+                    // Each value counts until the next arrives
+                    if (integralTimes[i] != Long.MIN_VALUE && timeMillis > integralTimes[i]) {
+                        integralSums[i] += integralValues[i] * (timeMillis - integralTimes[i]) / 1000.0;
+                    }
+                    if (integralTimes[i] == Long.MIN_VALUE || timeMillis > integralTimes[i]) {
+                        integralTimes[i] = timeMillis;
+                    }
+                    integralValues[i] = stack[sp - 1];
+                    stack[sp - 1] = integralSums[i];
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("bad opcode " + op);
+            }
+        }
+        double result = stack[0];
+        if (Double.isNaN(result) || Double.isInfinite(result) || result == last) {
+            return Double.NaN;
+        }
+        last = result;
+        publishedCount++;
+        return result;
+    }
+
+    private static double truth(boolean b) {
+        return b ? 1 : 0;
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the short name under which its values are delivered, as for a
+     *         subscription: "Name~sub"
+     */
+    public String getShortName() {
+        return shortName;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the endpoints the expression reads
+     */
+    public List<String> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return whether the endpoint has been removed from its Vehicle
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the number of times the expression has been run
+     */
+    public long getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * @return the number of values published
+     */
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    @Override
+    public String toString() {
+        return name + " = " + expression;
+    }
+
+    /**
+     * A recursive descent parser emitting the program as it goes.
+     */
+    private static final class Compiler {
+        private final String text;
+        private int pos;
+        private int[] code = new int[16];
+        private int length;
+        private final List<Double> constantList = new ArrayList<Double>();
+        final List<String> inputs = new ArrayList<String>();
+        int integrals;
+        private int depth;
+        int maxDepth;
+
+        Compiler(String text) {
+            if (text == null) {
+                throw new IllegalArgumentException("expression must not be null");
+            }
+            this.text = text;
+        }
+
+        void compile() {
+            orExpression();
+            skipSpace();
+            if (pos < text.length()) {
+                throw error("unexpected '" + text.charAt(pos) + "'");
+            }
+        }
+
+        int[] code() {
+            int[] array = new int[length];
+            System.arraycopy(code, 0, array, 0, length);
+            return array;
+        }
+
+        double[] constants() {
+            double[] array = new double[constantList.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = constantList.get(i);
+            }
+            return array;
+        }
+
+        private void orExpression() {
+            andExpression();
+            while (accept("||")) {
+                andExpression();
+                emit(OR, -1);
+            }
+        }
+
+        private void andExpression() {
+            comparison();
+            while (accept("&&")) {
+                comparison();
+                emit(AND, -1);
+            }
+        }
+
+        private void comparison() {
+            sum();
+            String[] operators = { "<=", ">=", "==", "!=", "<", ">" };
+            int[] opcodes = { LE, GE, EQ, NE, LT, GT };
+            for (int i = 0; i < operators.length; i++) {
+                if (accept(operators[i])) {
+                    sum();
+                    emit(opcodes[i], -1);
+                    return;
+                }
+            }
+        }
+
+        private void sum() {
+            product();
+            while (true) {
+                if (accept("+")) {
+                    product();
+                    emit(ADD, -1);
+                } else if (accept("-")) {
+                    product();
+                    emit(SUB, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void product() {
+            unary();
+            while (true) {
+                if (accept("*")) {
+                    unary();
+                    emit(MUL, -1);
+                } else if (accept("/")) {
+                    unary();
+                    emit(DIV, -1);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void unary() {
+            if (accept("-")) {
+                unary();
+                emit(NEG, 0);
+            } else {
+                primary();
+            }
+        }
+
+        private void primary() {
+            skipSpace();
+            if (accept("(")) {
+                orExpression();
+                expect(")");
+                return;
+            }
+            if (pos >= text.length()) {
+                throw error("expression ends too soon");
+            }
+            char c = text.charAt(pos);
+            if (Character.isDigit(c) || c == '.') {
+                number();
+            } else if (Character.isLetter(c) || c == '_') {
+                String word = word();
+                if (accept("(")) {
+                    call(word);
+                } else {
+                    int slot = inputs.indexOf(word);
+                    if (slot < 0) {
+                        slot = inputs.size();
+                        inputs.add(word);
+                    }
+                    emit(INPUT, 1, slot);
+                }
+            } else {
+                throw error("unexpected '" + c + "'");
+            }
+        }
+
+        private void call(String function) {
+            if ("min".equals(function) || "max".equals(function)) {
+                arguments(2);
+                emit("min".equals(function) ? MIN : MAX, -1);
+            } else if ("abs".equals(function) || "sqrt".equals(function)) {
+                arguments(1);
+                emit("abs".equals(function) ? ABS : SQRT, 0);
+            } else if ("if".equals(function)) {
+                arguments(3);
+                emit(IF, -2);
+            } else if ("integrate".equals(function)) {
+                arguments(1);
+                emit(INTEGRATE, 0, integrals++);
+            } else {
+                throw error("unknown function " + function);
+            }
+        }
+
+        private void arguments(int count) {
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    expect(",");
+                }
+                orExpression();
+            }
+            expect(")");
+        }
+
+        private void number() {
+            int start = pos;
+            while (pos < text.length()
+                    && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                pos++;
+            }
+            if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+                pos++;
+                if (pos < text.length() && (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+                    pos++;
+                }
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            try {
+                constantList.add(Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                throw error("bad number " + text.substring(start, pos));
+            }
+            emit(CONST, 1, constantList.size() - 1);
+        }
+
+        private String word() {
+            int start = pos;
+            while (pos < text.length()
+                    && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private void emit(int op, int stackChange) {
+            grow(1);
+            code[length++] = op;
+            adjust(stackChange);
+        }
+
+        private void emit(int op, int stackChange, int operand) {
+            grow(2);
+            code[length++] = op;
+            code[length++] = operand;
+            adjust(stackChange);
+        }
+
+        private void adjust(int stackChange) {
+            depth += stackChange;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void grow(int more) {
+            if (length + more > code.length) {
+                int[] grown = new int[code.length * 2 + more];
+                System.arraycopy(code, 0, grown, 0, length);
+                code = grown;
+            }
+        }
+
+        private boolean accept(String token) {
+            skipSpace();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("expected '" + token + "'");
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in \"" + text + "\"");
+        }
+    }
+}
@@ -19,12 +19,21 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Device {
 	private static final String TAG = "com.digi.wva.device.Device";
+	public static final int DEFAULT_BULK_CONCURRENCY = 8;
+	public static final int DEFAULT_BULK_RETRIES = 2;
+	private static ExecutorService sharedExecutor;
 	private String hostname;
 	private int port;
 
@@ -35,6 +44,18 @@ public class Device {
 	private WvaHttpClient httpClient;
 	private TCPReceiver receiver;
 	private MessageHandler msgHandler;
+	private EventChannelEngine engine;
+	private EventChannel channel;
+	private int maxFrameLength = JsonFramer.DEFAULT_MAX_FRAME_LENGTH;
+	private int queueCapacity = EventRing.DEFAULT_CAPACITY;
+	private EventRing.OverflowPolicy overflowPolicy = EventRing.OverflowPolicy.BLOCK;
+	private int maxBatchSize = 1;
+	private ReconnectScheduler reconnectScheduler = ReconnectScheduler.getShared();
+	private Executor executor;
+	private final IngestMetrics metrics = new IngestMetrics();
+	private CaptureWriter captureWriter;
+	private int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+	private int bulkRetries = DEFAULT_BULK_RETRIES;
 
     protected Device() {
 
@@ -51,10 +72,21 @@ public class Device {
 	 * Device Constructor
 	 */
 	public Device(String hostname, int subscriptionPort, boolean needsAuth, String authUser, String authPass, boolean useHttps) {
+		this(hostname, subscriptionPort, needsAuth, authUser, authPass, useHttps, new HttpPoolConfig());
+	}
+
+	/**
+	 * Device Constructor
+	 *
+	 * @param poolConfig How the device's web service connections are kept
+	 */
+	public Device(String hostname, int subscriptionPort, boolean needsAuth, String authUser, String authPass,
+			boolean useHttps, HttpPoolConfig poolConfig) {
 		this.hostname = hostname;
 		this.port = subscriptionPort;
-        this.httpClient = new WvaHttpClient(hostname, needsAuth, authUser, authPass, useHttps);
+        this.httpClient = new WvaHttpClient(hostname, needsAuth, authUser, authPass, useHttps, poolConfig);
 		this.vehicle = new Vehicle(httpClient);
+		this.vehicle.setIngestMetrics(metrics);
 		this.ecu = new Ecu(httpClient);
 		this.hardware = new Hardware(httpClient);
 	}
@@ -74,6 +106,7 @@ public class Device {
         dev.vehicle    = ((vehicle != null) ? vehicle : new Vehicle(client));
         dev.ecu        = ((ecu != null)     ? ecu     : new Ecu(client));
         dev.hardware   = ((hw != null)      ? hw      : new Hardware(client));
+        dev.vehicle.setIngestMetrics(dev.metrics);
 
         return dev;
     }
@@ -84,9 +117,210 @@ public class Device {
      */
 
 	public boolean isDataStreamDisconnected() {
+		if (this.channel != null) {
+			return this.channel.isClosed();
+		}
 		return ((this.receiver == null || this.receiver.isStopped()));
 	}
 
+    /**
+     * Serve this device's data stream from the given engine's shared I/O
+     * threads, rather than starting a TCPReceiver and MessageHandler thread
+     * for it. Takes effect the next time connectDataStream is called.
+     *
+     * @param engine A started engine, or null to go back to dedicated threads
+     */
+    public void setEventChannelEngine(EventChannelEngine engine) {
+        this.engine = engine;
+    }
+
+    public EventChannelEngine getEventChannelEngine() {
+        return engine;
+    }
+
+    /**
+     * Sets the longest message accepted on the data stream; longer messages
+     * are discarded. Takes effect the next time connectDataStream is called.
+     *
+     * @param maxFrameLength The limit, in bytes. Defaults to
+     *                       {@link JsonFramer#DEFAULT_MAX_FRAME_LENGTH}.
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength < 2) {
+            throw new IllegalArgumentException("maxFrameLength must be at least 2");
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Returns the framer of the current data stream connection, whose
+     * counters describe the messages received on it.
+     *
+     * @return the framer, or null if connectDataStream has not been called
+     */
+    public JsonFramer getFramer() {
+        if (channel != null) {
+            return channel.getFramer();
+        }
+        return (receiver == null) ? null : receiver.getFramer();
+    }
+
+    /**
+     * Sets the size of the queue between the thread reading the data stream
+     * and the thread calling listeners, and what happens when it is full.
+     * Takes effect the next time connectDataStream is called. Has no effect
+     * on a data stream served by an {@link EventChannelEngine}, which calls
+     * listeners from the reading thread.
+     *
+     * @param capacity The number of events held. Defaults to
+     *                 {@link EventRing#DEFAULT_CAPACITY}.
+     * @param policy Defaults to {@link EventRing.OverflowPolicy#BLOCK}, which
+     *               stops reading from the socket until there is room.
+     */
+    public void setEventQueue(int capacity, EventRing.OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.queueCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * Returns the event queue of the current data stream connection, whose
+     * counters show how far the listeners are behind.
+     *
+     * @return the queue, or null if there is none
+     */
+    public EventRing getEventQueue() {
+        return (receiver == null || channel != null) ? null : receiver.getIncoming();
+    }
+
+    /**
+     * Returns what the data stream has received so far: message and byte
+     * rates, failures, queue depth, per-endpoint rates and the lag from the
+     * WVA sending an event to its dispatch to listeners. Rates cover the
+     * time since the previous call.
+     */
+    public IngestSnapshot getIngestSnapshot() {
+        return metrics.snapshot(getEventQueue());
+    }
+
+    /**
+     * Returns how many web service connections are in use and idle, and how
+     * many have been opened and reused so far.
+     */
+    public HttpPoolStats getHttpPoolStats() {
+        return httpClient.getPoolStats();
+    }
+
+    IngestMetrics getIngestMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets how many queued events may be handed to listeners at once. With
+     * more than 1, each {@link com.digi.wva.async.BatchListener} is called
+     * once for all of its events waiting in the queue, up to this many,
+     * instead of once per event. Takes effect the next time
+     * connectDataStream is called. Has no effect on a data stream served by
+     * an {@link EventChannelEngine}.
+     *
+     * @param maxBatchSize Defaults to 1, which hands events over one at a
+     *                     time
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Runs this device's TCPReceiver and MessageHandler on the given
+     * executor, rather than starting two new threads each time the data
+     * stream is connected. Takes effect the next time connectDataStream is
+     * called. Has no effect on a data stream served by an
+     * {@link EventChannelEngine}.
+     *
+     * <p>Each connection occupies two of the executor's threads for as long
+     * as it is open, so a bounded executor must allow for two per connected
+     * device. To bound the threads used for many devices regardless of
+     * their number, use an EventChannelEngine instead. An executor may wrap
+     * a ThreadFactory of the caller's choosing, such as one making virtual
+     * threads on a JVM which has them.</p>
+     *
+     * @param executor The executor, such as {@link #getSharedExecutor()}, or
+     *                 null to go back to dedicated threads
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns a pool which any number of devices can share via
+     * {@link #setExecutor(Executor)}. It starts threads as they are needed
+     * and keeps idle ones for a minute, so that reconnecting reuses the
+     * threads of the connection which was closed.
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new EventChannelEngine.NamedThreadFactory("WVA-data-stream-"));
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Records the raw bytes of the data stream to the given capture, so that
+     * it can be played back later by
+     * {@link #replayDataStream(CaptureReplay, DeviceConnectionListener)}.
+     * Takes effect the next time connectDataStream is called. Has no effect
+     * on a data stream served by an {@link EventChannelEngine}.
+     *
+     * @param captureWriter The capture, or null to stop recording. It is not
+     *                      closed by the Device.
+     */
+    public void setCaptureWriter(CaptureWriter captureWriter) {
+        this.captureWriter = captureWriter;
+    }
+
+    public CaptureWriter getCaptureWriter() {
+        return captureWriter;
+    }
+
+    /**
+     * Sets the scheduler used by {@link DeviceConnectionListener#reconnect}
+     * to reconnect this device's data stream after losing it.
+     *
+     * @param scheduler Defaults to {@link ReconnectScheduler#getShared()}
+     */
+    public void setReconnectScheduler(ReconnectScheduler scheduler) {
+        if (scheduler == null) {
+            throw new NullPointerException("scheduler");
+        }
+        this.reconnectScheduler = scheduler;
+    }
+
+    public ReconnectScheduler getReconnectScheduler() {
+        return reconnectScheduler;
+    }
+
 
 	/**
 	 * Turns on the TCP stream which conveys subscription and alarm data.
@@ -94,12 +328,53 @@ public class Device {
 	 * data will be sent.
 	 */
 	public void connectDataStream(final int port, final DeviceConnectionListener listener) {
+        JsonFramer framer = new JsonFramer(maxFrameLength);
+        if (engine != null) {
+            channel = engine.open(this, vehicle, hostname, port, listener, framer);
+            return;
+        }
         receiver = new TCPReceiver(this, hostname, port, listener);
-        msgHandler = new MessageHandler(receiver, vehicle);
-        receiver.start();
-        msgHandler.start();
+        receiver.setCapture(captureWriter);
+        startReceiver(framer);
 	}
 
+    /**
+     * Feeds a capture into this device in place of the data stream, through
+     * the same queue, handler and listeners. The data stream must not be
+     * connected; disconnectDataStream stops the replay.
+     *
+     * @param replay The capture to play
+     * @param listener Told when the replay starts, and, through
+     *                 {@link DeviceConnectionListener#onRemoteClose}, when it
+     *                 has ended. If null, the end of the replay is ignored,
+     *                 rather than reconnecting to the device as the default
+     *                 listener would.
+     */
+    public void replayDataStream(CaptureReplay replay, DeviceConnectionListener listener) {
+        if (listener == null) {
+            listener = new DeviceConnectionListener() {
+                @Override
+                public void onRemoteClose(Device device, int port) { }
+            };
+        }
+        receiver = new TCPReceiver(this, replay.openSocket(), listener);
+        startReceiver(new JsonFramer(maxFrameLength));
+    }
+
+    private void startReceiver(JsonFramer framer) {
+        receiver.setFramer(framer);
+        receiver.setMetrics(metrics);
+        receiver.setIncoming(new EventRing(queueCapacity, overflowPolicy));
+        msgHandler = new MessageHandler(receiver, vehicle, maxBatchSize);
+        if (executor != null) {
+            executor.execute(receiver);
+            executor.execute(msgHandler);
+        } else {
+            receiver.start();
+            msgHandler.start();
+        }
+    }
+
     /**
      * Sets the port on the WVA device which should be used to convey the data
      * stream. This call may make the data stream unavailable for multiple
@@ -175,13 +450,48 @@ public class Device {
      *
 	 */
 	public void disconnectDataStream() {
+		if (this.reconnectScheduler != null)
+			this.reconnectScheduler.cancel(this);
+		closeDataStream();
+	}
+
+	/**
+	 * Disconnects the data stream, and closes the web service connections
+	 * and stops their threads. The Device cannot be used afterwards.
+	 */
+	public void close() {
+		disconnectDataStream();
+		this.httpClient.shutdown();
+	}
+
+	/**
+	 * Closes the data stream and opens it again, without cancelling the
+	 * reconnect which is doing so.
+	 */
+	void reconnectDataStream(int port, DeviceConnectionListener listener) {
+		closeDataStream();
+		connectDataStream(port, listener);
+	}
+
+	/**
+	 * Called when the data stream has connected.
+	 */
+	void dataStreamConnected() {
+		if (this.reconnectScheduler != null)
+			this.reconnectScheduler.connected(this);
+	}
+
+	private void closeDataStream() {
 		if (this.receiver != null)
 			this.receiver.stopThread();
 		if (this.msgHandler != null)
 			this.msgHandler.stopThread();
+		if (this.channel != null)
+			this.channel.close();
 
 		this.receiver = null;
 		this.msgHandler = null;
+		this.channel = null;
 	}
 
 	/**
@@ -292,6 +602,72 @@ public class Device {
             }
     }
 
+    /**
+     * Subscribes to many endpoints at once, such as every endpoint returned
+     * from initVehicleData, with at most {@link #setBulkConcurrency(int)}
+     * requests in flight and each failed request retried up to
+     * {@link #setBulkRetries(int)} times. Much quicker than subscribing to
+     * them one by one, waiting for each.
+     *
+     * @param endpointIntervals The interval of time between updates for
+     *                          each endpoint
+     * @param listener Added for each endpoint subscribed to, or null
+     * @param callback Executed once every request has completed, with an
+     *                 error if any endpoint could not be subscribed to
+     */
+    public void subscribeAll(Map<String, Integer> endpointIntervals, WvaListener listener,
+                             WvaCallback<BulkResult> callback) {
+        vehicle.subscribeAll(endpointIntervals, listener, bulkConcurrency, bulkRetries, callback);
+    }
+
+    /**
+     * Unsubscribes from many endpoints at once, as
+     * {@link #subscribeAll(Map, WvaListener, WvaCallback)} subscribes.
+     *
+     * @param endpoints The names of the data endpoints
+     * @param removeListeners If true, unregister all listeners at the endpoints
+     * @param callback Executed once every request has completed, with an
+     *                 error if any endpoint could not be unsubscribed from
+     */
+    public void unsubscribeAll(Collection<String> endpoints, boolean removeListeners,
+                               WvaCallback<BulkResult> callback) {
+        vehicle.unsubscribeAll(endpoints, removeListeners, bulkConcurrency, bulkRetries, callback);
+    }
+
+    /**
+     * Sets how many requests subscribeAll and unsubscribeAll keep in flight
+     * at once.
+     *
+     * @param concurrency Defaults to {@link #DEFAULT_BULK_CONCURRENCY}
+     */
+    public void setBulkConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.bulkConcurrency = concurrency;
+    }
+
+    public int getBulkConcurrency() {
+        return bulkConcurrency;
+    }
+
+    /**
+     * Sets how many times subscribeAll and unsubscribeAll send a failed
+     * request again.
+     *
+     * @param retries Defaults to {@link #DEFAULT_BULK_RETRIES}
+     */
+    public void setBulkRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative");
+        }
+        this.bulkRetries = retries;
+    }
+
+    public int getBulkRetries() {
+        return bulkRetries;
+    }
+
     /**
      * Ends the constant updating of the given endpoint. if deleteCallbacks is
      * true, *all* listeners for that endpoint will be disassociated as well.
@@ -38,25 +38,45 @@ public abstract class DeviceConnectionListener {
     }
 
     /**
-     * Sleep the current thread, disconnect the data stream and reconnect it.
+     * Disconnect the data stream and reconnect it after the given delay.
+     * Returns immediately; the reconnect is made by the device's
+     * {@link ReconnectScheduler}, and is cancelled if
+     * {@link Device#disconnectDataStream()} is called in the meantime.
      * @param device the Device to be manipulated
-     * @param millis length of time to sleep the thread, in milliseconds
+     * @param millis length of time to wait, in milliseconds
      * @param port port to connect to upon reconnect
      */
     public final void reconnectAfter(Device device, long millis, int port) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            // An interruption will presumably be caused by us wanting to
-            // stop this thread... so let's abort the whole reconnection
-            // process.
-            Log.e("DeviceConnectionListener",
-                    "Sleep before disconnect-reconnect was interrupted!", e);
+        if (device == null) {
+            Log.e("DeviceConnectionListener", "Cannot reconnect without a Device");
             return;
         }
+        schedulerFor(device).scheduleAfter(device, port, this, millis);
+    }
+
+    /**
+     * Disconnect the data stream and reconnect it after a delay which
+     * starts short and grows with each failed attempt (see
+     * {@link ReconnectScheduler}). Returns immediately, and is cancelled if
+     * {@link Device#disconnectDataStream()} is called in the meantime.
+     * @param device the Device to be manipulated
+     * @param port port to connect to upon reconnect
+     */
+    public final void reconnect(Device device, int port) {
+        if (device == null) {
+            Log.e("DeviceConnectionListener", "Cannot reconnect without a Device");
+            return;
+        }
+        schedulerFor(device).schedule(device, port, this);
+    }
 
-        device.disconnectDataStream();
-        device.connectDataStream(port, this);
+    private static ReconnectScheduler schedulerFor(Device device) {
+        ReconnectScheduler scheduler = device.getReconnectScheduler();
+        if (scheduler == null) {
+            Log.w("DeviceConnectionListener", "Device has no ReconnectScheduler; using the shared one");
+            scheduler = ReconnectScheduler.getShared();
+        }
+        return scheduler;
     }
 
     /**
@@ -94,15 +114,15 @@ public abstract class DeviceConnectionListener {
      * on the device has restarted, or because the device is shutting down)
      *
      * <p>The default implementation calls
-     * {@link #reconnectAfter(com.digi.wva.device.Device, long, int)}
-     * with 15000 as the second parameter (i.e. "reconnect after 15 seconds").</p>
+     * {@link #reconnect(com.digi.wva.device.Device, int)}, which retries
+     * quickly at first and then backs off.</p>
      *
      * @param device the {@link Device} associated with the TCPReceiver which
      *               triggered this call
      * @param port the port which we were connected to
      */
     public void onRemoteClose(Device device, int port) {
-        reconnectAfter(device, 15000, port);
+        reconnect(device, port);
     }
 
     /**
@@ -0,0 +1,153 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The vehicle data endpoints a WVA offers, each given a dense integer ID
+ * from 0 to {@link #size()} - 1 in the order they were listed. A Vehicle
+ * builds one on initialization and indexes its per-endpoint state by ID.
+ *
+ * <p>A catalog never changes once built. Looking a name up neither locks
+ * nor allocates.</p>
+ */
+public final class EndpointCatalog {
+    /** A catalog with no endpoints, as a Vehicle has before it is initialized. */
+    public static final EndpointCatalog EMPTY = new EndpointCatalog(new String[0]);
+
+    private final String[] names;
+    /** Open-addressed table of ID + 1, 0 for an empty slot. */
+    private final int[] table;
+    private final int mask;
+    private final Set<String> nameSet;
+
+    private EndpointCatalog(String[] names) {
+        this.names = names;
+        int size = Integer.highestOneBit(Math.max(2, names.length * 2 - 1)) << 1;
+        this.table = new int[size];
+        this.mask = size - 1;
+        for (int id = 0; id < names.length; id++) {
+            int slot = names[id].hashCode() & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        this.nameSet = new NameSet();
+    }
+
+    /**
+     * Builds a catalog of the given names, ignoring repeats.
+     */
+    public static EndpointCatalog of(Collection<String> names) {
+        Set<String> unique = new LinkedHashSet<String>(names);
+        unique.remove(null);
+        return new EndpointCatalog(unique.toArray(new String[unique.size()]));
+    }
+
+    /**
+     * @return a catalog holding this one's names, with their IDs, followed by
+     *         any of the given names which this one lacks
+     */
+    public EndpointCatalog plus(Collection<String> more) {
+        Set<String> unique = new LinkedHashSet<String>(Arrays.asList(names));
+        unique.addAll(more);
+        unique.remove(null);
+        if (unique.size() == names.length) {
+            return this;
+        }
+        return new EndpointCatalog(unique.toArray(new String[unique.size()]));
+    }
+
+    /**
+     * @return the endpoint's ID, or -1 if it is not in the catalog
+     */
+    public int idOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        int slot = name.hashCode() & mask;
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(String name) {
+        return idOf(name) >= 0;
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if there is no such ID
+     */
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return the names, in ID order, as a set which cannot be modified
+     */
+    public Set<String> names() {
+        return nameSet;
+    }
+
+    /**
+     * A read-only view of the names whose contains() uses the table.
+     */
+    private final class NameSet extends AbstractSet<String> {
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof String) && idOf((String) o) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < names.length;
+                }
+
+                @Override
+                public String next() {
+                    if (next >= names.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return names[next++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
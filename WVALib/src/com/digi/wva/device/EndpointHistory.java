@@ -0,0 +1,255 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+/**
+ * The recent values of one endpoint, kept as a ring of parallel
+ * {@code long} timestamps and {@code double} values: 16 bytes a sample,
+ * however many readers there are.
+ *
+ * <p>The ring holds at most its capacity in samples. If it also has a time
+ * span, samples older than the span (measured back from the newest sample)
+ * are no longer returned, though they are only overwritten as new samples
+ * arrive.</p>
+ *
+ * <p>Samples are added by the thread handling the data stream and may be
+ * read from any thread, either copied out with {@link #get(long, long)} or
+ * walked in place with a {@link Cursor}.</p>
+ */
+public class EndpointHistory {
+    private final long[] times;
+    private final double[] values;
+    private final int capacity;
+    private final long spanMillis;
+
+    /** Sequence number of the next sample to be written. */
+    private long tail;
+    /** Sequence number of the first sample since the last clear(). */
+    private long start;
+
+    /**
+     * A copy of part of a history, oldest first.
+     */
+    public static final class Samples {
+        private final long[] times;
+        private final double[] values;
+
+        Samples(long[] times, double[] values) {
+            this.times = times;
+            this.values = values;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        /**
+         * @return the time of the i'th sample, in milliseconds since the epoch
+         */
+        public long getTime(int i) {
+            return times[i];
+        }
+
+        public double getValue(int i) {
+            return values[i];
+        }
+
+        /**
+         * @return the timestamps; the array belongs to this object
+         */
+        public long[] getTimes() {
+            return times;
+        }
+
+        /**
+         * @return the values; the array belongs to this object
+         */
+        public double[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * Walks the samples of a history within a range of times, oldest first,
+     * reading them straight out of the ring. A cursor can be pointed at a new
+     * range with {@link #seek(long, long)} and used again, so that a reader
+     * polling the history does not allocate anything.
+     *
+     * <p>Samples overwritten while the cursor is walking the ring are
+     * skipped. A cursor is used by one thread at a time.</p>
+     */
+    public final class Cursor {
+        private long next;
+        private long fromMillis;
+        private long toMillis;
+        private long time;
+        private double value;
+
+        Cursor(long fromMillis, long toMillis) {
+            seek(fromMillis, toMillis);
+        }
+
+        /**
+         * Starts again from the oldest sample, walking samples whose times
+         * are from fromMillis to toMillis, inclusive.
+         */
+        public void seek(long fromMillis, long toMillis) {
+            this.toMillis = toMillis;
+            synchronized (EndpointHistory.this) {
+                next = oldest();
+                this.fromMillis = Math.max(fromMillis, earliestInSpan());
+            }
+        }
+
+        /**
+         * Moves to the next sample in the range.
+         *
+         * @return false when there are no more
+         */
+        public boolean next() {
+            synchronized (EndpointHistory.this) {
+                next = Math.max(next, oldest());
+                while (next < tail) {
+                    int i = index(next++);
+                    long t = times[i];
+                    if (t >= fromMillis && t <= toMillis) {
+                        time = t;
+                        value = values[i];
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        /**
+         * @return the time of the current sample, in milliseconds since the
+         *         epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * @param capacity the most samples kept
+     * @param spanMillis how far back from the newest sample to keep samples,
+     *                   or 0 to keep as many as fit
+     */
+    public EndpointHistory(int capacity, long spanMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (spanMillis < 0) {
+            throw new IllegalArgumentException("spanMillis must not be negative");
+        }
+        this.capacity = capacity;
+        this.spanMillis = spanMillis;
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSpanMillis() {
+        return spanMillis;
+    }
+
+    /**
+     * Adds a sample, overwriting the oldest if the ring is full.
+     *
+     * @param timeMillis the sample's time, in milliseconds since the epoch
+     */
+    public synchronized void add(long timeMillis, double value) {
+        int i = index(tail);
+        times[i] = timeMillis;
+        values[i] = value;
+        tail++;
+    }
+
+    /**
+     * @return the number of samples held, within the time span if there is
+     *         one
+     */
+    public synchronized int size() {
+        long earliest = earliestInSpan();
+        int count = 0;
+        for (long s = oldest(); s < tail; s++) {
+            if (times[index(s)] >= earliest) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies out the samples whose times are from fromMillis to toMillis,
+     * inclusive.
+     */
+    public synchronized Samples get(long fromMillis, long toMillis) {
+        long from = Math.max(fromMillis, earliestInSpan());
+        int count = 0;
+        for (long s = oldest(); s < tail; s++) {
+            long t = times[index(s)];
+            if (t >= from && t <= toMillis) {
+                count++;
+            }
+        }
+        long[] t = new long[count];
+        double[] v = new double[count];
+        int n = 0;
+        for (long s = oldest(); s < tail && n < count; s++) {
+            int i = index(s);
+            if (times[i] >= from && times[i] <= toMillis) {
+                t[n] = times[i];
+                v[n] = values[i];
+                n++;
+            }
+        }
+        return new Samples(t, v);
+    }
+
+    /**
+     * @return a cursor over the samples whose times are from fromMillis to
+     *         toMillis, inclusive
+     */
+    public Cursor cursor(long fromMillis, long toMillis) {
+        return new Cursor(fromMillis, toMillis);
+    }
+
+    /**
+     * Throws away every sample.
+     */
+    public synchronized void clear() {
+        start = tail;
+    }
+
+    private long oldest() {
+        return Math.max(start, tail - capacity);
+    }
+
+    /**
+     * @return the earliest time within the span of the newest sample
+     */
+    private long earliestInSpan() {
+        if (spanMillis == 0 || tail == start) {
+            return Long.MIN_VALUE;
+        }
+        return times[index(tail - 1)] - spanMillis;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+}
@@ -0,0 +1,233 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import android.util.Log;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.exc.DisconnectedException;
+import com.digi.wva.exc.FailedConnectionException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking counterpart of {@link TCPReceiver} and
+ * {@link MessageHandler}: one device's event channel socket, as served by an
+ * {@link EventChannelEngine} I/O thread.
+ *
+ * <p>All methods except {@link #close()} and {@link #isClosed()} are only
+ * called from the I/O thread which owns this channel.</p>
+ */
+class EventChannel implements JsonFramer.FrameListener {
+    private static final String TAG = "com.digi.wva.device.EventChannel";
+    static final int READ_BUFFER_SIZE = 8192;
+
+    private final EventChannelEngine engine;
+    private final EventChannelEngine.IoLoop loop;
+    private final Device device;
+    private final Vehicle vehicle;
+    private final String hostname;
+    private final int port;
+    private final DeviceConnectionListener listener;
+    private final JsonFramer framer;
+    private final EventDecoder decoder = new EventDecoder();
+    private final IngestMetrics metrics;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile SocketChannel socket;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    EventChannel(EventChannelEngine engine, EventChannelEngine.IoLoop loop, Device device,
+                 Vehicle vehicle, String hostname, int port, DeviceConnectionListener listener,
+                 JsonFramer framer) {
+        this.engine = engine;
+        this.loop = loop;
+        this.device = device;
+        this.vehicle = vehicle;
+        this.hostname = hostname;
+        this.port = port;
+        this.listener = listener;
+        this.framer = framer;
+        this.metrics = device.getIngestMetrics();
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    JsonFramer getFramer() {
+        return framer;
+    }
+
+    /**
+     * Initiates the connection and registers the socket with the given
+     * selector.
+     */
+    void connect(Selector selector) {
+        if (closed.get()) {
+            return;
+        }
+        SocketChannel s;
+        boolean connectedNow;
+        try {
+            s = SocketChannel.open();
+            socket = s;
+            if (closed.get()) {
+                // close() ran before the socket was published for it to see
+                closeSocket();
+                return;
+            }
+            s.configureBlocking(false);
+            connectedNow = s.connect(new InetSocketAddress(hostname, port));
+        } catch (Exception e) {
+            stop(new FailedConnectionException("Failed to connect to TCP socket on port " + port, e));
+            return;
+        }
+
+        try {
+            if (connectedNow) {
+                s.register(selector, SelectionKey.OP_READ, this);
+                connected();
+            } else {
+                s.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (ClosedChannelException e) {
+            // close() was called in the meantime
+            closeQuietly();
+        }
+    }
+
+    void finishConnect(SelectionKey key) {
+        try {
+            socket.finishConnect();
+        } catch (IOException e) {
+            stop(new FailedConnectionException("Failed to connect to TCP socket on port " + port, e));
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        connected();
+    }
+
+    private void connected() {
+        device.dataStreamConnected();
+        engine.runCallback(new Runnable() {
+            @Override
+            public void run() {
+                listener.onConnected(device);
+            }
+        });
+    }
+
+    /**
+     * Reads whatever is available from the socket and dispatches every
+     * complete message in it.
+     */
+    void read() {
+        int count;
+        try {
+            count = socket.read(readBuffer);
+        } catch (IOException e) {
+            Log.i(TAG, "IOException in EventChannel");
+            stop(e);
+            return;
+        }
+
+        if (count < 0) {
+            Log.i(TAG, "Socket closed on remote end");
+            stop(new DisconnectedException("Socket closed on remote end"));
+            return;
+        }
+
+        metrics.bytesReceived(count);
+        long oversized = framer.getOversizedCount();
+        framer.feed(readBuffer.array(), 0, readBuffer.position(), this);
+        metrics.oversized(framer.getOversizedCount() - oversized);
+        readBuffer.clear();
+    }
+
+    /**
+     * Turns one frame into an Event and gives it to the Vehicle, as
+     * {@link TCPReceiver} and {@link MessageHandler} do between them.
+     */
+    @Override
+    public void onFrame(byte[] frame, int length) {
+        metrics.frameReceived();
+        try {
+            Event e = decoder.decodeEvent(frame, 0, length);
+            if (e != null) {
+                vehicle.updateCached(e);
+            } else {
+                metrics.parseFailed();
+                Log.i(TAG, "Message wasn't parsed...");
+            }
+        } catch (Exception e) {
+            // Keep one misbehaving listener from taking down the I/O thread.
+            Log.e(TAG, "Exception while dispatching event", e);
+        }
+    }
+
+    /**
+     * Closes the socket because of an error, and reports it to the
+     * listener the same way {@link TCPReceiver#stopThread(IOException)}
+     * does.
+     */
+    private void stop(final IOException e) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        closeSocket();
+        engine.runCallback(new Runnable() {
+            @Override
+            public void run() {
+                if (e instanceof DisconnectedException) {
+                    listener.onRemoteClose(device, port);
+                } else if (e instanceof FailedConnectionException) {
+                    listener.onFailedConnection(device, port);
+                } else {
+                    listener.onError(device, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the socket without notifying the listener. Safe to call from
+     * any thread.
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            closeSocket();
+            loop.selector.wakeup();
+        }
+    }
+
+    void closeQuietly() {
+        closed.set(true);
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        SocketChannel s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
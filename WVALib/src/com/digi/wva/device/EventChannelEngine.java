@@ -0,0 +1,263 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the event channel sockets of any number of {@link Device} instances
+ * from a small, fixed pool of I/O threads, instead of the
+ * {@link TCPReceiver}/{@link MessageHandler} thread pair that
+ * {@link Device#connectDataStream(int, DeviceConnectionListener)} starts for
+ * every device by default.
+ *
+ * <p>Each I/O thread owns one {@link Selector}. Sockets are assigned to the
+ * threads round-robin, read without blocking, and every complete message is
+ * parsed and handed to the owning device's {@link Vehicle} on the I/O thread
+ * itself. Listeners should therefore return quickly; a listener which blocks
+ * will delay every other device served by the same thread.</p>
+ *
+ * <p>Connections are made from the I/O threads as well, so host names are
+ * resolved there. WVA devices are normally addressed by IP address, in which
+ * case no lookup takes place.</p>
+ *
+ * <p>{@link DeviceConnectionListener} callbacks are not run on the I/O
+ * threads, since an application's callbacks may block. (The default
+ * {@link DeviceConnectionListener#onRemoteClose} does not: it leaves the
+ * reconnect to the device's {@link ReconnectScheduler} and returns.) They
+ * are run on a separate pool of daemon threads which only exist while
+ * callbacks are running.</p>
+ *
+ * <p>To use an engine, hand it to each device with
+ * {@link Device#setEventChannelEngine(EventChannelEngine)} before calling
+ * connectDataStream. One engine is meant to be shared by every device in the
+ * process.</p>
+ */
+public class EventChannelEngine {
+    private static final String TAG = "com.digi.wva.device.EventChannelEngine";
+    /** How long an idle callback thread is kept around, in seconds. */
+    private static final int CALLBACK_KEEP_ALIVE = 5;
+
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ExecutorService callbackExecutor;
+    private volatile boolean running;
+    private boolean shutDown;
+
+    /**
+     * Creates an engine with one I/O thread per available processor.
+     */
+    public EventChannelEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine with the given number of I/O threads. The threads
+     * are started by {@link #start()}.
+     *
+     * @param ioThreads the number of selector threads to serve sockets with
+     */
+    public EventChannelEngine(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("ioThreads must be at least 1");
+        }
+        this.loops = new IoLoop[ioThreads];
+        this.callbackExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                CALLBACK_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new NamedThreadFactory("WVA-event-callback-"));
+    }
+
+    /**
+     * Opens the selectors and starts the I/O threads. Calling this method
+     * more than once has no effect, but an engine which has been shut down
+     * cannot be started again.
+     *
+     * @throws IOException if a selector could not be opened
+     * @throws IllegalStateException if the engine has been shut down
+     */
+    public synchronized void start() throws IOException {
+        if (shutDown) {
+            throw new IllegalStateException("EventChannelEngine has been shut down");
+        }
+        if (running) {
+            return;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+        }
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "WVA-event-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Closes every socket served by this engine, including those still
+     * waiting to be connected, and stops its threads for good. No
+     * {@link DeviceConnectionListener} callbacks are made for the sockets
+     * which are closed this way.
+     */
+    public synchronized void shutdown() {
+        shutDown = true;
+        if (!running) {
+            callbackExecutor.shutdown();
+            return;
+        }
+        running = false;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        callbackExecutor.shutdown();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of I/O threads used by this engine
+     */
+    public int getIoThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Creates an event channel for the given device and queues it to be
+     * connected by one of the I/O threads.
+     */
+    EventChannel open(Device device, Vehicle vehicle, String hostname, int port,
+                      DeviceConnectionListener listener, JsonFramer framer) {
+        if (!running) {
+            throw new IllegalStateException("EventChannelEngine has not been started");
+        }
+        if (listener == null) {
+            listener = DeviceConnectionListener.getDefault();
+        }
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        EventChannel channel = new EventChannel(this, loops[index], device, vehicle,
+                                                hostname, port, listener, framer);
+        loops[index].register(channel);
+        return channel;
+    }
+
+    /**
+     * Runs a connection callback off the I/O threads.
+     */
+    void runCallback(Runnable callback) {
+        try {
+            callbackExecutor.execute(callback);
+        } catch (Exception e) {
+            // Executor has been shut down; the engine is going away.
+            Log.d(TAG, "Dropping connection callback after shutdown");
+        }
+    }
+
+    /**
+     * One selector and the thread which services it.
+     */
+    final class IoLoop implements Runnable {
+        final Selector selector;
+        private final Queue<EventChannel> pending = new ConcurrentLinkedQueue<EventChannel>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Queues a channel to be connected and registered with this loop's
+         * selector.
+         */
+        void register(EventChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+            if (!running) {
+                // Shut down since open() checked; the loop may be gone
+                closePending();
+            }
+        }
+
+        private void closePending() {
+            EventChannel channel;
+            while ((channel = pending.poll()) != null) {
+                channel.closeQuietly();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.e(TAG, "select() failed", e);
+                    break;
+                }
+
+                EventChannel newChannel;
+                while ((newChannel = pending.poll()) != null) {
+                    newChannel.connect(selector);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    EventChannel channel = (EventChannel) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        channel.finishConnect(key);
+                    } else if (key.isReadable()) {
+                        channel.read();
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((EventChannel) key.attachment()).closeQuietly();
+            }
+            closePending();
+            try {
+                selector.close();
+            } catch (IOException ignored) { }
+            Log.d(TAG, "End of I/O loop");
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
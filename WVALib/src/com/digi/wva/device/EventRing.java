@@ -0,0 +1,392 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The queue between a {@link TCPReceiver} and its {@link MessageHandler}:
+ * a fixed ring of preallocated slots with exactly one producer thread and
+ * one consumer thread.
+ *
+ * <p>Decoded events are copied into the slots field by field, so the
+ * receiving thread does not allocate anything to queue an event. Neither
+ * side takes a lock, except when events are being coalesced.</p>
+ *
+ * <p>What happens when the ring is full is decided by its
+ * {@link OverflowPolicy}. Every policy other than {@link OverflowPolicy#BLOCK}
+ * keeps the receiving thread reading from the socket however far behind the
+ * listeners fall, without letting the queue grow beyond its capacity (plus,
+ * for {@link OverflowPolicy#COALESCE}, one event per short name).</p>
+ */
+public class EventRing {
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /**
+     * What to do with a new event when the ring is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until the consumer makes room. The default. */
+        BLOCK,
+        /** Throw away the oldest queued event to make room. */
+        DROP_OLDEST,
+        /** Throw away the new event. */
+        DROP_NEWEST,
+        /**
+         * Hold the new event aside, keeping only the latest one for each
+         * short name, until the consumer has emptied the ring.
+         */
+        COALESCE
+    }
+
+    private final Slot[] slots;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    /** Sequence number of the next slot to read. */
+    private final AtomicLong head = new AtomicLong();
+    /** Sequence number of the next slot to write; only the producer writes it. */
+    private volatile long tail;
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    // Producer side
+    private final Slot staging = new Slot();
+
+    // Consumer side
+    private final Slot current = new Slot();
+    private final List<Slot> drained = new ArrayList<Slot>();
+    private int drainedIndex;
+
+    // Events held aside by COALESCE, newest per short name
+    private final Object overflowLock = new Object();
+    private final LinkedHashMap<String, Slot> overflow = new LinkedHashMap<String, Slot>();
+    private volatile int overflowSize;
+
+    private volatile int highWaterMark;
+    private volatile long droppedCount;
+    private volatile long coalescedCount;
+
+    public EventRing() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param capacity the number of events the ring holds
+     * @param policy what to do when the ring is full
+     */
+    public EventRing(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Queues the event most recently decoded by the given decoder. Only
+     * called from the producer thread.
+     *
+     * @return false if the event was dropped
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean put(EventDecoder decoded) throws InterruptedException {
+        staging.set(decoded);
+        return enqueue();
+    }
+
+    /**
+     * Queues an event. Only called from the producer thread.
+     *
+     * @return false if the event was dropped
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public boolean put(Event event) throws InterruptedException {
+        staging.set(event);
+        return enqueue();
+    }
+
+    private boolean enqueue() throws InterruptedException {
+        if (policy == OverflowPolicy.COALESCE && overflowSize > 0) {
+            // Keep later events behind the ones already held aside
+            coalesce();
+            return true;
+        }
+
+        long t = tail;
+        while (t - head.get() >= capacity) {
+            if (policy == OverflowPolicy.BLOCK) {
+                waitingProducer = Thread.currentThread();
+                if (t - head.get() >= capacity) {
+                    LockSupport.park();
+                }
+                waitingProducer = null;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                long h = head.get();
+                if (t - h >= capacity && head.compareAndSet(h, h + 1)) {
+                    droppedCount++;
+                }
+            } else if (policy == OverflowPolicy.DROP_NEWEST) {
+                droppedCount++;
+                return false;
+            } else {
+                coalesce();
+                return true;
+            }
+        }
+
+        slots[index(t)].copyFrom(staging);
+        tail = t + 1;
+        updateHighWaterMark(t + 1 - head.get());
+        wakeConsumer();
+        return true;
+    }
+
+    private void coalesce() {
+        String key = staging.key();
+        synchronized (overflowLock) {
+            Slot held = overflow.get(key);
+            if (held == null) {
+                // Only allocates the first time a name overflows in a burst
+                held = new Slot();
+                overflow.put(key, held);
+                overflowSize = overflow.size();
+            } else {
+                coalescedCount++;
+            }
+            held.copyFrom(staging);
+        }
+        updateHighWaterMark(tail - head.get() + overflowSize);
+        wakeConsumer();
+    }
+
+    private void updateHighWaterMark(long depth) {
+        if (depth > highWaterMark) {
+            highWaterMark = (int) depth;
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Takes the oldest event, waiting for one if the ring is empty. Only
+     * called from the consumer thread.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Event take() throws InterruptedException {
+        while (true) {
+            Event e = poll();
+            if (e != null) {
+                return e;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.park();
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code max} events, waiting for the first one if the ring
+     * is empty but not for any more. Only called from the consumer thread.
+     *
+     * @param batch Receives the events, oldest first
+     * @return the number of events added
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainTo(List<Event> batch, int max) throws InterruptedException {
+        if (max < 1) {
+            return 0;
+        }
+        batch.add(take());
+        int count = 1;
+        Event e;
+        while (count < max && (e = poll()) != null) {
+            batch.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes the oldest event, if there is one. Only called from the
+     * consumer thread.
+     *
+     * @return the event, or null if the ring is empty
+     */
+    public Event poll() {
+        if (drainedIndex < drained.size()) {
+            return nextDrained();
+        }
+
+        while (true) {
+            long h = head.get();
+            if (h >= tail) {
+                break;
+            }
+            // Copy first: under DROP_OLDEST the producer may take this slot
+            // back, in which case the CAS fails and the copy is discarded.
+            current.copyFrom(slots[index(h)]);
+            if (head.compareAndSet(h, h + 1)) {
+                Thread producer = waitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return current.toEvent();
+            }
+        }
+
+        if (overflowSize > 0) {
+            // The ring is empty; everything held aside is newer than what
+            // has been delivered so far.
+            synchronized (overflowLock) {
+                drained.addAll(overflow.values());
+                overflow.clear();
+                overflowSize = 0;
+            }
+            return nextDrained();
+        }
+        return null;
+    }
+
+    private Event nextDrained() {
+        Event e = drained.get(drainedIndex++).toEvent();
+        if (drainedIndex == drained.size()) {
+            drained.clear();
+            drainedIndex = 0;
+        }
+        return e;
+    }
+
+    private boolean isEmpty() {
+        return head.get() >= tail && overflowSize == 0;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of events waiting to be taken
+     */
+    public int getDepth() {
+        long depth = tail - head.get();
+        return (int) Math.max(depth, 0) + overflowSize;
+    }
+
+    /**
+     * @return the largest number of events which have been waiting at once
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return the number of events thrown away by DROP_OLDEST or DROP_NEWEST
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of events replaced by a later one under COALESCE
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * One queued event: either the fields of a directly decoded message or
+     * an Event built by the org.json fallback.
+     */
+    private static final class Slot {
+        Event event;
+        String type;
+        String endpoint;
+        String shortName;
+        long sentMillis;
+        double value;
+        long valueMillis;
+
+        void set(EventDecoder d) {
+            event = null;
+            type = d.getType();
+            endpoint = d.getEndpoint();
+            shortName = d.getShortName();
+            sentMillis = d.getSentMillis();
+            value = d.getValue();
+            valueMillis = d.getValueMillis();
+        }
+
+        void set(Event e) {
+            event = e;
+            type = null;
+            endpoint = null;
+            shortName = null;
+        }
+
+        void copyFrom(Slot other) {
+            event = other.event;
+            type = other.type;
+            endpoint = other.endpoint;
+            shortName = other.shortName;
+            sentMillis = other.sentMillis;
+            value = other.value;
+            valueMillis = other.valueMillis;
+        }
+
+        String key() {
+            if (event != null) {
+                return (event.getShortName() != null) ? event.getShortName() : event.getEndpoint();
+            }
+            return shortName;
+        }
+
+        Event toEvent() {
+            if (event != null) {
+                return event;
+            }
+            return new Event(type, endpoint, sentMillis, shortName, value, valueMillis);
+        }
+    }
+}
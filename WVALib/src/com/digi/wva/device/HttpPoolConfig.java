@@ -0,0 +1,120 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+/**
+ * How a {@link WvaHttpClient} keeps its connections to the WVA, given when
+ * the client is made; changing it afterwards has no effect on that client.
+ *
+ * <p>The client sends each request on one of at most
+ * {@link #getMaxConnections()} connections, from as many threads. Requests
+ * beyond that wait their turn in the client's executor, so that a burst of
+ * them is carried by a few kept-alive connections rather than opening one
+ * each. A connection the WVA does not close is kept for reuse for the
+ * keep-alive time, and closed sooner if it has been idle for the idle
+ * time.</p>
+ */
+public class HttpPoolConfig {
+    /**
+     * The same as {@link Device#DEFAULT_BULK_CONCURRENCY}, so that a bulk
+     * subscription never waits for a connection
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60000;
+    public static final long DEFAULT_IDLE_MILLIS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private long idleMillis = DEFAULT_IDLE_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    /**
+     * Sets the most connections open to the WVA at once, which is also the
+     * number of threads sending requests and calling their handlers.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the longest a connection is kept for reuse after a response. The
+     * WVA may ask for less with a Keep-Alive header.
+     *
+     * @param keepAliveMillis The time, in milliseconds, or 0 to close every
+     *                        connection after one request
+     */
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        if (keepAliveMillis < 0) {
+            throw new IllegalArgumentException("keepAliveMillis must not be negative");
+        }
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    /**
+     * Sets how long a connection may go unused before it is closed, checked
+     * every half of that time.
+     *
+     * @param idleMillis The time, in milliseconds, or 0 to leave idle
+     *                   connections open until their keep-alive time is up
+     */
+    public void setIdleMillis(long idleMillis) {
+        if (idleMillis < 0) {
+            throw new IllegalArgumentException("idleMillis must not be negative");
+        }
+        this.idleMillis = idleMillis;
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    /**
+     * @param connectTimeoutMillis How long to wait for a connection to be
+     *                             made, in milliseconds, or 0 to wait forever
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        if (connectTimeoutMillis < 0) {
+            throw new IllegalArgumentException("connectTimeoutMillis must not be negative");
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * @param readTimeoutMillis How long to wait for the WVA between bytes of
+     *                          a response, in milliseconds, or 0 to wait
+     *                          forever
+     */
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        if (readTimeoutMillis < 0) {
+            throw new IllegalArgumentException("readTimeoutMillis must not be negative");
+        }
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+}
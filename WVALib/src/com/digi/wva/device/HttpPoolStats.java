@@ -0,0 +1,62 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+/**
+ * The connections of a {@link WvaHttpClient} at one moment, as returned by
+ * {@link WvaHttpClient#getPoolStats()}. Totals cover the life of the client.
+ */
+public final class HttpPoolStats {
+    private final int leased;
+    private final int idle;
+    private final long created;
+    private final long reused;
+
+    HttpPoolStats(int leased, int idle, long created, long reused) {
+        this.leased = leased;
+        this.idle = idle;
+        this.created = created;
+        this.reused = reused;
+    }
+
+    /**
+     * @return the number of connections carrying a request
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return the number of open connections waiting for a request
+     */
+    public int getIdle() {
+        return idle;
+    }
+
+    /**
+     * @return the number of connections opened, including ones reopened
+     *         after the WVA closed them
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the number of requests sent on a connection which was already
+     *         open
+     */
+    public long getReused() {
+        return reused;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpPoolStats[" + leased + " leased, " + idle + " idle, " + created + " created, "
+                + reused + " reused]";
+    }
+}
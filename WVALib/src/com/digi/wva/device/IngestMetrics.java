@@ -0,0 +1,143 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what passes through a device's data stream, from the bytes read
+ * off the socket to the events dispatched to listeners.
+ *
+ * <p>Every count is kept for the life of the {@link Device}, across
+ * reconnects. Recording costs an uncontended atomic increment or two per
+ * event, so the metrics are always on. Read them with
+ * {@link Device#getIngestSnapshot()}.</p>
+ */
+public class IngestMetrics {
+    /**
+     * Upper bounds, in milliseconds, of the buckets of the lag histogram.
+     * A last bucket holds everything longer.
+     */
+    static final long[] LAG_BUCKET_MILLIS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong parseFailures = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong noListener = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> endpointEvents =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLongArray lag = new AtomicLongArray(LAG_BUCKET_MILLIS.length + 1);
+
+    // The previous snapshot, which rates are measured from
+    private IngestSnapshot previous;
+    private final long createdNanos = System.nanoTime();
+
+    /**
+     * Records a read from the socket.
+     *
+     * @param count the number of bytes read
+     */
+    void bytesReceived(int count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Records frames discarded for being too long.
+     */
+    void oversized(long frames) {
+        if (frames > 0) {
+            oversized.addAndGet(frames);
+        }
+    }
+
+    /**
+     * Records a complete frame, whether or not it could be parsed.
+     */
+    void frameReceived() {
+        frames.incrementAndGet();
+    }
+
+    /**
+     * Records a frame which was not a well-formed event.
+     */
+    void parseFailed() {
+        parseFailures.incrementAndGet();
+    }
+
+    /**
+     * Records an event for a known endpoint.
+     */
+    void eventReceived(String endpoint) {
+        events.incrementAndGet();
+        AtomicLong count = endpointEvents.get(endpoint);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = endpointEvents.putIfAbsent(endpoint, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Records an event which no listener was waiting for.
+     */
+    void noListener() {
+        noListener.incrementAndGet();
+    }
+
+    /**
+     * Records an event being dispatched to its listeners.
+     *
+     * @param sentMillis when the WVA sent it
+     * @param deliveredMillis when it was dispatched
+     */
+    void delivered(long sentMillis, long deliveredMillis) {
+        // The clocks of the WVA and of this device may disagree a little
+        long millis = Math.max(0, deliveredMillis - sentMillis);
+        int bucket = 0;
+        while (bucket < LAG_BUCKET_MILLIS.length && millis > LAG_BUCKET_MILLIS[bucket]) {
+            bucket++;
+        }
+        lag.incrementAndGet(bucket);
+    }
+
+    /**
+     * Takes a snapshot of the counts. Rates are measured over the time since
+     * the previous snapshot, or since the metrics were created.
+     *
+     * @param queue the current event queue, or null if there is none
+     */
+    synchronized IngestSnapshot snapshot(EventRing queue) {
+        long[] lagCounts = new long[lag.length()];
+        for (int i = 0; i < lagCounts.length; i++) {
+            lagCounts[i] = lag.get(i);
+        }
+        Map<String, Long> perEndpoint = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : endpointEvents.entrySet()) {
+            perEndpoint.put(entry.getKey(), entry.getValue().get());
+        }
+
+        IngestSnapshot snapshot = new IngestSnapshot(System.nanoTime(), bytes.get(), frames.get(),
+                parseFailures.get(), oversized.get(), events.get(), noListener.get(),
+                (queue == null) ? 0 : queue.getDepth(),
+                (queue == null) ? 0 : queue.getHighWaterMark(),
+                perEndpoint, LAG_BUCKET_MILLIS, lagCounts, previous, createdNanos);
+        previous = snapshot;
+        return snapshot;
+    }
+}
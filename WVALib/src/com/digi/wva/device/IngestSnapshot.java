@@ -0,0 +1,217 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state of a device's data stream at one moment, as returned by
+ * {@link Device#getIngestSnapshot()}.
+ *
+ * <p>Totals cover the life of the device. Rates cover the time since the
+ * previous snapshot was taken.</p>
+ */
+public final class IngestSnapshot {
+    private final long nanos;
+    private final double seconds;
+    private final long bytes;
+    private final long frames;
+    private final long parseFailures;
+    private final long oversizedFrames;
+    private final long events;
+    private final long noListenerEvents;
+    private final int queueDepth;
+    private final int queueHighWaterMark;
+    private final Map<String, Long> endpointEvents;
+    private final Map<String, Double> endpointRates;
+    private final long[] lagBucketMillis;
+    private final long[] lagCounts;
+    private final double bytesPerSecond;
+    private final double framesPerSecond;
+    private final double eventsPerSecond;
+
+    IngestSnapshot(long nanos, long bytes, long frames, long parseFailures, long oversizedFrames,
+                   long events, long noListenerEvents, int queueDepth, int queueHighWaterMark,
+                   Map<String, Long> endpointEvents, long[] lagBucketMillis, long[] lagCounts,
+                   IngestSnapshot previous, long startNanos) {
+        this.nanos = nanos;
+        this.bytes = bytes;
+        this.frames = frames;
+        this.parseFailures = parseFailures;
+        this.oversizedFrames = oversizedFrames;
+        this.events = events;
+        this.noListenerEvents = noListenerEvents;
+        this.queueDepth = queueDepth;
+        this.queueHighWaterMark = queueHighWaterMark;
+        this.endpointEvents = Collections.unmodifiableMap(endpointEvents);
+        this.lagBucketMillis = lagBucketMillis;
+        this.lagCounts = lagCounts;
+
+        long since = (previous == null) ? startNanos : previous.nanos;
+        this.seconds = Math.max(nanos - since, 1) / 1e9;
+        this.bytesPerSecond = (bytes - ((previous == null) ? 0 : previous.bytes)) / seconds;
+        this.framesPerSecond = (frames - ((previous == null) ? 0 : previous.frames)) / seconds;
+        this.eventsPerSecond = (events - ((previous == null) ? 0 : previous.events)) / seconds;
+
+        Map<String, Double> rates = new HashMap<String, Double>();
+        for (Map.Entry<String, Long> entry : endpointEvents.entrySet()) {
+            Long before = (previous == null) ? null : previous.endpointEvents.get(entry.getKey());
+            long delta = entry.getValue() - ((before == null) ? 0 : before);
+            rates.put(entry.getKey(), delta / seconds);
+        }
+        this.endpointRates = Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * @return the length of time the rates cover, in seconds
+     */
+    public double getIntervalSeconds() {
+        return seconds;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return the number of complete messages received, parsed or not
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * @return the number of messages which were not well-formed events
+     */
+    public long getParseFailures() {
+        return parseFailures;
+    }
+
+    /**
+     * @return the number of messages discarded for exceeding the device's
+     *         maximum frame length
+     */
+    public long getOversizedFrames() {
+        return oversizedFrames;
+    }
+
+    /**
+     * @return the number of events received for known endpoints
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    public double getEventsPerSecond() {
+        return eventsPerSecond;
+    }
+
+    /**
+     * @return the number of events which arrived with no listener waiting
+     *         for them
+     */
+    public long getNoListenerEvents() {
+        return noListenerEvents;
+    }
+
+    /**
+     * @return the number of events waiting in the queue to be handed to
+     *         listeners; 0 when the device uses an {@link EventChannelEngine}
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return the most events which have waited in the queue at once, since
+     *         the data stream was last connected
+     */
+    public int getQueueHighWaterMark() {
+        return queueHighWaterMark;
+    }
+
+    /**
+     * @return the number of events received for each endpoint
+     */
+    public Map<String, Long> getEndpointEvents() {
+        return endpointEvents;
+    }
+
+    /**
+     * @return the events per second received for each endpoint
+     */
+    public Map<String, Double> getEndpointRates() {
+        return endpointRates;
+    }
+
+    /**
+     * @return the upper bound, in milliseconds, of each bucket of
+     *         {@link #getLagCounts()} but the last, which has no bound
+     */
+    public long[] getLagBucketMillis() {
+        return lagBucketMillis.clone();
+    }
+
+    /**
+     * Returns a histogram of the time from the WVA sending an event (its
+     * "timestamp") to the event being dispatched to its listeners. Any time
+     * it then spends waiting for a listener's executor is not included.
+     *
+     * @return the number of events in each bucket
+     */
+    public long[] getLagCounts() {
+        return lagCounts.clone();
+    }
+
+    /**
+     * Estimates a percentile of the lag from the histogram.
+     *
+     * @param fraction between 0 and 1, such as 0.99
+     * @return the upper bound of the bucket holding that percentile, in
+     *         milliseconds; -1 if it is in the last bucket, or 0 if no event
+     *         has been delivered
+     */
+    public long getLagPercentileMillis(double fraction) {
+        long total = 0;
+        for (long c : lagCounts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < lagBucketMillis.length; i++) {
+            seen += lagCounts[i];
+            if (seen >= rank) {
+                return lagBucketMillis[i];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames %d (%.1f/s), bytes %d (%.1f/s), events %d (%.1f/s), "
+                + "parse failures %d, oversized %d, no listener %d, queue %d (max %d), "
+                + "lag p50 %d ms, p99 %d ms",
+                frames, framesPerSecond, bytes, bytesPerSecond, events, eventsPerSecond,
+                parseFailures, oversizedFrames, noListenerEvents, queueDepth,
+                queueHighWaterMark, getLagPercentileMillis(0.5), getLagPercentileMillis(0.99));
+    }
+}
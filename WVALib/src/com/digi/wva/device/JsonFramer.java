@@ -0,0 +1,253 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+/**
+ * Splits the raw bytes of the event channel into complete JSON objects.
+ *
+ * <p>Bytes are fed in as they arrive, in chunks of any size. The framer
+ * tracks the brace depth, whether it is inside a string and whether the
+ * previous character was an escape, so each byte is looked at exactly once
+ * and an object split across any number of reads or lines is handed out as
+ * one frame as soon as its closing brace arrives. Nothing is parsed here;
+ * a frame is only known to be balanced, not to be valid JSON.</p>
+ *
+ * <p>Whitespace between objects, such as the line breaks between messages,
+ * is skipped. Stray data between objects, or a frame which grows beyond the
+ * maximum frame length, is thrown away along with the rest of its line, and
+ * the framer resynchronizes on the next line whose first non-blank
+ * character starts a new object. Lines of an oversized message which do not
+ * start with a brace are therefore skipped rather than framed.</p>
+ *
+ * <p>A framer is fed by a single thread. Its counters may be read from any
+ * thread.</p>
+ */
+public class JsonFramer {
+    /** Default value of {@link #getMaxFrameLength()}, in bytes. */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Receives each complete frame.
+     */
+    public interface FrameListener {
+        /**
+         * Called once per complete JSON object, on the thread feeding the
+         * framer. The array is reused for the next frame, so its contents
+         * must be consumed or copied before returning.
+         *
+         * @param frame buffer holding the frame, starting at index 0
+         * @param length the number of bytes in the frame
+         */
+        void onFrame(byte[] frame, int length);
+    }
+
+    private volatile int maxFrameLength;
+
+    private byte[] frame = new byte[INITIAL_CAPACITY];
+    private int length;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    /**
+     * Throwing bytes away until the next line break, after which a frame
+     * must be the first thing on the line.
+     */
+    private boolean skippingLine;
+    /** Whether stray bytes were seen since the last frame. */
+    private boolean sawGarbage;
+
+    private volatile long frameCount;
+    private volatile long frameBytes;
+    private volatile int largestFrame;
+    private volatile long oversizedCount;
+    private volatile long resyncCount;
+    private volatile long discardedBytes;
+
+    public JsonFramer() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxFrameLength longest frame accepted, in bytes
+     */
+    public JsonFramer(int maxFrameLength) {
+        setMaxFrameLength(maxFrameLength);
+    }
+
+    /**
+     * Sets the longest frame which will be accepted. Frames which are
+     * already being assembled are held to the new limit.
+     *
+     * @param maxFrameLength longest frame accepted, in bytes
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        if (maxFrameLength < 2) {
+            throw new IllegalArgumentException("maxFrameLength must be at least 2");
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Feeds received bytes to the framer, calling the listener for every
+     * frame they complete.
+     *
+     * @param data the received bytes
+     * @param offset index of the first byte in data
+     * @param count number of bytes to use
+     * @param listener receives the completed frames
+     */
+    public void feed(byte[] data, int offset, int count, FrameListener listener) {
+        int end = offset + count;
+        int max = maxFrameLength;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+
+            if (depth == 0) {
+                // Between frames: look for the start of the next one.
+                if (skippingLine) {
+                    discardedBytes++;
+                    if (b == '\n') {
+                        skippingLine = false;
+                    }
+                    continue;
+                }
+                if (b == '{') {
+                    depth = 1;
+                    length = 0;
+                    append(b);
+                } else if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                    // Stray data, or the rest of an oversized frame: a
+                    // frame cannot start until the next line.
+                    discardedBytes++;
+                    skippingLine = true;
+                    if (!sawGarbage) {
+                        sawGarbage = true;
+                        resyncCount++;
+                    }
+                }
+                continue;
+            }
+
+            if (length == max) {
+                // Too long: drop it and wait for the next line.
+                oversizedCount++;
+                resyncCount++;
+                discardedBytes += length + 1;
+                depth = 0;
+                length = 0;
+                inString = false;
+                escaped = false;
+                skippingLine = (b != '\n');
+                // Lines left of it are part of the same resync
+                sawGarbage = true;
+                if (frame.length > INITIAL_CAPACITY * 16) {
+                    frame = new byte[INITIAL_CAPACITY];
+                }
+                continue;
+            }
+            append(b);
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{') {
+                depth++;
+            } else if (b == '}' && --depth == 0) {
+                frameCount++;
+                frameBytes += length;
+                if (length > largestFrame) {
+                    largestFrame = length;
+                }
+                sawGarbage = false;
+                listener.onFrame(frame, length);
+                length = 0;
+            }
+        }
+    }
+
+    private void append(byte b) {
+        if (length == frame.length) {
+            int capacity = Math.min(frame.length * 2, maxFrameLength);
+            byte[] bigger = new byte[Math.max(capacity, length + 1)];
+            System.arraycopy(frame, 0, bigger, 0, length);
+            frame = bigger;
+        }
+        frame[length++] = b;
+    }
+
+    /**
+     * Forgets any partially received frame, as when a new connection is
+     * made. The counters are kept.
+     */
+    public void reset() {
+        length = 0;
+        depth = 0;
+        inString = false;
+        escaped = false;
+        skippingLine = false;
+        sawGarbage = false;
+    }
+
+    /**
+     * @return the number of complete frames handed out
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the total size of all complete frames, in bytes
+     */
+    public long getFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * @return the size of the largest complete frame, in bytes
+     */
+    public int getLargestFrame() {
+        return largestFrame;
+    }
+
+    /**
+     * @return the number of frames thrown away for exceeding the maximum
+     *         frame length
+     */
+    public long getOversizedCount() {
+        return oversizedCount;
+    }
+
+    /**
+     * @return the number of times data had to be skipped to find the start
+     *         of the next frame, either after an oversized frame or because
+     *         of stray bytes between frames
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    /**
+     * @return the number of bytes thrown away, not counting whitespace
+     *         between frames
+     */
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+}
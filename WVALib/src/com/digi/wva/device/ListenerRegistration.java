@@ -0,0 +1,422 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import android.util.Log;
+import com.digi.wva.async.BatchListener;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.PrimitiveListener;
+import com.digi.wva.async.WvaListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One listener added to a {@link Vehicle} with
+ * {@link Vehicle#addListener(String, WvaListener, Executor, int)}, along
+ * with what it listens to and how it is keeping up.
+ *
+ * <p>A listener added without an executor is called on the thread handling
+ * the data stream, as the listener given when subscribing is. A listener
+ * with an executor has its own queue: events are put on the queue by the
+ * data stream thread, and handed to the listener on the executor, one
+ * delivery at a time. When the queue is full, new events for that listener
+ * are dropped and counted, and the listener is reported as slow until it
+ * empties its queue again; no other listener waits for it. If the executor
+ * refuses to run a delivery, for instance because it has been shut down,
+ * the queued events are dropped and counted, and the next event tries the
+ * executor again.</p>
+ */
+public final class ListenerRegistration {
+    private static final String TAG = "com.digi.wva.device.ListenerRegistration";
+
+    private final ListenerRegistry registry;
+    private final String pattern;
+    private final WvaListener listener;
+    private final Executor executor;
+    private final int capacity;
+
+    // The queue, as parallel rings; guarded by this
+    private final Event[] events;
+    private final int[] ids;
+    private final long[] queuedNanos;
+    private int head;
+    private int size;
+    private int highWaterMark;
+    /** The endpoint IDs of the events taken by the running drain. */
+    private final int[] takenIds;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile DeliveryFilter filter;
+    private volatile boolean slow;
+    private volatile boolean rejecting;
+    private volatile long droppedCount;
+    private volatile long deliveredCount;
+    private volatile long failedCount;
+    private volatile long lastLagNanos;
+    private volatile long maxLagNanos;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                List<Event> batch = new ArrayList<Event>();
+                while (takeAll(batch, takenIds)) {
+                    deliver(batch);
+                    batch.clear();
+                }
+            } finally {
+                scheduled.set(false);
+                // Something may have arrived after the last take
+                if (getDepth() > 0) {
+                    schedule();
+                }
+            }
+        }
+    };
+
+    ListenerRegistration(ListenerRegistry registry, String pattern, WvaListener listener,
+                         Executor executor, int capacity) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        if (executor != null && capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.registry = registry;
+        this.pattern = pattern;
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = (executor == null) ? 0 : capacity;
+        this.events = new Event[this.capacity];
+        this.ids = new int[this.capacity];
+        this.queuedNanos = new long[this.capacity];
+        this.takenIds = new int[this.capacity];
+    }
+
+    /**
+     * @param id The event's endpoint ID in the Vehicle's catalog
+     * @param now The time the event arrived
+     * @return whether the filter, if there is one, lets the event through
+     */
+    boolean accepts(int id, Event e, long now) {
+        DeliveryFilter f = filter;
+        if (f == null) {
+            return true;
+        }
+        if (!e.hasValue()) {
+            return f.accept(id, now, Double.NaN);
+        }
+        long time = e.getValueMillis();
+        return f.accept(id, (time != Event.NO_TIME) ? time : now, e.getValue());
+    }
+
+    /**
+     * @return whether the listener is a {@link PrimitiveListener}, which
+     *         needs each event's endpoint ID and so is not given batches
+     */
+    boolean isPrimitive() {
+        return listener instanceof PrimitiveListener;
+    }
+
+    /**
+     * Hands an event to the listener, or queues it for the executor.
+     *
+     * @param id The event's endpoint ID in the Vehicle's catalog
+     */
+    void dispatch(int id, Event e) {
+        if (executor == null) {
+            call(id, e);
+            return;
+        }
+        if (enqueue(id, e)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Hands several events to the listener, or queues them for the
+     * executor. A BatchListener without an executor gets them in one call.
+     * Not used for a PrimitiveListener.
+     */
+    void dispatch(List<Event> batch) {
+        if (executor == null) {
+            call(batch, null);
+            return;
+        }
+        boolean queued = false;
+        for (Event e : batch) {
+            queued |= enqueue(-1, e);
+        }
+        if (queued) {
+            schedule();
+        }
+    }
+
+    /**
+     * Gives a listener one event, as numbers if it is a PrimitiveListener
+     * and as a VehicleResponse otherwise.
+     */
+    static void deliver(WvaListener listener, int id, Event e) {
+        if (listener instanceof PrimitiveListener) {
+            if (e.hasValue()) {
+                ((PrimitiveListener) listener).onUpdate(id, e.getValueMillis(), e.getValue());
+            }
+        } else {
+            listener.onUpdate(e.getEndpoint(), e.getResponse());
+        }
+    }
+
+    private void call(int id, Event e) {
+        try {
+            if (listener instanceof BatchListener) {
+                OneEventList.deliver((BatchListener) listener, e);
+            } else {
+                deliver(listener, id, e);
+            }
+        } catch (RuntimeException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * @param batchIds The events' endpoint IDs, or null if not known
+     */
+    private void call(List<Event> batch, int[] batchIds) {
+        try {
+            if (listener instanceof BatchListener) {
+                ((BatchListener) listener).onUpdates(batch);
+            } else {
+                for (int i = 0; i < batch.size(); i++) {
+                    deliver(listener, (batchIds == null) ? -1 : batchIds[i], batch.get(i));
+                }
+            }
+        } catch (RuntimeException ex) {
+            failed(ex);
+        }
+    }
+
+    private void failed(RuntimeException ex) {
+        failedCount++;
+        if (executor == null) {
+            // Called on the data stream thread, as listeners always were
+            throw ex;
+        }
+        Log.e(TAG, "Listener for " + pattern + " failed", ex);
+    }
+
+    private boolean enqueue(int id, Event e) {
+        synchronized (this) {
+            if (size == capacity) {
+                droppedCount++;
+                if (!slow) {
+                    slow = true;
+                    Log.w(TAG, "Listener for " + pattern + " is falling behind; dropping events");
+                }
+                return false;
+            }
+            int tail = (head + size) % capacity;
+            events[tail] = e;
+            ids[tail] = id;
+            queuedNanos[tail] = System.nanoTime();
+            size++;
+            if (size > highWaterMark) {
+                highWaterMark = size;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Takes everything queued, with the events' endpoint IDs, recording
+     * how long the oldest waited.
+     *
+     * @return false if nothing was queued
+     */
+    private boolean takeAll(List<Event> batch, int[] batchIds) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (size == 0) {
+                slow = false;
+                return false;
+            }
+            long lag = now - queuedNanos[head];
+            lastLagNanos = lag;
+            if (lag > maxLagNanos) {
+                maxLagNanos = lag;
+            }
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % capacity;
+                batch.add(events[index]);
+                batchIds[i] = ids[index];
+                events[index] = null;
+            }
+            head = (head + size) % capacity;
+            size = 0;
+        }
+        return true;
+    }
+
+    private void deliver(List<Event> batch) {
+        call(batch, takenIds);
+        deliveredCount += batch.size();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+                rejecting = false;
+            } catch (RejectedExecutionException ex) {
+                rejected(ex);
+                scheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Drops everything queued, which the executor will not deliver, without
+     * letting the exception reach the data stream thread.
+     */
+    private void rejected(RejectedExecutionException ex) {
+        int lost;
+        synchronized (this) {
+            lost = size;
+            for (int i = 0; i < size; i++) {
+                events[(head + i) % capacity] = null;
+            }
+            head = 0;
+            size = 0;
+            droppedCount += lost;
+        }
+        if (!rejecting) {
+            rejecting = true;
+            Log.e(TAG, "Executor for " + pattern + " refused a delivery; dropped " + lost + " events", ex);
+        }
+    }
+
+    /**
+     * Stops the listener receiving anything more. Events already queued are
+     * still delivered.
+     */
+    public void remove() {
+        registry.remove(this);
+    }
+
+    /**
+     * @return the short name listened to, such as "EngineSpeed~sub", or a
+     *         pattern with wildcards; see
+     *         {@link Vehicle#addListener(String, WvaListener, Executor, int)}
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Sets which events reach the listener. Events the filter suppresses are
+     * neither queued nor counted as dropped.
+     *
+     * @param filter The filter, or null to deliver every event; it must not
+     *               be shared with another listener
+     */
+    public void setFilter(DeliveryFilter filter) {
+        this.filter = filter;
+    }
+
+    public DeliveryFilter getFilter() {
+        return filter;
+    }
+
+    public WvaListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the executor delivering events, or null if the listener is
+     *         called on the data stream thread
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the most events queued for the listener; 0 without an executor
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of events queued for the listener now
+     */
+    public synchronized int getDepth() {
+        return size;
+    }
+
+    /**
+     * @return the most events which have been queued for the listener at once
+     */
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return whether the listener's queue has filled up since it was last
+     *         empty
+     */
+    public boolean isSlow() {
+        return slow;
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full, or
+     *         because the executor refused to deliver them
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of events handed to the listener from its queue
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return the number of deliveries from the queue in which the listener
+     *         threw an exception
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return how long the oldest event of the latest delivery from the
+     *         queue had waited, in milliseconds
+     */
+    public long getLastLagMillis() {
+        return lastLagNanos / 1000000;
+    }
+
+    /**
+     * @return the longest any event has waited in the queue, in milliseconds
+     */
+    public long getMaxLagMillis() {
+        return maxLagNanos / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerRegistration[" + pattern + ", depth " + getDepth()
+                + ", dropped " + droppedCount + (slow ? ", slow]" : "]");
+    }
+}
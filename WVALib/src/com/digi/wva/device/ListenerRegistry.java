@@ -0,0 +1,235 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.WvaListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The listeners of a {@link Vehicle}, found by the short name of each event.
+ * A pattern is either a short name ("EngineSpeed~sub"), an endpoint with any
+ * kind ("EngineSpeed~*"), a kind with any endpoint ("*~sub", "*~above"), or
+ * "*" for every event.
+ *
+ * <p>The listeners for each pattern are held in an array which is replaced,
+ * never changed, when a listener is added or removed, so that finding the
+ * listeners of an event takes no lock; in the usual case, where no wildcard
+ * pattern is in use, it allocates nothing either.</p>
+ */
+final class ListenerRegistry {
+    static final String ANY = "*";
+    private static final ListenerRegistration[] NONE = new ListenerRegistration[0];
+
+    private final ConcurrentHashMap<String, ListenerRegistration[]> byShortName =
+            new ConcurrentHashMap<String, ListenerRegistration[]>();
+    private final ConcurrentHashMap<String, ListenerRegistration[]> byEndpoint =
+            new ConcurrentHashMap<String, ListenerRegistration[]>();
+    private final ConcurrentHashMap<String, ListenerRegistration[]> byKind =
+            new ConcurrentHashMap<String, ListenerRegistration[]>();
+    private volatile ListenerRegistration[] all = NONE;
+    /** Whether byEndpoint, byKind or all has anything in it. */
+    private volatile boolean wildcards;
+
+    /** The listener given when subscribing or creating an alarm, by short name; guarded by this. */
+    private final Map<String, ListenerRegistration> primaries = new HashMap<String, ListenerRegistration>();
+
+    /**
+     * @throws IllegalArgumentException if the pattern is not one of the forms
+     *         described above
+     */
+    synchronized ListenerRegistration add(String pattern, WvaListener listener,
+                                          Executor executor, int capacity) {
+        ConcurrentHashMap<String, ListenerRegistration[]> map = mapFor(pattern);
+        ListenerRegistration registration =
+                new ListenerRegistration(this, pattern, listener, executor, capacity);
+        if (map == null) {
+            all = append(all, registration);
+        } else {
+            String key = keyFor(pattern);
+            ListenerRegistration[] current = map.get(key);
+            map.put(key, append(current == null ? NONE : current, registration));
+        }
+        wildcards = !byEndpoint.isEmpty() || !byKind.isEmpty() || all.length > 0;
+        return registration;
+    }
+
+    /**
+     * Adds the listener given when subscribing or creating an alarm, in place
+     * of the one given last time for the same short name.
+     */
+    synchronized ListenerRegistration replacePrimary(String shortName, WvaListener listener) {
+        ListenerRegistration previous = primaries.remove(shortName);
+        if (previous != null) {
+            remove(previous);
+        }
+        ListenerRegistration registration = add(shortName, listener, null, 0);
+        primaries.put(shortName, registration);
+        return registration;
+    }
+
+    synchronized void remove(ListenerRegistration registration) {
+        String pattern = registration.getPattern();
+        ConcurrentHashMap<String, ListenerRegistration[]> map = mapFor(pattern);
+        if (map == null) {
+            all = without(all, registration);
+        } else {
+            String key = keyFor(pattern);
+            ListenerRegistration[] current = map.get(key);
+            if (current != null) {
+                ListenerRegistration[] remaining = without(current, registration);
+                if (remaining.length == 0) {
+                    map.remove(key);
+                } else {
+                    map.put(key, remaining);
+                }
+            }
+        }
+        if (primaries.get(pattern) == registration) {
+            primaries.remove(pattern);
+        }
+        wildcards = !byEndpoint.isEmpty() || !byKind.isEmpty() || all.length > 0;
+    }
+
+    /**
+     * Removes every listener for exactly the given short name, leaving the
+     * wildcard patterns which also match it.
+     */
+    synchronized void removeShortName(String shortName) {
+        byShortName.remove(shortName);
+        primaries.remove(shortName);
+    }
+
+    synchronized void clear() {
+        byShortName.clear();
+        byEndpoint.clear();
+        byKind.clear();
+        all = NONE;
+        primaries.clear();
+        wildcards = false;
+    }
+
+    /**
+     * @return the listeners of events with the given short name, those for
+     *         the short name itself first; the array must not be changed
+     */
+    ListenerRegistration[] match(String shortName) {
+        ListenerRegistration[] exact = byShortName.get(shortName);
+        if (!wildcards) {
+            return exact == null ? NONE : exact;
+        }
+        ListenerRegistration[] forEndpoint = NONE;
+        ListenerRegistration[] forKind = NONE;
+        int split = shortName.lastIndexOf('~');
+        if (split >= 0) {
+            ListenerRegistration[] found = byEndpoint.get(shortName.substring(0, split));
+            forEndpoint = found == null ? NONE : found;
+            found = byKind.get(shortName.substring(split + 1));
+            forKind = found == null ? NONE : found;
+        }
+        if (exact == null) {
+            exact = NONE;
+        }
+        ListenerRegistration[] everything = all;
+        ListenerRegistration[] matched = new ListenerRegistration[
+                exact.length + forEndpoint.length + forKind.length + everything.length];
+        int n = 0;
+        System.arraycopy(exact, 0, matched, n, exact.length);
+        n += exact.length;
+        System.arraycopy(forEndpoint, 0, matched, n, forEndpoint.length);
+        n += forEndpoint.length;
+        System.arraycopy(forKind, 0, matched, n, forKind.length);
+        n += forKind.length;
+        System.arraycopy(everything, 0, matched, n, everything.length);
+        return matched;
+    }
+
+    /**
+     * @return every listener, in no particular order
+     */
+    synchronized List<ListenerRegistration> getAll() {
+        List<ListenerRegistration> registrations = new ArrayList<ListenerRegistration>();
+        addAll(registrations, byShortName.values());
+        addAll(registrations, byEndpoint.values());
+        addAll(registrations, byKind.values());
+        registrations.addAll(Arrays.asList(all));
+        return registrations;
+    }
+
+    private static void addAll(List<ListenerRegistration> to, Collection<ListenerRegistration[]> from) {
+        for (ListenerRegistration[] registrations : from) {
+            to.addAll(Arrays.asList(registrations));
+        }
+    }
+
+    /**
+     * @return the map holding the pattern's listeners, or null for "*"
+     */
+    private ConcurrentHashMap<String, ListenerRegistration[]> mapFor(String pattern) {
+        if (pattern == null || pattern.length() == 0) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        }
+        if (ANY.equals(pattern)) {
+            return null;
+        }
+        int split = pattern.lastIndexOf('~');
+        String endpoint = split < 0 ? pattern : pattern.substring(0, split);
+        String kind = split < 0 ? "" : pattern.substring(split + 1);
+        if (endpoint.length() == 0 || kind.length() == 0
+                || (ANY.equals(endpoint) && ANY.equals(kind))
+                || endpoint.indexOf('*') >= 0 && !ANY.equals(endpoint)
+                || kind.indexOf('*') >= 0 && !ANY.equals(kind)) {
+            throw new IllegalArgumentException("pattern " + pattern
+                    + " is not of the form endpoint~kind, endpoint~*, *~kind or *");
+        }
+        if (ANY.equals(kind)) {
+            return byEndpoint;
+        }
+        if (ANY.equals(endpoint)) {
+            return byKind;
+        }
+        return byShortName;
+    }
+
+    private static String keyFor(String pattern) {
+        int split = pattern.lastIndexOf('~');
+        if (pattern.endsWith("~" + ANY)) {
+            return pattern.substring(0, split);
+        }
+        if (pattern.startsWith(ANY + "~")) {
+            return pattern.substring(split + 1);
+        }
+        return pattern;
+    }
+
+    private static ListenerRegistration[] append(ListenerRegistration[] array, ListenerRegistration r) {
+        ListenerRegistration[] copy = new ListenerRegistration[array.length + 1];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        copy[array.length] = r;
+        return copy;
+    }
+
+    private static ListenerRegistration[] without(ListenerRegistration[] array, ListenerRegistration r) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == r) {
+                ListenerRegistration[] copy = new ListenerRegistration[array.length - 1];
+                System.arraycopy(array, 0, copy, 0, i);
+                System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                return copy;
+            }
+        }
+        return array;
+    }
+}
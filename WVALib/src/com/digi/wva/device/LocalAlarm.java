@@ -0,0 +1,170 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.AlarmType;
+import com.digi.wva.async.WvaListener;
+
+/**
+ * An alarm evaluated by this library on the subscription data it receives,
+ * rather than by the WVA. Created with
+ * {@link Vehicle#addLocalAlarm(String, AlarmType, double, WvaListener)}.
+ *
+ * <p>The types mean what they mean to the WVA: an ABOVE alarm is triggered
+ * when the value rises above the threshold, a BELOW alarm when it falls
+ * below it, a CHANGE alarm whenever it changes, and a DELTA alarm when it
+ * differs from the previous value by at least the threshold.</p>
+ *
+ * <p>After an ABOVE alarm is triggered, it is not triggered again until the
+ * value has fallen below the threshold less the hysteresis, and likewise for
+ * BELOW; this keeps a value hovering at the threshold from triggering it
+ * over and over. After any alarm is triggered, it is not triggered again
+ * within the debounce interval, as with the interval of a WVA alarm.</p>
+ *
+ * <p>Settings can be changed at any time and take effect with the next
+ * value received; changing the threshold starts the alarm afresh.</p>
+ */
+public final class LocalAlarm {
+    private final LocalAlarmEngine.EndpointRules owner;
+    private final AlarmType type;
+    private final WvaListener listener;
+
+    // Guarded by owner
+    double threshold;
+    double hysteresis;
+    long debounceMillis;
+    boolean armed = true;
+    long lastTriggered = Long.MIN_VALUE;
+    long triggerCount;
+    long debouncedCount;
+
+    LocalAlarm(LocalAlarmEngine.EndpointRules owner, AlarmType type, double threshold,
+               WvaListener listener) {
+        this.owner = owner;
+        this.type = type;
+        this.threshold = threshold;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the level at which a triggered ABOVE or BELOW alarm may be
+     *         triggered again
+     */
+    double rearmLevel() {
+        return (type == AlarmType.BELOW) ? threshold + hysteresis : threshold - hysteresis;
+    }
+
+    public String getEndpoint() {
+        return owner.endpoint;
+    }
+
+    public AlarmType getType() {
+        return type;
+    }
+
+    /**
+     * @return the listener called when this alarm is triggered, in addition
+     *         to the listeners of its short name, or null
+     */
+    public WvaListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the short name under which its events are delivered, as for a
+     *         WVA alarm of the same type: "EngineSpeed~above", for instance
+     */
+    public String getShortName() {
+        return owner.shortName(type);
+    }
+
+    public double getThreshold() {
+        synchronized (owner) {
+            return threshold;
+        }
+    }
+
+    public void setThreshold(double threshold) {
+        synchronized (owner) {
+            this.threshold = threshold;
+            this.armed = true;
+            owner.dirty = true;
+        }
+    }
+
+    public double getHysteresis() {
+        synchronized (owner) {
+            return hysteresis;
+        }
+    }
+
+    /**
+     * @param hysteresis How far back past the threshold the value must go
+     *                   before an ABOVE or BELOW alarm can be triggered
+     *                   again; 0 by default
+     */
+    public void setHysteresis(double hysteresis) {
+        if (!(hysteresis >= 0)) {
+            throw new IllegalArgumentException("hysteresis must not be negative");
+        }
+        synchronized (owner) {
+            this.hysteresis = hysteresis;
+            owner.dirty = true;
+        }
+    }
+
+    public long getDebounceMillis() {
+        synchronized (owner) {
+            return debounceMillis;
+        }
+    }
+
+    /**
+     * @param debounceMillis The least time between two triggers, measured by
+     *                       the values' timestamps; 0 by default
+     */
+    public void setDebounceMillis(long debounceMillis) {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("debounceMillis must not be negative");
+        }
+        synchronized (owner) {
+            this.debounceMillis = debounceMillis;
+        }
+    }
+
+    /**
+     * @return the number of times the alarm has been triggered
+     */
+    public long getTriggerCount() {
+        synchronized (owner) {
+            return triggerCount;
+        }
+    }
+
+    /**
+     * @return the number of times the alarm would have been triggered but
+     *         for the debounce interval
+     */
+    public long getDebouncedCount() {
+        synchronized (owner) {
+            return debouncedCount;
+        }
+    }
+
+    /**
+     * Stops evaluating the alarm.
+     */
+    public void remove() {
+        owner.remove(this);
+    }
+
+    @Override
+    public String toString() {
+        return "LocalAlarm[" + getShortName() + " " + getThreshold() + "]";
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.AlarmType;
+import com.digi.wva.async.WvaListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Evaluates the {@link LocalAlarm}s of a {@link Vehicle} as values arrive.
+ *
+ * <p>The ABOVE and BELOW alarms of an endpoint are kept sorted by threshold,
+ * and by the level at which they re-arm. Between one value and the next,
+ * every armed ABOVE alarm has a threshold at or above the previous value, so
+ * the alarms triggered by a rise are those whose thresholds lie between the
+ * two values, found by binary search; a fall re-arms those whose re-arm
+ * levels lie between the two. BELOW is the mirror image, and DELTA alarms
+ * are triggered by a prefix of their sorted thresholds. The work for a value
+ * is therefore a few searches plus the alarms actually affected, however
+ * many alarms the endpoint has.</p>
+ *
+ * <p>When alarms are added, removed or changed, the indexes are rebuilt on
+ * the next value, and that one value is checked against every alarm.</p>
+ */
+final class LocalAlarmEngine {
+    private static final LocalAlarm[] NONE = new LocalAlarm[0];
+    private static final double[] NO_LEVELS = new double[0];
+
+    private static final Comparator<LocalAlarm> BY_THRESHOLD = new Comparator<LocalAlarm>() {
+        @Override
+        public int compare(LocalAlarm a, LocalAlarm b) {
+            return Double.compare(a.threshold, b.threshold);
+        }
+    };
+    private static final Comparator<LocalAlarm> BY_REARM_LEVEL = new Comparator<LocalAlarm>() {
+        @Override
+        public int compare(LocalAlarm a, LocalAlarm b) {
+            return Double.compare(a.rearmLevel(), b.rearmLevel());
+        }
+    };
+
+    private final ConcurrentHashMap<String, EndpointRules> byEndpoint =
+            new ConcurrentHashMap<String, EndpointRules>();
+
+    /**
+     * The local alarms of one endpoint, and the last value they saw.
+     */
+    static final class EndpointRules {
+        final String endpoint;
+        private final String[] shortNames = new String[AlarmType.values().length];
+
+        // Guarded by this
+        private final List<LocalAlarm> alarms = new ArrayList<LocalAlarm>();
+        boolean dirty;
+        private boolean hasLast;
+        private double last;
+
+        private LocalAlarm[] above = NONE;
+        private double[] aboveThresholds = NO_LEVELS;
+        private LocalAlarm[] aboveRearm = NONE;
+        private double[] aboveRearmLevels = NO_LEVELS;
+        private LocalAlarm[] below = NONE;
+        private double[] belowThresholds = NO_LEVELS;
+        private LocalAlarm[] belowRearm = NONE;
+        private double[] belowRearmLevels = NO_LEVELS;
+        private LocalAlarm[] delta = NONE;
+        private double[] deltaThresholds = NO_LEVELS;
+        private LocalAlarm[] change = NONE;
+
+        EndpointRules(String endpoint) {
+            this.endpoint = endpoint;
+            for (AlarmType type : AlarmType.values()) {
+                shortNames[type.ordinal()] = endpoint + "~" + AlarmType.makeString(type);
+            }
+        }
+
+        String shortName(AlarmType type) {
+            return shortNames[type.ordinal()];
+        }
+
+        synchronized LocalAlarm add(AlarmType type, double threshold, WvaListener listener) {
+            LocalAlarm alarm = new LocalAlarm(this, type, threshold, listener);
+            alarms.add(alarm);
+            dirty = true;
+            return alarm;
+        }
+
+        synchronized void remove(LocalAlarm alarm) {
+            if (alarms.remove(alarm)) {
+                dirty = true;
+            }
+        }
+
+        synchronized List<LocalAlarm> getAll() {
+            return new ArrayList<LocalAlarm>(alarms);
+        }
+
+        /**
+         * @return the alarms triggered, or null if none were
+         */
+        synchronized List<LocalAlarm> evaluate(double value, long timeMillis) {
+            List<LocalAlarm> triggered = null;
+            if (dirty) {
+                rebuild();
+                triggered = scanAll(value, timeMillis, triggered);
+            } else {
+                triggered = evaluateAbove(value, timeMillis, triggered);
+                triggered = evaluateBelow(value, timeMillis, triggered);
+            }
+            if (hasLast) {
+                double difference = Math.abs(value - last);
+                if (difference > 0) {
+                    int end = upperBound(deltaThresholds, difference);
+                    for (int i = 0; i < end; i++) {
+                        triggered = trigger(delta[i], timeMillis, triggered);
+                    }
+                    for (LocalAlarm alarm : change) {
+                        triggered = trigger(alarm, timeMillis, triggered);
+                    }
+                }
+            }
+            last = value;
+            hasLast = true;
+            return triggered;
+        }
+
+        private List<LocalAlarm> evaluateAbove(double value, long timeMillis, List<LocalAlarm> triggered) {
+            if (!hasLast || value > last) {
+                // Armed thresholds are all >= last; those below value are crossed
+                int from = hasLast ? lowerBound(aboveThresholds, last) : 0;
+                int to = lowerBound(aboveThresholds, value);
+                for (int i = from; i < to; i++) {
+                    if (above[i].armed) {
+                        above[i].armed = false;
+                        triggered = trigger(above[i], timeMillis, triggered);
+                    }
+                }
+            } else if (value < last) {
+                // Disarmed levels are all <= last; those above value re-arm
+                int from = upperBound(aboveRearmLevels, value);
+                int to = upperBound(aboveRearmLevels, last);
+                for (int i = from; i < to; i++) {
+                    aboveRearm[i].armed = true;
+                }
+            }
+            return triggered;
+        }
+
+        private List<LocalAlarm> evaluateBelow(double value, long timeMillis, List<LocalAlarm> triggered) {
+            if (!hasLast || value < last) {
+                // Armed thresholds are all <= last; those above value are crossed
+                int from = upperBound(belowThresholds, value);
+                int to = hasLast ? upperBound(belowThresholds, last) : belowThresholds.length;
+                for (int i = from; i < to; i++) {
+                    if (below[i].armed) {
+                        below[i].armed = false;
+                        triggered = trigger(below[i], timeMillis, triggered);
+                    }
+                }
+            } else if (value > last) {
+                // Disarmed levels are all >= last; those below value re-arm
+                int from = lowerBound(belowRearmLevels, last);
+                int to = lowerBound(belowRearmLevels, value);
+                for (int i = from; i < to; i++) {
+                    belowRearm[i].armed = true;
+                }
+            }
+            return triggered;
+        }
+
+        /**
+         * Checks a value against every ABOVE and BELOW alarm, which leaves
+         * their states as the indexes expect.
+         */
+        private List<LocalAlarm> scanAll(double value, long timeMillis, List<LocalAlarm> triggered) {
+            for (LocalAlarm alarm : above) {
+                if (alarm.armed && value > alarm.threshold) {
+                    alarm.armed = false;
+                    triggered = trigger(alarm, timeMillis, triggered);
+                } else if (!alarm.armed && value < alarm.rearmLevel()) {
+                    alarm.armed = true;
+                }
+            }
+            for (LocalAlarm alarm : below) {
+                if (alarm.armed && value < alarm.threshold) {
+                    alarm.armed = false;
+                    triggered = trigger(alarm, timeMillis, triggered);
+                } else if (!alarm.armed && value > alarm.rearmLevel()) {
+                    alarm.armed = true;
+                }
+            }
+            return triggered;
+        }
+
+        /**
+         * @return triggered, with the alarm added unless it is debounced;
+         *         the list is created for the first alarm triggered
+         */
+        private static List<LocalAlarm> trigger(LocalAlarm alarm, long timeMillis,
+                                                List<LocalAlarm> triggered) {
+            if (alarm.lastTriggered != Long.MIN_VALUE && alarm.debounceMillis > 0
+                    && timeMillis - alarm.lastTriggered < alarm.debounceMillis) {
+                alarm.debouncedCount++;
+                return triggered;
+            }
+            alarm.lastTriggered = timeMillis;
+            alarm.triggerCount++;
+            if (triggered == null) {
+                triggered = new ArrayList<LocalAlarm>(4);
+            }
+            triggered.add(alarm);
+            return triggered;
+        }
+
+        private void rebuild() {
+            List<LocalAlarm> a = new ArrayList<LocalAlarm>();
+            List<LocalAlarm> b = new ArrayList<LocalAlarm>();
+            List<LocalAlarm> d = new ArrayList<LocalAlarm>();
+            List<LocalAlarm> c = new ArrayList<LocalAlarm>();
+            for (LocalAlarm alarm : alarms) {
+                switch (alarm.getType()) {
+                    case ABOVE: a.add(alarm); break;
+                    case BELOW: b.add(alarm); break;
+                    case DELTA: d.add(alarm); break;
+                    default: c.add(alarm); break;
+                }
+            }
+            above = sorted(a, BY_THRESHOLD);
+            aboveThresholds = thresholds(above);
+            aboveRearm = sorted(a, BY_REARM_LEVEL);
+            aboveRearmLevels = rearmLevels(aboveRearm);
+            below = sorted(b, BY_THRESHOLD);
+            belowThresholds = thresholds(below);
+            belowRearm = sorted(b, BY_REARM_LEVEL);
+            belowRearmLevels = rearmLevels(belowRearm);
+            delta = sorted(d, BY_THRESHOLD);
+            deltaThresholds = thresholds(delta);
+            change = c.toArray(new LocalAlarm[c.size()]);
+            dirty = false;
+        }
+
+        private static LocalAlarm[] sorted(List<LocalAlarm> alarms, Comparator<LocalAlarm> order) {
+            LocalAlarm[] array = alarms.toArray(new LocalAlarm[alarms.size()]);
+            Arrays.sort(array, order);
+            return array;
+        }
+
+        private static double[] thresholds(LocalAlarm[] alarms) {
+            double[] levels = new double[alarms.length];
+            for (int i = 0; i < alarms.length; i++) {
+                levels[i] = alarms[i].threshold;
+            }
+            return levels;
+        }
+
+        private static double[] rearmLevels(LocalAlarm[] alarms) {
+            double[] levels = new double[alarms.length];
+            for (int i = 0; i < alarms.length; i++) {
+                levels[i] = alarms[i].rearmLevel();
+            }
+            return levels;
+        }
+    }
+
+    /**
+     * @return the index of the first level >= key
+     */
+    static int lowerBound(double[] levels, double key) {
+        int low = 0;
+        int high = levels.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (levels[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first level > key
+     */
+    static int upperBound(double[] levels, double key) {
+        int low = 0;
+        int high = levels.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (levels[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    LocalAlarm add(String endpoint, AlarmType type, double threshold, WvaListener listener) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        EndpointRules rules = byEndpoint.get(endpoint);
+        if (rules == null) {
+            EndpointRules created = new EndpointRules(endpoint);
+            rules = byEndpoint.putIfAbsent(endpoint, created);
+            if (rules == null) {
+                rules = created;
+            }
+        }
+        return rules.add(type, threshold, listener);
+    }
+
+    List<LocalAlarm> get(String endpoint) {
+        EndpointRules rules = byEndpoint.get(endpoint);
+        return (rules == null) ? Collections.<LocalAlarm>emptyList() : rules.getAll();
+    }
+
+    void remove(String endpoint) {
+        EndpointRules rules = byEndpoint.remove(endpoint);
+        if (rules != null) {
+            synchronized (rules) {
+                rules.alarms.clear();
+                rules.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Evaluates an endpoint's local alarms on its new value.
+     *
+     * @return the alarms triggered, or null if none were; nothing is
+     *         allocated unless some were
+     */
+    List<LocalAlarm> evaluate(String endpoint, double value, long timeMillis) {
+        EndpointRules rules = byEndpoint.get(endpoint);
+        if (rules == null || Double.isNaN(value)) {
+            return null;
+        }
+        return rules.evaluate(value, timeMillis);
+    }
+}
@@ -7,61 +7,95 @@
  
 package com.digi.wva.device;
 
-import org.json.JSONObject;
-
-import android.util.Log;
-
 import com.digi.wva.async.Event;
-import com.digi.wva.async.VehicleResponse;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class MessageHandler extends Thread {
 
-	private boolean running;
+	private volatile boolean running;
+	private volatile Thread runner;
 	private final TCPReceiver rec;
 	private final Vehicle vehicle;
+	private final int maxBatchSize;
 
 	/**
-	 * The MessageHandler takes JSONObjects from the TCPReceiver queue,
-	 * parses them into Events, and then hands them off to the dispatcher.
+	 * The MessageHandler takes Events from the TCPReceiver queue and
+	 * hands them off to the dispatcher.
 	 * 
 	 * All Events passing through this runnable should be well-formed
 	 * @param rec
      * @param vehicle
 	 */
 	public MessageHandler(TCPReceiver rec, Vehicle vehicle) {
+		this(rec, vehicle, 1);
+	}
+
+	/**
+	 * Creates a MessageHandler which, each time it wakes up, takes up to
+	 * maxBatchSize Events which are already queued and notifies listeners
+	 * of them together.
+	 * 
+	 * @param rec
+	 * @param vehicle
+	 * @param maxBatchSize the most Events handed to listeners at once; 1
+	 *        hands them over one at a time
+	 */
+	public MessageHandler(TCPReceiver rec, Vehicle vehicle, int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
 		this.vehicle = vehicle;
 		this.rec = rec;
+		this.maxBatchSize = maxBatchSize;
 		running = true;
 	}
 
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
 
     /**
      * Interrupts the thread and exits the run method
      */
 	public void stopThread() {
 		this.running = false;
+		Thread r = runner;
+		if (r != null) {
+			r.interrupt();
+		}
 		this.interrupt();
 	}
 
     /**
-     * This object will continually attempt to take JSONObjects from the
-     * TCPReceiver, parse them into events, and call Vehicle.notifyListeners.
-     * If an object received from TCPReceiver is invalid or malformed, it will
-     * be disregarded.
+     * This object will continually attempt to take events from the
+     * TCPReceiver and call Vehicle.notifyListeners. Messages which are
+     * invalid or malformed have already been disregarded by the TCPReceiver.
+     * May be called by start(), or handed to an Executor as a Runnable.
      */
 	public void run() {
+		runner = Thread.currentThread();
+		try {
+			handle();
+		} finally {
+			runner = null;
+		}
+	}
+
+	private void handle() {
+		List<Event> batch = new ArrayList<Event>(maxBatchSize);
 		while(running) {
-			JSONObject obj;
 			try {
 				
-				obj = rec.getIncoming().take(); //blocks until available
-//				Log.i("MessageHandler", "Got message: " + obj.toString());
-				Event e = Event.fromTCP(obj);
-				if (e != null) { // if obj contained a valid message
+				if (maxBatchSize == 1) {
+					Event e = rec.getIncoming().take(); //blocks until available
 					vehicle.updateCached(e);
-				}
-				else {
-					Log.i("MessageHandler", "Message wasn't parsed...");
+				} else {
+					rec.getIncoming().drainTo(batch, maxBatchSize); //blocks until available
+					vehicle.updateCached(batch);
+					batch.clear();
 				}
 				
 			} catch (InterruptedException e) {
@@ -0,0 +1,65 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.BatchListener;
+import com.digi.wva.async.Event;
+
+import java.util.AbstractList;
+import java.util.Collections;
+
+/**
+ * The list of one event handed to a {@link BatchListener} for a single
+ * event. Each thread reuses its own, so a single event costs no allocation.
+ * A listener may only use the list during the call, as
+ * {@link BatchListener#onUpdates(java.util.List)} says.
+ */
+final class OneEventList extends AbstractList<Event> {
+    private static final ThreadLocal<OneEventList> LISTS = new ThreadLocal<OneEventList>() {
+        @Override
+        protected OneEventList initialValue() {
+            return new OneEventList();
+        }
+    };
+
+    private Event event;
+
+    private OneEventList() {
+    }
+
+    /**
+     * Calls the listener with a list holding just the given event.
+     */
+    static void deliver(BatchListener listener, Event e) {
+        OneEventList list = LISTS.get();
+        if (list.event != null) {
+            // A listener further up this thread is still using it
+            listener.onUpdates(Collections.singletonList(e));
+            return;
+        }
+        list.event = e;
+        try {
+            listener.onUpdates(list);
+        } finally {
+            list.event = null;
+        }
+    }
+
+    @Override
+    public Event get(int index) {
+        if (index != 0 || event == null) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return event;
+    }
+
+    @Override
+    public int size() {
+        return (event == null) ? 0 : 1;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import java.util.Arrays;
+
+/**
+ * Counts values in logarithmically sized buckets, so that any quantile can be
+ * estimated to within a relative accuracy, and values can be taken out again
+ * as they leave a window. Adding or removing a value is a logarithm and an
+ * increment.
+ *
+ * <p>Magnitudes from {@link #MIN_MAGNITUDE} to {@link #MAX_MAGNITUDE} are
+ * bucketed; smaller ones count as zero and larger ones fall in the last
+ * bucket. At 1% accuracy that is about 2,000 buckets, 8 KB, for each
+ * sign.</p>
+ */
+final class QuantileSketch {
+    static final double MIN_MAGNITUDE = 1e-6;
+    static final double MAX_MAGNITUDE = 1e12;
+
+    private final double gamma;
+    private final double logGamma;
+    private final int minIndex;
+    private final int[] positive;
+    private final int[] negative;
+    private int zeros;
+    private int count;
+
+    /**
+     * @param relativeAccuracy how far, as a fraction of the true value, an
+     *                         estimate may be off; between 0 and 1
+     */
+    QuantileSketch(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1");
+        }
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndex = (int) Math.ceil(Math.log(MIN_MAGNITUDE) / logGamma);
+        int buckets = (int) Math.ceil(Math.log(MAX_MAGNITUDE) / logGamma) - minIndex + 1;
+        this.positive = new int[buckets];
+        this.negative = new int[buckets];
+    }
+
+    void add(double value) {
+        change(value, 1);
+    }
+
+    void remove(double value) {
+        change(value, -1);
+    }
+
+    private void change(double value, int by) {
+        double magnitude = Math.abs(value);
+        if (magnitude < MIN_MAGNITUDE || Double.isNaN(value)) {
+            zeros += by;
+        } else if (value > 0) {
+            positive[bucket(magnitude)] += by;
+        } else {
+            negative[bucket(magnitude)] += by;
+        }
+        count += by;
+    }
+
+    private int bucket(double magnitude) {
+        int index = (int) Math.ceil(Math.log(magnitude) / logGamma) - minIndex;
+        return Math.max(0, Math.min(positive.length - 1, index));
+    }
+
+    /**
+     * @return the magnitude the bucket stands for, within the accuracy of
+     *         every magnitude in it
+     */
+    private double magnitude(int bucket) {
+        return 2 * Math.pow(gamma, bucket + minIndex) / (gamma + 1);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param q the quantile, from 0 (the least value) to 1 (the greatest)
+     * @return the estimate, or NaN if there are no values
+     */
+    double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) Math.floor(Math.max(0, Math.min(1, q)) * (count - 1));
+        long seen = 0;
+        for (int i = negative.length - 1; i >= 0; i--) {
+            seen += negative[i];
+            if (seen > rank) {
+                return -magnitude(i);
+            }
+        }
+        seen += zeros;
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < positive.length; i++) {
+            seen += positive[i];
+            if (seen > rank) {
+                return magnitude(i);
+            }
+        }
+        return magnitude(positive.length - 1);
+    }
+
+    void clear() {
+        Arrays.fill(positive, 0);
+        Arrays.fill(negative, 0);
+        zeros = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,319 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnects the data streams of devices whose connection was lost, without
+ * holding a thread while waiting to do so.
+ *
+ * <p>The first retry after a connection is lost is made quickly. Each
+ * further retry waits twice as long as the one before, up to a cap, and
+ * every wait is shortened by a random amount so that devices which lost
+ * their connection together (say, when a depot's Wi-Fi drops) do not all
+ * retry together. Once a device connects, its next loss starts again from
+ * the quick retry.</p>
+ *
+ * <p>One scheduler, with a single thread, is shared by every {@link Device}
+ * unless {@link Device#setReconnectScheduler(ReconnectScheduler)} says
+ * otherwise. Pending reconnects are cancelled by
+ * {@link Device#disconnectDataStream()}.</p>
+ */
+public class ReconnectScheduler {
+    private static final String TAG = "com.digi.wva.device.ReconnectScheduler";
+
+    public static final long DEFAULT_FIRST_RETRY_MILLIS = 500;
+    public static final long DEFAULT_BASE_MILLIS = 1000;
+    public static final long DEFAULT_MAX_MILLIS = 60000;
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private static ReconnectScheduler shared;
+
+    private final ScheduledExecutorService executor;
+    private final ConcurrentHashMap<Device, Attempt> attempts =
+            new ConcurrentHashMap<Device, Attempt>();
+    private final Random random = new Random();
+
+    private volatile long firstRetryMillis = DEFAULT_FIRST_RETRY_MILLIS;
+    private volatile long baseMillis = DEFAULT_BASE_MILLIS;
+    private volatile long maxMillis = DEFAULT_MAX_MILLIS;
+    private volatile double jitter = DEFAULT_JITTER;
+
+    // Metrics, guarded by this
+    private long reconnectCount;
+    private long retryCount;
+    private long lastReconnectMillis;
+    private long maxReconnectMillis;
+    private long totalReconnectMillis;
+
+    /**
+     * @return the scheduler used by devices which have not been given one
+     */
+    public static synchronized ReconnectScheduler getShared() {
+        if (shared == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new EventChannelEngine.NamedThreadFactory("WVA-reconnect-"));
+            shared = new ReconnectScheduler(executor);
+        }
+        return shared;
+    }
+
+    /**
+     * @param executor Runs the reconnects when they are due
+     */
+    public ReconnectScheduler(ScheduledExecutorService executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets how long to wait between attempts to reconnect.
+     *
+     * @param firstRetryMillis the wait before the first attempt
+     * @param baseMillis the wait before the second attempt, doubled for each
+     *                   attempt after that
+     * @param maxMillis the longest wait
+     */
+    public void setBackoff(long firstRetryMillis, long baseMillis, long maxMillis) {
+        if (firstRetryMillis < 0 || baseMillis < 0 || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("invalid backoff");
+        }
+        this.firstRetryMillis = firstRetryMillis;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Sets how much of each wait may be randomly cut short.
+     *
+     * @param jitter 0 for exact waits, up to 1, where a wait may be anything
+     *               from none to its full length. Defaults to 0.5.
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.jitter = jitter;
+    }
+
+    /**
+     * Returns how long to wait before the given attempt, before jitter.
+     *
+     * @param attempt 0 for the first attempt after a connection was lost
+     */
+    public long getDelay(int attempt) {
+        if (attempt == 0) {
+            return firstRetryMillis;
+        }
+        long delay = baseMillis;
+        for (int i = 1; i < attempt && delay < maxMillis; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxMillis);
+    }
+
+    private long jittered(long delay) {
+        double j = jitter;
+        if (j == 0 || delay == 0) {
+            return delay;
+        }
+        double r;
+        synchronized (random) {
+            r = random.nextDouble();
+        }
+        return delay - (long) (delay * j * r);
+    }
+
+    /**
+     * Schedules an attempt to reconnect a device's data stream, after the
+     * next wait in its backoff. Does nothing if an attempt is already
+     * pending for the device.
+     *
+     * @param device the Device whose data stream was lost
+     * @param port the port to reconnect to
+     * @param listener the listener to reconnect with
+     */
+    public void schedule(Device device, int port, DeviceConnectionListener listener) {
+        Attempt attempt = attemptFor(device);
+        synchronized (attempt) {
+            schedule(attempt, port, listener, jittered(getDelay(attempt.count)));
+        }
+    }
+
+    /**
+     * Schedules an attempt to reconnect a device's data stream after a
+     * fixed wait. Does nothing if an attempt is already pending for the
+     * device.
+     *
+     * @param device the Device whose data stream was lost
+     * @param port the port to reconnect to
+     * @param listener the listener to reconnect with
+     * @param millis the wait
+     */
+    public void scheduleAfter(Device device, int port, DeviceConnectionListener listener,
+                              long millis) {
+        Attempt attempt = attemptFor(device);
+        synchronized (attempt) {
+            schedule(attempt, port, listener, millis);
+        }
+    }
+
+    private Attempt attemptFor(Device device) {
+        Attempt attempt = attempts.get(device);
+        if (attempt == null) {
+            Attempt created = new Attempt(device);
+            attempt = attempts.putIfAbsent(device, created);
+            if (attempt == null) {
+                attempt = created;
+            }
+        }
+        return attempt;
+    }
+
+    private void schedule(final Attempt attempt, final int port,
+                          final DeviceConnectionListener listener, long millis) {
+        if (attempt.cancelled || attempt.future != null) {
+            return;
+        }
+        attempt.count++;
+        Log.d(TAG, "Reconnecting in " + millis + " ms, attempt " + attempt.count);
+        attempt.future = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (attempt) {
+                    if (attempt.cancelled) {
+                        return;
+                    }
+                    attempt.future = null;
+                    synchronized (ReconnectScheduler.this) {
+                        retryCount++;
+                    }
+                    // Held so that disconnectDataStream either cancels this
+                    // attempt or waits for it and closes what it opened
+                    attempt.device.reconnectDataStream(port, listener);
+                }
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a device's data stream has connected; ends its backoff
+     * and records how long it was without a connection.
+     */
+    void connected(Device device) {
+        Attempt attempt = attempts.remove(device);
+        if (attempt == null) {
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attempt.startNanos);
+        synchronized (this) {
+            reconnectCount++;
+            lastReconnectMillis = millis;
+            totalReconnectMillis += millis;
+            if (millis > maxReconnectMillis) {
+                maxReconnectMillis = millis;
+            }
+        }
+    }
+
+    /**
+     * Cancels any pending attempt to reconnect a device. If an attempt is
+     * being made, waits for it to finish.
+     */
+    public void cancel(Device device) {
+        Attempt attempt = attempts.remove(device);
+        if (attempt == null) {
+            return;
+        }
+        synchronized (attempt) {
+            attempt.cancelled = true;
+            if (attempt.future != null) {
+                attempt.future.cancel(false);
+                attempt.future = null;
+            }
+        }
+    }
+
+    /**
+     * @return whether an attempt to reconnect the device is waiting to be made
+     */
+    public boolean isPending(Device device) {
+        Attempt attempt = attempts.get(device);
+        return attempt != null && attempt.future != null;
+    }
+
+    /**
+     * @return the number of devices which have lost their connection and
+     *         not yet regained it
+     */
+    public int getDisconnectedCount() {
+        return attempts.size();
+    }
+
+    /**
+     * @return the number of times a lost connection has been regained
+     */
+    public synchronized long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * @return the number of attempts made to reconnect
+     */
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return the time from losing a connection to regaining it, in
+     *         milliseconds, for the most recent reconnect
+     */
+    public synchronized long getLastReconnectMillis() {
+        return lastReconnectMillis;
+    }
+
+    /**
+     * @return the longest time taken to regain a connection, in milliseconds
+     */
+    public synchronized long getMaxReconnectMillis() {
+        return maxReconnectMillis;
+    }
+
+    /**
+     * @return the average time taken to regain a connection, in milliseconds
+     */
+    public synchronized long getMeanReconnectMillis() {
+        return (reconnectCount == 0) ? 0 : totalReconnectMillis / reconnectCount;
+    }
+
+    /**
+     * The backoff state of one device, from losing its connection until
+     * regaining it.
+     */
+    private static final class Attempt {
+        final Device device;
+        final long startNanos = System.nanoTime();
+        int count;
+        boolean cancelled;
+        volatile ScheduledFuture<?> future;
+
+        Attempt(Device device) {
+            this.device = device;
+        }
+    }
+}
@@ -8,42 +8,56 @@
 package com.digi.wva.device;
 
 import android.util.Log;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
 import com.digi.wva.exc.DisconnectedException;
 import com.digi.wva.exc.FailedConnectionException;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 public class TCPReceiver extends Thread {
+    /**
+     * @deprecated Messages are no longer limited to this length; see
+     * {@link JsonFramer#setMaxFrameLength(int)}.
+     */
+    @Deprecated
     public static final int MAX_LENGTH = 500;
+    static final int READ_BUFFER_SIZE = 8192;
 	private static final String TAG = "com.dig.wva.net.TCPReceiver";
-	private boolean running;
+	private volatile boolean running;
+	private volatile Thread runner;
+	private volatile boolean stopRequested;
 	private IOException ioe;
     private String hostname;
     private int port;
     private DeviceConnectionListener listener;
 
     /***
-	 * Queue for incoming parsed messages. Will block
+	 * Queue for incoming parsed messages. By default, will block
 	 * when full
 	 */
-	private final BlockingQueue<JSONObject> incoming = new ArrayBlockingQueue<JSONObject>(100);
+	private EventRing incoming = new EventRing();
+
+    private JsonFramer framer = new JsonFramer();
+    private final EventDecoder decoder = new EventDecoder();
+    private IngestMetrics metrics = new IngestMetrics();
+    private volatile CaptureWriter capture;
 
 	/**
 	 * TCP socket for receiving messages from the WVA web service.
 	 * Does not write.
 	 */
-	private Socket clientSock;
+	private volatile Socket clientSock;
 
     private Device device;
 
     public TCPReceiver(Device owner, Socket socket) {
+        this(owner, socket, null);
+    }
+
+    TCPReceiver(Device owner, Socket socket, DeviceConnectionListener listener) {
         this.device = owner;
         this.port = socket.getPort();
         this.running = false;
@@ -51,6 +65,7 @@ public class TCPReceiver extends Thread {
         if (listener == null) {
             listener = DeviceConnectionListener.getDefault();
         }
+        this.listener = listener;
     }
 
     public TCPReceiver(Device owner, String hostname, int port) {
@@ -72,16 +87,75 @@ public class TCPReceiver extends Thread {
 	 * Allow the MessageHandler access to the object queue
 	 * @return the received object queue
 	 */
-	public BlockingQueue<JSONObject> getIncoming() {
+	public EventRing getIncoming() {
 		return incoming;
 	}
 
+    /**
+     * Replaces the queue for incoming parsed messages. Must be called before
+     * the thread is started.
+     */
+    public void setIncoming(EventRing incoming) {
+        this.incoming = incoming;
+    }
+
+    /**
+     * @return the framer splitting this receiver's stream into messages
+     */
+    public JsonFramer getFramer() {
+        return framer;
+    }
+
+    /**
+     * Replaces the framer used to split the stream into messages. Must be
+     * called before the thread is started.
+     */
+    public void setFramer(JsonFramer framer) {
+        this.framer = framer;
+    }
+
+    /**
+     * Sets where the bytes and messages received are counted. Must be
+     * called before the thread is started.
+     */
+    void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Records everything read from the socket, as it is read, to the given
+     * capture. Must be called before the thread is started.
+     *
+     * @param capture the capture, or null to record nothing
+     */
+    void setCapture(CaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * @return the decoder turning this receiver's messages into Events
+     */
+    public EventDecoder getDecoder() {
+        return decoder;
+    }
+
 	/**
 	 * Calling this method will permanently stop the run() method of this
-	 * thread.
+	 * thread. The socket is closed so that a blocked read returns at once,
+	 * freeing the thread.
 	 */
 	void stopThread() {
+		this.stopRequested = true;
 		this.running = false;
+		Thread r = runner;
+		if (r != null) {
+			r.interrupt();
+			if (clientSock != null) {
+				try {
+					clientSock.close();
+				} catch (IOException e) { }
+			}
+		}
 		this.interrupt();
 	}
 
@@ -117,13 +191,23 @@ public class TCPReceiver extends Thread {
 	}
 
 	/**
-	 * Read JSONObjects from a TCP stream into the incoming queue until either
-     * the thread is interrupted or stopThread() is called. No validation is
-     * performed on the objects, but they will be discarded if they are longer
-     * than MAX_LENGTH characters.
+	 * Read Events from a TCP stream into the incoming queue until either
+     * the thread is interrupted or stopThread() is called. The stream is split
+     * into objects by a {@link JsonFramer}; objects longer than its maximum
+     * frame length are discarded, as are objects which are not events.
      *
+     * <p>May be called by start(), or handed to an Executor as a Runnable.</p>
 	 */
 	public void run() {
+        runner = Thread.currentThread();
+        try {
+            receive();
+        } finally {
+            runner = null;
+        }
+    }
+
+    private void receive() {
         if (clientSock == null) {
             try {
                 clientSock = makeSocket();
@@ -133,62 +217,75 @@ public class TCPReceiver extends Thread {
             }
         }
 
+		// stopThread() may already have been called, before an executor
+		// got round to running this. Set before onConnected so that the
+		// listener sees the stream as connected.
+		this.running = !stopRequested;
+
+        if (device != null) {
+            device.dataStreamConnected();
+        }
         listener.onConnected(device);
 
-		this.running = true;
 		// Set up the input stream. If this fails, all hope is lost.
-		BufferedReader in = null;
+		InputStream in = null;
 
 		try {
-			in = new BufferedReader(new InputStreamReader(clientSock.getInputStream(), "UTF-8"));
+			in = clientSock.getInputStream();
 		} catch (IOException e1) {
             stopThread(e1);
             return;
 		}
 
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		JsonFramer.FrameListener enqueue = new JsonFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                enqueue(frame, length);
+            }
+        };
 
-		StringBuilder builder = new StringBuilder();
-		JSONObject j;
-		
 		while (running) {
 
-            if (this.isInterrupted()) {
+            if (Thread.currentThread().isInterrupted()) {
                 break;
             }
 
 			try {
-                // Read a line out of the incoming buffer. This blocks
-                // indefinitely
-                String next = in.readLine();
+                // Read whatever has arrived. This blocks indefinitely
+                int count = in.read(buffer);
 
-                // If this string is null, we have reached an EOF or the connection
-                // has otherwise been severed at the remote end.
-                if (next == null) {
+                // A negative count means we have reached an EOF or the
+                // connection has otherwise been severed at the remote end.
+                if (count < 0) {
                     Log.i(TAG, "Socket closed on remote end");
                     stopThread(new DisconnectedException("Socket closed on remote end"));
                     continue;
                 }
 
-                // Append this string to a stringBuilder. If it creates a valid
-                // JSONObject, add it to the queue, otherwise, continue building
-                builder.append(next);
-                int i = builder.indexOf("{");
-                builder.delete(0, (i < 0) ? 0 : i);
-				j = new JSONObject(builder.toString());
-				incoming.put(j);
-				builder = new StringBuilder();
-
-			} catch(JSONException je) {
-                // JSONException is caught whenever the builder does not have a
-                // valid JSON string.
-
-				if (builder.length() > MAX_LENGTH) {
-					//Message shouldn't be this long; abort!
-					// Should only happen upon receiving a rogue '{'
-					builder = new StringBuilder();
-				}
+                CaptureWriter c = capture;
+                if (c != null) {
+                    try {
+                        c.write(buffer, 0, count, System.nanoTime());
+                    } catch (IOException e) {
+                        // Keep the stream going without the capture
+                        Log.e(TAG, "Capture failed", e);
+                        capture = null;
+                    }
+                }
+
+                // Every complete object in what has been received so far is
+                // added to the queue; the rest is kept for the next read.
+                metrics.bytesReceived(count);
+                long oversized = framer.getOversizedCount();
+                framer.feed(buffer, 0, count, enqueue);
+                metrics.oversized(framer.getOversizedCount() - oversized);
 
 			} catch (IOException e) {
+                if (!running) {
+                    // stopThread() closed the socket
+                    break;
+                }
                 Log.i(TAG, "IOException in TCPReceiver");
                 stopThread(e);
 
@@ -206,6 +303,31 @@ public class TCPReceiver extends Thread {
         Log.d(TAG, "End of run()");
 	}
 
+    /**
+     * Decodes one frame and puts it on the incoming queue, waiting for room
+     * if the queue is full and set to block.
+     */
+    private void enqueue(byte[] frame, int length) {
+        metrics.frameReceived();
+        try {
+            if (decoder.decode(frame, 0, length)) {
+                incoming.put(decoder);
+                return;
+            }
+
+            Event e = decoder.decodeFallback(frame, 0, length);
+            if (e == null) {
+                metrics.parseFailed();
+                Log.i(TAG, "Message wasn't parsed...");
+                return;
+            }
+            incoming.put(e);
+        } catch (InterruptedException ie) {
+            // stopThread() was called; leave the flag set for run() to see.
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private Socket makeSocket() throws IOException {
         return new Socket(hostname, port);
     }
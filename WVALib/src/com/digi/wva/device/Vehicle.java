@@ -21,6 +21,9 @@ import org.json.JSONObject;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This object allows users to access both raw and derived data about the
@@ -37,14 +40,70 @@ public class Vehicle {
 	private static final boolean BUFFER_SUBSCRIPTIONS = true;
 	private static final boolean BUFFER_ALARMS = true;
     public static final String SUB_SUFFIX = "~sub";
-    private final ConcurrentHashMap<String, VehicleResponse> map;
-	private Set<String> keyset;
+	private volatile Endpoints endpoints = new Endpoints(EndpointCatalog.EMPTY, null);
 	private final WvaHttpClient httpClient;
 	
-    private ConcurrentHashMap<String, WvaListener> listenerMap = new ConcurrentHashMap<String, WvaListener>();
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final LocalAlarmEngine localAlarms = new LocalAlarmEngine();
+    private final ConcurrentHashMap<String, DerivedEndpoint> derived =
+            new ConcurrentHashMap<String, DerivedEndpoint>();
+    private volatile BatchListener batchListener;
+    private volatile IngestMetrics metrics = new IngestMetrics();
+
+    /** Held while cached values are updated, and while endpoints is replaced. */
+    private final Object writeLock = new Object();
+    /**
+     * Twice the sequence number of the last update, plus one while an
+     * update is being made, so that readers can tell whether values changed
+     * while they were reading them.
+     */
+    private volatile long writes;
+    /** How many times a snapshot is tried before it waits out the writers. */
+    private static final int SNAPSHOT_ATTEMPTS = 8;
+
+    /**
+     * The known endpoints, and their cached values, the sequence numbers of
+     * the updates which gave them those values, histories, aggregates and
+     * the derived endpoints reading them, indexed by ID. Replaced as a whole
+     * when the endpoints are listed again. A value is cached as the Event
+     * which brought it, so that its VehicleResponse is only created if the
+     * cached value is asked for.
+     */
+    private static final class Endpoints {
+        final EndpointCatalog catalog;
+        final AtomicReferenceArray<Event> values;
+        final AtomicLongArray changed;
+        final AtomicReferenceArray<EndpointHistory> histories;
+        final AtomicReferenceArray<WindowAggregate[]> aggregates;
+        final AtomicReferenceArray<DerivedEndpoint[]> dependents;
+
+        /**
+         * @param previous the state being replaced, whose IDs are kept by
+         *                 the new catalog, or null
+         */
+        Endpoints(EndpointCatalog catalog, Endpoints previous) {
+            this.catalog = catalog;
+            this.values = new AtomicReferenceArray<Event>(catalog.size());
+            this.changed = new AtomicLongArray(catalog.size());
+            this.histories = new AtomicReferenceArray<EndpointHistory>(catalog.size());
+            this.aggregates = new AtomicReferenceArray<WindowAggregate[]>(catalog.size());
+            this.dependents = new AtomicReferenceArray<DerivedEndpoint[]>(catalog.size());
+            int kept = (previous == null) ? 0 : previous.catalog.size();
+            for (int id = 0; id < catalog.size(); id++) {
+                if (id < kept) {
+                    values.set(id, previous.values.get(id));
+                    changed.set(id, previous.changed.get(id));
+                    histories.set(id, previous.histories.get(id));
+                    aggregates.set(id, previous.aggregates.get(id));
+                    dependents.set(id, previous.dependents.get(id));
+                } else {
+                    values.set(id, new Event(null, catalog.nameOf(id), null, null, new VehicleResponse()));
+                }
+            }
+        }
+    }
 	
 	public Vehicle(WvaHttpClient client) {
-		this.map = new ConcurrentHashMap<String, VehicleResponse>();
 		this.httpClient = client;
 	}
 	
@@ -67,21 +126,31 @@ public class Vehicle {
 			public void onSuccess(JSONArray uris) {
 				int l  = uris.length();
 				String uri;
+				List<String> names = new ArrayList<String>(l);
 				
 				for (int i = 0; i < l; i++) {
 					try {
 						
 						uri = uris.getString(i);
-						String endpoint = uri.substring(uri.lastIndexOf('/') + 1);
-						map.putIfAbsent(endpoint, new VehicleResponse());
+						names.add(uri.substring(uri.lastIndexOf('/') + 1));
 //						Log.v(TAG, String.format("creating %s endpoint", endpoint));
 						
 					} catch (JSONException e) {
 						Log.w(TAG, "couldn't initialize vehicle data correctly");
 					}
 				}
-				keyset = map.keySet();
-				onInitialized.onResponse(null, keyset);
+				// Endpoints listed before keep their IDs and values
+				EndpointCatalog catalog;
+				synchronized (Vehicle.this) {
+					synchronized (writeLock) {
+						Endpoints previous = endpoints;
+						catalog = previous.catalog.plus(names);
+						if (catalog != previous.catalog) {
+							endpoints = new Endpoints(catalog, previous);
+						}
+					}
+				}
+				onInitialized.onResponse(null, catalog.names());
 			}
 			
 			@Override
@@ -98,39 +167,138 @@ public class Vehicle {
 		});
 	}
 
+    /**
+     * @return a copy of the names of all queryable endpoints
+     */
     public Set<String> getKeySet() {
-        if (this.keyset == null) {
-            return new HashSet<String>();
-        }
-        else {
-            return new HashSet<String>(this.keyset);
-        }
+        return new HashSet<String>(endpoints.catalog.names());
+    }
+
+    /**
+     * @return the queryable endpoints, with the IDs by which their cached
+     *         values and histories can also be read
+     */
+    public EndpointCatalog getCatalog() {
+        return endpoints.catalog;
     }
 	
 	/**
-	 * Returns a set of all queryable endpoints
+	 * Checks that an endpoint is queryable, without allocating anything.
 	 */
     public void validateEndpoint(String endpoint) throws EndpointUnknownException {
-		if (!getKeySet().contains(endpoint)) {
+		if (!getCatalog().contains(endpoint)) {
 			throw(new EndpointUnknownException(
 					String.format("endpoint %s is not known.", endpoint)));
 		}
 	}
 	
 	public void notifyListeners(Event e) {
-		VehicleResponse data = map.get(e.getEndpoint());
-		if (data == null) {
+		int id = endpoints.catalog.idOf(e.getEndpoint());
+		if (id < 0) {
 			Log.i(TAG, "Endpoint " + e.getEndpoint() + " does not exist.");
 			return;
 		}
 
-        if (listenerMap.containsKey(e.getShortName())) {
-            listenerMap.get(e.getShortName()).onUpdate(e.getEndpoint(), e.getResponse());
+        ListenerRegistration[] matched = listeners.match(e.getShortName());
+        if (matched.length == 0) {
+            metrics.noListener();
+            Log.d(TAG, "Received event that had no listener");
         }
         else {
-            Log.d(TAG, "Received event that had no listener");
+            long now = System.currentTimeMillis();
+            recordLag(e, now);
+            for (ListenerRegistration registration : matched) {
+                if (registration.accepts(id, e, now)) {
+                    registration.dispatch(id, e);
+                }
+            }
+        }
+
+        BatchListener all = batchListener;
+        if (all != null) {
+            OneEventList.deliver(all, e);
         }
 	}
+
+    /**
+     * Notifies listeners of several events at once. Each
+     * {@link BatchListener} is called once with the events it listens to,
+     * and every other listener once per event, in the order received;
+     * a {@link PrimitiveListener} as each event is reached.
+     *
+     * @param events Events for known endpoints
+     */
+    public void notifyListeners(List<Event> events) {
+        // Group the events by listener, keeping their order
+        Map<ListenerRegistration, List<Event>> byListener =
+                new LinkedHashMap<ListenerRegistration, List<Event>>();
+        long now = System.currentTimeMillis();
+        EndpointCatalog catalog = endpoints.catalog;
+        for (Event e : events) {
+            ListenerRegistration[] matched = listeners.match(e.getShortName());
+            if (matched.length == 0) {
+                metrics.noListener();
+                Log.d(TAG, "Received event that had no listener");
+                continue;
+            }
+            recordLag(e, now);
+            int id = catalog.idOf(e.getEndpoint());
+            for (ListenerRegistration registration : matched) {
+                if (!registration.accepts(id, e, now)) {
+                    continue;
+                }
+                if (registration.isPrimitive()) {
+                    registration.dispatch(id, e);
+                    continue;
+                }
+                List<Event> forListener = byListener.get(registration);
+                if (forListener == null) {
+                    forListener = new ArrayList<Event>();
+                    byListener.put(registration, forListener);
+                }
+                forListener.add(e);
+            }
+        }
+
+        for (Map.Entry<ListenerRegistration, List<Event>> entry : byListener.entrySet()) {
+            entry.getKey().dispatch(entry.getValue());
+        }
+
+        BatchListener all = batchListener;
+        if (all != null && !events.isEmpty()) {
+            all.onUpdates(events);
+        }
+    }
+
+    /**
+     * Sets a listener which is given every event received on the data
+     * stream, whatever its subscription or alarm, in addition to the
+     * listeners given when subscribing.
+     *
+     * @param listener The listener, or null to remove it
+     */
+    public void setBatchListener(BatchListener listener) {
+        this.batchListener = listener;
+    }
+
+    public BatchListener getBatchListener() {
+        return batchListener;
+    }
+
+    private void recordLag(Event e, long now) {
+        long sent = e.getSentMillis();
+        if (sent != Event.NO_TIME) {
+            metrics.delivered(sent, now);
+        }
+    }
+
+    /**
+     * Sets where events received and delivered are counted; called by the
+     * Device which owns this Vehicle.
+     */
+    void setIngestMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
 	
 	/**
 	 * This method is used to update the cached value of an endpoint, which
@@ -141,23 +309,462 @@ public class Vehicle {
 	 * @e an Event object
 	 */
     void updateCached(Event e) {
-        if (e != null && map.replace(e.getEndpoint(), e.getResponse()) != null) {
+        int id = (e == null) ? -1 : replaceCached(e);
+        if (id >= 0) {
+            metrics.eventReceived(e.getEndpoint());
 			notifyListeners(e);
+            evaluateLocalAlarms(id, e);
+            updateDerived(id, e);
         }
         else {
             Log.w(TAG, "received null/unknown event");
         }
 	}
 
+    /**
+     * Updates the cached values of several endpoints, then notifies their
+     * listeners with {@link #notifyListeners(List)}.
+     *
+     * @param events Events taken from the data stream together
+     */
+    void updateCached(List<Event> events) {
+        List<Event> known = new ArrayList<Event>(events.size());
+        int[] ids = new int[events.size()];
+        for (Event e : events) {
+            int id = (e == null) ? -1 : replaceCached(e);
+            if (id >= 0) {
+                metrics.eventReceived(e.getEndpoint());
+                ids[known.size()] = id;
+                known.add(e);
+            }
+            else {
+                Log.w(TAG, "received null/unknown event");
+            }
+        }
+        notifyListeners(known);
+        for (int i = 0; i < known.size(); i++) {
+            evaluateLocalAlarms(ids[i], known.get(i));
+            updateDerived(ids[i], known.get(i));
+        }
+    }
+
     public void updateCached(String endpoint, VehicleResponse response) {
-        if(map.replace(endpoint, response) != null) {
-            notifyListeners(new Event("subscription", endpoint, null, "shortname", response));
+        Event e = new Event("subscription", endpoint, null, "shortname", response);
+        int id = replaceCached(e);
+        if (id >= 0) {
+            notifyListeners(e);
+            evaluateLocalAlarms(id, e);
+            updateDerived(id, e);
         }
     }
 
-	private void addListener(String shortName, WvaListener listener) {
-        listenerMap.put(shortName, listener);
-	}
+    /**
+     * Runs the derived endpoints which read the event's endpoint, and
+     * publishes their new values as if they had arrived on the data stream,
+     * which in turn updates any derived from them.
+     */
+    private void updateDerived(int id, Event e) {
+        Endpoints current = endpoints;
+        DerivedEndpoint[] readers = current.dependents.get(id);
+        if (readers == null) {
+            return;
+        }
+        long valueMillis = e.getValueMillis();
+        long time = (valueMillis != Event.NO_TIME) ? valueMillis : System.currentTimeMillis();
+        for (DerivedEndpoint d : readers) {
+            double value = d.evaluate(current.values, time);
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            Event published = new Event("subscription", d.getName(), e.getSentMillis(), d.getShortName(),
+                    value, valueMillis);
+            int publishedId = replaceCached(published);
+            if (publishedId >= 0) {
+                notifyListeners(published);
+                evaluateLocalAlarms(publishedId, published);
+                updateDerived(publishedId, published);
+            }
+        }
+    }
+
+    /**
+     * Adds an endpoint whose value is computed from the values of others, by
+     * an expression such as "VehicleSpeed / EngineSpeed"; see
+     * {@link DerivedEndpoint} for what expressions may contain. It is then
+     * known like any other endpoint: its value is cached, can be kept in a
+     * history or aggregated, and is delivered as a subscription's would be,
+     * under the short name "name~sub", whenever an endpoint it reads is
+     * updated. Subscribing to it only adds the listener, since the WVA does
+     * not know it.
+     *
+     * @param name The name of the new endpoint, which must not be known yet
+     * @param expression The expression giving its value
+     * @return the derived endpoint
+     * @throws EndpointUnknownException If the expression reads an endpoint
+     *                                  which is not known
+     * @throws IllegalArgumentException If the name is known already, or the
+     *                                  expression cannot be parsed
+     */
+    public DerivedEndpoint addDerived(String name, String expression) throws EndpointUnknownException {
+        DerivedEndpoint d = DerivedEndpoint.compile(name, expression);
+        synchronized (this) {
+            Endpoints previous = endpoints;
+            if (previous.catalog.contains(name)) {
+                throw new IllegalArgumentException(String.format("endpoint %s is already known.", name));
+            }
+            for (String input : d.getInputs()) {
+                validateEndpoint(input);
+            }
+            synchronized (writeLock) {
+                Endpoints current = new Endpoints(previous.catalog.plus(Collections.singleton(name)), previous);
+                d.bind(current.catalog);
+                for (int id : d.getInputIds()) {
+                    DerivedEndpoint[] readers = current.dependents.get(id);
+                    if (readers == null) {
+                        readers = new DerivedEndpoint[] { d };
+                    } else {
+                        DerivedEndpoint[] grown = new DerivedEndpoint[readers.length + 1];
+                        System.arraycopy(readers, 0, grown, 0, readers.length);
+                        grown[readers.length] = d;
+                        readers = grown;
+                    }
+                    current.dependents.set(id, readers);
+                }
+                derived.put(name, d);
+                endpoints = current;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Stops computing a derived endpoint. The name stays known, with its
+     * last value cached, so that IDs handed out by the catalog keep their
+     * meaning.
+     */
+    public synchronized void removeDerived(String name) {
+        DerivedEndpoint d = derived.remove(name);
+        if (d == null) {
+            return;
+        }
+        d.markRemoved();
+        Endpoints current = endpoints;
+        for (int id : d.getInputIds()) {
+            DerivedEndpoint[] readers = current.dependents.get(id);
+            if (readers == null) {
+                continue;
+            }
+            List<DerivedEndpoint> remaining = new ArrayList<DerivedEndpoint>(Arrays.asList(readers));
+            remaining.remove(d);
+            current.dependents.set(id, remaining.isEmpty()
+                    ? null : remaining.toArray(new DerivedEndpoint[remaining.size()]));
+        }
+    }
+
+    /**
+     * @return the derived endpoint of that name, or null if there is none
+     */
+    public DerivedEndpoint getDerived(String name) {
+        return derived.get(name);
+    }
+
+    /**
+     * Evaluates the local alarms of a subscription event's endpoint, and
+     * delivers any triggered: once to the listeners of each triggered alarm
+     * type's short name, as a WVA alarm would be, and to each triggered
+     * alarm's own listener.
+     */
+    private void evaluateLocalAlarms(int id, Event e) {
+        if (!"subscription".equals(e.getType()) || !e.hasValue()) {
+            return;
+        }
+        long valueMillis = e.getValueMillis();
+        long time = (valueMillis != Event.NO_TIME) ? valueMillis : System.currentTimeMillis();
+        List<LocalAlarm> triggered = localAlarms.evaluate(e.getEndpoint(), e.getValue(), time);
+        if (triggered == null) {
+            return;
+        }
+        // One bit per AlarmType whose short name has been notified
+        int notified = 0;
+        for (LocalAlarm alarm : triggered) {
+            int type = 1 << alarm.getType().ordinal();
+            String shortName = alarm.getShortName();
+            boolean notify = (notified & type) == 0
+                    && (listeners.match(shortName).length > 0 || batchListener != null);
+            notified |= type;
+            if (!notify && alarm.getListener() == null) {
+                continue;
+            }
+            Event alarmEvent = new Event("alarm", e.getEndpoint(), e.getSentMillis(), shortName,
+                    e.getValue(), valueMillis);
+            if (notify) {
+                notifyListeners(alarmEvent);
+            }
+            if (alarm.getListener() != null) {
+                ListenerRegistration.deliver(alarm.getListener(), id, alarmEvent);
+            }
+        }
+    }
+
+    /**
+     * Adds an alarm which this library evaluates on the subscription data it
+     * receives for the endpoint, with no request to the WVA. When triggered,
+     * the alarm's event is delivered to the listeners of its short name
+     * ("EngineSpeed~above", say) as a WVA alarm's would be, and to the
+     * listener given.
+     *
+     * <p>Any number of local alarms may be added to an endpoint, and their
+     * thresholds changed at any time; see {@link LocalAlarm}.</p>
+     *
+     * @param endpoint The endpoint. Must be in this.endpoints()
+     * @param type The type of alarm, with the meaning it has for the WVA
+     * @param threshold Changes meaning depending on AlarmType
+     * @param listener Called when this alarm is triggered, or null
+     * @throws EndpointUnknownException If the endpoint does not exist
+     */
+    public LocalAlarm addLocalAlarm(String endpoint, AlarmType type, double threshold,
+                                    WvaListener listener) throws EndpointUnknownException {
+        validateEndpoint(endpoint);
+        return localAlarms.add(endpoint, type, threshold, listener);
+    }
+
+    /**
+     * @return the local alarms of the endpoint, in the order they were added
+     */
+    public List<LocalAlarm> getLocalAlarms(String endpoint) {
+        return localAlarms.get(endpoint);
+    }
+
+    /**
+     * Removes every local alarm of the endpoint.
+     */
+    public void removeLocalAlarms(String endpoint) {
+        localAlarms.remove(endpoint);
+    }
+
+    /**
+     * Starts keeping the recent values of an endpoint, as they are received
+     * from the data stream or fetched. Any history the endpoint already had
+     * is replaced.
+     *
+     * @param endpoint The endpoint. Must be in this.endpoints()
+     * @param capacity The most values kept
+     * @param spanMillis How far back from the newest value to keep values,
+     *                   or 0 to keep as many as fit
+     * @return the history, which can also be read directly
+     * @throws EndpointUnknownException If the endpoint does not exist
+     */
+    public EndpointHistory setHistory(String endpoint, int capacity, long spanMillis)
+            throws EndpointUnknownException {
+        EndpointHistory history = new EndpointHistory(capacity, spanMillis);
+        synchronized (this) {
+            Endpoints current = endpoints;
+            int id = current.catalog.idOf(endpoint);
+            if (id < 0) {
+                throw new EndpointUnknownException(
+                        String.format("endpoint %s is not known.", endpoint));
+            }
+            current.histories.set(id, history);
+        }
+        return history;
+    }
+
+    /**
+     * Stops keeping the recent values of an endpoint and throws them away.
+     */
+    public synchronized void removeHistory(String endpoint) {
+        Endpoints current = endpoints;
+        int id = current.catalog.idOf(endpoint);
+        if (id >= 0) {
+            current.histories.set(id, null);
+        }
+    }
+
+    /**
+     * @return the history kept for the endpoint, or null if there is none
+     */
+    public EndpointHistory getHistory(String endpoint) {
+        Endpoints current = endpoints;
+        int id = current.catalog.idOf(endpoint);
+        return (id < 0) ? null : current.histories.get(id);
+    }
+
+    /**
+     * @param id the endpoint's ID in {@link #getCatalog()}
+     * @return the history kept for the endpoint, or null if there is none
+     */
+    public EndpointHistory getHistory(int id) {
+        return endpoints.histories.get(id);
+    }
+
+    /**
+     * Copies out the recent values of an endpoint whose timestamps are from
+     * fromMillis to toMillis, inclusive, oldest first.
+     *
+     * @return the values, or null if no history is kept for the endpoint
+     */
+    public EndpointHistory.Samples getHistory(String endpoint, long fromMillis, long toMillis) {
+        EndpointHistory history = getHistory(endpoint);
+        return (history == null) ? null : history.get(fromMillis, toMillis);
+    }
+
+    /**
+     * Walks the recent values of an endpoint whose timestamps are from
+     * fromMillis to toMillis, inclusive, oldest first, without copying them.
+     *
+     * @return a cursor over the values, or null if no history is kept for
+     *         the endpoint
+     */
+    public EndpointHistory.Cursor getHistoryCursor(String endpoint, long fromMillis, long toMillis) {
+        EndpointHistory history = getHistory(endpoint);
+        return (history == null) ? null : history.cursor(fromMillis, toMillis);
+    }
+
+    /**
+     * Caches the new value of a known endpoint brought by an event, and
+     * adds it to the endpoint's history and aggregates if any are kept.
+     *
+     * @return the endpoint's ID, or -1 if the endpoint is not known
+     */
+    private int replaceCached(Event e) {
+        Endpoints current;
+        int id;
+        synchronized (writeLock) {
+            current = endpoints;
+            id = current.catalog.idOf(e.getEndpoint());
+            if (id < 0) {
+                return -1;
+            }
+            long sequence = (writes >> 1) + 1;
+            writes++;
+            current.values.set(id, e);
+            current.changed.set(id, sequence);
+            writes++;
+        }
+
+        EndpointHistory history = current.histories.get(id);
+        WindowAggregate[] windows = current.aggregates.get(id);
+        if ((history != null || windows != null) && e.hasValue()) {
+            long valueMillis = e.getValueMillis();
+            long time = (valueMillis != Event.NO_TIME) ? valueMillis : System.currentTimeMillis();
+            double value = e.getValue();
+            if (history != null) {
+                history.add(time, value);
+            }
+            if (windows != null) {
+                for (WindowAggregate window : windows) {
+                    window.add(time, value);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Starts aggregating an endpoint's values over a window, as they are
+     * received from the data stream or fetched. An endpoint may have any
+     * number of windows, of different lengths.
+     *
+     * @param endpoint The endpoint. Must be in this.endpoints()
+     * @param aggregate The window, which must not be added to another endpoint
+     * @throws EndpointUnknownException If the endpoint does not exist
+     */
+    public void addAggregate(String endpoint, WindowAggregate aggregate)
+            throws EndpointUnknownException {
+        if (aggregate == null) {
+            throw new NullPointerException("aggregate");
+        }
+        synchronized (this) {
+            Endpoints current = endpoints;
+            int id = current.catalog.idOf(endpoint);
+            if (id < 0) {
+                throw new EndpointUnknownException(
+                        String.format("endpoint %s is not known.", endpoint));
+            }
+            WindowAggregate[] windows = current.aggregates.get(id);
+            if (windows == null) {
+                windows = new WindowAggregate[] { aggregate };
+            } else {
+                WindowAggregate[] grown = new WindowAggregate[windows.length + 1];
+                System.arraycopy(windows, 0, grown, 0, windows.length);
+                grown[windows.length] = aggregate;
+                windows = grown;
+            }
+            current.aggregates.set(id, windows);
+        }
+    }
+
+    /**
+     * Stops aggregating an endpoint's values over a window.
+     */
+    public synchronized void removeAggregate(String endpoint, WindowAggregate aggregate) {
+        Endpoints current = endpoints;
+        int id = current.catalog.idOf(endpoint);
+        WindowAggregate[] windows = (id < 0) ? null : current.aggregates.get(id);
+        if (windows == null) {
+            return;
+        }
+        List<WindowAggregate> remaining = new ArrayList<WindowAggregate>(Arrays.asList(windows));
+        remaining.remove(aggregate);
+        current.aggregates.set(id, remaining.isEmpty()
+                ? null : remaining.toArray(new WindowAggregate[remaining.size()]));
+    }
+
+    /**
+     * @return the windows over which the endpoint's values are aggregated,
+     *         in the order they were added
+     */
+    public List<WindowAggregate> getAggregates(String endpoint) {
+        Endpoints current = endpoints;
+        int id = current.catalog.idOf(endpoint);
+        WindowAggregate[] windows = (id < 0) ? null : current.aggregates.get(id);
+        if (windows == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(windows));
+    }
+
+    /**
+     * Adds a listener, called on the thread handling the data stream, in
+     * addition to any already listening to the same events.
+     *
+     * @see #addListener(String, WvaListener, Executor, int)
+     */
+    public ListenerRegistration addListener(String pattern, WvaListener listener) {
+        return listeners.add(pattern, listener, null, 0);
+    }
+
+    /**
+     * Adds a listener in addition to any already listening to the same
+     * events. The listener gets its own queue of at most capacity events,
+     * which are delivered on the executor, so that a slow listener delays
+     * neither the data stream nor other listeners; events arriving while its
+     * queue is full are dropped and counted by the returned registration.
+     *
+     * <p>The pattern is the short name of a subscription or alarm, such as
+     * "EngineSpeed~sub" or "EngineSpeed~above"; "EngineSpeed~*" for every
+     * subscription and alarm of an endpoint; "*~sub" or "*~above" for every
+     * subscription or every alarm of a type; or "*" for everything.</p>
+     *
+     * @param executor Where the listener is called, or null to call it on
+     *                 the thread handling the data stream, without a queue
+     * @param capacity The most events queued for the listener
+     * @return the registration, which removes the listener, sets a
+     *         {@link DeliveryFilter} on it and tells how it is keeping up
+     * @throws IllegalArgumentException if the pattern is not of a form above
+     */
+    public ListenerRegistration addListener(String pattern, WvaListener listener,
+                                            Executor executor, int capacity) {
+        return listeners.add(pattern, listener, executor, capacity);
+    }
+
+    /**
+     * @return every listener added, including those given when subscribing
+     *         or creating alarms
+     */
+    public List<ListenerRegistration> getListenerRegistrations() {
+        return listeners.getAll();
+    }
 
     /**
 	 * Synchronously returns the last response received by this library for a
@@ -165,11 +772,116 @@ public class Vehicle {
 	 * field to the latest value, use update() or create a subscription.
 	 */
 	public VehicleResponse getCached(String endpoint) {
-		if (!getKeySet().contains(endpoint)) {
-			return null;
-		}
-		return map.get(endpoint);
+		Endpoints current = endpoints;
+		int id = current.catalog.idOf(endpoint);
+		return (id < 0) ? null : current.values.get(id).getResponse();
 	}
+
+	/**
+	 * Returns the last response received for an endpoint, by its ID in
+	 * {@link #getCatalog()}.
+	 */
+	public VehicleResponse getCached(int id) {
+		return endpoints.values.get(id).getResponse();
+	}
+
+    /**
+     * @return the sequence number of the last update to a cached value
+     */
+    public long getSequence() {
+        return writes >> 1;
+    }
+
+    /**
+     * Returns the cached values of every endpoint as they all stood at one
+     * moment, with no update half seen. This takes no lock unless updates
+     * keep arriving as it reads. Updates do hold a lock, briefly, since
+     * values fetched over HTTP are cached from other threads than the data
+     * stream's; it is uncontended while the data stream is the only writer.
+     */
+    public VehicleSnapshot snapshot() {
+        return read(null, -1);
+    }
+
+    /**
+     * Returns the cached values of the given endpoints as they all stood at
+     * one moment. Endpoints which are not known are left out.
+     */
+    public VehicleSnapshot snapshot(Collection<String> endpointNames) {
+        return read(endpointNames, -1);
+    }
+
+    /**
+     * Returns the cached values, as they all stand at one moment, of the
+     * endpoints updated since the given sequence number: that of an earlier
+     * snapshot, say, or 0 for every endpoint which has a value.
+     */
+    public VehicleSnapshot changedSince(long sequence) {
+        return read(null, sequence);
+    }
+
+    private VehicleSnapshot read(Collection<String> names, long since) {
+        for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+            long before = writes;
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            VehicleSnapshot snapshot = copy(endpoints, names, since, before >> 1);
+            if (writes == before) {
+                return snapshot;
+            }
+        }
+        synchronized (writeLock) {
+            return copy(endpoints, names, since, writes >> 1);
+        }
+    }
+
+    private static VehicleSnapshot copy(Endpoints current, Collection<String> names, long since,
+                                        long sequence) {
+        int[] ids;
+        if (names == null) {
+            ids = new int[current.catalog.size()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = id;
+            }
+        } else {
+            int[] found = new int[names.size()];
+            int n = 0;
+            for (String name : names) {
+                int id = current.catalog.idOf(name);
+                if (id >= 0) {
+                    found[n++] = id;
+                }
+            }
+            ids = new int[n];
+            System.arraycopy(found, 0, ids, 0, n);
+        }
+
+        String[] endpointNames = new String[ids.length];
+        VehicleResponse[] responses = new VehicleResponse[ids.length];
+        long[] changed = new long[ids.length];
+        int n = 0;
+        for (int id : ids) {
+            long at = current.changed.get(id);
+            if (at > since) {
+                endpointNames[n] = current.catalog.nameOf(id);
+                responses[n] = current.values.get(id).getResponse();
+                changed[n] = at;
+                n++;
+            }
+        }
+        if (n < ids.length) {
+            String[] someNames = new String[n];
+            VehicleResponse[] someResponses = new VehicleResponse[n];
+            long[] someChanged = new long[n];
+            System.arraycopy(endpointNames, 0, someNames, 0, n);
+            System.arraycopy(responses, 0, someResponses, 0, n);
+            System.arraycopy(changed, 0, someChanged, 0, n);
+            return new VehicleSnapshot(sequence, someNames, someResponses, someChanged);
+        }
+        return new VehicleSnapshot(sequence, endpointNames, responses, changed);
+    }
 	
 	/**
 	 * Asynchronously queries the WVA for the newest data at the given endpoint 
@@ -195,7 +907,8 @@ public class Vehicle {
 				JSONObject valTimeObj;
 				try {
 					valTimeObj = jObj.getJSONObject(endpoint);
-                    map.replace(endpoint, new VehicleResponse(valTimeObj));
+                    VehicleResponse fetched = new VehicleResponse(valTimeObj);
+                    replaceCached(new Event(null, endpoint, null, null, fetched));
 
 					if (cb != null) {
 						cb.onResponse(null, new VehicleResponse(valTimeObj));
@@ -244,6 +957,17 @@ public class Vehicle {
 			throws JSONException, EndpointUnknownException {
 		
 		validateEndpoint(endpoint);
+
+        if (derived.containsKey(endpoint)) {
+            // Computed here; there is nothing to ask the WVA for
+            if (listener != null) {
+                listeners.replacePrimary(endpoint + SUB_SUFFIX, listener);
+            }
+            if (cb != null) {
+                cb.onResponse(null, null);
+            }
+            return;
+        }
 		
 		JSONObject parameters = new JSONObject();
 		JSONObject subscription = new JSONObject();
@@ -259,7 +983,7 @@ public class Vehicle {
 			@Override
 			public void onSuccess(String responseString) {
 				if (listener != null) {
-					addListener(shortName, listener);
+					listeners.replacePrimary(shortName, listener);
 				}
                 if (cb != null) {
                     cb.onResponse(null, null);
@@ -290,7 +1014,7 @@ public class Vehicle {
 			@Override
 			public void onSuccess(String response) {
 				if (deleteCallbacks) {
-                    listenerMap.remove(endpoint + SUB_SUFFIX);
+                    listeners.removeShortName(shortName);
 				}
                 if (cb != null) {
                     cb.onResponse(null, null);
@@ -314,6 +1038,59 @@ public class Vehicle {
 		});
 	}
 	
+    /**
+     * Subscribes to many endpoints at once. Requests are sent with at most
+     * concurrency in flight, each response sending the next, so that they
+     * share a few kept-alive connections instead of queueing one after
+     * another; a request which fails is sent again up to retries times.
+     * When every endpoint is done, the callback is given one
+     * {@link BulkResult}, and an error if any endpoint failed.
+     *
+     * @param endpointIntervals The interval of time between updates for
+     *                          each endpoint, in seconds
+     * @param listener Added for each endpoint subscribed to, or null
+     * @param concurrency The most requests in flight at once
+     * @param retries How many times a failed request is sent again
+     * @param cb Executed when every request has completed, or null
+     */
+    public void subscribeAll(final Map<String, Integer> endpointIntervals, final WvaListener listener,
+                             int concurrency, int retries, WvaCallback<BulkResult> cb) {
+        new BulkOperation(endpointIntervals.keySet(), concurrency, retries, cb) {
+            @Override
+            void send(String endpoint, WvaCallback<Void> done) throws Exception {
+                subscribe(endpoint, endpointIntervals.get(endpoint), listener, done);
+            }
+        }.start();
+    }
+
+    /**
+     * Unsubscribes from many endpoints at once, with at most concurrency
+     * requests in flight, as {@link #subscribeAll} subscribes. An endpoint
+     * with no subscription counts as unsubscribed.
+     *
+     * @param endpointNames The endpoints
+     * @param deleteCallbacks Whether to remove the endpoints' subscription
+     *                        listeners as well
+     * @param concurrency The most requests in flight at once
+     * @param retries How many times a failed request is sent again
+     * @param cb Executed when every request has completed, or null
+     */
+    public void unsubscribeAll(Collection<String> endpointNames, final boolean deleteCallbacks,
+                               int concurrency, int retries, WvaCallback<BulkResult> cb) {
+        new BulkOperation(endpointNames, concurrency, retries, cb) {
+            @Override
+            void send(String endpoint, WvaCallback<Void> done) {
+                unsubscribe(endpoint, deleteCallbacks, done);
+            }
+
+            @Override
+            boolean isHarmless(Throwable error) {
+                return error instanceof HttpResponseException
+                        && ((HttpResponseException) error).getStatusCode() == 404;
+            }
+        }.start();
+    }
+	
 	/**
 	 * Alarm are similar to subscriptions, but they do not occur at regular
 	 * intervals. Instead, alarms produce data when special conditions occur;
@@ -362,7 +1139,7 @@ public class Vehicle {
             @Override
             public void onSuccess(String response) {
                 if (listener != null) {
-                    addListener(shortname, listener);
+                    listeners.replacePrimary(shortname, listener);
                 }
                 if (cb != null) {
                     cb.onResponse(null, null);
@@ -397,7 +1174,7 @@ public class Vehicle {
 			@Override
 			public void onSuccess(String response) {
 				if (deleteCallbacks) {
-                    listenerMap.remove(shortname);
+                    listeners.removeShortName(shortname);
 				}
                 if (cb != null) {
                     cb.onResponse(null, null);
@@ -419,6 +1196,6 @@ public class Vehicle {
      * subscriptions or alarms at the device level.
 	 */
 	public void removeAllListeners() {
-        listenerMap.clear();
+        listeners.clear();
 	}
 }
@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+import com.digi.wva.async.VehicleResponse;
+
+/**
+ * The cached values of several endpoints as they all stood at one moment,
+ * taken with {@link Vehicle#snapshot()} or one of its variants.
+ *
+ * <p>Every update to a cached value gives the Vehicle a new sequence number.
+ * A snapshot has the sequence number of the last update it includes, and
+ * each endpoint in it the sequence number of the update which gave it its
+ * value, 0 if it has had none. Passing a snapshot's sequence number to
+ * {@link Vehicle#changedSince(long)} gives the endpoints updated since.</p>
+ */
+public final class VehicleSnapshot {
+    private final long sequence;
+    private final String[] endpoints;
+    private final VehicleResponse[] responses;
+    private final long[] changed;
+
+    VehicleSnapshot(long sequence, String[] endpoints, VehicleResponse[] responses, long[] changed) {
+        this.sequence = sequence;
+        this.endpoints = endpoints;
+        this.responses = responses;
+        this.changed = changed;
+    }
+
+    /**
+     * @return the sequence number of the last update included
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of endpoints in the snapshot
+     */
+    public int size() {
+        return endpoints.length;
+    }
+
+    public String getEndpoint(int i) {
+        return endpoints[i];
+    }
+
+    public VehicleResponse getResponse(int i) {
+        return responses[i];
+    }
+
+    /**
+     * @return the sequence number of the update which gave the i'th endpoint
+     *         its value, or 0 if it has had none
+     */
+    public long getChangedSequence(int i) {
+        return changed[i];
+    }
+
+    /**
+     * @return the endpoint's value in the snapshot, or null if the snapshot
+     *         does not include it
+     */
+    public VehicleResponse get(String endpoint) {
+        int i = indexOf(endpoint);
+        return (i < 0) ? null : responses[i];
+    }
+
+    /**
+     * @return the endpoint's position in the snapshot, or -1
+     */
+    public int indexOf(String endpoint) {
+        for (int i = 0; i < endpoints.length; i++) {
+            if (endpoints[i].equals(endpoint)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "VehicleSnapshot[" + sequence + ", " + endpoints.length + " endpoints]";
+    }
+}
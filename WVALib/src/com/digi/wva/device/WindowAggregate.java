@@ -0,0 +1,507 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.device;
+
+/**
+ * The minimum, maximum, mean, standard deviation and approximate percentiles
+ * of an endpoint's values over a window of time, kept up to date as values
+ * arrive rather than worked out again on every query. Added to a
+ * {@link Vehicle} with {@link Vehicle#addAggregate(String, WindowAggregate)}.
+ *
+ * <p>A {@link Mode#SLIDING sliding} window covers the window length back from
+ * the newest value; a {@link Mode#TUMBLING tumbling} one covers consecutive
+ * windows, aligned to the epoch, and keeps the statistics of the last one
+ * completed.</p>
+ *
+ * <p>Values are kept in a ring, as in {@link EndpointHistory}, with the
+ * minimum and maximum tracked by monotonic deques and the percentiles by a
+ * bucketed sketch, so adding a value takes constant time (amortized) and
+ * allocates nothing. Values older than the window, or beyond the capacity,
+ * are taken out as new ones come in.</p>
+ *
+ * <p>WVA timestamps are not always in order. A value is held back until no
+ * value more than the lateness bound older than the newest seen has arrived,
+ * and is then put in order; a value arriving later than that is counted and
+ * ignored. With a lateness of 0, values are used as they arrive.</p>
+ *
+ * <p>Values are added by the thread handling the data stream; queries may
+ * come from any thread.</p>
+ */
+public final class WindowAggregate {
+    /** The percentile estimates are within this fraction of the true value. */
+    public static final double PERCENTILE_ACCURACY = 0.01;
+
+    public enum Mode {
+        SLIDING, TUMBLING
+    }
+
+    /**
+     * The statistics of a window at one moment. Mean and standard deviation
+     * are NaN for an empty window, as are minimum and maximum.
+     */
+    public static final class Stats {
+        private final long start;
+        private final long end;
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double mean;
+        private final double stdDev;
+        private final double p50;
+        private final double p90;
+        private final double p95;
+        private final double p99;
+
+        Stats(long start, long end, int count, double min, double max, double mean, double stdDev,
+              double p50, double p90, double p95, double p99) {
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.stdDev = stdDev;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p95 = p95;
+            this.p99 = p99;
+        }
+
+        /**
+         * @return the start of the window, exclusive for a sliding window
+         *         and inclusive for a tumbling one, in milliseconds since
+         *         the epoch
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the end of the window, inclusive for a sliding window and
+         *         exclusive for a tumbling one
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return the population standard deviation
+         */
+        public double getStdDev() {
+            return stdDev;
+        }
+
+        public double getMedian() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP95() {
+            return p95;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[" + start + ".." + end + ", n=" + count + ", min=" + min + ", max=" + max
+                    + ", mean=" + mean + ", sd=" + stdDev + ", p50=" + p50 + ", p99=" + p99 + "]";
+        }
+    }
+
+    private final Mode mode;
+    private final long windowMillis;
+    private final long latenessMillis;
+    private final int capacity;
+
+    // The window, as a ring of sequence numbers; head is the oldest
+    private final long[] times;
+    private final double[] values;
+    private long head;
+    private long tail;
+
+    // Sequence numbers of candidate minima and maxima, oldest first
+    private final long[] minDeque;
+    private int minFirst;
+    private int minSize;
+    private final long[] maxDeque;
+    private int maxFirst;
+    private int maxSize;
+
+    // Sums of value - shift, shift being the first value since the window was empty
+    private double shift;
+    private double sum;
+    private double sumOfSquares;
+
+    private final QuantileSketch sketch = new QuantileSketch(PERCENTILE_ACCURACY);
+
+    // Values held back until the watermark passes them, in time order
+    private final long[] pendingTimes;
+    private final double[] pendingValues;
+    private int pendingSize;
+
+    private long newest = Long.MIN_VALUE;
+    private long watermark = Long.MIN_VALUE;
+    private long tumblingStart = Long.MIN_VALUE;
+    private Stats lastCompleted;
+
+    private long lateCount;
+    private long overflowCount;
+
+    /**
+     * @param mode Whether the window slides or tumbles
+     * @param windowMillis The length of the window
+     * @param latenessMillis How far out of order values may arrive
+     * @param capacity The most values in the window, and the most held back;
+     *                 older values are taken out early beyond this
+     */
+    public WindowAggregate(Mode mode, long windowMillis, long latenessMillis, int capacity) {
+        if (mode == null) {
+            throw new NullPointerException("mode");
+        }
+        if (windowMillis < 1) {
+            throw new IllegalArgumentException("windowMillis must be at least 1");
+        }
+        if (latenessMillis < 0) {
+            throw new IllegalArgumentException("latenessMillis must not be negative");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.mode = mode;
+        this.windowMillis = windowMillis;
+        this.latenessMillis = latenessMillis;
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.values = new double[capacity];
+        this.minDeque = new long[capacity];
+        this.maxDeque = new long[capacity];
+        this.pendingTimes = new long[capacity];
+        this.pendingValues = new double[capacity];
+    }
+
+    /**
+     * @return a sliding window of the given length, with values used as they
+     *         arrive
+     */
+    public static WindowAggregate sliding(long windowMillis, int capacity) {
+        return new WindowAggregate(Mode.SLIDING, windowMillis, 0, capacity);
+    }
+
+    /**
+     * @return a tumbling window of the given length, with values used as they
+     *         arrive
+     */
+    public static WindowAggregate tumbling(long windowMillis, int capacity) {
+        return new WindowAggregate(Mode.TUMBLING, windowMillis, 0, capacity);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getLatenessMillis() {
+        return latenessMillis;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param timeMillis the value's time, in milliseconds since the epoch
+     */
+    public synchronized void add(long timeMillis, double value) {
+        if (timeMillis < watermark) {
+            lateCount++;
+            return;
+        }
+        if (pendingSize == capacity) {
+            // Nowhere to hold it back; use the oldest value now, and count
+            // anything older which arrives after it as late
+            if (timeMillis < pendingTimes[0]) {
+                watermark = timeMillis;
+                release(timeMillis, value);
+                advance(timeMillis);
+                return;
+            }
+            watermark = Math.max(watermark, pendingTimes[0]);
+            release(pendingTimes[0], pendingValues[0]);
+            pendingSize--;
+            System.arraycopy(pendingTimes, 1, pendingTimes, 0, pendingSize);
+            System.arraycopy(pendingValues, 1, pendingValues, 0, pendingSize);
+        }
+        int i = pendingSize;
+        while (i > 0 && pendingTimes[i - 1] > timeMillis) {
+            pendingTimes[i] = pendingTimes[i - 1];
+            pendingValues[i] = pendingValues[i - 1];
+            i--;
+        }
+        pendingTimes[i] = timeMillis;
+        pendingValues[i] = value;
+        pendingSize++;
+        advance(timeMillis);
+    }
+
+    /**
+     * Moves the window on to a time, as if a value with that time had
+     * arrived, so that a window slides, or a tumbling window completes, when
+     * no values are arriving.
+     */
+    public synchronized void advanceTo(long timeMillis) {
+        advance(timeMillis);
+    }
+
+    private void advance(long timeMillis) {
+        if (timeMillis > newest) {
+            newest = timeMillis;
+            watermark = Math.max(watermark, timeMillis - latenessMillis);
+        }
+
+        int released = 0;
+        while (released < pendingSize && pendingTimes[released] <= watermark) {
+            release(pendingTimes[released], pendingValues[released]);
+            released++;
+        }
+        if (released > 0) {
+            pendingSize -= released;
+            System.arraycopy(pendingTimes, released, pendingTimes, 0, pendingSize);
+            System.arraycopy(pendingValues, released, pendingValues, 0, pendingSize);
+        }
+
+        if (mode == Mode.SLIDING) {
+            long cutoff = watermark - windowMillis;
+            while (head < tail && times[index(head)] <= cutoff) {
+                removeOldest();
+            }
+        } else if (tumblingStart != Long.MIN_VALUE && watermark >= tumblingStart + windowMillis) {
+            complete();
+        }
+    }
+
+    private void release(long time, double value) {
+        if (mode == Mode.TUMBLING) {
+            long start = time - mod(time, windowMillis);
+            if (tumblingStart != Long.MIN_VALUE && start != tumblingStart) {
+                complete();
+            }
+            tumblingStart = start;
+        }
+        if (tail - head == capacity) {
+            overflowCount++;
+            removeOldest();
+        }
+        if (head == tail) {
+            shift = value;
+            sum = 0;
+            sumOfSquares = 0;
+        }
+        long sequence = tail++;
+        int i = index(sequence);
+        times[i] = time;
+        values[i] = value;
+        double d = value - shift;
+        sum += d;
+        sumOfSquares += d * d;
+        sketch.add(value);
+
+        while (minSize > 0 && values[index(minDeque[(minFirst + minSize - 1) % capacity])] >= value) {
+            minSize--;
+        }
+        minDeque[(minFirst + minSize++) % capacity] = sequence;
+        while (maxSize > 0 && values[index(maxDeque[(maxFirst + maxSize - 1) % capacity])] <= value) {
+            maxSize--;
+        }
+        maxDeque[(maxFirst + maxSize++) % capacity] = sequence;
+    }
+
+    private void removeOldest() {
+        long sequence = head++;
+        double value = values[index(sequence)];
+        double d = value - shift;
+        sum -= d;
+        sumOfSquares -= d * d;
+        sketch.remove(value);
+        if (minSize > 0 && minDeque[minFirst] == sequence) {
+            minFirst = (minFirst + 1) % capacity;
+            minSize--;
+        }
+        if (maxSize > 0 && maxDeque[maxFirst] == sequence) {
+            maxFirst = (maxFirst + 1) % capacity;
+            maxSize--;
+        }
+    }
+
+    /**
+     * Records the statistics of the current tumbling window and empties it.
+     */
+    private void complete() {
+        lastCompleted = stats(tumblingStart, tumblingStart + windowMillis);
+        while (head < tail) {
+            removeOldest();
+        }
+        tumblingStart = Long.MIN_VALUE;
+    }
+
+    private Stats stats(long start, long end) {
+        return new Stats(start, end, getCount(), getMin(), getMax(), getMean(), getStdDev(),
+                getPercentile(0.5), getPercentile(0.9), getPercentile(0.95), getPercentile(0.99));
+    }
+
+    /**
+     * @return the number of values in the window
+     */
+    public synchronized int getCount() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return the least value in the window, or NaN if it is empty
+     */
+    public synchronized double getMin() {
+        return minSize == 0 ? Double.NaN : values[index(minDeque[minFirst])];
+    }
+
+    /**
+     * @return the greatest value in the window, or NaN if it is empty
+     */
+    public synchronized double getMax() {
+        return maxSize == 0 ? Double.NaN : values[index(maxDeque[maxFirst])];
+    }
+
+    /**
+     * @return the mean of the values in the window, or NaN if it is empty
+     */
+    public synchronized double getMean() {
+        int n = getCount();
+        return n == 0 ? Double.NaN : shift + sum / n;
+    }
+
+    /**
+     * @return the population standard deviation of the values in the
+     *         window, or NaN if it is empty
+     */
+    public synchronized double getStdDev() {
+        int n = getCount();
+        if (n == 0) {
+            return Double.NaN;
+        }
+        double variance = (sumOfSquares - sum * sum / n) / n;
+        return Math.sqrt(Math.max(0, variance));
+    }
+
+    /**
+     * @param q the quantile, from 0 to 1; 0.5 for the median
+     * @return an estimate within {@link #PERCENTILE_ACCURACY} of the value,
+     *         or NaN if the window is empty
+     */
+    public synchronized double getPercentile(double q) {
+        if (head == tail) {
+            return Double.NaN;
+        }
+        // The ends are known exactly
+        return Math.max(getMin(), Math.min(getMax(), sketch.quantile(q)));
+    }
+
+    /**
+     * @return the statistics of the values in the window now; for a tumbling
+     *         window, the one still filling
+     */
+    public synchronized Stats getStats() {
+        if (mode == Mode.SLIDING) {
+            return stats(watermark == Long.MIN_VALUE ? Long.MIN_VALUE : watermark - windowMillis, watermark);
+        }
+        long start = (tumblingStart == Long.MIN_VALUE) ? watermark : tumblingStart;
+        return stats(start, start == Long.MIN_VALUE ? Long.MIN_VALUE : start + windowMillis);
+    }
+
+    /**
+     * @return the statistics of the last tumbling window completed, or null
+     *         if none has been, or if the window slides
+     */
+    public synchronized Stats getLastCompleted() {
+        return lastCompleted;
+    }
+
+    /**
+     * @return the number of values held back, waiting for any earlier values
+     *         to arrive
+     */
+    public synchronized int getPendingCount() {
+        return pendingSize;
+    }
+
+    /**
+     * @return the number of values ignored for arriving too late
+     */
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * @return the number of values taken out of the window early, for lack
+     *         of capacity
+     */
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Empties the window and forgets the values held back. The counts are
+     * kept.
+     */
+    public synchronized void clear() {
+        head = tail;
+        minSize = 0;
+        maxSize = 0;
+        sum = 0;
+        sumOfSquares = 0;
+        sketch.clear();
+        pendingSize = 0;
+        newest = Long.MIN_VALUE;
+        watermark = Long.MIN_VALUE;
+        tumblingStart = Long.MIN_VALUE;
+        lastCompleted = null;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static long mod(long a, long b) {
+        long m = a % b;
+        return m < 0 ? m + b : m;
+    }
+}
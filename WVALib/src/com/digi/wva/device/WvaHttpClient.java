@@ -9,6 +9,8 @@ package com.digi.wva.device;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -18,17 +20,49 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.X509TrustManager;
 
 import android.annotation.TargetApi;
+import android.content.Context;
 import android.os.Build;
 import org.apache.http.Header;
-import org.apache.http.client.params.ClientPNames;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONObject;
 
 import android.util.Log;
@@ -36,6 +70,10 @@ import android.util.Log;
 import com.loopj.android.http.AsyncHttpClient;
 import com.loopj.android.http.AsyncHttpResponseHandler;
 
+/**
+ * Sends requests to a WVA's web services, over a pool of kept-alive
+ * connections configured by an {@link HttpPoolConfig}.
+ */
 @SuppressWarnings("UnusedDeclaration")
 public class WvaHttpClient {
 	private final String TAG = "com.digi.wva.device.WvaHttpClient";
@@ -47,6 +85,10 @@ public class WvaHttpClient {
 	private static String BASE_URL;
 	private final String hostname;
 	private final AsyncHttpClient client;
+	private final PoolManager pool;
+	private final ThreadPoolExecutor executor;
+	private final ScheduledFuture<?> eviction;
+	private static ScheduledExecutorService evictor;
 	
 	private final Header[] jsonHeaders = new Header[] {
 			new BasicHeader("Accept", "application/json")
@@ -114,26 +156,253 @@ public class WvaHttpClient {
 		}
 	}
 	
+	/**
+	 * Counts the connections it opens and leases, so that
+	 * {@link WvaHttpClient#getPoolStats()} can tell whether requests share
+	 * them.
+	 */
+	private static class PoolManager extends ThreadSafeClientConnManager {
+		// Connections leased and not yet released, which may be released twice
+		private final Map<ManagedClientConnection, Boolean> leased =
+				new IdentityHashMap<ManagedClientConnection, Boolean>();
+		private final AtomicLong created = new AtomicLong();
+		private final AtomicLong reused = new AtomicLong();
+
+		PoolManager(HttpParams params, SchemeRegistry schemes) {
+			super(params, schemes);
+		}
+
+		@Override
+		protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+			return new DefaultClientConnectionOperator(schemes) {
+				@Override
+				public void openConnection(OperatedClientConnection conn, HttpHost target,
+						InetAddress local, HttpContext context, HttpParams params) throws IOException {
+					super.openConnection(conn, target, local, context, params);
+					created.incrementAndGet();
+				}
+			};
+		}
+
+		@Override
+		public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+			final ClientConnectionRequest request = super.requestConnection(route, state);
+			return new ClientConnectionRequest() {
+				@Override
+				public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+						throws InterruptedException, ConnectionPoolTimeoutException {
+					ManagedClientConnection conn = request.getConnection(timeout, unit);
+					// A connection new to the pool is opened after it is leased
+					if (conn.isOpen()) {
+						reused.incrementAndGet();
+					}
+					synchronized (leased) {
+						leased.put(conn, Boolean.TRUE);
+					}
+					return conn;
+				}
+
+				@Override
+				public void abortRequest() {
+					request.abortRequest();
+				}
+			};
+		}
+
+		@Override
+		public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit unit) {
+			synchronized (leased) {
+				leased.remove(conn);
+			}
+			super.releaseConnection(conn, validDuration, unit);
+		}
+
+		HttpPoolStats getStats() {
+			int leasedCount;
+			synchronized (leased) {
+				leasedCount = leased.size();
+			}
+			int idle = Math.max(getConnectionsInPool() - leasedCount, 0);
+			return new HttpPoolStats(leasedCount, idle, created.get(), reused.get());
+		}
+	}
+
+	/**
+	 * Keeps a connection no longer than the WVA asks, nor than the pool's
+	 * keep-alive time.
+	 */
+	private static class CappedKeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+		private final long maxMillis;
+
+		CappedKeepAliveStrategy(long maxMillis) {
+			this.maxMillis = maxMillis;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long asked = super.getKeepAliveDuration(response, context);
+			return (asked < 0 || asked > maxMillis) ? maxMillis : asked;
+		}
+	}
+
+	/**
+	 * An AsyncHttpClient which sends its requests through the pool rather
+	 * than the one it makes for itself, keeping its own headers, gzip
+	 * handling, retries, credentials and cookies.
+	 */
+	private static class PooledAsyncHttpClient extends AsyncHttpClient {
+		private final DefaultHttpClient pooled;
+
+		PooledAsyncHttpClient(HttpPoolConfig config, SchemeRegistry schemes) {
+			DefaultHttpClient defaults = (DefaultHttpClient) getHttpClient();
+			HttpParams params = defaults.getParams();
+			ConnManagerParams.setMaxTotalConnections(params, config.getMaxConnections());
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(config.getMaxConnections()));
+			HttpConnectionParams.setConnectionTimeout(params, config.getConnectTimeoutMillis());
+			HttpConnectionParams.setSoTimeout(params, config.getReadTimeoutMillis());
+			HttpConnectionParams.setTcpNoDelay(params, true);
+			HttpConnectionParams.setStaleCheckingEnabled(params, true);
+			pooled = new DefaultHttpClient(new PoolManager(params, schemes), params);
+
+			if (config.getKeepAliveMillis() > 0) {
+				pooled.setKeepAliveStrategy(new CappedKeepAliveStrategy(config.getKeepAliveMillis()));
+			} else {
+				pooled.setReuseStrategy(new NoConnectionReuseStrategy());
+			}
+
+			// Past the interceptors every DefaultHttpClient has are AsyncHttpClient's own
+			int standard = pooled.getRequestInterceptorCount();
+			for (int i = standard; i < defaults.getRequestInterceptorCount(); i++) {
+				pooled.addRequestInterceptor(defaults.getRequestInterceptor(i));
+			}
+			standard = pooled.getResponseInterceptorCount();
+			for (int i = standard; i < defaults.getResponseInterceptorCount(); i++) {
+				pooled.addResponseInterceptor(defaults.getResponseInterceptor(i));
+			}
+			pooled.setHttpRequestRetryHandler(defaults.getHttpRequestRetryHandler());
+			pooled.setCredentialsProvider(defaults.getCredentialsProvider());
+			defaults.getConnectionManager().shutdown();
+		}
+
+		@Override
+		protected void sendRequest(DefaultHttpClient client, HttpContext httpContext,
+				HttpUriRequest uriRequest, String contentType,
+				AsyncHttpResponseHandler responseHandler, Context context) {
+			// AsyncHttpClient gives every request the same context, in which
+			// each records its connection; when one request then judged
+			// whether to keep its connection by another's, new connections
+			// were closed after one use. A child context keeps the cookies.
+			super.sendRequest(pooled, new BasicHttpContext(httpContext), uriRequest, contentType,
+					responseHandler, context);
+		}
+
+		PoolManager getPool() {
+			return (PoolManager) pooled.getConnectionManager();
+		}
+	}
+
+	/**
+	 * Closes a pool's expired and idle connections, until the pool is no
+	 * longer used.
+	 */
+	private static class Eviction implements Runnable {
+		private final WeakReference<PoolManager> pool;
+		private final long idleMillis;
+
+		Eviction(PoolManager pool, long idleMillis) {
+			this.pool = new WeakReference<PoolManager>(pool);
+			this.idleMillis = idleMillis;
+		}
+
+		@Override
+		public void run() {
+			PoolManager manager = pool.get();
+			if (manager == null) {
+				// Stops the repetition
+				throw new IllegalStateException("pool discarded");
+			}
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getEvictor() {
+		if (evictor == null) {
+			evictor = new ScheduledThreadPoolExecutor(1,
+					new EventChannelEngine.NamedThreadFactory("WVA-http-eviction-"));
+		}
+		return evictor;
+	}
+
 	public WvaHttpClient(String hostname) {
 		this(hostname, false, null, null, false);
 	}
 	
 	public WvaHttpClient(String hostname, boolean needsAuth, String authName, String authPass, boolean useHttps) {
-		this.client = new AsyncHttpClient();
+		this(hostname, needsAuth, authName, authPass, useHttps, new HttpPoolConfig());
+	}
+
+	public WvaHttpClient(String hostname, boolean needsAuth, String authName, String authPass, boolean useHttps,
+			HttpPoolConfig config) {
 		this.hostname = hostname;
 
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
 		if (useHttps) {
 			BASE_URL = "https://%s/ws/%s";
 			// Enable connection via HTTPS
-			this.client.setSSLSocketFactory(makeSSLSocketFactory());
+			schemes.register(new Scheme("https", makeSSLSocketFactory(), 443));
 		} else {
 			BASE_URL = "http://%s/ws/%s";
+			schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		}
+
+		PooledAsyncHttpClient pooledClient = new PooledAsyncHttpClient(config, schemes);
+		this.client = pooledClient;
+		this.pool = pooledClient.getPool();
+
+		// One thread per connection, so that requests queue here rather than
+		// time out waiting for a connection
+		this.executor = new ThreadPoolExecutor(config.getMaxConnections(), config.getMaxConnections(),
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new EventChannelEngine.NamedThreadFactory("WVA-http-"));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			letIdleThreadsEnd(executor);
+		}
+		this.client.setThreadPool(executor);
+
+		if (config.getIdleMillis() > 0) {
+			long period = Math.max(config.getIdleMillis() / 2, 1);
+			this.eviction = getEvictor().scheduleWithFixedDelay(new Eviction(pool, config.getIdleMillis()),
+					period, period, TimeUnit.MILLISECONDS);
+		} else {
+			this.eviction = null;
 		}
 
 		// Add basic auth username/password if needed
 		if (needsAuth) {
 			this.client.setBasicAuth(authName, authPass);
 		}
+	}
+
+	/**
+	 * @return the state of the connection pool, now
+	 */
+	public HttpPoolStats getPoolStats() {
+		return pool.getStats();
+	}
+
+	/**
+	 * Closes every connection and stops the threads sending requests. The
+	 * client cannot be used afterwards.
+	 */
+	public void shutdown() {
+		if (eviction != null) {
+			eviction.cancel(false);
+		}
+		executor.shutdown();
+		pool.shutdown();
 	}
 	
 	public void get(String url, AsyncHttpResponseHandler responseHandler) {
@@ -166,6 +435,15 @@ public class WvaHttpClient {
 		}
 	}
 
+	/**
+	 * Ends the executor's threads after a minute without requests. Before
+	 * Gingerbread they stay until {@link #shutdown()}.
+	 */
+	@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+	private static void letIdleThreadsEnd(ThreadPoolExecutor executor) {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
 	public String getAbsoluteUrl(String relativePath) {
 		return String.format(BASE_URL, hostname, relativePath);
 	}
@@ -0,0 +1,209 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.util;
+
+/**
+ * Parses the ISO 8601 timestamps sent by the WVA into milliseconds since the
+ * epoch, without creating any objects.
+ *
+ * <p>Accepted timestamps have the form yyyy-MM-ddTHH:mm:ss, with optional
+ * fractional seconds, followed by Z or an offset of the form +HH:mm or
+ * +HHmm. This covers what the WVA sends (no fractional seconds) and what
+ * test servers send (milliseconds).</p>
+ *
+ * <p>Consecutive events usually fall in the same minute, so the parser
+ * remembers the date, hour and minute of the last timestamp it parsed and
+ * only checks that the next one starts the same way. A parser is therefore
+ * not thread-safe; give each thread its own.</p>
+ */
+public final class TimestampParser {
+    /** Returned for anything which is not a timestamp of the accepted form. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /** The length of yyyy-MM-ddTHH:mm */
+    private static final int PREFIX_LENGTH = 16;
+    /** Longer than any accepted timestamp with up to nanoseconds */
+    private static final int MAX_LENGTH = 35;
+
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+    private long prefixMillis = INVALID;
+    private final byte[] scratch = new byte[MAX_LENGTH];
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @return milliseconds since the epoch, or {@link #INVALID}
+     */
+    public long parse(CharSequence s) {
+        int length = s.length();
+        if (length > MAX_LENGTH) {
+            return INVALID;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c > 127) {
+                return INVALID;
+            }
+            scratch[i] = (byte) c;
+        }
+        return parse(scratch, 0, length);
+    }
+
+    /**
+     * Parses the ASCII timestamp in b[start] to b[stop - 1].
+     *
+     * @return milliseconds since the epoch, or {@link #INVALID}
+     */
+    public long parse(byte[] b, int start, int stop) {
+        if (stop - start < 20 || b[start + 4] != '-' || b[start + 7] != '-'
+                || (b[start + 10] != 'T' && b[start + 10] != 't')
+                || b[start + 13] != ':' || b[start + 16] != ':') {
+            return INVALID;
+        }
+
+        long minuteMillis = prefixMillis;
+        if (minuteMillis == INVALID || !samePrefix(b, start)) {
+            minuteMillis = parsePrefix(b, start);
+            if (minuteMillis == INVALID) {
+                return INVALID;
+            }
+            System.arraycopy(b, start, prefix, 0, PREFIX_LENGTH);
+            prefixMillis = minuteMillis;
+            misses++;
+        } else {
+            hits++;
+        }
+
+        int second = digits(b, start + 17, 2);
+        if (second < 0 || second > 59) {
+            return INVALID;
+        }
+
+        int i = start + 19;
+        int millis = 0;
+        if (b[i] == '.') {
+            i++;
+            int scale = 100;
+            int fractionStart = i;
+            while (i < stop && b[i] >= '0' && b[i] <= '9') {
+                millis += (b[i] - '0') * scale;
+                scale /= 10;
+                i++;
+            }
+            if (i == fractionStart) {
+                return INVALID;
+            }
+        }
+
+        int offsetMinutes;
+        if (i == stop - 1 && (b[i] == 'Z' || b[i] == 'z')) {
+            offsetMinutes = 0;
+        } else if (i < stop && (b[i] == '+' || b[i] == '-')) {
+            int sign = (b[i] == '-') ? -1 : 1;
+            int offsetHours;
+            int offsetMins;
+            if (stop - i == 6 && b[i + 3] == ':') {
+                offsetHours = digits(b, i + 1, 2);
+                offsetMins = digits(b, i + 4, 2);
+            } else if (stop - i == 5) {
+                offsetHours = digits(b, i + 1, 2);
+                offsetMins = digits(b, i + 3, 2);
+            } else {
+                return INVALID;
+            }
+            if (offsetHours < 0 || offsetMins < 0) {
+                return INVALID;
+            }
+            offsetMinutes = sign * (offsetHours * 60 + offsetMins);
+        } else {
+            return INVALID;
+        }
+
+        return minuteMillis + second * 1000L + millis - offsetMinutes * 60000L;
+    }
+
+    private boolean samePrefix(byte[] b, int start) {
+        // Compared backwards: the minute is what usually differs
+        for (int i = PREFIX_LENGTH - 1; i >= 0; i--) {
+            if (b[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the milliseconds since the epoch of yyyy-MM-ddTHH:mm, taken
+     *         as UTC, or INVALID
+     */
+    private static long parsePrefix(byte[] b, int start) {
+        int year = digits(b, start, 4);
+        int month = digits(b, start + 5, 2);
+        int day = digits(b, start + 8, 2);
+        int hour = digits(b, start + 11, 2);
+        int minute = digits(b, start + 14, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+            return INVALID;
+        }
+        long days = daysFromCivil(year, month, day);
+        return days * 86400000L + hour * 3600000L + minute * 60000L;
+    }
+
+    /**
+     * @return the number of timestamps which started like the one before
+     */
+    public long getPrefixHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of timestamps whose date, hour and minute had to be
+     *         parsed
+     */
+    public long getPrefixMisses() {
+        return misses;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * @return the value of count decimal digits, or -1 if they are not all
+     *         digits
+     */
+    private static int digits(byte[] b, int start, int count) {
+        int v = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+}
@@ -16,17 +16,30 @@ import org.joda.time.format.ISODateTimeFormat;
  */
 public class WvaUtil {
     private static final DateTimeFormatter formatMillis = ISODateTimeFormat.dateTime();
-    private static final DateTimeFormatter format = ISODateTimeFormat.dateTimeNoMillis();
+    private static final ThreadLocal<TimestampParser> parsers = new ThreadLocal<TimestampParser>() {
+        @Override
+        protected TimestampParser initialValue() {
+            return new TimestampParser();
+        }
+    };
 
+    /**
+     * Parses a timestamp sent by the WVA.
+     *
+     * @return milliseconds since the epoch
+     * @throws IllegalArgumentException if it is not an ISO 8601 date-time
+     */
+    public static long millisFromString(String timestamp) {
+        long millis = parsers.get().parse(timestamp);
+        if (millis == TimestampParser.INVALID) {
+            // Not one of the forms the WVA (or a spoofer, which might add
+            // milliseconds) sends; Joda either copes or says what is wrong.
+            millis = formatMillis.parseMillis(timestamp);
+        }
+        return millis;
+    }
 
     public static DateTime dateTimeFromString(String timestamp) {
-        try {
-            return format.parseDateTime(timestamp);
-        } catch (IllegalArgumentException e) {
-            // Real WVA sends timestamps without milliseconds. If not connected
-            // to "real" WVA (i.e. spoofer), we might be sending out timestamps
-            // with milliseconds. In that case, parse it out here.
-           return formatMillis.parseDateTime(timestamp);
-        }
+        return new DateTime(millisFromString(timestamp));
     }
 }
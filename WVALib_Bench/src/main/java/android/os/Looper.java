@@ -0,0 +1,25 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package android.os;
+
+/**
+ * Plain-JVM stand-in for the Android Looper. There is never a looper on a
+ * JVM thread, which makes android-async-http deliver its callbacks directly
+ * on its worker threads.
+ */
+public final class Looper {
+    private Looper() { }
+
+    public static Looper myLooper() {
+        return null;
+    }
+
+    public static Looper getMainLooper() {
+        return null;
+    }
+}
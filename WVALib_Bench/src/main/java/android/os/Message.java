@@ -0,0 +1,26 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package android.os;
+
+/**
+ * Plain-JVM stand-in for the Android Message. Without a looper,
+ * android-async-http builds one of these itself and hands it straight back
+ * to its handler.
+ */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    public Message() { }
+
+    public static Message obtain() {
+        return new Message();
+    }
+}
@@ -0,0 +1,40 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package android.util;
+
+/**
+ * Plain-JVM stand-in for the Android logger, so that WVALib can run outside
+ * of Android. Debug and info output is dropped, since it would otherwise
+ * dominate every benchmark; warnings and errors go to stderr.
+ */
+public final class Log {
+    private Log() { }
+
+    public static int v(String tag, String msg) { return 0; }
+    public static int v(String tag, String msg, Throwable tr) { return 0; }
+    public static int d(String tag, String msg) { return 0; }
+    public static int d(String tag, String msg, Throwable tr) { return 0; }
+    public static int i(String tag, String msg) { return 0; }
+    public static int i(String tag, String msg, Throwable tr) { return 0; }
+
+    public static int w(String tag, String msg) { return print("W", tag, msg, null); }
+    public static int w(String tag, String msg, Throwable tr) { return print("W", tag, msg, tr); }
+    public static int w(String tag, Throwable tr) { return print("W", tag, "", tr); }
+    public static int e(String tag, String msg) { return print("E", tag, msg, null); }
+    public static int e(String tag, String msg, Throwable tr) { return print("E", tag, msg, tr); }
+    public static int wtf(String tag, String msg) { return print("F", tag, msg, null); }
+    public static int wtf(String tag, String msg, Throwable tr) { return print("F", tag, msg, tr); }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,66 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import com.digi.wva.device.WvaHttpClient;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import com.loopj.android.http.JsonHttpResponseHandler;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Answers web service requests in-line without any networking, so that
+ * harnesses can initialize a Vehicle and register listeners for the
+ * endpoints they feed over the event channel.
+ */
+public class BenchHttpClient extends WvaHttpClient {
+    private final JSONObject endpointList;
+
+    public BenchHttpClient(String hostname, String... endpoints) {
+        super(hostname);
+        JSONArray uris = new JSONArray();
+        for (String endpoint : endpoints) {
+            uris.put("vehicle/data/" + endpoint);
+        }
+        endpointList = new JSONObject();
+        try {
+            endpointList.put("data", uris);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void respond(AsyncHttpResponseHandler handler) {
+        if (handler instanceof JsonHttpResponseHandler) {
+            ((JsonHttpResponseHandler) handler).onSuccess(endpointList);
+        } else {
+            handler.onSuccess("");
+        }
+    }
+
+    @Override
+    public void get(String url, AsyncHttpResponseHandler responseHandler) {
+        respond(responseHandler);
+    }
+
+    @Override
+    public void put(String url, JSONObject jObj, AsyncHttpResponseHandler responseHandler) {
+        respond(responseHandler);
+    }
+
+    @Override
+    public void delete(String url, AsyncHttpResponseHandler responseHandler) {
+        respond(responseHandler);
+    }
+
+    @Override
+    public void post(String url, JSONObject jObj, AsyncHttpResponseHandler responseHandler) {
+        respond(responseHandler);
+    }
+}
@@ -0,0 +1,236 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Compares the ways a {@link Device} can run its TCPReceiver and
+ * MessageHandler: a new pair of threads per connection, a shared pool
+ * ({@link Device#setExecutor}), and, on a JVM which has them, virtual
+ * threads.
+ *
+ * <p>For each model it reports events delivered per second, the latency
+ * from the feeder writing an event to the listener receiving it, and how
+ * long it takes to reconnect every device along with the number of threads
+ * started to do so.</p>
+ *
+ * <p>Arguments are optional {@code key=value} pairs:
+ * {@code devices=100 rate=50 seconds=10 warmup=3}.</p>
+ */
+public final class DataStreamExecutorBench {
+    private static final String ENDPOINT = "EngineSpeed";
+    /** Latency histogram resolution and range. */
+    private static final int BUCKET_MICROS = 10;
+    private static final int BUCKETS = 100000;
+
+    private DataStreamExecutorBench() { }
+
+    public static void main(String[] args) throws Exception {
+        int deviceCount = 100;
+        double rate = 50;
+        int seconds = 10;
+        int warmup = 3;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            if (kv[0].equals("devices")) {
+                deviceCount = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("rate")) {
+                rate = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("seconds")) {
+                seconds = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("warmup")) {
+                warmup = Integer.parseInt(kv[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+
+        System.out.printf("%-8s %8s %12s %9s %9s %9s %14s %12s%n", "model", "devices",
+                "events/s", "p50 ms", "p99 ms", "max ms", "reconnect ms", "new threads");
+        for (String model : new String[] {"threads", "pool", "virtual"}) {
+            ExecutorService executor = null;
+            if (model.equals("pool")) {
+                executor = Executors.newCachedThreadPool();
+            } else if (model.equals("virtual")) {
+                executor = newVirtualThreadExecutor();
+                if (executor == null) {
+                    System.out.printf("%-8s (needs Java 21 or later)%n", model);
+                    continue;
+                }
+            }
+            Result r = run(executor, deviceCount, rate, warmup, seconds);
+            System.out.printf("%-8s %8d %12.1f %9.2f %9.2f %9.2f %14d %12d%n", model,
+                    deviceCount, r.eventsPerSecond, r.p50Millis, r.p99Millis, r.maxMillis,
+                    r.reconnectMillis, r.reconnectThreads);
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if this
+     *         JVM does not have it
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static final class Result {
+        double eventsPerSecond;
+        double p50Millis;
+        double p99Millis;
+        double maxMillis;
+        long reconnectMillis;
+        long reconnectThreads;
+    }
+
+    /**
+     * @param executor the executor for the devices, or null for a pair of
+     *                 threads per connection
+     */
+    static Result run(ExecutorService executor, int deviceCount, double rate, int warmup,
+                      int seconds) throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        EventFeeder feeder = new EventFeeder(ENDPOINT, rate);
+        feeder.setStampValues(true);
+        final int port = feeder.start();
+
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        final AtomicReference<CountDownLatch> connected =
+                new AtomicReference<CountDownLatch>(new CountDownLatch(deviceCount));
+        DeviceConnectionListener connectionListener = new DeviceConnectionListener() {
+            @Override
+            public void onConnected(Device device) {
+                connected.get().countDown();
+            }
+
+            @Override
+            public void onRemoteClose(Device device, int port) {
+                // Don't reconnect when the feeder goes away.
+            }
+        };
+        WvaListener listener = new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                delivered.incrementAndGet();
+                long bucket = Math.max(0, EventFeeder.latencyMicros(response.value) / BUCKET_MICROS);
+                histogram.incrementAndGet((int) Math.min(bucket, BUCKETS - 1));
+            }
+        };
+        WvaCallback<Set<String>> ignore = new WvaCallback<Set<String>>() {
+            @Override
+            public void onResponse(Throwable error, Set<String> response) { }
+        };
+
+        List<Device> devices = new ArrayList<Device>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            BenchHttpClient client = new BenchHttpClient("127.0.0.1", ENDPOINT);
+            Device device = Device.getDevice("127.0.0.1", port, client, null, null, null);
+            device.initVehicleData(ignore);
+            device.subscribe(ENDPOINT, 1, listener);
+            device.setExecutor(executor);
+            device.connectDataStream(port, connectionListener);
+            devices.add(device);
+        }
+        awaitConnected(connected.get(), deviceCount);
+        Thread.sleep(warmup * 1000L);
+
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+        long events0 = delivered.get();
+        long t0 = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - t0;
+
+        Result result = new Result();
+        result.eventsPerSecond = (delivered.get() - events0) / (elapsed / 1e9);
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+        }
+        result.p50Millis = percentile(counts, 0.50);
+        result.p99Millis = percentile(counts, 0.99);
+        result.maxMillis = percentile(counts, 1.0);
+
+        // Drop and reopen every connection, as after a network outage
+        connected.set(new CountDownLatch(deviceCount));
+        long threads0 = mx.getTotalStartedThreadCount();
+        t0 = System.nanoTime();
+        for (Device device : devices) {
+            device.disconnectDataStream();
+            device.connectDataStream(port, connectionListener);
+        }
+        awaitConnected(connected.get(), deviceCount);
+        result.reconnectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        result.reconnectThreads = mx.getTotalStartedThreadCount() - threads0;
+
+        for (Device device : devices) {
+            device.disconnectDataStream();
+        }
+        feeder.stop();
+        Thread.sleep(1000);
+        return result;
+    }
+
+    private static void awaitConnected(CountDownLatch latch, int deviceCount)
+            throws InterruptedException {
+        if (!latch.await(60, TimeUnit.SECONDS)) {
+            System.err.println("Only " + (deviceCount - latch.getCount()) + " of "
+                    + deviceCount + " devices connected");
+        }
+    }
+
+    private static double percentile(long[] counts, double fraction) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (i + 1) * BUCKET_MICROS / 1000.0;
+            }
+        }
+        return counts.length * BUCKET_MICROS / 1000.0;
+    }
+}
@@ -0,0 +1,206 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+import com.digi.wva.device.EventChannelEngine;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the thread-per-device event channel model (TCPReceiver plus
+ * MessageHandler per Device) against the shared {@link EventChannelEngine}
+ * at increasing numbers of simulated devices.
+ *
+ * <p>For every device count and model, it reports the number of threads
+ * the library added, the CPU time they used per second of wall-clock time,
+ * and the number of events delivered to listeners per second.</p>
+ *
+ * <p>Arguments are optional {@code key=value} pairs:
+ * {@code devices=10,100,1000 rate=20 seconds=10 warmup=6 ioThreads=2}, where
+ * rate is the number of events per second sent to each device.</p>
+ */
+public final class EventChannelScalingBench {
+    private static final String ENDPOINT = "EngineSpeed";
+
+    private EventChannelScalingBench() { }
+
+    public static void main(String[] args) throws Exception {
+        int[] deviceCounts = {10, 100, 1000};
+        double rate = 20;
+        int seconds = 10;
+        int warmup = 6;
+        int ioThreads = 2;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            if (kv[0].equals("devices")) {
+                String[] counts = kv[1].split(",");
+                deviceCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    deviceCounts[i] = Integer.parseInt(counts[i].trim());
+                }
+            } else if (kv[0].equals("rate")) {
+                rate = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("seconds")) {
+                seconds = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("warmup")) {
+                warmup = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("ioThreads")) {
+                ioThreads = Integer.parseInt(kv[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+
+        System.out.printf("%-8s %8s %8s %12s %14s %14s%n",
+                "model", "devices", "threads", "cpu ms/s", "events/s", "offered/s");
+        for (int count : deviceCounts) {
+            for (String model : Arrays.asList("threads", "engine")) {
+                Result r = run(model.equals("engine") ? ioThreads : 0, count, rate, warmup, seconds);
+                System.out.printf("%-8s %8d %8d %12.1f %14.1f %14.1f%n",
+                        model, count, r.threads, r.cpuMillisPerSecond, r.eventsPerSecond,
+                        rate * count);
+            }
+        }
+    }
+
+    static final class Result {
+        int threads;
+        double cpuMillisPerSecond;
+        double eventsPerSecond;
+    }
+
+    /**
+     * @param ioThreads the engine size, or 0 to use a thread pair per device
+     */
+    static Result run(int ioThreads, int deviceCount, double rate, int warmup, int seconds)
+            throws IOException, InterruptedException {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        EventFeeder feeder = new EventFeeder(ENDPOINT, rate);
+        int port = feeder.start();
+
+        EventChannelEngine engine = null;
+        if (ioThreads > 0) {
+            engine = new EventChannelEngine(ioThreads);
+            engine.start();
+        }
+        // Measured after the feeder and the engine are up: what remains is
+        // what the devices themselves cost.
+        int baseThreads = mx.getThreadCount();
+
+        final AtomicLong delivered = new AtomicLong();
+        final CountDownLatch connected = new CountDownLatch(deviceCount);
+        DeviceConnectionListener connectionListener = new DeviceConnectionListener() {
+            @Override
+            public void onConnected(Device device) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onRemoteClose(Device device, int port) {
+                // Don't reconnect when the feeder goes away.
+            }
+        };
+        WvaListener listener = new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                delivered.incrementAndGet();
+            }
+        };
+        WvaCallback<Set<String>> ignore = new WvaCallback<Set<String>>() {
+            @Override
+            public void onResponse(Throwable error, Set<String> response) { }
+        };
+
+        List<Device> devices = new ArrayList<Device>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            BenchHttpClient client = new BenchHttpClient("127.0.0.1", ENDPOINT);
+            Device device = Device.getDevice("127.0.0.1", port, client, null, null, null);
+            device.initVehicleData(ignore);
+            try {
+                device.subscribe(ENDPOINT, 1, listener);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            device.setEventChannelEngine(engine);
+            device.connectDataStream(port, connectionListener);
+            devices.add(device);
+        }
+
+        if (!connected.await(60, TimeUnit.SECONDS)) {
+            System.err.println("Only " + (deviceCount - connected.getCount()) + " of "
+                    + deviceCount + " devices connected");
+        }
+        Thread.sleep(warmup * 1000L);
+
+        long[] feederIds = feeder.getThreadIds();
+        long cpu0 = cpuTime(mx, feederIds);
+        long events0 = delivered.get();
+        long t0 = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - t0;
+        long events1 = delivered.get();
+        long cpu1 = cpuTime(mx, feederIds);
+
+        Result result = new Result();
+        result.threads = mx.getThreadCount() - baseThreads;
+        result.cpuMillisPerSecond = (cpu1 - cpu0) / 1e6 / (elapsed / 1e9);
+        result.eventsPerSecond = (events1 - events0) / (elapsed / 1e9);
+
+        for (Device device : devices) {
+            device.disconnectDataStream();
+        }
+        if (engine != null) {
+            engine.shutdown();
+        }
+        feeder.stop();
+        // Let the per-device threads wind down before the next run.
+        Thread.sleep(1000);
+        return result;
+    }
+
+    /**
+     * Sums the CPU time of every live thread except the given ones.
+     */
+    private static long cpuTime(ThreadMXBean mx, long[] exclude) {
+        long total = 0;
+        for (long id : mx.getAllThreadIds()) {
+            boolean skip = false;
+            for (long e : exclude) {
+                if (e == id) {
+                    skip = true;
+                    break;
+                }
+            }
+            if (!skip) {
+                long t = mx.getThreadCpuTime(id);
+                if (t > 0) {
+                    total += t;
+                }
+            }
+        }
+        return total;
+    }
+}
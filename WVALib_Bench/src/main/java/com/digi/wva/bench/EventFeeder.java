@@ -0,0 +1,184 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A minimal stand-in for the WVA event channel: accepts any number of
+ * connections on the loopback interface and writes subscription events to
+ * each of them at a fixed rate. Accepting and writing are done by two
+ * threads in total, no matter how many connections there are, so that the
+ * feeder does not distort thread counts taken by a harness.
+ */
+public class EventFeeder {
+    private static final long TICK_MILLIS = 10;
+
+    private final double eventsPerSecond;
+    private final String endpoint;
+    private final byte[] message;
+    private volatile boolean stampValues;
+    private final List<SocketChannel> clients = new CopyOnWriteArrayList<SocketChannel>();
+    private ServerSocketChannel server;
+    private volatile boolean running;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * @param endpoint the endpoint name to send events for
+     * @param eventsPerSecond the number of events sent to each connection
+     *                        every second
+     */
+    public EventFeeder(String endpoint, double eventsPerSecond) {
+        this.eventsPerSecond = eventsPerSecond;
+        this.endpoint = endpoint;
+        this.message = message("2171.5");
+    }
+
+    private byte[] message(String value) {
+        String json = "{\"data\": {\"" + endpoint + "\": {\"timestamp\": \"2013-06-13T12:00:00Z\", "
+                + "\"value\": " + value + "}, \"timestamp\": \"2013-06-13T12:00:00Z\", "
+                + "\"uri\": \"vehicle/data/" + endpoint + "\", "
+                + "\"short_name\": \"" + endpoint + "~sub\"}}\r\n";
+        return json.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Makes each event's value the time it was written, in microseconds of
+     * {@link System#nanoTime()}, so that a harness can measure latency with
+     * {@link #latencyMicros(double)}.
+     */
+    public void setStampValues(boolean stampValues) {
+        this.stampValues = stampValues;
+    }
+
+    /**
+     * @return the time since an event with a stamped value was written
+     */
+    public static long latencyMicros(double value) {
+        return System.nanoTime() / 1000 - (long) value;
+    }
+
+    public int start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+        running = true;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        SocketChannel client = server.accept();
+                        client.socket().setTcpNoDelay(true);
+                        clients.add(client);
+                    } catch (IOException e) {
+                        break;
+                    }
+                }
+            }
+        }, "feeder-accept");
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "feeder-write");
+
+        threads.add(acceptor);
+        threads.add(writer);
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        return server.socket().getLocalPort();
+    }
+
+    private void writeLoop() {
+        double credit = 0;
+        long next = System.nanoTime();
+        while (running) {
+            credit += eventsPerSecond * TICK_MILLIS / 1000.0;
+            int burst = (int) credit;
+            credit -= burst;
+
+            if (burst > 0) {
+                byte[] message = stampValues
+                        ? message(Long.toString(System.nanoTime() / 1000)) : this.message;
+                byte[] chunk = new byte[message.length * burst];
+                for (int i = 0; i < burst; i++) {
+                    System.arraycopy(message, 0, chunk, i * message.length, message.length);
+                }
+                for (SocketChannel client : clients) {
+                    try {
+                        ByteBuffer buf = ByteBuffer.wrap(chunk);
+                        while (buf.hasRemaining()) {
+                            client.write(buf);
+                        }
+                    } catch (IOException e) {
+                        clients.remove(client);
+                    }
+                }
+            }
+
+            next += TICK_MILLIS * 1000000L;
+            long sleep = (next - System.nanoTime()) / 1000000L;
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections currently being fed
+     */
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    /**
+     * @return the IDs of the threads used by the feeder, so that their CPU
+     *         time can be left out of measurements
+     */
+    public long[] getThreadIds() {
+        long[] ids = new long[threads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads.get(i).getId();
+        }
+        return ids;
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) { }
+        for (SocketChannel client : clients) {
+            try {
+                client.close();
+            } catch (IOException ignored) { }
+        }
+        clients.clear();
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+    }
+}
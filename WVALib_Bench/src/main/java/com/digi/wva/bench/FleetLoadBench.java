@@ -0,0 +1,241 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import com.digi.wva.async.BatchListener;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.sim.EventServer;
+import com.digi.wva.sim.SendStats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a fleet of Devices, each with its own TCPReceiver and
+ * MessageHandler, from a {@link EventServer}, and reports how much of what
+ * the server sent was delivered to listeners.
+ *
+ * <p>For every device count, it reports the events per second sent over
+ * all connections and delivered over all devices, the events each device
+ * missed or received twice (from gaps in the values, which the server
+ * numbers per endpoint) and the worst 99th percentile delivery lag.</p>
+ *
+ * <p>Arguments are optional {@code key=value} pairs:
+ * {@code devices=10,100 endpoints=20 hz=10 alarms=0 split=0 burst=0/0
+ * replay=0 disconnect=0 seconds=10 warmup=3}; see
+ * {@link com.digi.wva.sim.Simulator} for the meaning of the server's
+ * options.</p>
+ */
+public final class FleetLoadBench {
+    /** Set while the devices are being disconnected at the end of a run. */
+    private static volatile boolean stopping;
+
+    private FleetLoadBench() { }
+
+    public static void main(String[] args) throws Exception {
+        int[] deviceCounts = {10, 100};
+        int endpoints = 20;
+        double hz = 10;
+        double alarms = 0;
+        int minSegment = 0;
+        int maxSegment = 0;
+        int burstSize = 0;
+        long burstMillis = 0;
+        int replay = 0;
+        long disconnectMillis = 0;
+        int seconds = 10;
+        int warmup = 3;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            if (kv[0].equals("devices")) {
+                String[] counts = kv[1].split(",");
+                deviceCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    deviceCounts[i] = Integer.parseInt(counts[i].trim());
+                }
+            } else if (kv[0].equals("endpoints")) {
+                endpoints = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("hz")) {
+                hz = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("alarms")) {
+                alarms = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("split")) {
+                String[] range = kv[1].split("-", 2);
+                minSegment = Integer.parseInt(range[0]);
+                maxSegment = (range.length == 2) ? Integer.parseInt(range[1]) : minSegment;
+            } else if (kv[0].equals("burst")) {
+                String[] sizeInterval = kv[1].split("/", 2);
+                burstSize = Integer.parseInt(sizeInterval[0]);
+                burstMillis = Long.parseLong(sizeInterval[1]);
+            } else if (kv[0].equals("replay")) {
+                replay = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("disconnect")) {
+                disconnectMillis = Long.parseLong(kv[1]);
+            } else if (kv[0].equals("seconds")) {
+                seconds = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("warmup")) {
+                warmup = Integer.parseInt(kv[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+
+        System.out.printf("%8s %12s %12s %10s %10s %10s%n",
+                "devices", "sent/s", "delivered/s", "missed", "repeated", "p99 lag ms");
+        for (int count : deviceCounts) {
+            EventServer server = new EventServer();
+            server.setEndpointCount(endpoints);
+            server.setHz(hz);
+            server.setAlarmFraction(alarms);
+            server.setSegmentSize(minSegment, maxSegment);
+            server.setBurst(burstSize, burstMillis);
+            server.setReplayOnConnect(replay);
+            server.setDisconnectInterval(disconnectMillis);
+            server.setWriterThreads(Math.max(1, Math.min(4, count / 50)));
+
+            Result r = run(server, count, warmup, seconds);
+            System.out.printf("%8d %12.0f %12.0f %10d %10d %10s%n", count, r.sentPerSecond,
+                    r.deliveredPerSecond, r.missed, r.repeated,
+                    (r.lagP99 < 0) ? "overflow" : Long.toString(r.lagP99));
+        }
+        System.exit(0);
+    }
+
+    static final class Result {
+        double sentPerSecond;
+        double deliveredPerSecond;
+        long missed;
+        long repeated;
+        long lagP99;
+    }
+
+    static Result run(EventServer server, int deviceCount, int warmup, int seconds)
+            throws Exception {
+        int port = server.start();
+        String[] endpoints = server.getEndpointNames();
+
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong missed = new AtomicLong();
+        final AtomicLong repeated = new AtomicLong();
+        DeviceConnectionListener connectionListener = new DeviceConnectionListener() {
+            @Override
+            public void onRemoteClose(Device device, int port) {
+                // Follow the server's disconnects, as the default listener
+                // would, but not its shutdown
+                if (!stopping) {
+                    reconnect(device, port);
+                }
+            }
+        };
+        WvaCallback<Set<String>> ignore = new WvaCallback<Set<String>>() {
+            @Override
+            public void onResponse(Throwable error, Set<String> response) { }
+        };
+
+        stopping = false;
+        List<Device> devices = new ArrayList<Device>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            BenchHttpClient client = new BenchHttpClient("127.0.0.1", endpoints);
+            Vehicle vehicle = new Vehicle(client);
+            vehicle.initialize(ignore);
+            vehicle.setBatchListener(new SequenceChecker(endpoints.length, delivered, missed, repeated));
+            Device device = Device.getDevice("127.0.0.1", port, client, vehicle, null, null);
+            device.setExecutor(Device.getSharedExecutor());
+            device.setMaxBatchSize(64);
+            device.connectDataStream(port, connectionListener);
+            devices.add(device);
+        }
+        if (!server.awaitConnections(deviceCount, 60, TimeUnit.SECONDS)) {
+            System.err.println("Only " + server.getConnectionCount() + " of "
+                    + deviceCount + " devices connected");
+        }
+        Thread.sleep(warmup * 1000L);
+        for (Device device : devices) {
+            device.getIngestSnapshot();
+        }
+
+        SendStats sent0 = server.getStats();
+        long delivered0 = delivered.get();
+        long missed0 = missed.get();
+        long repeated0 = repeated.get();
+        long t0 = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long elapsed = System.nanoTime() - t0;
+        SendStats sent1 = server.getStats();
+
+        Result result = new Result();
+        result.sentPerSecond = sent1.getMessagesPerSecondSince(sent0);
+        result.deliveredPerSecond = (delivered.get() - delivered0) / (elapsed / 1e9);
+        result.missed = missed.get() - missed0;
+        result.repeated = repeated.get() - repeated0;
+        for (Device device : devices) {
+            long lag = device.getIngestSnapshot().getLagPercentileMillis(0.99);
+            if (lag < 0 || (result.lagP99 >= 0 && lag > result.lagP99)) {
+                result.lagP99 = lag;
+            }
+        }
+
+        stopping = true;
+        for (Device device : devices) {
+            device.disconnectDataStream();
+        }
+        server.stop();
+        // Let the connections wind down before the next run.
+        Thread.sleep(1000);
+        return result;
+    }
+
+    /**
+     * Counts the events delivered to one device, and the gaps and repeats in
+     * the values of each endpoint.
+     */
+    private static final class SequenceChecker extends BatchListener {
+        private final long[] last;
+        private final AtomicLong delivered;
+        private final AtomicLong missed;
+        private final AtomicLong repeated;
+
+        SequenceChecker(int endpoints, AtomicLong delivered, AtomicLong missed,
+                        AtomicLong repeated) {
+            this.last = new long[endpoints];
+            Arrays.fill(last, -1);
+            this.delivered = delivered;
+            this.missed = missed;
+            this.repeated = repeated;
+        }
+
+        @Override
+        public void onUpdates(List<Event> events) {
+            for (Event e : events) {
+                int index = Integer.parseInt(e.getEndpoint().substring("Endpoint".length()));
+                long value = e.getResponse().value.longValue();
+                if (value <= last[index]) {
+                    repeated.incrementAndGet();
+                    continue;
+                }
+                if (last[index] >= 0 && value > last[index] + 1) {
+                    missed.addAndGet(value - last[index] - 1);
+                }
+                last[index] = value;
+            }
+            delivered.addAndGet(events.size());
+        }
+    }
+}
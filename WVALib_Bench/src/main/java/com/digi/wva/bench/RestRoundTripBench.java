@@ -0,0 +1,187 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench;
+
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.device.BulkResult;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.HttpPoolConfig;
+import com.digi.wva.device.HttpPoolStats;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.device.WvaHttpClient;
+import com.digi.wva.sim.RestServer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Initializes a Vehicle and subscribes to all of its endpoints through a
+ * real WvaHttpClient, against a {@link RestServer} with a given latency,
+ * and reports how long it took and how many requests failed.
+ *
+ * <p>Arguments are optional {@code key=value} pairs:
+ * {@code endpoints=100 latency=0,10,50 jitter=0 errors=0 connections=0
+ * rounds=5 modes=app,loop,bulk concurrency=8 pool=8}. Each latency, in
+ * milliseconds, is run in turn with each mode: "app" subscribes one
+ * endpoint every 25 ms, as the WVA app did; "loop" sends every request at
+ * once; "bulk" uses {@link Vehicle#subscribeAll} with the given
+ * concurrency and {@link Device#DEFAULT_BULK_RETRIES}. connections=0 leaves
+ * the number of connections served at once unlimited; pool is the most
+ * connections the client keeps, and the last two columns count the
+ * connections it opened and the requests which reused one.</p>
+ */
+public final class RestRoundTripBench {
+    private RestRoundTripBench() { }
+
+    public static void main(String[] args) throws Exception {
+        int endpoints = 100;
+        long[] latencies = {0, 10, 50};
+        long jitter = 0;
+        double errors = 0;
+        int connections = 0;
+        int rounds = 5;
+        String[] modes = {"app", "loop", "bulk"};
+        int concurrency = Device.DEFAULT_BULK_CONCURRENCY;
+        int pool = HttpPoolConfig.DEFAULT_MAX_CONNECTIONS;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            if (kv[0].equals("endpoints")) {
+                endpoints = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("latency")) {
+                String[] values = kv[1].split(",");
+                latencies = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    latencies[i] = Long.parseLong(values[i].trim());
+                }
+            } else if (kv[0].equals("jitter")) {
+                jitter = Long.parseLong(kv[1]);
+            } else if (kv[0].equals("errors")) {
+                errors = Double.parseDouble(kv[1]);
+            } else if (kv[0].equals("connections")) {
+                connections = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("rounds")) {
+                rounds = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("modes")) {
+                modes = kv[1].split(",");
+            } else if (kv[0].equals("concurrency")) {
+                concurrency = Integer.parseInt(kv[1]);
+            } else if (kv[0].equals("pool")) {
+                pool = Integer.parseInt(kv[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+
+        final String[] names = new String[endpoints];
+        for (int i = 0; i < endpoints; i++) {
+            names[i] = "Endpoint" + i;
+        }
+
+        HttpPoolConfig poolConfig = new HttpPoolConfig();
+        poolConfig.setMaxConnections(pool);
+
+        System.out.printf("%10s %6s %12s %14s %10s %12s %10s %10s%n",
+                "latency ms", "mode", "init ms", "subscribe ms", "failed", "peak conns",
+                "opened", "reused");
+        for (long latency : latencies) {
+            for (String mode : modes) {
+                RestServer server = new RestServer();
+                server.setEndpoints(names);
+                server.setFault("", latency, jitter, errors);
+                if (connections > 0) {
+                    server.setMaxConnections(connections);
+                }
+                int port = server.start();
+
+                long initNanos = 0;
+                long subscribeNanos = 0;
+                long failed = 0;
+                // One client throughout, as an app would have; its kept-alive
+                // connections count against the server's limit
+                WvaHttpClient client = new WvaHttpClient("127.0.0.1:" + port, false, null, null, false,
+                        poolConfig);
+                for (int round = 0; round < rounds; round++) {
+                    Vehicle vehicle = new Vehicle(client);
+
+                    long t0 = System.nanoTime();
+                    final CountDownLatch initialized = new CountDownLatch(1);
+                    vehicle.initialize(new WvaCallback<Set<String>>() {
+                        @Override
+                        public void onResponse(Throwable error, Set<String> response) {
+                            initialized.countDown();
+                        }
+                    });
+                    if (!initialized.await(60, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Vehicle never initialized");
+                    }
+                    long t1 = System.nanoTime();
+
+                    final CountDownLatch subscribed = new CountDownLatch(names.length);
+                    final AtomicLong failures = new AtomicLong();
+                    WvaCallback<Void> count = new WvaCallback<Void>() {
+                        @Override
+                        public void onResponse(Throwable error, Void response) {
+                            if (error != null) {
+                                failures.incrementAndGet();
+                            }
+                            subscribed.countDown();
+                        }
+                    };
+                    if (mode.equals("bulk")) {
+                        Map<String, Integer> intervals = new LinkedHashMap<String, Integer>();
+                        for (String name : vehicle.getKeySet()) {
+                            intervals.put(name, 10);
+                        }
+                        vehicle.subscribeAll(intervals, null, concurrency, Device.DEFAULT_BULK_RETRIES,
+                                new WvaCallback<BulkResult>() {
+                                    @Override
+                                    public void onResponse(Throwable error, BulkResult result) {
+                                        failures.addAndGet(result.getFailed().size());
+                                        for (int i = 0; i < names.length; i++) {
+                                            subscribed.countDown();
+                                        }
+                                    }
+                                });
+                    } else {
+                        for (String name : vehicle.getKeySet()) {
+                            if (mode.equals("app")) {
+                                Thread.sleep(25);
+                            }
+                            vehicle.subscribe(name, 10, null, count);
+                        }
+                    }
+                    if (!subscribed.await(300, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException(subscribed.getCount()
+                                + " subscriptions never completed");
+                    }
+                    long t2 = System.nanoTime();
+
+                    initNanos += t1 - t0;
+                    subscribeNanos += t2 - t1;
+                    failed += failures.get();
+                }
+                HttpPoolStats stats = client.getPoolStats();
+                client.shutdown();
+                server.stop();
+
+                System.out.printf("%10d %6s %12.1f %14.1f %10d %12d %10d %10d%n", latency, mode,
+                        initNanos / 1e6 / rounds, subscribeNanos / 1e6 / rounds, failed,
+                        server.getPeakConnectionCount(), stats.getCreated(), stats.getReused());
+            }
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,96 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.async.VehicleResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning one framed message into an Event: the {@link EventDecoder}
+ * TCPReceiver uses, against {@link Event#fromTCP(JSONObject)} on a freshly
+ * parsed JSONObject, as it did before and still does for messages the
+ * decoder does not recognise. {@code responseFromJson} constructs just the
+ * VehicleResponse from an already parsed value object.
+ *
+ * <p>Each invocation takes the next of 1024 messages.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final int MESSAGES = 1024;
+
+    private String[] messages;
+    private byte[][] frames;
+    private JSONObject[] values;
+    private int next;
+    private final EventDecoder decoder = new EventDecoder();
+
+    @Setup
+    public void setUp() throws JSONException {
+        messages = Payloads.messages(MESSAGES, 1);
+        frames = Payloads.frames(messages);
+        values = new JSONObject[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            JSONObject message = new JSONObject(messages[i]);
+            JSONObject inner = message.has("data")
+                    ? message.getJSONObject("data") : message.getJSONObject("alarm");
+            String uri = inner.getString("uri");
+            values[i] = inner.getJSONObject(uri.substring(uri.lastIndexOf('/') + 1));
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1) & (MESSAGES - 1);
+        return i;
+    }
+
+    @Benchmark
+    public Event decoder() {
+        byte[] frame = frames[nextIndex()];
+        return decoder.decodeEvent(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public Event fromTCP() throws JSONException {
+        return Event.fromTCP(new JSONObject(messages[nextIndex()]));
+    }
+
+    @Benchmark
+    public VehicleResponse responseFromJson() throws JSONException {
+        return new VehicleResponse(values[nextIndex()]);
+    }
+
+    @Benchmark
+    public double decoderFieldsOnly() {
+        // What TCPReceiver does: the fields are copied into the EventRing,
+        // and the Event is only built by the consumer
+        byte[] frame = frames[nextIndex()];
+        decoder.decode(frame, 0, frame.length);
+        return decoder.getValue();
+    }
+}
@@ -0,0 +1,66 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.device.JsonFramer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting the event channel into messages with the {@link JsonFramer},
+ * as TCPReceiver does, for reads of various sizes: a few bytes at a time,
+ * a TCP segment, and TCPReceiver's whole read buffer. Scores are per
+ * message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    static final int MESSAGES = 1024;
+
+    @Param({"64", "1460", "8192"})
+    public int readSize;
+
+    private byte[] stream;
+    private final JsonFramer framer = new JsonFramer();
+
+    @Setup
+    public void setUp() {
+        stream = Payloads.stream(Payloads.messages(MESSAGES, 1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void frame(final Blackhole bh) {
+        JsonFramer.FrameListener listener = new JsonFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                bh.consume(length);
+            }
+        };
+        for (int offset = 0; offset < stream.length; offset += readSize) {
+            framer.feed(stream, offset, Math.min(readSize, stream.length - offset), listener);
+        }
+    }
+}
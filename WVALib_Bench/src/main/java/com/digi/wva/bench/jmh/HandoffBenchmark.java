@@ -0,0 +1,105 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.device.EventRing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passing events from the receiving thread to the handling thread: the
+ * {@link EventRing} TCPReceiver uses, which copies the decoder's fields into
+ * a slot, against the ArrayBlockingQueue of Events it replaced. One thread
+ * puts and one takes, each as fast as it can; neither waits, so that the
+ * iterations can end cleanly, and a put into a full queue or a take from an
+ * empty one just counts as an operation.
+ *
+ * <p>The scores of each group's put and take are the rates each side
+ * managed.</p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandoffBenchmark {
+    private static final int MESSAGES = 1024;
+
+    private final EventRing ring =
+            new EventRing(EventRing.DEFAULT_CAPACITY, EventRing.OverflowPolicy.DROP_NEWEST);
+    private final ArrayBlockingQueue<Event> queue =
+            new ArrayBlockingQueue<Event>(EventRing.DEFAULT_CAPACITY);
+
+    /**
+     * The producer's decoder, holding the next message to put.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        private byte[][] frames;
+        private int next;
+        final EventDecoder decoder = new EventDecoder();
+
+        @Setup
+        public void setUp() {
+            frames = Payloads.frames(Payloads.messages(MESSAGES, 1));
+        }
+
+        /** Decodes the next message; both kinds of put pay for this alike. */
+        EventDecoder next() {
+            byte[] frame = frames[next];
+            next = (next + 1) & (MESSAGES - 1);
+            decoder.decode(frame, 0, frame.length);
+            return decoder;
+        }
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public boolean ringPut(Producer p) throws InterruptedException {
+        return ring.put(p.next());
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public Event ringTake() {
+        return ring.poll();
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public boolean queuePut(Producer p) {
+        // The Event is built on the producer side, as it was
+        return queue.offer(p.next().toEvent());
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public Event queueTake() {
+        return queue.poll();
+    }
+}
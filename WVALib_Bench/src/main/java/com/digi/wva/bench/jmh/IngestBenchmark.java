@@ -0,0 +1,88 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.async.BatchListener;
+import com.digi.wva.async.Event;
+import com.digi.wva.device.IngestPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole ingest path on one thread, from the bytes of a read to the
+ * subscribed listener: framing, decoding, the EventRing, the cached values
+ * and the listener callbacks, through {@link IngestPipeline}. The other
+ * benchmarks in this package take the stages one at a time. Scores are per
+ * message.
+ *
+ * <p>{@code batch} is the MessageHandler's maximum batch size; with 1,
+ * the listener is called once per event, and otherwise once per batch.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Param({"1460", "8192"})
+    public int readSize;
+
+    @Param({"1", "64"})
+    public int batch;
+
+    private byte[] stream;
+    private IngestPipeline pipeline;
+    /** Sum of the values delivered, so that the listener cannot be elided. */
+    public double sum;
+
+    @Setup
+    public void setUp() throws Exception {
+        stream = Payloads.stream(Payloads.messages(MESSAGES, 1));
+        pipeline = new IngestPipeline(Payloads.vehicle(new BatchListener() {
+            @Override
+            public void onUpdates(List<Event> events) {
+                for (Event e : events) {
+                    sum += e.getResponse().value;
+                }
+            }
+        }), MESSAGES, batch);
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkNothingDropped() {
+        if (pipeline.getDroppedCount() != 0) {
+            throw new IllegalStateException("The ring is too small for " + readSize + " byte reads");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void ingest() {
+        for (int offset = 0; offset < stream.length; offset += readSize) {
+            pipeline.feed(stream, offset, Math.min(readSize, stream.length - offset));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.async.AlarmType;
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.bench.BenchHttpClient;
+import com.digi.wva.device.Vehicle;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Event channel messages shaped like a WVA's, for the benchmarks to chew on:
+ * mostly subscription events, with the odd alarm, for a handful of real
+ * endpoints, whose timestamps move on a few hundred milliseconds at a time
+ * and sometimes carry milliseconds. Each message ends in CRLF, as the WVA
+ * sends it.
+ */
+final class Payloads {
+    static final String[] ENDPOINTS = {
+        "EngineSpeed", "VehicleSpeed", "EngineCoolantTemp", "FuelLevel",
+        "Odometer", "ThrottlePosition", "AccelPedalPosition", "BatteryVoltage"
+    };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Payloads() { }
+
+    /**
+     * @param count the number of messages
+     * @param seed seeds the values, alarms and timestamps
+     * @return the messages, each as its own string including the CRLF
+     */
+    static String[] messages(int count, long seed) {
+        Random random = new Random(seed);
+        DateTime t = new DateTime(2013, 6, 13, 12, 0, 0, DateTimeZone.UTC);
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            String endpoint = ENDPOINTS[i % ENDPOINTS.length];
+            boolean alarm = random.nextInt(20) == 0;
+            String stamp = t.toString(random.nextBoolean()
+                    ? "yyyy-MM-dd'T'HH:mm:ss'Z'" : "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            String value = Double.toString(Math.round(random.nextDouble() * 500000) / 100.0);
+            String suffix = alarm ? "~above" : "~sub";
+            messages[i] = "{\"" + (alarm ? "alarm" : "data") + "\": {"
+                    + "\"" + endpoint + "\": {\"timestamp\": \"" + stamp + "\", \"value\": " + value + "}, "
+                    + "\"timestamp\": \"" + stamp + "\", "
+                    + "\"uri\": \"vehicle/data/" + endpoint + "\", "
+                    + "\"short_name\": \"" + endpoint + suffix + "\"}}\r\n";
+            t = t.plusMillis(random.nextInt(500));
+        }
+        return messages;
+    }
+
+    /**
+     * @return the messages encoded, each in its own array
+     */
+    static byte[][] frames(String[] messages) {
+        byte[][] frames = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            frames[i] = messages[i].getBytes(UTF8);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the messages encoded back to back, as they arrive on the socket
+     */
+    static byte[] stream(String[] messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String message : messages) {
+            byte[] b = message.getBytes(UTF8);
+            out.write(b, 0, b.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a Vehicle which knows {@link #ENDPOINTS}, with the listener
+     *         subscribed to each of them and to their alarms, so that every
+     *         message finds it
+     */
+    static Vehicle vehicle(WvaListener listener) throws Exception {
+        Vehicle vehicle = new Vehicle(new BenchHttpClient("127.0.0.1", ENDPOINTS));
+        vehicle.initialize(new WvaCallback<Set<String>>() {
+            @Override
+            public void onResponse(Throwable error, Set<String> response) { }
+        });
+        for (String endpoint : ENDPOINTS) {
+            vehicle.subscribe(endpoint, 1, listener, null);
+            vehicle.createAlarm(endpoint, AlarmType.ABOVE, 0, 1, listener, null);
+        }
+        return vehicle;
+    }
+}
@@ -0,0 +1,99 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.util.TimestampParser;
+import com.digi.wva.util.WvaUtil;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing WVA timestamps: the Joda path VehicleResponse and WvaUtil used to
+ * take (dateTimeNoMillis, falling back on dateTime via an exception) against
+ * {@link TimestampParser} and the {@link WvaUtil} methods built on it.
+ *
+ * <p>Each invocation parses the next of 1024 timestamps a few seconds
+ * apart, as a stream of events would present them. With
+ * {@code millis=true} they carry milliseconds, which the old path only
+ * managed on its second attempt.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+    private static final DateTimeFormatter formatMillis = ISODateTimeFormat.dateTime();
+    private static final DateTimeFormatter format = ISODateTimeFormat.dateTimeNoMillis();
+
+    @Param({"false", "true"})
+    public boolean millis;
+
+    private String[] stamps;
+    private int next;
+    private final TimestampParser parser = new TimestampParser();
+
+    @Setup
+    public void setUp() {
+        stamps = new String[1024];
+        DateTime t = new DateTime(2013, 6, 13, 12, 0, 0, DateTimeZone.UTC);
+        String pattern = millis ? "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" : "yyyy-MM-dd'T'HH:mm:ss'Z'";
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i] = t.toString(pattern);
+            t = t.plusMillis(2250);
+        }
+    }
+
+    private String nextStamp() {
+        String s = stamps[next];
+        next = (next + 1) & (stamps.length - 1);
+        return s;
+    }
+
+    @Benchmark
+    public DateTime jodaWithFallback() {
+        String s = nextStamp();
+        ISODateTimeFormat.dateTimeParser();
+        try {
+            return format.parseDateTime(s);
+        } catch (IllegalArgumentException e) {
+            return formatMillis.parseDateTime(s);
+        }
+    }
+
+    @Benchmark
+    public long parserMillis() {
+        return parser.parse(nextStamp());
+    }
+
+    @Benchmark
+    public long wvaUtilMillis() {
+        return WvaUtil.millisFromString(nextStamp());
+    }
+
+    @Benchmark
+    public DateTime wvaUtilDateTime() {
+        return WvaUtil.dateTimeFromString(nextStamp());
+    }
+}
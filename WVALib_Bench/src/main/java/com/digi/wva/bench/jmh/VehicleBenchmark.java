@@ -0,0 +1,103 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.bench.jmh;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.Vehicle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing decoded events to a Vehicle: updating the cached value of an
+ * endpoint, and notifying the listener subscribed to it one event at a
+ * time or in batches of {@value #BATCH}, as the MessageHandler does with
+ * batching off and on. Scores are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VehicleBenchmark {
+    private static final int MESSAGES = 1024;
+    static final int BATCH = 64;
+
+    private Vehicle vehicle;
+    private Event[] events;
+    private List<List<Event>> batches;
+    private int next;
+    private int nextBatch;
+    /** Sum of the values delivered, so that the listener cannot be elided. */
+    public double sum;
+
+    @Setup
+    public void setUp() throws Exception {
+        vehicle = Payloads.vehicle(new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                sum += response.value;
+            }
+        });
+
+        byte[][] frames = Payloads.frames(Payloads.messages(MESSAGES, 1));
+        EventDecoder decoder = new EventDecoder();
+        events = new Event[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            events[i] = decoder.decodeEvent(frames[i], 0, frames[i].length);
+        }
+        batches = new ArrayList<List<Event>>();
+        for (int i = 0; i < MESSAGES; i += BATCH) {
+            List<Event> batch = new ArrayList<Event>(BATCH);
+            for (int j = i; j < i + BATCH; j++) {
+                batch.add(events[j]);
+            }
+            batches.add(batch);
+        }
+    }
+
+    private Event nextEvent() {
+        Event e = events[next];
+        next = (next + 1) & (MESSAGES - 1);
+        return e;
+    }
+
+    @Benchmark
+    public void updateCached() {
+        Event e = nextEvent();
+        vehicle.updateCached(e.getEndpoint(), e.getResponse());
+    }
+
+    @Benchmark
+    public void notifyListeners() {
+        vehicle.notifyListeners(nextEvent());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void notifyListenersBatch() {
+        vehicle.notifyListeners(batches.get(nextBatch));
+        nextBatch = (nextBatch + 1) % batches.size();
+    }
+}
@@ -0,0 +1,110 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.device;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The steps a TCPReceiver and MessageHandler take with the data stream, from
+ * bytes read off the socket to listener callbacks, run one after the other
+ * on the calling thread, for benchmarks. It lives in this package to reach
+ * {@link Vehicle#updateCached(List)} as the MessageHandler does.
+ *
+ * <p>Each call to {@link #feed(byte[], int, int)} frames and decodes the
+ * bytes into the {@link EventRing}, then empties the ring into the Vehicle
+ * in batches of up to maxBatchSize, with the metrics counted along the
+ * way.</p>
+ */
+public class IngestPipeline {
+    private final JsonFramer framer = new JsonFramer();
+    private final EventDecoder decoder = new EventDecoder();
+    private final EventRing ring;
+    private final Vehicle vehicle;
+    private final int maxBatchSize;
+    private final IngestMetrics metrics = new IngestMetrics();
+    private final List<Event> batch;
+    private final JsonFramer.FrameListener enqueue = new JsonFramer.FrameListener() {
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            enqueue(frame, length);
+        }
+    };
+
+    /**
+     * @param vehicle receives the events
+     * @param capacity the ring's capacity; at least the number of messages
+     *                 in one call to feed(), since nothing drains the ring
+     *                 while it is being filled
+     * @param maxBatchSize the most events handed to the Vehicle at once; 1
+     *                     hands them over one at a time
+     */
+    public IngestPipeline(Vehicle vehicle, int capacity, int maxBatchSize) {
+        this.vehicle = vehicle;
+        this.ring = new EventRing(capacity, EventRing.OverflowPolicy.DROP_NEWEST);
+        this.maxBatchSize = maxBatchSize;
+        this.batch = new ArrayList<Event>(maxBatchSize);
+        vehicle.setIngestMetrics(metrics);
+    }
+
+    /**
+     * Runs the bytes through to the listeners.
+     */
+    public void feed(byte[] data, int offset, int count) {
+        metrics.bytesReceived(count);
+        framer.feed(data, offset, count, enqueue);
+
+        Event e;
+        if (maxBatchSize == 1) {
+            while ((e = ring.poll()) != null) {
+                vehicle.updateCached(e);
+            }
+            return;
+        }
+        while ((e = ring.poll()) != null) {
+            batch.add(e);
+            if (batch.size() == maxBatchSize) {
+                vehicle.updateCached(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            vehicle.updateCached(batch);
+            batch.clear();
+        }
+    }
+
+    private void enqueue(byte[] frame, int length) {
+        metrics.frameReceived();
+        try {
+            if (decoder.decode(frame, 0, length)) {
+                ring.put(decoder);
+                return;
+            }
+            Event e = decoder.decodeFallback(frame, 0, length);
+            if (e == null) {
+                metrics.parseFailed();
+                return;
+            }
+            ring.put(e);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of events the ring had no room for; non-zero if
+     *         the capacity is too small for the reads
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+}
@@ -16,14 +16,33 @@ public class AllTests {
 		TestSuite suite = new TestSuite(AllTests.class.getName());
 		//$JUnit-BEGIN$
         suite.addTestSuite(AlarmTypeTest.class);
+		suite.addTestSuite(BulkSubscribeTest.class);
+		suite.addTestSuite(CoalescingListenerTest.class);
+		suite.addTestSuite(DeliveryFilterTest.class);
+		suite.addTestSuite(DerivedEndpointTest.class);
 		suite.addTestSuite(DeviceTest.class);
 		suite.addTestSuite(EcuTest.class);
+		suite.addTestSuite(EndpointCatalogTest.class);
+		suite.addTestSuite(EndpointHistoryTest.class);
+		suite.addTestSuite(EventChannelEngineTest.class);
+		suite.addTestSuite(EventDecoderTest.class);
+		suite.addTestSuite(EventRingTest.class);
+		suite.addTestSuite(ReconnectSchedulerTest.class);
 		suite.addTestSuite(EventTest.class);
 		suite.addTestSuite(HardwareTest.class);
+		suite.addTestSuite(JsonFramerTest.class);
+		suite.addTestSuite(ListenerRegistrationTest.class);
+		suite.addTestSuite(LocalAlarmTest.class);
 		suite.addTestSuite(MessageHandlerTest.class);
+		suite.addTestSuite(PrimitiveListenerTest.class);
 		suite.addTestSuite(TCPReceiverTest.class);
+		suite.addTestSuite(TimestampParserTest.class);
+		suite.addTestSuite(CaptureTest.class);
 		suite.addTestSuite(VehicleTest.class);
+		suite.addTestSuite(VehicleSnapshotTest.class);
+		suite.addTestSuite(WindowAggregateTest.class);
 		suite.addTestSuite(WvaHttpClientTest.class);
+		suite.addTestSuite(HttpPoolTest.class);
 		//$JUnit-END$
 		return suite;
 	}
@@ -0,0 +1,187 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaCallback;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.BulkResult;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.exc.WvaException;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import junit.framework.TestCase;
+import org.apache.http.client.HttpResponseException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class BulkSubscribeTest extends TestCase {
+    JsonFactory jFactory = new JsonFactory();
+    QueuedClient httpClient = new QueuedClient();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    private Throwable error;
+    private BulkResult result;
+    private final WvaCallback<BulkResult> done = new WvaCallback<BulkResult>() {
+        @Override
+        public void onResponse(Throwable error, BulkResult response) {
+            assertNull("called twice", result);
+            BulkSubscribeTest.this.error = error;
+            result = response;
+        }
+    };
+
+    /**
+     * Lists the vehicle's endpoints at once, and holds every other request
+     * until the test answers it
+     */
+    static class QueuedClient extends HttpClientSpoofer {
+        final List<String> urls = new ArrayList<String>();
+        final List<AsyncHttpResponseHandler> pending = new ArrayList<AsyncHttpResponseHandler>();
+        int maxInFlight;
+
+        QueuedClient() {
+            super("hostname");
+        }
+
+        @Override
+        public void put(String url, JSONObject jObj, AsyncHttpResponseHandler responseHandler) {
+            queue(url, responseHandler);
+        }
+
+        @Override
+        public void delete(String url, AsyncHttpResponseHandler responseHandler) {
+            queue(url, responseHandler);
+        }
+
+        private void queue(String url, AsyncHttpResponseHandler handler) {
+            urls.add(url);
+            pending.add(handler);
+            maxInFlight = Math.max(maxInFlight, pending.size());
+        }
+
+        /**
+         * Answers the oldest request, with success if status is 200
+         */
+        void answer(int status) {
+            AsyncHttpResponseHandler handler = pending.remove(0);
+            if (status == 200) {
+                handler.onSuccess("");
+            } else {
+                handler.onFailure(new HttpResponseException(status, "status " + status), "");
+            }
+        }
+    }
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        super.setUp();
+    }
+
+    private Map<String, Integer> intervals(String... endpoints) {
+        Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+        for (String endpoint : endpoints) {
+            map.put(endpoint, 10);
+        }
+        return map;
+    }
+
+    public void testWindowAndRetry() {
+        WvaListener listener = new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) { }
+        };
+        vehicle.subscribeAll(intervals("EngineSpeed", "PorridgeViscosity", "PassengerEuphoria",
+                "DriverIncome", "baz"), listener, 2, 1, done);
+        assertEquals(2, httpClient.pending.size());
+
+        httpClient.answer(503);
+        while (!httpClient.pending.isEmpty()) {
+            assertNull(result);
+            httpClient.answer(200);
+        }
+        assertEquals(2, httpClient.maxInFlight);
+        assertEquals(6, httpClient.urls.size());
+        assertEquals("subscriptions/EngineSpeed~sub", httpClient.urls.get(2));
+
+        assertNull(error);
+        assertTrue(result.isComplete());
+        assertEquals(1, result.getRetriedCount());
+        assertEquals(Arrays.asList("PorridgeViscosity", "EngineSpeed", "PassengerEuphoria",
+                "DriverIncome", "baz"), result.getSucceeded());
+        assertEquals(5, vehicle.getListenerRegistrations().size());
+    }
+
+    public void testFailures() {
+        vehicle.subscribeAll(intervals("NoSuchEndpoint", "EngineSpeed", "baz"), null, 4, 1, done);
+        // The unknown endpoint fails without a request
+        assertEquals(2, httpClient.pending.size());
+        // A client error is not retried, anything else is, once
+        httpClient.answer(400);
+        httpClient.answer(500);
+        httpClient.answer(500);
+        assertTrue(httpClient.pending.isEmpty());
+
+        assertTrue(error instanceof WvaException);
+        assertFalse(result.isComplete());
+        assertTrue(result.getSucceeded().isEmpty());
+        assertEquals(Arrays.asList("NoSuchEndpoint", "EngineSpeed", "baz"),
+                new ArrayList<String>(result.getFailed().keySet()));
+        assertEquals(500, ((HttpResponseException) result.getFailed().get("baz")).getStatusCode());
+    }
+
+    public void testUnsubscribeAll() {
+        vehicle.unsubscribeAll(Arrays.asList("EngineSpeed", "baz", "EngineSpeed"), true, 4, 0, done);
+        assertEquals(2, httpClient.pending.size());
+        httpClient.answer(404);
+        httpClient.answer(200);
+        assertNull(error);
+        assertEquals(Arrays.asList("EngineSpeed", "baz"), result.getSucceeded());
+
+        result = null;
+        vehicle.unsubscribeAll(new ArrayList<String>(), true, 4, 0, done);
+        assertTrue(result.isComplete());
+    }
+
+    /**
+     * A client which answers in-line does not recurse once per endpoint
+     */
+    public void testInlineResponses() throws Exception {
+        int n = 20000;
+        JSONArray uris = new JSONArray();
+        for (int i = 0; i < n; i++) {
+            uris.put("vehicle/data/Endpoint" + i);
+        }
+        HttpClientSpoofer inline = new HttpClientSpoofer("hostname") {
+            @Override
+            public void put(String url, JSONObject jObj, AsyncHttpResponseHandler responseHandler) {
+                responseHandler.onSuccess("");
+            }
+        };
+        inline.returnObject = new JSONObject().put("data", uris);
+        Vehicle big = new Vehicle(inline);
+        big.initialize(new PassFailCallback<Set<String>>());
+
+        Map<String, Integer> all = new LinkedHashMap<String, Integer>();
+        for (String name : big.getKeySet()) {
+            all.put(name, 1);
+        }
+        big.subscribeAll(all, null, 8, 0, done);
+        assertEquals(n, result.getSucceeded().size());
+    }
+}
@@ -0,0 +1,223 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.CaptureReader;
+import com.digi.wva.device.CaptureReplay;
+import com.digi.wva.device.CaptureWriter;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CaptureTest extends TestCase {
+    JsonFactory jsonFactory = new JsonFactory();
+    File dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("capture", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    private static byte[] bytes(int length, int fill) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) fill);
+        return b;
+    }
+
+    /**
+     * Records come back in order across files; full files are rolled over
+     * and the oldest ones deleted.
+     */
+    public void testRollover() throws Exception {
+        CaptureWriter writer = new CaptureWriter(dir, "rec", 10000);
+        for (int i = 0; i < 5; i++) {
+            writer.write(bytes(3000, i), 0, 3000, 1000L * i);
+        }
+        writer.close();
+        assertEquals(5, writer.getRecordCount());
+        assertEquals(15000, writer.getByteCount());
+        assertEquals(2, writer.getFiles().size());
+        assertEquals(writer.getFiles(), CaptureReader.findFiles(dir, "rec"));
+
+        CaptureReader reader = new CaptureReader(writer.getFiles());
+        byte[] buffer = new byte[2000];
+        for (int i = 0; i < 5; i++) {
+            assertTrue(reader.next());
+            assertEquals(1000L * i, reader.getNanos());
+            assertEquals(3000, reader.getLength());
+            assertEquals(2000, reader.read(buffer, 0, 2000));
+            assertEquals((byte) i, buffer[1999]);
+            assertEquals(1000, reader.read(buffer, 0, 2000));
+            assertEquals(0, reader.read(buffer, 0, 2000));
+        }
+        assertFalse(reader.next());
+
+        writer = new CaptureWriter(dir, "kept", 10000);
+        writer.setMaxSegments(2);
+        for (int i = 0; i < 12; i++) {
+            writer.write(bytes(3000, i), 0, 3000, i);
+        }
+        writer.close();
+        assertEquals(2, CaptureReader.findFiles(dir, "kept").size());
+        reader = new CaptureReader(writer.getFiles());
+        assertTrue(reader.next());
+        assertEquals(6, reader.getNanos());
+    }
+
+    /**
+     * A second capture with the same prefix replaces the first, rather than
+     * being followed by what is left of it.
+     */
+    public void testRecaptureReplaces() throws Exception {
+        CaptureWriter writer = new CaptureWriter(dir, "again", 10000);
+        for (int i = 0; i < 8; i++) {
+            writer.write(bytes(3000, i), 0, 3000, i);
+        }
+        writer.close();
+        assertEquals(3, CaptureReader.findFiles(dir, "again").size());
+
+        writer = new CaptureWriter(dir, "again", 10000);
+        writer.write(bytes(10, 9), 0, 10, 9);
+        writer.close();
+        assertEquals(writer.getFiles(), CaptureReader.findFiles(dir, "again"));
+
+        CaptureReader reader = new CaptureReader(CaptureReader.findFiles(dir, "again"));
+        assertTrue(reader.next());
+        assertEquals(9, reader.getNanos());
+        assertEquals(10, reader.getLength());
+        assertFalse(reader.next());
+    }
+
+    /**
+     * Reads are played back with their original gaps, divided by the speed.
+     */
+    public void testSpeed() throws Exception {
+        CaptureWriter writer = new CaptureWriter(dir, "timed", 10000);
+        writer.write(bytes(10, 1), 0, 10, 5000000000L);
+        writer.write(bytes(10, 2), 0, 10, 5300000000L);
+        writer.close();
+
+        assertTrue(replayMillis(writer.getFiles(), 1.0) >= 290);
+        long fast = replayMillis(writer.getFiles(), 10.0);
+        assertTrue(fast >= 25 && fast < 290);
+        assertTrue(replayMillis(writer.getFiles(), CaptureReplay.MAX_SPEED) < 25);
+    }
+
+    private static long replayMillis(List<File> files, double speed) throws Exception {
+        InputStream in = new CaptureReplay(files, speed).openStream();
+        byte[] buffer = new byte[100];
+        long start = System.nanoTime();
+        assertEquals(10, in.read(buffer));
+        assertEquals(1, buffer[9]);
+        assertEquals(10, in.read(buffer));
+        assertEquals(2, buffer[9]);
+        assertEquals(-1, in.read(buffer));
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * What a Device receives from the WVA is recorded, and replaying it into
+     * another Device delivers the same updates.
+     */
+    public void testCaptureAndReplay() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        CaptureWriter writer = new CaptureWriter(dir, "live");
+        Device device = device(server.getLocalPort());
+        device.setCaptureWriter(writer);
+        final List<Double> received = new ArrayList<Double>();
+        CountDownLatch updated = subscribe(device, received);
+
+        device.connectDataStream(server.getLocalPort(), null);
+        Socket remote = server.accept();
+        String first = jsonFactory.data() + "\r\n" + jsonFactory.alarm() + "\r\n";
+        remote.getOutputStream().write(first.getBytes("UTF-8"));
+        Thread.sleep(50);
+        String last = jsonFactory.data().toString();
+        // Split mid-message, which the replay must reproduce
+        remote.getOutputStream().write(last.substring(0, 20).getBytes("UTF-8"));
+        Thread.sleep(50);
+        remote.getOutputStream().write((last.substring(20) + "\r\n").getBytes("UTF-8"));
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        device.disconnectDataStream();
+        remote.close();
+        server.close();
+        writer.close();
+        assertEquals(3, writer.getRecordCount());
+
+        Device replayed = device(0);
+        List<Double> replayedValues = new ArrayList<Double>();
+        CountDownLatch replayUpdated = subscribe(replayed, replayedValues);
+        final CountDownLatch ended = new CountDownLatch(1);
+        replayed.replayDataStream(new CaptureReplay(CaptureReader.findFiles(dir, "live"),
+                CaptureReplay.MAX_SPEED), new DeviceConnectionListener() {
+            @Override
+            public void onRemoteClose(Device device, int port) {
+                ended.countDown();
+            }
+        });
+        assertTrue(replayUpdated.await(5, TimeUnit.SECONDS));
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        assertEquals(received, replayedValues);
+        assertEquals(writer.getByteCount(), replayed.getIngestSnapshot().getBytes());
+        replayed.disconnectDataStream();
+    }
+
+    private Device device(int port) throws Exception {
+        HttpClientSpoofer httpClient = new HttpClientSpoofer("127.0.0.1");
+        httpClient.returnObject = jsonFactory.vehicleEndpoints();
+        httpClient.returnString = "";
+        Vehicle vehicle = new Vehicle(httpClient);
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        return Device.getDevice("127.0.0.1", port, httpClient, vehicle, null, null);
+    }
+
+    private static CountDownLatch subscribe(Device device, final List<Double> values)
+            throws Exception {
+        final CountDownLatch updated = new CountDownLatch(2);
+        device.subscribe("baz", 1, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                synchronized (values) {
+                    values.add(response.value);
+                }
+                updated.countDown();
+            }
+        });
+        return updated;
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        super.tearDown();
+    }
+}
@@ -0,0 +1,134 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.CoalescingListener;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class CoalescingListenerTest extends TestCase {
+    /** Holds on to tasks until told to run them, like a busy UI thread. */
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private final List<String> delivered = new ArrayList<String>();
+    private final CoalescingListener listener = new CoalescingListener(executor) {
+        @Override
+        public void onUpdate(String endpoint, VehicleResponse response, int merged) {
+            delivered.add(endpoint + "=" + response.value + "x" + merged);
+        }
+    };
+
+    private static VehicleResponse response(double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        resp.time = new DateTime(0);
+        return resp;
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    public void testLatestValueWins() {
+        for (int i = 1; i <= 5; i++) {
+            listener.onUpdate("EngineSpeed", response(i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            listener.onUpdate("VehicleSpeed", response(10 * i));
+        }
+        // One drain is scheduled however many updates arrive
+        assertEquals(1, tasks.size());
+        assertTrue(delivered.isEmpty());
+
+        runTasks();
+        assertEquals(2, delivered.size());
+        assertEquals("EngineSpeed=5.0x5", delivered.get(0));
+        assertEquals("VehicleSpeed=30.0x3", delivered.get(1));
+        assertEquals(8, listener.getReceivedCount());
+        assertEquals(2, listener.getDeliveredCount());
+
+        listener.onUpdate("VehicleSpeed", response(40));
+        runTasks();
+        assertEquals("VehicleSpeed=40.0x1", delivered.get(2));
+    }
+
+    /**
+     * An executor which refuses a delivery does not stop later ones
+     */
+    public void testRejectedDelivery() {
+        final boolean[] refuse = { true };
+        CoalescingListener refused = new CoalescingListener(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (refuse[0]) {
+                    throw new RejectedExecutionException("shut down");
+                }
+                tasks.add(command);
+            }
+        }) {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response, int merged) {
+                delivered.add(endpoint + "=" + response.value + "x" + merged);
+            }
+        };
+
+        refused.onUpdate("EngineSpeed", response(1));
+        refused.onUpdate("EngineSpeed", response(2));
+        assertEquals(2, refused.getRejectedCount());
+        assertTrue(tasks.isEmpty());
+
+        refuse[0] = false;
+        refused.onUpdate("EngineSpeed", response(3));
+        runTasks();
+        assertEquals(1, delivered.size());
+        assertEquals("EngineSpeed=3.0x3", delivered.get(0));
+    }
+
+    /**
+     * Delivery through a subscription's listener, as the MessageHandler
+     * would call it
+     */
+    public void testThroughVehicle() throws Exception {
+        HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+        JsonFactory jFactory = new JsonFactory();
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        Vehicle vehicle = new Vehicle(httpClient);
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        httpClient.success = true;
+        httpClient.returnString = "";
+        vehicle.subscribe("baz", 1, listener, null);
+
+        Event e = Event.fromTCP(jFactory.data());
+        for (int i = 0; i < 4; i++) {
+            vehicle.notifyListeners(e);
+        }
+        runTasks();
+        assertEquals(1, delivered.size());
+        assertEquals("baz=4.3x4", delivered.get(0));
+    }
+}
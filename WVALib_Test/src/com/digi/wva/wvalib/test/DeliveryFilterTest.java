@@ -0,0 +1,149 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.DeliveryFilter;
+import com.digi.wva.device.ListenerRegistration;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class DeliveryFilterTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    private final List<String> delivered = new ArrayList<String>();
+    private ListenerRegistration registration;
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        registration = vehicle.addListener("*", new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                delivered.add(endpoint + "=" + response.value);
+            }
+        });
+        super.setUp();
+    }
+
+    private void send(String endpoint, long millis, Double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        resp.time = new DateTime(millis);
+        vehicle.notifyListeners(new Event("subscription", endpoint, null, endpoint + "~sub", resp));
+    }
+
+    public void testAbsoluteDeadband() {
+        DeliveryFilter filter = DeliveryFilter.deadband(1.0);
+        registration.setFilter(filter);
+        send("baz", 0, 10.0);
+        send("baz", 1, 10.5);
+        send("baz", 2, 11.0);
+        send("baz", 3, 11.5);
+        // Each endpoint is measured against its own last delivery
+        send("EngineSpeed", 4, 10.9);
+
+        assertEquals(Arrays.asList("baz=10.0", "baz=11.5", "EngineSpeed=10.9"), delivered);
+        assertEquals(3, filter.getPassedCount());
+        assertEquals(2, filter.getDeadbandCount());
+        assertEquals(2, filter.getSuppressedCount());
+    }
+
+    public void testPercentDeadband() {
+        registration.setFilter(new DeliveryFilter(0, 5, 0, 0));
+        send("baz", 0, 100.0);
+        send("baz", 1, 104.0);
+        send("baz", 2, 94.0);
+        send("baz", 3, 94.0);
+        assertEquals(Arrays.asList("baz=100.0", "baz=94.0"), delivered);
+    }
+
+    public void testMinInterval() {
+        DeliveryFilter filter = DeliveryFilter.minInterval(1000);
+        registration.setFilter(filter);
+        for (long t = 0; t <= 3000; t += 250) {
+            send("baz", t, (double) t);
+        }
+        assertEquals(Arrays.asList("baz=0.0", "baz=1000.0", "baz=2000.0", "baz=3000.0"), delivered);
+        assertEquals(9, filter.getIntervalCount());
+    }
+
+    public void testHeartbeat() {
+        DeliveryFilter filter = new DeliveryFilter(1.0, 0, 0, 5000);
+        registration.setFilter(filter);
+        for (long t = 0; t <= 12000; t += 1000) {
+            send("baz", t, 42.0);
+        }
+        // A steady value is still delivered once the silence passes 5 seconds
+        assertEquals(Arrays.asList("baz=42.0", "baz=42.0", "baz=42.0"), delivered);
+        assertEquals(2, filter.getHeartbeatCount());
+        assertEquals(10, filter.getDeadbandCount());
+    }
+
+    public void testNoValueAndReset() {
+        DeliveryFilter filter = DeliveryFilter.deadband(1.0);
+        registration.setFilter(filter);
+        send("baz", 0, 1.0);
+        send("baz", 1, null);
+        send("baz", 2, 1.0);
+        filter.reset();
+        send("baz", 3, 1.0);
+        assertEquals(Arrays.asList("baz=1.0", "baz=null", "baz=1.0"), delivered);
+
+        registration.setFilter(null);
+        send("baz", 4, 1.0);
+        assertEquals(4, delivered.size());
+    }
+
+    public void testBatchAndOtherListeners() {
+        List<String> unfiltered = new ArrayList<String>();
+        registration.setFilter(DeliveryFilter.deadband(1.0));
+        final List<String> other = unfiltered;
+        vehicle.addListener("baz~sub", new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                other.add(endpoint + "=" + response.value);
+            }
+        });
+
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 4; i++) {
+            VehicleResponse resp = new VehicleResponse();
+            resp.value = 5.0 + i * 0.6;
+            resp.time = new DateTime(i);
+            events.add(new Event("subscription", "baz", null, "baz~sub", resp));
+        }
+        vehicle.notifyListeners(events);
+        assertEquals(Arrays.asList("baz=5.0", "baz=6.2"), delivered);
+        assertEquals(4, unfiltered.size());
+    }
+
+    public void testBadArguments() {
+        try {
+            new DeliveryFilter(-1, 0, 0, 0);
+            fail("a negative deadband should be refused");
+        } catch (IllegalArgumentException expected) { }
+        try {
+            new DeliveryFilter(0, 0, -1, 0);
+            fail("a negative interval should be refused");
+        } catch (IllegalArgumentException expected) { }
+    }
+}
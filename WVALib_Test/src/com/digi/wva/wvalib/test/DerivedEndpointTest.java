@@ -0,0 +1,136 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.DerivedEndpoint;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.exc.EndpointUnknownException;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class DerivedEndpointTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        super.setUp();
+    }
+
+    private void send(String endpoint, long millis, double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        resp.time = new DateTime(millis);
+        vehicle.updateCached(endpoint, resp);
+    }
+
+    private Double cached(String endpoint) {
+        return vehicle.getCached(endpoint).value;
+    }
+
+    public void testRatio() throws Exception {
+        final List<String> delivered = new ArrayList<String>();
+        DerivedEndpoint ratio = vehicle.addDerived("Ratio", "baz / EngineSpeed");
+        assertEquals(Arrays.asList("baz", "EngineSpeed"), ratio.getInputs());
+        assertTrue(vehicle.getCatalog().contains("Ratio"));
+
+        vehicle.subscribe("Ratio", 1, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                delivered.add(endpoint + "=" + response.value);
+            }
+        }, null);
+
+        // Nothing until both inputs have values
+        send("baz", 0, 30);
+        assertNull(cached("Ratio"));
+        send("EngineSpeed", 1, 1500);
+        assertEquals(0.02, cached("Ratio"));
+        send("baz", 2, 60);
+        assertEquals(0.04, cached("Ratio"));
+        assertEquals(new DateTime(2), vehicle.getCached("Ratio").time);
+
+        // An unchanged or non-finite result is not published
+        send("baz", 3, 60);
+        send("EngineSpeed", 4, 0);
+        assertEquals(Arrays.asList("Ratio=0.02", "Ratio=0.04"), delivered);
+        assertEquals(5, ratio.getEvaluationCount());
+        assertEquals(2, ratio.getPublishedCount());
+    }
+
+    public void testOperators() throws Exception {
+        vehicle.addDerived("A", "-baz + 2 * (EngineSpeed - 1) / 4");
+        vehicle.addDerived("B", "min(baz, EngineSpeed) + max(baz, EngineSpeed) * 10 + abs(-1) + sqrt(16)");
+        vehicle.addDerived("C", "if(baz >= 3 && EngineSpeed != 0 || baz < 0, 100, 200) + (baz == 3) + 1e1");
+        send("baz", 0, 3);
+        send("EngineSpeed", 0, 9);
+        assertEquals(1.0, cached("A"));
+        assertEquals(98.0, cached("B"));
+        assertEquals(111.0, cached("C"));
+    }
+
+    public void testIntegrateIdleTime() throws Exception {
+        vehicle.addDerived("Idle", "integrate(EngineSpeed > 0 && baz < 1)");
+        send("baz", 0, 0);
+        send("EngineSpeed", 0, 700);
+        send("EngineSpeed", 5000, 800);
+        assertEquals(5.0, cached("Idle"));
+        send("baz", 8000, 20);
+        assertEquals(8.0, cached("Idle"));
+        send("baz", 20000, 0);
+        send("EngineSpeed", 22000, 700);
+        assertEquals(10.0, cached("Idle"));
+    }
+
+    public void testChained() throws Exception {
+        vehicle.addDerived("Double", "baz * 2");
+        vehicle.addDerived("Quadruple", "Double * 2");
+        vehicle.setHistory("Quadruple", 10, 0);
+        send("baz", 0, 1);
+        send("baz", 1, 2);
+        assertEquals(8.0, cached("Quadruple"));
+        assertEquals(2, vehicle.getHistory("Quadruple").size());
+
+        vehicle.removeDerived("Double");
+        assertNull(vehicle.getDerived("Double"));
+        send("baz", 2, 5);
+        assertEquals(4.0, cached("Double"));
+        assertEquals(8.0, cached("Quadruple"));
+    }
+
+    public void testErrors() throws Exception {
+        try {
+            vehicle.addDerived("X", "NoSuchEndpoint + 1");
+            fail("Expected EndpointUnknownException");
+        } catch (EndpointUnknownException expected) { }
+        assertFalse(vehicle.getCatalog().contains("X"));
+
+        for (String bad : new String[] { "baz +", "(baz", "baz baz", "foo(baz)", "min(baz)", "1..2", "#" }) {
+            try {
+                vehicle.addDerived("X", bad);
+                fail("\"" + bad + "\" should not compile");
+            } catch (IllegalArgumentException expected) { }
+        }
+        try {
+            vehicle.addDerived("baz", "EngineSpeed");
+            fail("a known name should be refused");
+        } catch (IllegalArgumentException expected) { }
+    }
+}
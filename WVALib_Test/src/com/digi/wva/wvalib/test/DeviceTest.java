@@ -12,19 +12,29 @@ import com.digi.wva.async.WvaListener;
 import com.digi.wva.exc.EndpointUnknownException;
 import com.digi.wva.device.Device;
 import com.digi.wva.device.Ecu;
+import com.digi.wva.device.EndpointCatalog;
 import com.digi.wva.device.Hardware;
+import com.digi.wva.device.IngestSnapshot;
 import com.digi.wva.device.Vehicle;
 import com.digi.wva.async.AlarmType;
 import com.digi.wva.async.VehicleResponse;
 import com.digi.wva.device.WvaHttpClient;
 
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
 import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
 import junit.framework.TestCase;
 import org.joda.time.DateTime;
 
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
@@ -74,6 +84,114 @@ public class DeviceTest extends TestCase {
         assertNotNull(d2);
 	}
 
+    /**
+     * A data stream run on an executor delivers events, and gives its
+     * threads back when disconnected
+     */
+    public void testExecutor() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        HttpClientSpoofer httpClient = new HttpClientSpoofer("127.0.0.1");
+        httpClient.returnObject = jsonFactory.vehicleEndpoints();
+        httpClient.returnString = "";
+        Vehicle vehicle = new Vehicle(httpClient);
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        Device device = Device.getDevice("127.0.0.1", server.getLocalPort(), httpClient,
+                vehicle, null, null);
+
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        device.setExecutor(pool);
+        final CountDownLatch updated = new CountDownLatch(1);
+        device.subscribe("baz", 1, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                updated.countDown();
+            }
+        });
+
+        device.connectDataStream(server.getLocalPort(), null);
+        Socket remote = server.accept();
+        remote.getOutputStream().write((jsonFactory.data() + "\r\n").getBytes("UTF-8"));
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getActiveCount());
+
+        device.disconnectDataStream();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getActiveCount());
+        assertTrue(device.isDataStreamDisconnected());
+
+        pool.shutdown();
+        remote.close();
+        server.close();
+    }
+
+    /**
+     * The ingest snapshot counts what arrives on the data stream
+     */
+    public void testIngestSnapshot() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        HttpClientSpoofer httpClient = new HttpClientSpoofer("127.0.0.1");
+        httpClient.returnObject = jsonFactory.vehicleEndpoints();
+        httpClient.returnString = "";
+        Vehicle vehicle = new Vehicle(httpClient);
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        Device device = Device.getDevice("127.0.0.1", server.getLocalPort(), httpClient,
+                vehicle, null, null);
+        device.setMaxFrameLength(400);
+        final CountDownLatch updated = new CountDownLatch(2);
+        device.subscribe("baz", 1, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                updated.countDown();
+            }
+        });
+
+        device.connectDataStream(server.getLocalPort(), null);
+        Socket remote = server.accept();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            padding.append(' ');
+        }
+        String first = jsonFactory.data() + "\r\n"
+                + jsonFactory.alarm() + "\r\n"     // no listener
+                + "{\"data\": " + padding + "}\r\n" // too long
+                + "{\"data\": nonsense}\r\n";
+        String last = jsonFactory.data() + "\r\n";
+        remote.getOutputStream().write(first.getBytes("UTF-8"));
+        // Separately, so that the first read is fully counted by the time
+        // the last event is delivered
+        Thread.sleep(100);
+        remote.getOutputStream().write(last.getBytes("UTF-8"));
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+
+        IngestSnapshot snapshot = device.getIngestSnapshot();
+        assertEquals(first.length() + last.length(), snapshot.getBytes());
+        assertEquals(4, snapshot.getFrames());
+        assertEquals(1, snapshot.getOversizedFrames());
+        assertEquals(1, snapshot.getParseFailures());
+        assertEquals(3, snapshot.getEvents());
+        assertEquals(1, snapshot.getNoListenerEvents());
+        assertEquals(Long.valueOf(3), snapshot.getEndpointEvents().get("baz"));
+        assertTrue(snapshot.getEndpointRates().get("baz") > 0);
+        assertTrue(snapshot.getQueueHighWaterMark() >= 1);
+        long delivered = 0;
+        for (long count : snapshot.getLagCounts()) {
+            delivered += count;
+        }
+        assertEquals(2, delivered);
+        // The test events were sent in 2007
+        assertEquals(-1, snapshot.getLagPercentileMillis(0.5));
+
+        // Rates start again from each snapshot
+        assertEquals(0.0, device.getIngestSnapshot().getFramesPerSecond());
+
+        device.disconnectDataStream();
+        remote.close();
+        server.close();
+    }
+
 	public void testInitVehicleData() throws Exception {
         d2.initVehicleData(mCbSet);
         verify(mVeh).initialize(any(WvaCallback.class));
@@ -94,9 +212,15 @@ public class DeviceTest extends TestCase {
         verify(mEcu).initialize(any(WvaCallback.class));
 	}
 
+    public void testClose() {
+        d2.close();
+        verify(mClnt).shutdown();
+        assertTrue(d2.isDataStreamDisconnected());
+    }
+
     public void testSubscribe() {
 
-        doReturn(endpoints).when(vehSpy).getKeySet();
+        doReturn(EndpointCatalog.of(endpoints)).when(vehSpy).getCatalog();
         try {
             d3.subscribe("DriverIncome", 10, mListener);
             assertTrue(true);
@@ -113,9 +237,9 @@ public class DeviceTest extends TestCase {
     }
 
 	public void testAddAlarm() {
-        doReturn(endpoints).when(vehSpy).getKeySet();
+        doReturn(EndpointCatalog.of(endpoints)).when(vehSpy).getCatalog();
         assertTrue(endpoints.contains("DriverIncome"));
-        assertTrue(vehSpy.getKeySet().contains("DriverIncome"));
+        assertTrue(vehSpy.getCatalog().contains("DriverIncome"));
         try {
             d3.addAlarm("DriverIncome", AlarmType.ABOVE, 20, 10, mListener);
         } catch (Exception e) {
@@ -0,0 +1,64 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.device.EndpointCatalog;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class EndpointCatalogTest extends TestCase {
+
+    public void testIds() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            names.add("Endpoint" + i);
+        }
+        EndpointCatalog catalog = EndpointCatalog.of(names);
+        assertEquals(100, catalog.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, catalog.idOf("Endpoint" + i));
+            assertEquals("Endpoint" + i, catalog.nameOf(i));
+        }
+        assertEquals(-1, catalog.idOf("Endpoint100"));
+        assertEquals(-1, catalog.idOf(null));
+        assertFalse(catalog.contains(""));
+    }
+
+    public void testRepeatsIgnored() {
+        EndpointCatalog catalog = EndpointCatalog.of(Arrays.asList("a", "b", "a"));
+        assertEquals(2, catalog.size());
+        assertEquals(1, catalog.idOf("b"));
+    }
+
+    public void testPlusKeepsIds() {
+        EndpointCatalog catalog = EndpointCatalog.of(Arrays.asList("a", "b"));
+        assertSame(catalog, catalog.plus(Arrays.asList("b")));
+
+        EndpointCatalog more = catalog.plus(Arrays.asList("c", "a"));
+        assertEquals(3, more.size());
+        assertEquals(0, more.idOf("a"));
+        assertEquals(1, more.idOf("b"));
+        assertEquals(2, more.idOf("c"));
+    }
+
+    public void testNames() {
+        Set<String> names = EndpointCatalog.of(Arrays.asList("b", "a")).names();
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(names));
+        assertTrue(names.contains("a"));
+        assertFalse(names.contains(3));
+        try {
+            names.add("c");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) { }
+        assertEquals(0, EndpointCatalog.EMPTY.names().size());
+    }
+}
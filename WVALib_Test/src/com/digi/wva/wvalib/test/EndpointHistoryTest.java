@@ -0,0 +1,100 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.device.EndpointHistory;
+import junit.framework.TestCase;
+
+public class EndpointHistoryTest extends TestCase {
+
+    private static void fill(EndpointHistory history, int from, int to) {
+        for (int i = from; i < to; i++) {
+            history.add(i * 1000L, i);
+        }
+    }
+
+    public void testWrap() {
+        EndpointHistory history = new EndpointHistory(4, 0);
+        assertEquals(0, history.size());
+        fill(history, 0, 10);
+        assertEquals(4, history.size());
+
+        EndpointHistory.Samples samples = history.get(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(4, samples.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals((6 + i) * 1000L, samples.getTime(i));
+            assertEquals(6.0 + i, samples.getValue(i));
+        }
+    }
+
+    public void testRange() {
+        EndpointHistory history = new EndpointHistory(100, 0);
+        fill(history, 0, 10);
+        EndpointHistory.Samples samples = history.get(3000, 5000);
+        assertEquals(3, samples.size());
+        assertEquals(3.0, samples.getValues()[0]);
+        assertEquals(5000L, samples.getTimes()[2]);
+        assertEquals(0, history.get(20000, 30000).size());
+    }
+
+    public void testSpan() {
+        EndpointHistory history = new EndpointHistory(100, 2500);
+        fill(history, 0, 10);
+        // 9 s is the newest; 6.5 s is as far back as the span goes
+        assertEquals(3, history.size());
+        EndpointHistory.Samples samples = history.get(0, Long.MAX_VALUE);
+        assertEquals(3, samples.size());
+        assertEquals(7.0, samples.getValue(0));
+    }
+
+    public void testCursor() {
+        EndpointHistory history = new EndpointHistory(8, 0);
+        fill(history, 0, 5);
+        EndpointHistory.Cursor cursor = history.cursor(1000, 3000);
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i * 1000L, cursor.getTime());
+            assertEquals((double) i, cursor.getValue());
+        }
+        assertFalse(cursor.next());
+
+        // New samples show up on the same walk
+        cursor.seek(4000, Long.MAX_VALUE);
+        assertTrue(cursor.next());
+        assertEquals(4.0, cursor.getValue());
+        assertFalse(cursor.next());
+        fill(history, 5, 6);
+        assertTrue(cursor.next());
+        assertEquals(5.0, cursor.getValue());
+    }
+
+    public void testCursorSkipsOverwritten() {
+        EndpointHistory history = new EndpointHistory(4, 0);
+        fill(history, 0, 4);
+        EndpointHistory.Cursor cursor = history.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(cursor.next());
+        assertEquals(0.0, cursor.getValue());
+        // Overwrites 1 and 2 before the cursor gets to them
+        fill(history, 4, 7);
+        assertTrue(cursor.next());
+        assertEquals(3.0, cursor.getValue());
+    }
+
+    public void testClear() {
+        EndpointHistory history = new EndpointHistory(4, 0);
+        fill(history, 0, 3);
+        EndpointHistory.Cursor cursor = history.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        history.clear();
+        assertEquals(0, history.size());
+        assertFalse(cursor.next());
+        fill(history, 3, 4);
+        assertTrue(cursor.next());
+        assertEquals(3.0, cursor.getValue());
+        assertEquals(1, history.get(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}
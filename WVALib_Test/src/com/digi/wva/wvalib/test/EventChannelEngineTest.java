@@ -0,0 +1,156 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+import com.digi.wva.device.EventChannelEngine;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class EventChannelEngineTest extends TestCase {
+    JsonFactory jFactory = new JsonFactory();
+    HttpClientSpoofer httpClient;
+    EventChannelEngine engine;
+    ServerSocket server;
+    Device device;
+
+    final CountDownLatch connected = new CountDownLatch(1);
+    final CountDownLatch remoteClosed = new CountDownLatch(1);
+    final CountDownLatch failed = new CountDownLatch(1);
+    final CountDownLatch updated = new CountDownLatch(2);
+
+    DeviceConnectionListener connectionListener = new DeviceConnectionListener() {
+        @Override
+        public void onConnected(Device device) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onRemoteClose(Device device, int port) {
+            remoteClosed.countDown();
+        }
+
+        @Override
+        public void onFailedConnection(Device device, int port) {
+            failed.countDown();
+        }
+    };
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        engine = new EventChannelEngine(1);
+        engine.start();
+        server = new ServerSocket(0);
+
+        httpClient = new HttpClientSpoofer("127.0.0.1");
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        httpClient.returnString = "";
+        Vehicle vehicle = new Vehicle(httpClient);
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+
+        device = Device.getDevice("127.0.0.1", server.getLocalPort(), httpClient, vehicle, null, null);
+        device.setEventChannelEngine(engine);
+        device.subscribe("baz", 1, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                updated.countDown();
+            }
+        });
+    }
+
+    protected void tearDown() throws Exception {
+        device.disconnectDataStream();
+        engine.shutdown();
+        server.close();
+        super.tearDown();
+    }
+
+    /**
+     * Events written to the socket, including one split across two writes,
+     * reach the listener; closing the socket remotely is reported.
+     */
+    public void testReceive() throws Exception {
+        device.connectDataStream(server.getLocalPort(), connectionListener);
+        Socket remote = server.accept();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertFalse(device.isDataStreamDisconnected());
+
+        OutputStream out = remote.getOutputStream();
+        byte[] event = (jFactory.data().toString() + "\r\n").getBytes("UTF-8");
+        out.write(event);
+        out.write(event, 0, 20);
+        out.flush();
+        Thread.sleep(50);
+        out.write(event, 20, event.length - 20);
+        out.flush();
+        assertTrue(updated.await(5, TimeUnit.SECONDS));
+
+        remote.close();
+        assertTrue(remoteClosed.await(5, TimeUnit.SECONDS));
+        assertTrue(device.isDataStreamDisconnected());
+    }
+
+    public void testFailedConnection() throws Exception {
+        int port = server.getLocalPort();
+        server.close();
+        device.connectDataStream(port, connectionListener);
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertTrue(device.isDataStreamDisconnected());
+    }
+
+    public void testDisconnect() throws Exception {
+        device.connectDataStream(server.getLocalPort(), connectionListener);
+        Socket remote = server.accept();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        device.disconnectDataStream();
+        assertTrue(device.isDataStreamDisconnected());
+        // The remote end sees the socket close
+        remote.setSoTimeout(5000);
+        assertEquals(-1, remote.getInputStream().read());
+        // ... and no callback is made for a local disconnect
+        assertFalse(remoteClosed.await(200, TimeUnit.MILLISECONDS));
+        remote.close();
+    }
+
+    /**
+     * Shutting the engine down closes its sockets, and it cannot be started
+     * again.
+     */
+    public void testShutdown() throws Exception {
+        device.connectDataStream(server.getLocalPort(), connectionListener);
+        Socket remote = server.accept();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        engine.shutdown();
+        assertFalse(engine.isRunning());
+        remote.setSoTimeout(5000);
+        assertEquals(-1, remote.getInputStream().read());
+        remote.close();
+        try {
+            engine.start();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(engine.isRunning());
+    }
+}
@@ -0,0 +1,163 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import android.os.Debug;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+import org.json.JSONObject;
+
+public class EventDecoderTest extends TestCase {
+    EventDecoder decoder;
+    JsonFactory jFactory = new JsonFactory();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        decoder = new EventDecoder();
+    }
+
+    private boolean decode(String s) throws Exception {
+        byte[] b = s.getBytes("UTF-8");
+        return decoder.decode(b, 0, b.length);
+    }
+
+    private Event decodeEvent(JSONObject obj) throws Exception {
+        byte[] b = obj.toString().getBytes("UTF-8");
+        return decoder.decodeEvent(b, 0, b.length);
+    }
+
+    /**
+     * Decoded events match the ones built by Event.fromTCP
+     */
+    public void testMatchesFromTCP() throws Exception {
+        JSONObject[] objs = { jFactory.data(), jFactory.alarm() };
+        for (JSONObject obj : objs) {
+            Event expected = Event.fromTCP(obj);
+            Event actual = decodeEvent(obj);
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getEndpoint(), actual.getEndpoint());
+            assertEquals(expected.getShortName(), actual.getShortName());
+            assertEquals(expected.getSent(), actual.getSent());
+            assertEquals(expected.getResponse().value, actual.getResponse().value);
+            assertEquals(expected.getResponse().time, actual.getResponse().time);
+        }
+        assertEquals(2, decoder.getDecodedCount());
+        assertEquals(0, decoder.getFallbackCount());
+    }
+
+    /**
+     * Field order does not matter, and unknown fields are skipped
+     */
+    public void testFieldOrder() throws Exception {
+        assertTrue(decode("{\"data\": {\"EngineSpeed\": {\"timestamp\": \"2013-06-13T12:00:01Z\", "
+                + "\"value\": 1200.5, \"units\": \"rpm\"}, \"sequence\": 12, "
+                + "\"extra\": {\"x\": [1, {\"y\": \"}\\\"\"}]}, "
+                + "\"short_name\": \"EngineSpeed~sub\", \"timestamp\": \"2013-06-13T12:00:00Z\", "
+                + "\"uri\": \"vehicle/data/EngineSpeed\"}}"));
+        assertEquals(EventDecoder.TYPE_SUBSCRIPTION, decoder.getType());
+        assertEquals("EngineSpeed", decoder.getEndpoint());
+        assertEquals("EngineSpeed~sub", decoder.getShortName());
+        assertEquals(1200.5, decoder.getValue());
+        assertEquals(new DateTime("2013-06-13T12:00:00Z").getMillis(), decoder.getSentMillis());
+        assertEquals(new DateTime("2013-06-13T12:00:01Z").getMillis(), decoder.getValueMillis());
+    }
+
+    public void testNumbers() throws Exception {
+        String[] numbers = { "0", "-0.5", "4.3", "1e3", "2.5E-3", "123456789012345678901234",
+                             "0.1000000000000000055511151231257827", "-1.7976931348623157e308" };
+        for (String n : numbers) {
+            assertTrue(n, decode("{\"alarm\": {\"uri\": \"vehicle/data/a\", \"short_name\": \"a~above\", "
+                    + "\"timestamp\": \"2013-06-13T12:00:00Z\", "
+                    + "\"a\": {\"value\": " + n + ", \"timestamp\": \"2013-06-13T12:00:00Z\"}}}"));
+            assertEquals(n, Double.parseDouble(n), decoder.getValue());
+        }
+    }
+
+    public void testTimestamps() throws Exception {
+        String[] stamps = { "2013-06-13T12:00:00Z", "2013-06-13T12:00:00.250Z",
+                            "2012-02-29T23:59:59+02:00", "1969-12-31T23:59:59-0130" };
+        for (String ts : stamps) {
+            assertTrue(ts, decode("{\"data\": {\"uri\": \"vehicle/data/a\", \"short_name\": \"a~sub\", "
+                    + "\"timestamp\": \"" + ts + "\", "
+                    + "\"a\": {\"value\": 1, \"timestamp\": \"" + ts + "\"}}}"));
+            assertEquals(ts, new DateTime(ts).getMillis(), decoder.getSentMillis());
+        }
+    }
+
+    /**
+     * Messages the decoder does not understand go through org.json instead
+     */
+    public void testFallback() throws Exception {
+        String[] rejected = {
+            "{\"data\": {\"uri\": \"vehicle/data/a\", \"short_name\": \"a~sub\", "
+                + "\"timestamp\": \"2013-06-13T12:00:00Z\", "
+                + "\"a\": {\"value\": \"4.5\", \"timestamp\": \"2013-06-13T12:00:00Z\"}}}",
+            "{\"data\": {\"uri\": \"vehicle\\/data\\/a\", \"short_name\": \"a~sub\", "
+                + "\"timestamp\": \"2013-06-13T12:00:00Z\", "
+                + "\"a\": {\"value\": 4.5, \"timestamp\": \"2013-06-13T12:00:00Z\"}}}",
+            "{\"data\": {\"uri\": \"vehicle/data/a\", \"short_name\": \"a~sub\", "
+                + "\"timestamp\": \"2013-02-30T12:00:00Z\", "
+                + "\"a\": {\"value\": 4.5, \"timestamp\": \"2013-06-13T12:00:00Z\"}}}",
+        };
+        for (String s : rejected) {
+            assertFalse(s, decode(s));
+        }
+
+        byte[] b = rejected[0].getBytes("UTF-8");
+        Event e = decoder.decodeEvent(b, 0, b.length);
+        assertNotNull(e);
+        assertEquals(4.5, e.getResponse().value);
+        assertEquals(1, decoder.getFallbackCount());
+
+        assertNull(decodeEvent(jFactory.junk()));
+        assertFalse(decode("{\"data\": {\"uri\": \"vehicle/data/a\""));
+        assertFalse(decode("not json"));
+    }
+
+    /**
+     * Once warmed up, decoding allocates nothing
+     */
+    public void testNoAllocation() throws Exception {
+        String[] names = { "EngineSpeed", "VehicleSpeed", "FuelLevel", "baz" };
+        byte[][] frames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            frames[i] = ("{\"data\": {\"uri\": \"vehicle/data/" + names[i] + "\", "
+                    + "\"timestamp\": \"2013-06-13T12:00:00Z\", "
+                    + "\"short_name\": \"" + names[i] + "~sub\", "
+                    + "\"" + names[i] + "\": {\"value\": 1234.56, "
+                    + "\"timestamp\": \"2013-06-13T12:00:00Z\"}}}").getBytes("UTF-8");
+        }
+        for (int i = 0; i < 20000; i++) {
+            byte[] f = frames[i % frames.length];
+            assertTrue(decoder.decode(f, 0, f.length));
+        }
+
+        // 5000 events, one second's worth at the target rate
+        int decoded = 0;
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < 5000; i++) {
+            byte[] f = frames[i % frames.length];
+            if (decoder.decode(f, 0, f.length)) {
+                decoded++;
+            }
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(5000, decoded);
+        assertEquals(0, allocations);
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+}
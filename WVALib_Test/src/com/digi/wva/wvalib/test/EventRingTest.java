@@ -0,0 +1,212 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.Event;
+import com.digi.wva.async.EventDecoder;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.device.EventRing;
+import com.digi.wva.device.EventRing.OverflowPolicy;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EventRingTest extends TestCase {
+
+    private static Event event(String endpoint, double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        resp.time = new DateTime(0);
+        return new Event("subscription", endpoint, new DateTime(0), endpoint + "~sub", resp);
+    }
+
+    private static void fill(EventRing ring, String endpoint, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            ring.put(event(endpoint, i));
+        }
+    }
+
+    public void testOrderAndWrap() throws Exception {
+        EventRing ring = new EventRing(3, OverflowPolicy.BLOCK);
+        assertNull(ring.poll());
+        for (int i = 0; i < 10; i++) {
+            fill(ring, "a", 2 * i, 2 * i + 2);
+            assertEquals(2, ring.getDepth());
+            assertEquals(2.0 * i, ring.take().getResponse().value);
+            assertEquals(2.0 * i + 1, ring.poll().getResponse().value);
+            assertNull(ring.poll());
+        }
+        assertEquals(2, ring.getHighWaterMark());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    public void testDrainTo() throws Exception {
+        EventRing ring = new EventRing(8, OverflowPolicy.BLOCK);
+        fill(ring, "a", 0, 5);
+        List<Event> batch = new ArrayList<Event>();
+        assertEquals(3, ring.drainTo(batch, 3));
+        assertEquals(2, ring.drainTo(batch, 3));
+        assertEquals(5, batch.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals((double) i, batch.get(i).getResponse().value);
+        }
+        assertEquals(0, ring.getDepth());
+    }
+
+    public void testDecodedEvents() throws Exception {
+        EventDecoder decoder = new EventDecoder();
+        byte[] b = new JsonFactory().data().toString().getBytes("UTF-8");
+        assertTrue(decoder.decode(b, 0, b.length));
+
+        EventRing ring = new EventRing(4, OverflowPolicy.BLOCK);
+        ring.put(decoder);
+        Event e = ring.take();
+        assertEquals("baz", e.getEndpoint());
+        assertEquals("baz~sub", e.getShortName());
+        assertEquals(4.3, e.getResponse().value);
+        assertEquals(new DateTime("2007-03-01T13:00:00Z"), e.getResponse().time);
+    }
+
+    public void testDropNewest() throws Exception {
+        EventRing ring = new EventRing(3, OverflowPolicy.DROP_NEWEST);
+        fill(ring, "a", 0, 3);
+        assertFalse(ring.put(event("a", 3)));
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(0.0, ring.take().getResponse().value);
+        assertEquals(1.0, ring.take().getResponse().value);
+        assertEquals(2.0, ring.take().getResponse().value);
+        assertNull(ring.poll());
+    }
+
+    public void testDropOldest() throws Exception {
+        EventRing ring = new EventRing(3, OverflowPolicy.DROP_OLDEST);
+        fill(ring, "a", 0, 5);
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(3, ring.getDepth());
+        assertEquals(2.0, ring.take().getResponse().value);
+        assertEquals(3.0, ring.take().getResponse().value);
+        assertEquals(4.0, ring.take().getResponse().value);
+        assertNull(ring.poll());
+    }
+
+    /**
+     * Once full, only the latest event per short name is kept, and it is
+     * delivered after everything already in the ring.
+     */
+    public void testCoalesce() throws Exception {
+        EventRing ring = new EventRing(2, OverflowPolicy.COALESCE);
+        fill(ring, "a", 0, 2);
+        fill(ring, "b", 10, 15);
+        fill(ring, "a", 2, 4);
+        assertEquals(4, ring.getDepth());
+        assertEquals(4, ring.getHighWaterMark());
+        assertEquals(5, ring.getCoalescedCount());
+
+        assertEquals(0.0, ring.take().getResponse().value);
+        // Room in the ring again, but this must stay behind the held events
+        fill(ring, "c", 20, 21);
+        assertEquals(1.0, ring.take().getResponse().value);
+        Event b = ring.take();
+        assertEquals("b", b.getEndpoint());
+        assertEquals(14.0, b.getResponse().value);
+        assertEquals(3.0, ring.take().getResponse().value);
+        assertEquals("c", ring.take().getEndpoint());
+        assertNull(ring.poll());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    /**
+     * A full ring under BLOCK holds the producer until the consumer makes
+     * room; an empty ring holds the consumer until an event arrives.
+     */
+    public void testBlocking() throws Exception {
+        final EventRing ring = new EventRing(2, OverflowPolicy.BLOCK);
+        fill(ring, "a", 0, 2);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    fill(ring, "a", 2, 3);
+                } catch (Exception ignored) { }
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(0.0, ring.take().getResponse().value);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(1.0, ring.take().getResponse().value);
+        assertEquals(2.0, ring.take().getResponse().value);
+
+        final Thread consumer = Thread.currentThread();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) { }
+                consumer.interrupt();
+            }
+        }.start();
+        try {
+            ring.take();
+            fail("take() should have been interrupted");
+        } catch (InterruptedException expected) { }
+    }
+
+    /**
+     * One producer and one consumer running flat out never see events out
+     * of order, whatever the policy.
+     */
+    public void testConcurrent() throws Exception {
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            final EventRing ring = new EventRing(16, policy);
+            final int count = 100000;
+            final int[] endRetries = new int[1];
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        fill(ring, "a", 0, count);
+                        while (!ring.put(event("end", -1))) {
+                            endRetries[0]++;
+                            Thread.yield();
+                        }
+                    } catch (Exception ignored) { }
+                }
+            };
+            producer.start();
+
+            double last = -1;
+            int received = 0;
+            while (true) {
+                Event e = ring.take();
+                if (e.getEndpoint().equals("end")) {
+                    break;
+                }
+                assertTrue(policy + ": " + e.getResponse().value + " after " + last,
+                        e.getResponse().value > last);
+                last = e.getResponse().value;
+                received++;
+            }
+            producer.join();
+            assertEquals(policy.toString(), count,
+                    received + ring.getDroppedCount() - endRetries[0] + ring.getCoalescedCount());
+            if (policy == OverflowPolicy.BLOCK) {
+                assertEquals(count, received);
+            }
+            if (policy == OverflowPolicy.BLOCK || policy == OverflowPolicy.COALESCE) {
+                assertEquals(policy.toString(), count - 1, (int) last);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.device.HttpPoolConfig;
+import com.digi.wva.device.HttpPoolStats;
+import com.digi.wva.device.WvaHttpClient;
+import com.digi.wva.sim.RestServer;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HttpPoolTest extends TestCase {
+    RestServer server;
+    String host;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new RestServer();
+        host = "127.0.0.1:" + server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private HttpPoolStats getMany(WvaHttpClient client, int requests) throws Exception {
+        final CountDownLatch done = new CountDownLatch(requests);
+        final AtomicInteger failures = new AtomicInteger();
+        AsyncHttpResponseHandler handler = new AsyncHttpResponseHandler() {
+            @Override
+            public void onSuccess(String response) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error, String content) {
+                failures.incrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < requests; i++) {
+            client.get("vehicle/data/EngineSpeed", handler);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+
+        // Connections go back to the pool as their responses are read
+        long deadline = System.currentTimeMillis() + 5000;
+        HttpPoolStats stats = client.getPoolStats();
+        while (stats.getLeased() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            stats = client.getPoolStats();
+        }
+        return stats;
+    }
+
+    public void testReuse() throws Exception {
+        HttpPoolConfig config = new HttpPoolConfig();
+        config.setMaxConnections(2);
+        WvaHttpClient client = new WvaHttpClient(host, false, null, null, false, config);
+        try {
+            HttpPoolStats stats = getMany(client, 50);
+            assertEquals(0, stats.getLeased());
+            assertTrue(stats.toString(), stats.getCreated() <= 2);
+            assertEquals(stats.toString(), stats.getCreated(), stats.getIdle());
+            assertEquals(stats.toString(), 50 - stats.getCreated(), stats.getReused());
+            assertEquals(stats.getCreated(), server.getAcceptedCount());
+            assertEquals(50, server.getRequestCount());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    public void testWithoutKeepAlive() throws Exception {
+        HttpPoolConfig config = new HttpPoolConfig();
+        config.setKeepAliveMillis(0);
+        WvaHttpClient client = new WvaHttpClient(host, false, null, null, false, config);
+        try {
+            HttpPoolStats stats = getMany(client, 10);
+            assertEquals(10, stats.getCreated());
+            assertEquals(10, server.getAcceptedCount());
+            assertEquals(0, stats.getReused());
+            assertEquals(0, stats.getIdle());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    public void testIdleEviction() throws Exception {
+        HttpPoolConfig config = new HttpPoolConfig();
+        config.setIdleMillis(50);
+        WvaHttpClient client = new WvaHttpClient(host, false, null, null, false, config);
+        try {
+            assertEquals(1, getMany(client, 1).getCreated());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getPoolStats().getIdle() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, client.getPoolStats().getIdle());
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    public void testConfigValidation() {
+        HttpPoolConfig config = new HttpPoolConfig();
+        try {
+            config.setMaxConnections(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            config.setReadTimeoutMillis(-1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(HttpPoolConfig.DEFAULT_MAX_CONNECTIONS, config.getMaxConnections());
+    }
+}
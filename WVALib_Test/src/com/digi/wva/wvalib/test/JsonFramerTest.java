@@ -0,0 +1,154 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.digi.wva.device.JsonFramer;
+
+public class JsonFramerTest extends TestCase {
+
+    private JsonFramer framer;
+    private List<String> frames;
+    private JsonFramer.FrameListener collector;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        framer = new JsonFramer();
+        frames = new ArrayList<String>();
+        collector = new JsonFramer.FrameListener() {
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                try {
+                    frames.add(new String(frame, 0, length, "UTF-8"));
+                } catch (Exception e) {
+                    fail(e.toString());
+                }
+            }
+        };
+    }
+
+    private void feed(String s) throws Exception {
+        byte[] b = s.getBytes("UTF-8");
+        framer.feed(b, 0, b.length, collector);
+    }
+
+    /**
+     * Objects split at every possible point, and several objects in one
+     * chunk, each come out as one frame.
+     */
+    public void testSplitAndJoined() throws Exception {
+        String obj = "{\"data\": {\"uri\": \"vehicle/data/baz\",\r\n \"value\": 4.3}}";
+        for (int i = 1; i < obj.length(); i++) {
+            frames.clear();
+            feed(obj.substring(0, i));
+            assertTrue(frames.isEmpty());
+            feed(obj.substring(i) + "\r\n");
+            assertEquals(1, frames.size());
+            assertEquals(obj, frames.get(0));
+        }
+
+        frames.clear();
+        feed("{\"a\":1}\r\n{\"b\":2}{\"c\":3}\n");
+        assertEquals(3, frames.size());
+        assertEquals("{\"b\":2}", frames.get(1));
+        assertEquals(0, framer.getResyncCount());
+    }
+
+    /**
+     * Braces and escaped quotes inside strings do not affect the depth.
+     */
+    public void testStrings() throws Exception {
+        String obj = "{\"s\": \"}{ \\\"}\\\\\", \"t\": \"{\"}";
+        feed(obj + "{\"n\":0}");
+        assertEquals(2, frames.size());
+        assertEquals(obj, frames.get(0));
+    }
+
+    /**
+     * Frames longer than the old 500 character limit are accepted.
+     */
+    public void testLargeFrame() throws Exception {
+        StringBuilder sb = new StringBuilder("{\"data\": \"");
+        for (int i = 0; i < 5000; i++) {
+            sb.append('x');
+        }
+        sb.append("\"}");
+        feed(sb.toString());
+        assertEquals(1, frames.size());
+        assertEquals(sb.length(), frames.get(0).length());
+        assertEquals(1, framer.getFrameCount());
+        assertEquals(sb.length(), framer.getLargestFrame());
+        assertEquals(sb.length(), framer.getFrameBytes());
+    }
+
+    /**
+     * An oversized frame is dropped, and the framer picks up again at the
+     * next line.
+     */
+    public void testOversized() throws Exception {
+        framer.setMaxFrameLength(16);
+        feed("{\"data\": \"this is far too long\", \"x\": {}}\n{\"ok\":1}\n");
+        assertEquals(1, frames.size());
+        assertEquals("{\"ok\":1}", frames.get(0));
+        assertEquals(1, framer.getOversizedCount());
+        assertEquals(1, framer.getResyncCount());
+
+        // A rogue '{' is eventually dropped as well.
+        feed("{ rogue\n");
+        for (int i = 0; i < 4; i++) {
+            feed("some data\n");
+        }
+        feed("{\"ok\":2}");
+        assertEquals(2, frames.size());
+        assertEquals(2, framer.getOversizedCount());
+    }
+
+    /**
+     * The rest of an oversized message spread over several lines is skipped,
+     * objects nested in it included, up to a line starting a new object.
+     */
+    public void testOversizedLines() throws Exception {
+        framer.setMaxFrameLength(32);
+        feed("{\"data\": {\"uri\": \"vehicle/data/baz\",\r\n"
+                + "  \"value\": {\"a\": 1},\r\n"
+                + "  \"timestamp\": \"2013-10-16T18:05:02Z\"}}\r\n"
+                + "  {\"ok\":1}\r\n");
+        assertEquals(1, frames.size());
+        assertEquals("{\"ok\":1}", frames.get(0));
+        assertEquals(1, framer.getOversizedCount());
+        assertEquals(1, framer.getResyncCount());
+    }
+
+    /**
+     * Stray data between frames is skipped up to the end of its line, and
+     * counted.
+     */
+    public void testGarbage() throws Exception {
+        feed("this is a test} {\"skipped\":1}\n{\"ok\":1} more garbage\n{\"ok\":2}");
+        assertEquals(2, frames.size());
+        assertEquals("{\"ok\":1}", frames.get(0));
+        assertEquals(2, framer.getResyncCount());
+        assertTrue(framer.getDiscardedBytes() > 0);
+    }
+
+    public void testReset() throws Exception {
+        feed("{\"partial\": ");
+        framer.reset();
+        feed("{\"ok\":1}");
+        assertEquals(1, frames.size());
+        assertEquals("{\"ok\":1}", frames.get(0));
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.BatchListener;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.ListenerRegistration;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ListenerRegistrationTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    /** Holds on to tasks until told to run them, like a busy thread. */
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        httpClient.success = true;
+        httpClient.returnString = "";
+        super.setUp();
+    }
+
+    private static WvaListener recorder(final String name, final List<String> log) {
+        return new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                log.add(name + ":" + endpoint);
+            }
+        };
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    public void testManyListenersAndWildcards() throws Exception {
+        List<String> log = new ArrayList<String>();
+        vehicle.subscribe("baz", 1, recorder("primary", log), null);
+        vehicle.addListener("baz~sub", recorder("second", log));
+        vehicle.addListener("baz~*", recorder("endpoint", log));
+        vehicle.addListener("*~above", recorder("alarms", log));
+        vehicle.addListener("*", recorder("all", log));
+
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(Arrays.asList("primary:baz", "second:baz", "endpoint:baz", "all:baz"), log);
+
+        log.clear();
+        vehicle.notifyListeners(Event.fromTCP(jFactory.alarm()));
+        assertEquals(Arrays.asList("endpoint:baz", "alarms:baz", "all:baz"), log);
+        assertEquals(5, vehicle.getListenerRegistrations().size());
+    }
+
+    public void testSubscribeReplacesOnlyItsOwnListener() throws Exception {
+        List<String> log = new ArrayList<String>();
+        vehicle.subscribe("baz", 1, recorder("first", log), null);
+        vehicle.addListener("baz~sub", recorder("added", log));
+        vehicle.subscribe("baz", 1, recorder("again", log), null);
+
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(Arrays.asList("added:baz", "again:baz"), log);
+
+        // Unsubscribing, deleting callbacks, removes every listener for the short name
+        log.clear();
+        vehicle.addListener("*~sub", recorder("wild", log));
+        vehicle.unsubscribe("baz", true, null);
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(Arrays.asList("wild:baz"), log);
+    }
+
+    public void testRemove() {
+        List<String> log = new ArrayList<String>();
+        ListenerRegistration a = vehicle.addListener("baz~sub", recorder("a", log));
+        vehicle.addListener("baz~sub", recorder("b", log));
+        a.remove();
+
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(Arrays.asList("b:baz"), log);
+    }
+
+    public void testBadPatterns() {
+        for (String pattern : new String[] { "", "baz", "baz~", "~sub", "*~*", "b*~sub", "baz~s*" }) {
+            try {
+                vehicle.addListener(pattern, recorder("x", new ArrayList<String>()));
+                fail("pattern \"" + pattern + "\" should be refused");
+            } catch (IllegalArgumentException expected) { }
+        }
+    }
+
+    /**
+     * A listener on an executor gets its events in one delivery, and a full
+     * queue drops new events for that listener only
+     */
+    public void testQueuedListener() {
+        final List<Integer> batches = new ArrayList<Integer>();
+        ListenerRegistration queued = vehicle.addListener("*", new BatchListener() {
+            @Override
+            public void onUpdates(List<Event> events) {
+                batches.add(events.size());
+            }
+
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) { }
+        }, executor, 3);
+        List<String> log = new ArrayList<String>();
+        vehicle.addListener("baz~sub", recorder("inline", log));
+
+        for (int i = 0; i < 5; i++) {
+            vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        }
+        // The inline listener kept up; the queued one has not run yet
+        assertEquals(5, log.size());
+        assertTrue(batches.isEmpty());
+        assertEquals(1, tasks.size());
+        assertEquals(3, queued.getDepth());
+        assertEquals(2, queued.getDroppedCount());
+        assertTrue(queued.isSlow());
+
+        runTasks();
+        assertEquals(Arrays.asList(3), batches);
+        assertEquals(0, queued.getDepth());
+        assertEquals(3, queued.getDeliveredCount());
+        assertEquals(3, queued.getHighWaterMark());
+        assertFalse(queued.isSlow());
+
+        // A batch from the data stream is queued together
+        List<Event> events = new ArrayList<Event>();
+        events.add(Event.fromTCP(jFactory.data()));
+        events.add(Event.fromTCP(jFactory.alarm()));
+        vehicle.notifyListeners(events);
+        runTasks();
+        assertEquals(Arrays.asList(3, 2), batches);
+        assertEquals(2, queued.getDroppedCount());
+    }
+
+    public void testQueuedListenerFailureIsContained() {
+        final List<String> log = new ArrayList<String>();
+        ListenerRegistration failing = vehicle.addListener("baz~sub", new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                throw new IllegalStateException("broken");
+            }
+        }, executor, 8);
+        vehicle.addListener("baz~sub", recorder("fine", log), executor, 8);
+
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        runTasks();
+        assertEquals(Arrays.asList("fine:baz"), log);
+        assertEquals(1, failing.getFailedCount());
+    }
+
+    /**
+     * A shut-down executor neither stops the data stream nor the listener's
+     * later deliveries
+     */
+    public void testRejectingExecutor() {
+        ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+        final boolean[] refuse = { true };
+        Executor sometimes = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (refuse[0]) {
+                    throw new RejectedExecutionException("busy");
+                }
+                tasks.add(command);
+            }
+        };
+        List<String> log = new ArrayList<String>();
+        ListenerRegistration dead = vehicle.addListener("baz~sub", recorder("dead", log), shutDown, 8);
+        ListenerRegistration recovering = vehicle.addListener("baz~sub", recorder("later", log), sometimes, 8);
+        vehicle.addListener("baz~sub", recorder("inline", log));
+
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(Arrays.asList("inline:baz", "inline:baz"), log);
+        assertEquals(2, dead.getDroppedCount());
+        assertEquals(0, dead.getDepth());
+        assertEquals(2, recovering.getDroppedCount());
+
+        refuse[0] = false;
+        log.clear();
+        vehicle.notifyListeners(Event.fromTCP(jFactory.data()));
+        runTasks();
+        assertEquals(Arrays.asList("inline:baz", "later:baz"), log);
+        assertEquals(1, recovering.getDeliveredCount());
+        assertEquals(3, dead.getDroppedCount());
+    }
+}
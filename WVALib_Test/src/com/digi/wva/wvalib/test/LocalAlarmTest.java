@@ -0,0 +1,216 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.AlarmType;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.LocalAlarm;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.exc.EndpointUnknownException;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class LocalAlarmTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    private final List<String> delivered = new ArrayList<String>();
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        super.setUp();
+    }
+
+    private WvaListener recorder(final String name) {
+        return new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                delivered.add(name + "=" + response.value);
+            }
+        };
+    }
+
+    private void send(long millis, double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        resp.time = new DateTime(millis);
+        vehicle.updateCached("EngineSpeed", resp);
+    }
+
+    public void testAboveAndBelow() throws EndpointUnknownException {
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 4500, recorder("above"));
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.BELOW, 800, recorder("below"));
+
+        send(0, 1000);
+        send(1, 4600);
+        send(2, 4700);
+        send(3, 4000);
+        send(4, 4501);
+        send(5, 700);
+        assertEquals(Arrays.asList("above=4600.0", "above=4501.0", "below=700.0"), delivered);
+    }
+
+    public void testFirstValueTriggers() throws EndpointUnknownException {
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 4500, recorder("above"));
+        send(0, 5000);
+        assertEquals(Arrays.asList("above=5000.0"), delivered);
+    }
+
+    public void testChangeAndDelta() throws EndpointUnknownException {
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.CHANGE, 0, recorder("change"));
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.DELTA, 2, recorder("delta"));
+
+        send(0, 6);
+        send(1, 6);
+        send(2, 5);
+        send(3, 3);
+        assertEquals(Arrays.asList("change=5.0", "delta=3.0", "change=3.0"), delivered);
+    }
+
+    public void testHysteresisAndDebounce() throws EndpointUnknownException {
+        LocalAlarm alarm = vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 100, recorder("above"));
+        alarm.setHysteresis(10);
+
+        send(0, 101);
+        send(1, 95);
+        send(2, 101);
+        // Only falling below 90 re-arms it
+        send(3, 89);
+        send(4, 101);
+        assertEquals(2, alarm.getTriggerCount());
+
+        alarm.setDebounceMillis(1000);
+        send(5, 80);
+        send(6, 120);
+        send(2000, 80);
+        send(2001, 120);
+        assertEquals(3, alarm.getTriggerCount());
+        assertEquals(1, alarm.getDebouncedCount());
+    }
+
+    public void testThresholdChange() throws EndpointUnknownException {
+        LocalAlarm alarm = vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 100, recorder("above"));
+        send(0, 50);
+        alarm.setThreshold(40);
+        send(1, 55);
+        alarm.remove();
+        send(2, 10);
+        send(3, 500);
+        assertEquals(Arrays.asList("above=55.0"), delivered);
+        assertTrue(vehicle.getLocalAlarms("EngineSpeed").isEmpty());
+    }
+
+    /**
+     * Triggers reach the short name's listeners as WVA alarms do, once per
+     * value however many alarms of the type it triggers
+     */
+    public void testDeliveredAsAlarm() throws EndpointUnknownException {
+        final List<String> events = new ArrayList<String>();
+        vehicle.addListener("*~above", new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                events.add(endpoint + "=" + response.value);
+            }
+        });
+        for (int threshold = 10; threshold <= 50; threshold += 10) {
+            vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, threshold, null);
+        }
+        send(0, 0);
+        send(1, 35);
+        assertEquals(Arrays.asList("EngineSpeed=35.0"), events);
+
+        // Only subscription data is evaluated, not alarms from the WVA
+        events.clear();
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = 1000.0;
+        vehicle.notifyListeners(new Event("alarm", "EngineSpeed", null, "EngineSpeed~below", resp));
+        assertTrue(events.isEmpty());
+    }
+
+    /**
+     * An alarm's own listener is given the alarm event, as the short name's
+     * listeners are, rather than the subscription event which triggered it
+     */
+    public void testListenerGivenAlarmEvent() throws EndpointUnknownException {
+        final List<VehicleResponse> responses = new ArrayList<VehicleResponse>();
+        WvaListener listener = new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                responses.add(response);
+            }
+        };
+        vehicle.addListener("EngineSpeed~above", listener);
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 10, listener);
+        send(0, 20);
+        assertEquals(2, responses.size());
+        assertSame(responses.get(0), responses.get(1));
+        assertNotSame(vehicle.getCached("EngineSpeed"), responses.get(0));
+        assertEquals(20.0, responses.get(0).value);
+    }
+
+    /**
+     * The indexed evaluation agrees with checking every alarm on every value
+     */
+    public void testManyAlarmsMatchBruteForce() throws EndpointUnknownException {
+        Random random = new Random(3);
+        int n = 2000;
+        LocalAlarm[] alarms = new LocalAlarm[n];
+        boolean[] armed = new boolean[n];
+        long[] expected = new long[n];
+        for (int i = 0; i < n; i++) {
+            AlarmType type = random.nextBoolean() ? AlarmType.ABOVE : AlarmType.BELOW;
+            alarms[i] = vehicle.addLocalAlarm("EngineSpeed", type, random.nextInt(8000), null);
+            alarms[i].setHysteresis(random.nextInt(3) * 50);
+            armed[i] = true;
+        }
+
+        for (int step = 0; step < 3000; step++) {
+            double value = random.nextInt(8000);
+            if (step % 500 == 250) {
+                int i = random.nextInt(n);
+                alarms[i].setThreshold(random.nextInt(8000));
+                armed[i] = true;
+            }
+            for (int i = 0; i < n; i++) {
+                double t = alarms[i].getThreshold();
+                double h = alarms[i].getHysteresis();
+                boolean above = alarms[i].getType() == AlarmType.ABOVE;
+                if (armed[i] && (above ? value > t : value < t)) {
+                    armed[i] = false;
+                    expected[i]++;
+                } else if (!armed[i] && (above ? value < t - h : value > t + h)) {
+                    armed[i] = true;
+                }
+            }
+            send(step, value);
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals("alarm " + i, expected[i], alarms[i].getTriggerCount());
+        }
+    }
+
+    public void testUnknownEndpoint() {
+        try {
+            vehicle.addLocalAlarm("NoSuchEndpoint", AlarmType.ABOVE, 1, null);
+            fail("Expected EndpointUnknownException");
+        } catch (EndpointUnknownException expected) { }
+    }
+}
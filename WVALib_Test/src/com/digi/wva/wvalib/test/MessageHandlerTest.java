@@ -10,13 +10,12 @@ package com.digi.wva.wvalib.test;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
-import java.util.concurrent.BlockingQueue;
-
 import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
 import junit.framework.TestCase;
 
-import org.json.JSONObject;
+import com.digi.wva.async.Event;
 
+import com.digi.wva.device.EventRing;
 import com.digi.wva.device.Vehicle;
 import com.digi.wva.device.MessageHandler;
 import com.digi.wva.device.TCPReceiver;
@@ -25,15 +24,15 @@ public class MessageHandlerTest extends TestCase {
 	MessageHandler handler;
 	Vehicle mockVehicle;
 	TCPReceiver mockReceiver;
-	BlockingQueue<JSONObject> mockingQueue;
+	EventRing mockingQueue;
 	JsonFactory jsonFactory;
 	
-	@SuppressWarnings("unchecked")
 	protected void setUp() throws Exception {
 		super.setUp();
 		jsonFactory = new JsonFactory();
-		mockingQueue = (BlockingQueue<JSONObject>) mock(BlockingQueue.class);
-		when(mockingQueue.take()).thenReturn(jsonFactory.data(), jsonFactory.data());
+		mockingQueue = mock(EventRing.class);
+		when(mockingQueue.take()).thenReturn(Event.fromTCP(jsonFactory.data()),
+				Event.fromTCP(jsonFactory.data()));
 		
 		mockReceiver = mock(TCPReceiver.class);
 		when(mockReceiver.getIncoming()).thenReturn(mockingQueue);
@@ -0,0 +1,157 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.digi.wva.async.AlarmType;
+import com.digi.wva.async.Event;
+import com.digi.wva.async.PrimitiveListener;
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.device.EventRing;
+import com.digi.wva.device.MessageHandler;
+import com.digi.wva.device.TCPReceiver;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+public class PrimitiveListenerTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        super.setUp();
+    }
+
+    /**
+     * An event made from primitives which counts how often its objects are
+     * asked for
+     */
+    private static class CountingEvent extends Event {
+        int materialised;
+
+        CountingEvent(String endpoint, long millis, double value) {
+            super("subscription", endpoint, millis, endpoint + "~sub", value, millis);
+        }
+
+        @Override
+        public VehicleResponse getResponse() {
+            materialised++;
+            return super.getResponse();
+        }
+
+        @Override
+        public DateTime getSent() {
+            materialised++;
+            return super.getSent();
+        }
+    }
+
+    private static class Recorder extends PrimitiveListener {
+        final List<String> updates = new ArrayList<String>();
+
+        @Override
+        public synchronized void onUpdate(int endpointId, long epochMillis, double value) {
+            updates.add(endpointId + "@" + epochMillis + "=" + value);
+        }
+
+        synchronized int size() {
+            return updates.size();
+        }
+    }
+
+    private void handle(int maxBatchSize, Recorder recorder, int expected, Event... events)
+            throws Exception {
+        EventRing ring = new EventRing(events.length, EventRing.OverflowPolicy.BLOCK);
+        for (Event e : events) {
+            ring.put(e);
+        }
+        TCPReceiver receiver = mock(TCPReceiver.class);
+        when(receiver.getIncoming()).thenReturn(ring);
+        MessageHandler handler = new MessageHandler(receiver, vehicle, maxBatchSize);
+        handler.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recorder.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        handler.stopThread();
+        handler.join();
+    }
+
+    public void testNothingMaterialised() throws Exception {
+        Recorder recorder = new Recorder();
+        vehicle.addListener("EngineSpeed~sub", recorder);
+        vehicle.addListener("EngineSpeed~sub", recorder, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, 4);
+        vehicle.setHistory("EngineSpeed", 10, 0);
+        vehicle.addLocalAlarm("EngineSpeed", AlarmType.ABOVE, 2000, recorder);
+        vehicle.addDerived("Doubled", "EngineSpeed * 2");
+
+        CountingEvent first = new CountingEvent("EngineSpeed", 1000, 1500);
+        CountingEvent second = new CountingEvent("EngineSpeed", 2000, 2500);
+        handle(1, recorder, 5, first, second);
+
+        int id = vehicle.getCatalog().idOf("EngineSpeed");
+        assertEquals(Arrays.asList(id + "@1000=1500.0", id + "@1000=1500.0",
+                id + "@2000=2500.0", id + "@2000=2500.0", id + "@2000=2500.0"), recorder.updates);
+        assertEquals(0, first.materialised);
+        assertEquals(0, second.materialised);
+        assertEquals(2, vehicle.getHistory("EngineSpeed").size());
+        assertEquals(5000.0, vehicle.getCached("Doubled").value);
+
+        // Only asking for the cached value makes its VehicleResponse
+        VehicleResponse cached = vehicle.getCached("EngineSpeed");
+        assertEquals(1, second.materialised);
+        assertEquals(2500.0, cached.value);
+        assertEquals(new DateTime(2000), cached.time);
+        assertSame(cached, vehicle.getCached(id));
+    }
+
+    public void testBatches() throws Exception {
+        Recorder recorder = new Recorder();
+        vehicle.addListener("*", recorder);
+        CountingEvent engine = new CountingEvent("EngineSpeed", 10, 1);
+        CountingEvent baz = new CountingEvent("baz", 20, 2);
+        handle(4, recorder, 2, engine, baz);
+
+        assertEquals(Arrays.asList(
+                vehicle.getCatalog().idOf("EngineSpeed") + "@10=1.0",
+                vehicle.getCatalog().idOf("baz") + "@20=2.0"), recorder.updates);
+        assertEquals(0, engine.materialised + baz.materialised);
+    }
+
+    public void testLegacyResponses() throws Exception {
+        Recorder recorder = new Recorder();
+        vehicle.addListener("*", recorder);
+        int id = vehicle.getCatalog().idOf("baz");
+
+        VehicleResponse untimed = new VehicleResponse();
+        untimed.value = 3.0;
+        vehicle.updateCached("baz", untimed);
+        // Without a value there is nothing to deliver
+        vehicle.updateCached("baz", new VehicleResponse());
+        assertEquals(Arrays.asList(id + "@" + Event.NO_TIME + "=3.0"), recorder.updates);
+    }
+}
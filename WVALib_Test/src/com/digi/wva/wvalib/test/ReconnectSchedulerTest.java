@@ -0,0 +1,125 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.device.Device;
+import com.digi.wva.device.DeviceConnectionListener;
+import com.digi.wva.device.ReconnectScheduler;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import junit.framework.TestCase;
+
+import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReconnectSchedulerTest extends TestCase {
+    ScheduledThreadPoolExecutor executor;
+    ReconnectScheduler scheduler;
+    ServerSocket server;
+    Device device;
+
+    final CountDownLatch connected = new CountDownLatch(1);
+    final AtomicInteger failures = new AtomicInteger();
+
+    DeviceConnectionListener connectionListener = new DeviceConnectionListener() {
+        @Override
+        public void onConnected(Device device) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onFailedConnection(Device device, int port) {
+            failures.incrementAndGet();
+            reconnect(device, port);
+        }
+    };
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = new ScheduledThreadPoolExecutor(1);
+        scheduler = new ReconnectScheduler(executor);
+        scheduler.setJitter(0);
+        server = new ServerSocket(0);
+
+        HttpClientSpoofer httpClient = new HttpClientSpoofer("127.0.0.1");
+        device = Device.getDevice("127.0.0.1", server.getLocalPort(), httpClient,
+                new Vehicle(httpClient), null, null);
+        device.setReconnectScheduler(scheduler);
+    }
+
+    protected void tearDown() throws Exception {
+        device.disconnectDataStream();
+        executor.shutdownNow();
+        server.close();
+        super.tearDown();
+    }
+
+    public void testDelays() {
+        scheduler.setBackoff(100, 1000, 8000);
+        long[] expected = { 100, 1000, 2000, 4000, 8000, 8000, 8000 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], scheduler.getDelay(i));
+        }
+        assertEquals(8000, scheduler.getDelay(1000));
+    }
+
+    public void testReconnect() throws Exception {
+        scheduler.setBackoff(10, 20, 100);
+        connectionListener.reconnect(device, server.getLocalPort());
+        assertTrue(scheduler.isPending(device));
+        assertEquals(1, scheduler.getDisconnectedCount());
+
+        server.accept();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+        assertFalse(device.isDataStreamDisconnected());
+        assertEquals(1, scheduler.getRetryCount());
+        assertEquals(1, scheduler.getReconnectCount());
+        assertEquals(0, scheduler.getDisconnectedCount());
+        assertTrue(scheduler.getLastReconnectMillis() >= 10);
+    }
+
+    /**
+     * Failed attempts keep being retried until the device disconnects,
+     * which stops them
+     */
+    public void testRetryUntilDisconnected() throws Exception {
+        scheduler.setBackoff(5, 10, 20);
+        int port = server.getLocalPort();
+        server.close();
+
+        connectionListener.reconnect(device, port);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (failures.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(failures.get() >= 3);
+
+        device.disconnectDataStream();
+        assertFalse(scheduler.isPending(device));
+        long retries = scheduler.getRetryCount();
+        Thread.sleep(100);
+        assertEquals(retries, scheduler.getRetryCount());
+        assertEquals(0, scheduler.getReconnectCount());
+    }
+
+    public void testCancel() throws Exception {
+        scheduler.setBackoff(200, 200, 200);
+        connectionListener.reconnect(device, server.getLocalPort());
+        assertTrue(scheduler.isPending(device));
+        device.disconnectDataStream();
+        assertFalse(scheduler.isPending(device));
+
+        Thread.sleep(400);
+        assertEquals(0, scheduler.getRetryCount());
+        assertEquals(1, connected.getCount());
+        assertTrue(device.isDataStreamDisconnected());
+    }
+}
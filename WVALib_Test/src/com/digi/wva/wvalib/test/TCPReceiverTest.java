@@ -11,13 +11,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
 
+import com.digi.wva.async.Event;
 import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
 import junit.framework.TestCase;
 
 import org.json.JSONObject;
 
+import com.digi.wva.device.EventRing;
 import com.digi.wva.device.TCPReceiver;
 
 import static org.mockito.Mockito.*;
@@ -50,10 +51,10 @@ public class TCPReceiverTest extends TestCase {
         Socket sock = mock(Socket.class);
         TCPReceiver rec = new TCPReceiver(null, sock);
         
-        BlockingQueue<JSONObject> q = rec.getIncoming();
-        JSONObject obj1 = new JSONObject();
-        q.add(obj1);
-        JSONObject obj2 = q.take();
+        EventRing q = rec.getIncoming();
+        Event obj1 = Event.fromTCP(new JsonFactory().data());
+        q.put(obj1);
+        Event obj2 = q.take();
         assertTrue(obj1.equals(obj2));
     }
     
@@ -73,9 +74,38 @@ public class TCPReceiverTest extends TestCase {
         rec.setDaemon(true);
         rec.start();
         
-        JSONObject jObj = rec.getIncoming().take();
-        assertTrue(jObj.getJSONObject("data").getString("uri").equals(
-        		dataObj.getJSONObject("data").getString("uri")));
+        Event event = rec.getIncoming().take();
+        assertEquals("baz", event.getEndpoint());
+        assertEquals(dataObj.getJSONObject("data").getString("short_name"),
+                event.getShortName());
+    }
+
+    /**
+     * Tests that a message longer than the old 500 character limit, split
+     * across lines, is read as one object
+     * @throws Exception
+     */
+    public void testLongMessage() throws Exception {
+        JSONObject dataObj = new JsonFactory().data();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            padding.append('x');
+        }
+        dataObj.getJSONObject("data").put("padding", padding.toString());
+        String text = dataObj.toString().replace(",", ",\r\n") + "\r\n";
+
+        InputStream stream = new ByteArrayInputStream(text.getBytes("UTF-8"));
+        Socket mockSocket = mock(Socket.class);
+        when(mockSocket.getInputStream()).thenReturn(stream);
+
+        TCPReceiver rec = new TCPReceiver(null, mockSocket);
+        rec.setDaemon(true);
+        rec.start();
+
+        Event event = rec.getIncoming().take();
+        assertEquals("baz", event.getEndpoint());
+        assertEquals(4.3, event.getResponse().value);
+        assertEquals(1, rec.getFramer().getFrameCount());
     }
 
     protected void tearDown() throws Exception {
@@ -0,0 +1,80 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.util.TimestampParser;
+import com.digi.wva.util.WvaUtil;
+import junit.framework.TestCase;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+public class TimestampParserTest extends TestCase {
+    TimestampParser parser;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        parser = new TimestampParser();
+    }
+
+    /**
+     * Agrees with Joda, whether or not the date and minute repeat
+     */
+    public void testMatchesJoda() {
+        String[] stamps = {
+            "2013-06-13T12:00:00Z", "2013-06-13T12:00:01Z", "2013-06-13T12:00:59.999Z",
+            "2013-06-13T12:01:00Z", "2013-06-13T12:01:00.5Z", "2013-06-14T12:01:00Z",
+            "2012-02-29T23:59:59+02:00", "2012-02-29T23:59:59-0130", "1969-12-31T23:59:59Z",
+            "2000-01-01T00:00:00.123456Z", "2099-12-31t23:59:59z"
+        };
+        for (String ts : stamps) {
+            assertEquals(ts, new DateTime(ts).getMillis(), parser.parse(ts));
+        }
+        // Timestamps in the same minute as the one before
+        assertEquals(4, parser.getPrefixHits());
+    }
+
+    /**
+     * A changed date in an otherwise identical timestamp is noticed
+     */
+    public void testPrefixChanges() {
+        DateTime t = new DateTime(2013, 6, 13, 12, 0, 0, DateTimeZone.UTC);
+        for (int i = 0; i < 15000; i++) {
+            String ts = t.toString("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            assertEquals(ts, t.getMillis(), parser.parse(ts));
+            t = t.plusSeconds(7);
+        }
+        assertTrue(parser.getPrefixHits() > parser.getPrefixMisses());
+    }
+
+    public void testInvalid() {
+        String[] rejected = {
+            "", "2013-06-13", "2013-06-13T12:00:00", "2013-06-13 12:00:00Z",
+            "2013-02-30T12:00:00Z", "2013-13-01T12:00:00Z", "2013-06-13T24:00:00Z",
+            "2013-06-13T12:60:00Z", "2013-06-13T12:00:60Z", "2013-06-13T12:00:00.Z",
+            "2013-06-13T12:00:00+2", "2013-06-13T12:00:00Zjunk", "2013-06-1xT12:00:00Z",
+            "2013-06-13T12:00:00Z and then some more text"
+        };
+        for (String ts : rejected) {
+            assertEquals(ts, TimestampParser.INVALID, parser.parse(ts));
+        }
+        // A rejected timestamp does not spoil the next one
+        assertEquals(new DateTime("2013-06-13T12:00:00Z").getMillis(),
+                parser.parse("2013-06-13T12:00:00Z"));
+    }
+
+    public void testWvaUtil() {
+        assertEquals(new DateTime("2013-06-13T12:00:00Z"),
+                WvaUtil.dateTimeFromString("2013-06-13T12:00:00Z"));
+        assertEquals(new DateTime("2013-06-13T12:00:00.250Z"),
+                WvaUtil.dateTimeFromString("2013-06-13T12:00:00.250Z"));
+        try {
+            WvaUtil.dateTimeFromString("yesterday");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) { }
+    }
+}
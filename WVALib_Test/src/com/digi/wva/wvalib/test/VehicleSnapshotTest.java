@@ -0,0 +1,104 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.async.VehicleResponse;
+import com.digi.wva.device.Vehicle;
+import com.digi.wva.device.VehicleSnapshot;
+import com.digi.wva.wvalib.test.auxiliary.HttpClientSpoofer;
+import com.digi.wva.wvalib.test.auxiliary.JsonFactory;
+import com.digi.wva.wvalib.test.auxiliary.PassFailCallback;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class VehicleSnapshotTest extends TestCase {
+    HttpClientSpoofer httpClient = new HttpClientSpoofer("hostname");
+    JsonFactory jFactory = new JsonFactory();
+    Vehicle vehicle = new Vehicle(httpClient);
+
+    protected void setUp() throws Exception {
+        httpClient.returnObject = jFactory.vehicleEndpoints();
+        vehicle.initialize(new PassFailCallback<Set<String>>());
+        super.setUp();
+    }
+
+    private void send(String endpoint, double value) {
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = value;
+        vehicle.updateCached(endpoint, resp);
+    }
+
+    public void testSequenceAndChangedSince() {
+        long start = vehicle.getSequence();
+        VehicleSnapshot all = vehicle.snapshot();
+        assertEquals(vehicle.getCatalog().size(), all.size());
+        assertEquals(0, all.getChangedSequence(0));
+        assertEquals(0, vehicle.changedSince(0).size());
+
+        send("EngineSpeed", 1);
+        send("baz", 2);
+        send("EngineSpeed", 3);
+        assertEquals(start + 3, vehicle.getSequence());
+
+        VehicleSnapshot changed = vehicle.changedSince(start);
+        assertEquals(2, changed.size());
+        assertEquals(start + 3, changed.getSequence());
+        assertEquals(3.0, changed.get("EngineSpeed").value);
+        assertEquals(start + 3, changed.getChangedSequence(changed.indexOf("EngineSpeed")));
+        assertEquals(start + 2, changed.getChangedSequence(changed.indexOf("baz")));
+
+        VehicleSnapshot later = vehicle.changedSince(start + 2);
+        assertEquals(1, later.size());
+        assertEquals("EngineSpeed", later.getEndpoint(0));
+        assertEquals(0, vehicle.changedSince(later.getSequence()).size());
+    }
+
+    public void testChosenEndpoints() {
+        send("baz", 7);
+        VehicleSnapshot chosen = vehicle.snapshot(Arrays.asList("baz", "EngineSpeed", "NoSuchEndpoint"));
+        assertEquals(2, chosen.size());
+        assertEquals(7.0, chosen.get("baz").value);
+        assertNull(chosen.get("EngineSpeed").value);
+        assertNull(chosen.get("NoSuchEndpoint"));
+    }
+
+    /**
+     * A writer always updates EngineSpeed and then baz to the same count, so
+     * no snapshot may see baz ahead of EngineSpeed, or more than one behind
+     */
+    public void testNeverTorn() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 100000; i++) {
+                    send("EngineSpeed", i);
+                    send("baz", i);
+                }
+                done.set(true);
+            }
+        };
+        writer.start();
+        int snapshots = 0;
+        while (!done.get()) {
+            VehicleSnapshot s = vehicle.snapshot(Arrays.asList("EngineSpeed", "baz"));
+            Double engine = s.get("EngineSpeed").value;
+            Double baz = s.get("baz").value;
+            double e = (engine == null) ? 0 : engine;
+            double b = (baz == null) ? 0 : baz;
+            assertTrue("torn at " + s.getSequence() + ": " + e + ", " + b, b == e || b == e - 1);
+            snapshots++;
+        }
+        writer.join();
+        assertTrue(snapshots > 0);
+        assertEquals(100000.0, vehicle.snapshot().get("baz").value);
+    }
+}
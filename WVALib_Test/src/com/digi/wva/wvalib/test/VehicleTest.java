@@ -7,10 +7,14 @@
  
 package com.digi.wva.wvalib.test;
 
+import com.digi.wva.async.BatchListener;
 import com.digi.wva.async.Event;
 import com.digi.wva.async.WvaListener;
 import com.digi.wva.exc.EndpointUnknownException;
+import com.digi.wva.device.EndpointCatalog;
+import com.digi.wva.device.EndpointHistory;
 import com.digi.wva.device.Vehicle;
+import com.digi.wva.device.WindowAggregate;
 import com.digi.wva.async.AlarmType;
 import com.digi.wva.async.VehicleResponse;
 import com.digi.wva.device.WvaHttpClient;
@@ -22,6 +26,8 @@ import org.joda.time.DateTime;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import java.util.Set;
@@ -117,6 +123,81 @@ public class VehicleTest extends TestCase {
         assertEquals(cached.value, resp.value);
 	}
 
+    public void testHistory() throws JSONException, EndpointUnknownException {
+        assertNull(testVeh.getHistory("EngineSpeed", 0, Long.MAX_VALUE));
+        testVeh.setHistory("EngineSpeed", 10, 0);
+
+        for (int i = 0; i < 3; i++) {
+            VehicleResponse resp = new VehicleResponse();
+            resp.value = (double) i;
+            resp.time = new DateTime(i * 1000L);
+            testVeh.updateCached("EngineSpeed", resp);
+        }
+        EndpointHistory.Samples samples = testVeh.getHistory("EngineSpeed", 1000, 2000);
+        assertEquals(2, samples.size());
+        assertEquals(1.0, samples.getValue(0));
+        assertEquals(2000L, samples.getTime(1));
+
+        EndpointHistory.Cursor cursor = testVeh.getHistoryCursor("EngineSpeed", 0, Long.MAX_VALUE);
+        int count = 0;
+        while (cursor.next()) {
+            assertEquals((double) count++, cursor.getValue());
+        }
+        assertEquals(3, count);
+
+        testVeh.removeHistory("EngineSpeed");
+        assertNull(testVeh.getHistoryCursor("EngineSpeed", 0, Long.MAX_VALUE));
+        try {
+            testVeh.setHistory("NoSuchEndpoint", 10, 0);
+            fail("Expected EndpointUnknownException");
+        } catch (EndpointUnknownException expected) { }
+    }
+
+    public void testAggregate() throws EndpointUnknownException {
+        assertTrue(testVeh.getAggregates("EngineSpeed").isEmpty());
+        WindowAggregate shortWindow = WindowAggregate.sliding(2000, 100);
+        WindowAggregate longWindow = WindowAggregate.sliding(60000, 100);
+        testVeh.addAggregate("EngineSpeed", shortWindow);
+        testVeh.addAggregate("EngineSpeed", longWindow);
+
+        for (int i = 0; i < 5; i++) {
+            VehicleResponse resp = new VehicleResponse();
+            resp.value = (double) i;
+            resp.time = new DateTime(i * 1000L);
+            testVeh.updateCached("EngineSpeed", resp);
+        }
+        assertEquals(2, shortWindow.getCount());
+        assertEquals(3.5, shortWindow.getMean());
+        assertEquals(5, longWindow.getCount());
+        assertEquals(0.0, longWindow.getMin());
+
+        testVeh.removeAggregate("EngineSpeed", shortWindow);
+        assertEquals(1, testVeh.getAggregates("EngineSpeed").size());
+        assertSame(longWindow, testVeh.getAggregates("EngineSpeed").get(0));
+        try {
+            testVeh.addAggregate("NoSuchEndpoint", shortWindow);
+            fail("Expected EndpointUnknownException");
+        } catch (EndpointUnknownException expected) { }
+    }
+
+    public void testCatalog() {
+        EndpointCatalog catalog = testVeh.getCatalog();
+        int id = catalog.idOf("EngineSpeed");
+        assertTrue(id >= 0);
+        assertEquals(testVeh.getKeySet(), catalog.names());
+
+        VehicleResponse resp = new VehicleResponse();
+        resp.value = 1.0;
+        testVeh.updateCached("EngineSpeed", resp);
+        assertSame(resp, testVeh.getCached(id));
+        assertNull(testVeh.getCached("NoSuchEndpoint"));
+
+        // Listing the endpoints again keeps their IDs and values
+        testVeh.initialize(new PassFailCallback<Set<String>>());
+        assertEquals(id, testVeh.getCatalog().idOf("EngineSpeed"));
+        assertSame(resp, testVeh.getCached("EngineSpeed"));
+    }
+
 	public void testFetchNew() {
         httpClient.success = true;
         httpClient.returnObject = jFactory.vehicleDataEndpoint();
@@ -229,6 +310,90 @@ public class VehicleTest extends TestCase {
         }
 	}
 
+    /**
+     * A batch of events reaches each BatchListener in one call, plain
+     * listeners once per event, and the vehicle-wide listener gets all of it
+     */
+    public void testNotifyBatch() throws JSONException, EndpointUnknownException {
+        testVeh.removeAllListeners();
+        httpClient.success = true;
+        httpClient.returnString = "";
+
+        final List<Integer> batchSizes = new ArrayList<Integer>();
+        final int[] plainCalls = new int[1];
+        final List<Event> all = new ArrayList<Event>();
+        testVeh.subscribe("baz", 10, new BatchListener() {
+            @Override
+            public void onUpdates(List<Event> events) {
+                batchSizes.add(events.size());
+            }
+        }, null);
+        testVeh.createAlarm("baz", AlarmType.ABOVE, 10, 40, new WvaListener() {
+            @Override
+            public void onUpdate(String endpoint, VehicleResponse response) {
+                plainCalls[0]++;
+            }
+        }, null);
+        testVeh.setBatchListener(new BatchListener() {
+            @Override
+            public void onUpdates(List<Event> events) {
+                all.addAll(events);
+            }
+        });
+
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 3; i++) {
+            events.add(Event.fromTCP(jFactory.data()));
+            events.add(Event.fromTCP(jFactory.alarm()));
+        }
+        testVeh.notifyListeners(events);
+
+        assertEquals(1, batchSizes.size());
+        assertEquals(3, (int) batchSizes.get(0));
+        assertEquals(3, plainCalls[0]);
+        assertEquals(events, all);
+
+        // Single events still reach a BatchListener, as batches of one
+        testVeh.notifyListeners(Event.fromTCP(jFactory.data()));
+        assertEquals(1, (int) batchSizes.get(1));
+        assertEquals(7, all.size());
+        testVeh.setBatchListener(null);
+    }
+
+    /**
+     * A single event reaches a BatchListener in a list which is reused, but
+     * not while a listener is still using it
+     */
+    public void testSingleEventList() throws Exception {
+        testVeh.removeAllListeners();
+        final List<List<Event>> lists = new ArrayList<List<Event>>();
+        final List<Event> seen = new ArrayList<Event>();
+        final Event nested = Event.fromTCP(jFactory.alarm());
+        testVeh.setBatchListener(new BatchListener() {
+            @Override
+            public void onUpdates(List<Event> events) {
+                lists.add(events);
+                if (lists.size() == 1) {
+                    testVeh.notifyListeners(nested);
+                }
+                assertEquals(1, events.size());
+                seen.add(events.get(0));
+            }
+        });
+        Event first = Event.fromTCP(jFactory.data());
+        Event second = Event.fromTCP(jFactory.data());
+        testVeh.notifyListeners(first);
+        testVeh.notifyListeners(second);
+        testVeh.setBatchListener(null);
+
+        assertEquals(3, seen.size());
+        assertSame(nested, seen.get(0));
+        assertSame(first, seen.get(1));
+        assertSame(second, seen.get(2));
+        assertSame(lists.get(0), lists.get(2));
+        assertNotSame(lists.get(0), lists.get(1));
+    }
+
     /**
      * takes an endpoint (should be a part of testVeh), and adds a
      * subscription and an alarm listener. These listeners switch their
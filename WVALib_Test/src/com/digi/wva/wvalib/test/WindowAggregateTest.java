@@ -0,0 +1,198 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.wvalib.test;
+
+import com.digi.wva.device.WindowAggregate;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class WindowAggregateTest extends TestCase {
+
+    /**
+     * The sliding statistics match those worked out from scratch
+     */
+    public void testSlidingMatchesRescan() {
+        WindowAggregate window = WindowAggregate.sliding(10000, 1000);
+        Random random = new Random(7);
+        List<Long> times = new ArrayList<Long>();
+        List<Double> values = new ArrayList<Double>();
+        long t = 0;
+        for (int i = 0; i < 2000; i++) {
+            t += random.nextInt(200);
+            double v = 2000 + random.nextGaussian() * 300;
+            window.add(t, v);
+            times.add(t);
+            values.add(v);
+
+            if (i % 97 == 0) {
+                List<Double> inWindow = new ArrayList<Double>();
+                double sum = 0;
+                for (int j = 0; j < values.size(); j++) {
+                    if (times.get(j) > t - 10000) {
+                        inWindow.add(values.get(j));
+                        sum += values.get(j);
+                    }
+                }
+                double mean = sum / inWindow.size();
+                double squares = 0;
+                for (double x : inWindow) {
+                    squares += (x - mean) * (x - mean);
+                }
+                assertEquals(inWindow.size(), window.getCount());
+                assertEquals(Collections.min(inWindow), window.getMin());
+                assertEquals(Collections.max(inWindow), window.getMax());
+                assertEquals(mean, window.getMean(), 1e-6);
+                assertEquals(Math.sqrt(squares / inWindow.size()), window.getStdDev(), 1e-6);
+
+                Collections.sort(inWindow);
+                double median = inWindow.get((inWindow.size() - 1) / 2);
+                assertEquals(median, window.getPercentile(0.5), median * WindowAggregate.PERCENTILE_ACCURACY);
+            }
+        }
+    }
+
+    public void testEmpty() {
+        WindowAggregate window = WindowAggregate.sliding(1000, 10);
+        assertEquals(0, window.getCount());
+        assertTrue(Double.isNaN(window.getMin()));
+        assertTrue(Double.isNaN(window.getMean()));
+        assertTrue(Double.isNaN(window.getPercentile(0.9)));
+
+        window.add(0, 5);
+        window.advanceTo(5000);
+        assertEquals(0, window.getCount());
+        assertTrue(Double.isNaN(window.getMax()));
+        assertEquals(0, window.getStats().getCount());
+    }
+
+    public void testTumbling() {
+        WindowAggregate window = WindowAggregate.tumbling(1000, 100);
+        window.add(100, 1);
+        window.add(900, 3);
+        assertNull(window.getLastCompleted());
+        assertEquals(2, window.getStats().getCount());
+
+        window.add(1200, 10);
+        WindowAggregate.Stats done = window.getLastCompleted();
+        assertEquals(0, done.getStart());
+        assertEquals(1000, done.getEnd());
+        assertEquals(2, done.getCount());
+        assertEquals(2.0, done.getMean());
+        assertEquals(1.0, done.getStdDev());
+        assertEquals(1.0, done.getMin());
+        assertEquals(3.0, done.getMax());
+        assertEquals(1, window.getCount());
+
+        // A window completes when time moves past it, even with no values
+        window.advanceTo(2000);
+        assertEquals(1000, window.getLastCompleted().getStart());
+        assertEquals(10.0, window.getLastCompleted().getMedian());
+        assertEquals(0, window.getCount());
+    }
+
+    public void testLateness() {
+        WindowAggregate window = new WindowAggregate(WindowAggregate.Mode.SLIDING, 10000, 500, 100);
+        window.add(1000, 1);
+        window.add(1400, 4);
+        window.add(1200, 2);
+        // Held back until nothing more than 500 ms earlier can arrive
+        assertEquals(0, window.getCount());
+        assertEquals(3, window.getPendingCount());
+
+        window.add(1800, 8);
+        assertEquals(2, window.getCount());
+        assertEquals(2.0, window.getMax());
+
+        // Too late: the window has moved on past 1300
+        window.add(1250, 100);
+        assertEquals(1, window.getLateCount());
+        window.advanceTo(3000);
+        assertEquals(4, window.getCount());
+        assertEquals(8.0, window.getMax());
+        assertEquals(3.75, window.getMean());
+    }
+
+    public void testOverflow() {
+        WindowAggregate window = WindowAggregate.sliding(60000, 4);
+        for (int i = 0; i < 10; i++) {
+            window.add(i, i);
+        }
+        assertEquals(4, window.getCount());
+        assertEquals(6.0, window.getMin());
+        assertEquals(9.0, window.getMax());
+        assertEquals(6, window.getOverflowCount());
+
+        window.clear();
+        assertEquals(0, window.getCount());
+        window.add(0, -3);
+        assertEquals(-3.0, window.getPercentile(0.5));
+    }
+
+    /**
+     * Values released early because too many are held back stay in time
+     * order: anything older than them which arrives afterwards is late
+     */
+    public void testPendingOverflow() {
+        WindowAggregate window = new WindowAggregate(WindowAggregate.Mode.TUMBLING, 1000, 10000, 2);
+        window.add(100, 1);
+        window.add(1500, 2);
+        assertEquals(0, window.getCount());
+
+        // Each value beyond two releases the oldest held back
+        window.add(1600, 3);
+        window.add(1700, 4);
+        WindowAggregate.Stats done = window.getLastCompleted();
+        assertEquals(0, done.getStart());
+        assertEquals(1, done.getCount());
+
+        // Older than the released 1500, so it cannot be put in order
+        window.add(900, 5);
+        assertEquals(1, window.getLateCount());
+        // Older than everything held back, but not than what was released
+        window.add(1550, 6);
+        assertEquals(1, window.getLateCount());
+        assertEquals(2, window.getCount());
+        assertEquals(6.0, window.getMax());
+
+        // The window holds at most two values, the newest
+        window.advanceTo(20000);
+        assertEquals(1000, window.getLastCompleted().getStart());
+        assertEquals(2, window.getLastCompleted().getCount());
+        assertEquals(3.0, window.getLastCompleted().getMin());
+        assertEquals(4.0, window.getLastCompleted().getMax());
+        assertEquals(2, window.getOverflowCount());
+    }
+
+    public void testPercentiles() {
+        WindowAggregate window = WindowAggregate.sliding(1000000, 1000);
+        for (int i = 1; i <= 1000; i++) {
+            window.add(i, i);
+        }
+        WindowAggregate.Stats stats = window.getStats();
+        assertEquals(500, stats.getMedian(), 500 * WindowAggregate.PERCENTILE_ACCURACY);
+        assertEquals(900, stats.getP90(), 900 * WindowAggregate.PERCENTILE_ACCURACY);
+        assertEquals(990, stats.getP99(), 990 * WindowAggregate.PERCENTILE_ACCURACY);
+        assertEquals(1.0, window.getPercentile(0));
+        assertEquals(1000.0, window.getPercentile(1));
+    }
+
+    public void testBadArguments() {
+        try {
+            WindowAggregate.sliding(0, 10);
+            fail("a zero window should be refused");
+        } catch (IllegalArgumentException expected) { }
+        try {
+            new WindowAggregate(WindowAggregate.Mode.TUMBLING, 1000, -1, 10);
+            fail("a negative lateness should be refused");
+        } catch (IllegalArgumentException expected) { }
+    }
+}
@@ -25,10 +25,13 @@ import com.digi.android.wva.model.LogEvent;
 import com.digi.android.wva.util.MessageCourier;
 import com.digi.android.wva.util.NetworkUtils;
 import com.digi.wva.async.WvaCallback;
+import com.digi.wva.device.BulkResult;
 import com.digi.wva.device.Device;
 import com.digi.wva.device.DeviceConnectionListener;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 /**
  * VehicleInfoService is a self-contained service created to facilitate easy
@@ -142,10 +145,8 @@ public class VehicleInfoService extends Service {
 
             log(new LogEvent("Reconnecting...", null));
 
-            // this will interrupt() the TCPReceiver thread, but since we're
-            // inside that thread currently, and we're not doing any thread-blocking
-            // calls here, execution will continue until we leave this method.
-            // Then, execution returns to TCPReceiver, and off we go.
+            // This only schedules the reconnect, so it returns straight away
+            // and the TCPReceiver thread is left to finish.
             super.onRemoteClose(device, port);
         }
 
@@ -154,7 +155,7 @@ public class VehicleInfoService extends Service {
             Log.d(TAG, "connectionListener -- onFailedConnection");
             MessageCourier.sendReconnecting(connectIp);
             log(new LogEvent("Retrying connection...", null));
-            reconnectAfter(device, 15000, port);
+            reconnect(device, port);
         }
     };
 
@@ -301,7 +302,7 @@ public class VehicleInfoService extends Service {
 			Log.i(TAG, "startService - CMD_DISCONNECT");
 			isConnected = false;
 			if (mDevice != null) {
-				mDevice.disconnectDataStream();
+				mDevice.close();
 				mDevice = null;
 				app.setDevice(null);
 			}
@@ -368,53 +369,46 @@ public class VehicleInfoService extends Service {
                             return;
                         }
 
-                        for (String e : endpoints) {
-                            // Add a bit of sleep between subscribing
-                            // to each endpoint, so as not to overload
-                            // the main thread as it tries to keep up.
-                            // This is happening as soon as the
-                            // DashboardActivity is launched, after all.
-                            try {
-                                Thread.sleep(25);
-                            } catch (InterruptedException ignored) {
-                            }
+                        if (app.getDevice() == null) {
+                            // User backed out of DashboardActivity
+                            Log.d(TAG, "app.getDevice() returned null. " +
+                                    "Not subscribing...");
+                            app.clearDevice();
+                            return;
+                        }
 
-                            if (app.getDevice() == null) {
-                                // User backed out of DashboardActivity
-                                // We should stop these subscriptions...
-                                Log.d(TAG, "app.getDevice() returned null. " +
-                                        "Stopping subscriptions...");
-                                app.clearDevice();
-                                return;
+                        if (autosub > 0) {
+                            // (Try to) subscribe to every endpoint, a few
+                            // requests at a time
+                            Map<String, Integer> intervals = new LinkedHashMap<String, Integer>();
+                            for (String e : endpoints) {
+                                intervals.put(e, autosub);
                             }
-
-                            final String ep = e;
-
-                            if (autosub > 0)
-                                // (Try to) subscribe to the endpoint
-                                app.subscribeToEndpoint(e, autosub,
-                                new WvaCallback<Void>() {
-                                    @Override
-                                    public void onResponse(Throwable error, Void response) {
-                                        String msg;
-                                        if (error != null) {
-                                            msg = "Failed to subscribe to " + ep;
-                                            Log.e(TAG, "Failed to subscribe to " + ep, error);
-                                            final LogEvent evt = new LogEvent(msg, null);
-                                            mHandler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    LogAdapter.getInstance().add(evt);
-                                                }
-                                            });
-                                        }
+                            app.subscribeToEndpoints(intervals, new WvaCallback<BulkResult>() {
+                                @Override
+                                public void onResponse(Throwable error, BulkResult result) {
+                                    if (error == null || result == null) {
+                                        return;
+                                    }
+                                    for (Map.Entry<String, Throwable> failure : result.getFailed().entrySet()) {
+                                        String msg = "Failed to subscribe to " + failure.getKey();
+                                        Log.e(TAG, msg, failure.getValue());
+                                        final LogEvent evt = new LogEvent(msg, null);
+                                        mHandler.post(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                LogAdapter.getInstance().add(evt);
+                                            }
+                                        });
                                     }
-                                });
-                            else {
-                                // Just display the endpoint in the list.
-                                app.listNewEndpoint(ep);
-                                mDevice.unsubscribe(ep, true);
+                                }
+                            });
+                        } else {
+                            // Just display the endpoints in the list.
+                            for (String e : endpoints) {
+                                app.listNewEndpoint(e);
                             }
+                            mDevice.unsubscribeAll(endpoints, true, null);
                         }
                     }
                 });
@@ -39,12 +39,14 @@ import com.digi.wva.async.AlarmType;
 import com.digi.wva.async.VehicleResponse;
 import com.digi.wva.async.WvaCallback;
 import com.digi.wva.async.WvaListener;
+import com.digi.wva.device.BulkResult;
 import com.digi.wva.device.Device;
 import com.digi.wva.exc.EndpointUnknownException;
 import org.joda.time.DateTime;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Custom {@link Application} object to provide global variables and
@@ -296,7 +298,40 @@ public class WvaApplication extends Application {
             callback.onResponse(e, null);
             return;
 		}
-		
+
+        showSubscription(endpoint, interval);
+    }
+
+    /**
+     * Subscribe (asynchronously) to many endpoints at once, each with its
+     * own subscription interval, keeping a few requests in flight rather
+     * than sending them one at a time.
+     * @param endpointIntervals time interval to receive subscription data,
+     *                          for each endpoint to subscribe to
+     * @param callback {@link WvaCallback} to be invoked once every
+     *                 subscription web-services call has gone through (or
+     *                 failed)
+     */
+    public void subscribeToEndpoints(final Map<String, Integer> endpointIntervals,
+                                     final WvaCallback<BulkResult> callback) {
+        if (mDevice == null) {
+            Log.e(TAG, "subscribeToEndpoints - mDevice is null");
+            callback.onResponse(new NullPointerException("No device."), null);
+            return;
+        }
+
+        mDevice.subscribeAll(endpointIntervals, subscriptionsListener, callback);
+
+        for (Map.Entry<String, Integer> entry : endpointIntervals.entrySet()) {
+            showSubscription(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Marks the endpoint as subscribed in the {@link EndpointsAdapter},
+     * adding it to the list if it is not there yet.
+     */
+    private void showSubscription(String endpoint, int interval) {
 		boolean needsToBeAdded = false;
 		SubscriptionConfig subconf = new SubscriptionConfig(interval);
 		subconf.setSubscribed(true);
@@ -22,7 +22,9 @@ import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static org.mockito.Mockito.*;
@@ -59,6 +61,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
         setApplication(app);
 
         doNothing().when(app).subscribeToEndpoint(anyString(), anyInt(), any(WvaCallback.class));
+        doNothing().when(app).subscribeToEndpoints(anyMap(), any(WvaCallback.class));
         doNothing().when(app).listNewEndpoint(anyString());
         doCallRealMethod().when(app).getHandler();
         doCallRealMethod().when(app).setDevice(any(Device.class));
@@ -75,6 +78,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
         device = mock(Device.class);
         doNothing().when(device).unsubscribe(anyString(), anyBoolean());
         doNothing().when(device).disconnectDataStream();
+        doNothing().when(device).close();
 
         setVehicleInitResponse(null, endpoints);
 
@@ -187,10 +191,12 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
 
         verify(device).initVehicleData(any(WvaCallback.class));
         verify(device).connectDataStream(eq(5000), any(DeviceConnectionListener.class));
-        // Verify that subscribeToEndpoint was called for each endpoint
+        // Verify that every endpoint was subscribed to at once
+        Map<String, Integer> intervals = new HashMap<String, Integer>();
         for (int i = 0; i < names.length; i++) {
-            verify(app).subscribeToEndpoint(eq(names[i]), eq(10), any(WvaCallback.class));
+            intervals.put(names[i], 10);
         }
+        verify(app).subscribeToEndpoints(eq(intervals), any(WvaCallback.class));
 
         MessageCourier.DashboardMessage[] msgs = MessageCourier.getDashboardMessages();
         assertEquals("Incorrect number of dashboard messages", 1, msgs.length);
@@ -215,7 +221,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
 
         startService(VehicleInfoService.buildDisconnectIntent(getContext()));
 
-        verify(device).disconnectDataStream();
+        verify(device).close();
         verify(app).setDevice(null);
         assertNull("Service still has old device", getService().getDevice());
         assertFalse("Service still reports connected", getService().isConnected());
@@ -233,7 +239,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
         startService(VehicleInfoService.buildConnectIntent(getContext(), "0.0.0.0"));
 
         verify(device, never()).connectDataStream(anyInt(), any(DeviceConnectionListener.class));
-        verify(app, never()).subscribeToEndpoint(anyString(), anyInt(), any(WvaCallback.class));
+        verify(app, never()).subscribeToEndpoints(anyMap(), any(WvaCallback.class));
         verify(app).setDevice(null);
         verify(e).getMessage();
         MessageCourier.DashboardMessage[] msgs = MessageCourier.getDashboardMessages();
@@ -255,7 +261,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
         startService(VehicleInfoService.buildConnectIntent(getContext(), "0.0.0.0"));
 
         verify(device, never()).connectDataStream(anyInt(), any(DeviceConnectionListener.class));
-        verify(app, never()).subscribeToEndpoint(anyString(), anyInt(), any(WvaCallback.class));
+        verify(app, never()).subscribeToEndpoints(anyMap(), any(WvaCallback.class));
         verify(app).setDevice(null);
         verify(e).getMessage();
         // Need to use atLeast(1), because (seemingly) the logging statement
@@ -281,7 +287,7 @@ public class VehicleInfoServiceTest extends ServiceTestCase<VehicleInfoService>
         startService(VehicleInfoService.buildConnectIntent(getContext(), "0.0.0.0"));
 
         verify(device, never()).connectDataStream(anyInt(), any(DeviceConnectionListener.class));
-        verify(app, never()).subscribeToEndpoint(anyString(), anyInt(), any(WvaCallback.class));
+        verify(app, never()).subscribeToEndpoints(anyMap(), any(WvaCallback.class));
         verify(app).setDevice(null);
         verify(e).getMessage();
         // Need to use atLeast(1), because (seemingly) the logging statement
@@ -0,0 +1,628 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.sim;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the WVA's TCP event server: accepts connections and writes
+ * subscription and alarm events to each of them at a configurable rate.
+ *
+ * <p>Every connection receives the same stream. It is made up of
+ * {@link #setEndpointCount(int) endpoints} named {@code Endpoint0},
+ * {@code Endpoint1} and so on, each sent {@link #setHz(double) hz} times a
+ * second, in turn. The value of each event is the number of events sent for
+ * its endpoint before it, so that a receiver can count what it lost, and its
+ * timestamps are the time it was generated. On top of that, the stream can
+ * be made harder to take in:</p>
+ * <ul>
+ *   <li>{@link #setAlarmFraction(double)} sends some events as alarms;</li>
+ *   <li>{@link #setSegmentSize(int, int)} cuts the stream into pieces of
+ *       random size, written separately, so that messages are split across
+ *       TCP segments;</li>
+ *   <li>{@link #setBurst(int, long)} adds bursts of events at intervals;</li>
+ *   <li>{@link #setDisconnectInterval(long)} closes every connection at
+ *       intervals, and {@link #setReplayOnConnect(int)} starts each new
+ *       connection with the most recent events, as the WVA does with what
+ *       it buffered while a client was away.</li>
+ * </ul>
+ *
+ * <p>Events are generated by one thread and written by
+ * {@link #setWriterThreads(int) writer threads}, each serving its share of
+ * the connections. If the writers cannot keep up, generation waits for
+ * them, and the rate achieved, reported by {@link #getStats()}, falls below
+ * the target.</p>
+ *
+ * <p>Configure the server before calling {@link #start()}.</p>
+ */
+public class EventServer {
+    private static final long TICK_MILLIS = 5;
+    private static final int QUEUED_BATCHES = 16;
+
+    private String bindAddress = "127.0.0.1";
+    private int port;
+    private int endpointCount = 4;
+    private double hz = 5;
+    private double alarmFraction;
+    private int minSegment;
+    private int maxSegment;
+    private int burstSize;
+    private long burstIntervalMillis;
+    private int replayOnConnect;
+    private long disconnectIntervalMillis;
+    private int maxConnections = Integer.MAX_VALUE;
+    private int writerThreads = 1;
+    private long seed = 1;
+
+    private ServerSocketChannel server;
+    private volatile boolean running;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<Writer> writers = new ArrayList<Writer>();
+    private final Object historyLock = new Object();
+    private final List<byte[]> history = new ArrayList<byte[]>();
+    private int historyNext;
+    private long startNanos;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private volatile long generated;
+    private volatile long alarmsGenerated;
+
+    /**
+     * @param address the address to listen on; the loopback interface by
+     *                default
+     */
+    public void setBindAddress(String address) {
+        this.bindAddress = address;
+    }
+
+    /**
+     * @param port the port to listen on; by default, any free port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param count the number of endpoints to send events for; 4 by default
+     */
+    public void setEndpointCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        this.endpointCount = count;
+    }
+
+    /**
+     * @param hz the number of events sent each second for each endpoint; 5
+     *           by default
+     */
+    public void setHz(double hz) {
+        if (hz < 0) {
+            throw new IllegalArgumentException("hz must not be negative");
+        }
+        this.hz = hz;
+    }
+
+    /**
+     * @param fraction the share of events sent as alarms rather than
+     *                 subscription data, from 0 (the default) to 1
+     */
+    public void setAlarmFraction(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+        this.alarmFraction = fraction;
+    }
+
+    /**
+     * Cuts the stream into pieces of between min and max bytes, each written
+     * on its own, so that messages arrive split across TCP segments.
+     *
+     * @param min the smallest piece, at least 1
+     * @param max the largest piece, or 0 to write whole batches of messages
+     *            (the default)
+     */
+    public void setSegmentSize(int min, int max) {
+        if (max != 0 && (min < 1 || max < min)) {
+            throw new IllegalArgumentException("need 1 <= min <= max");
+        }
+        this.minSegment = min;
+        this.maxSegment = max;
+    }
+
+    /**
+     * Adds a burst of events, on top of the steady rate, at intervals.
+     *
+     * @param size the number of events in each burst, or 0 for none
+     * @param intervalMillis the time between bursts
+     */
+    public void setBurst(int size, long intervalMillis) {
+        if (size > 0 && intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis must be positive");
+        }
+        this.burstSize = size;
+        this.burstIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param count the number of most recent events sent to each connection
+     *              as soon as it is accepted; 0 by default
+     */
+    public void setReplayOnConnect(int count) {
+        this.replayOnConnect = count;
+    }
+
+    /**
+     * @param intervalMillis how often to close every connection, forcing
+     *                       clients to reconnect, or 0 never to (the default)
+     */
+    public void setDisconnectInterval(long intervalMillis) {
+        this.disconnectIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * @param max the number of connections served at once; further ones are
+     *            closed as soon as they are accepted
+     */
+    public void setMaxConnections(int max) {
+        this.maxConnections = max;
+    }
+
+    /**
+     * @param count the number of threads writing to connections; 1 by
+     *              default
+     */
+    public void setWriterThreads(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        this.writerThreads = count;
+    }
+
+    /**
+     * @param seed seeds the choice of alarms and segment sizes, so that
+     *             runs can be repeated
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the name of the given endpoint
+     */
+    public static String endpointName(int index) {
+        return "Endpoint" + index;
+    }
+
+    /**
+     * @return the names of all the endpoints sent
+     */
+    public String[] getEndpointNames() {
+        String[] names = new String[endpointCount];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = endpointName(i);
+        }
+        return names;
+    }
+
+    /**
+     * @return the number of events sent to each connection every second,
+     *         not counting bursts
+     */
+    public double getTargetRate() {
+        return endpointCount * hz;
+    }
+
+    /**
+     * Starts listening and sending.
+     *
+     * @return the port listened on
+     */
+    public synchronized int start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(bindAddress, port), 1024);
+        running = true;
+        startNanos = System.nanoTime();
+
+        Random random = new Random(seed);
+        for (int i = 0; i < writerThreads; i++) {
+            Writer w = new Writer(random.nextLong());
+            writers.add(w);
+            threads.add(new Thread(w, "sim-event-write-" + i));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "sim-event-accept"));
+        final Random generatorRandom = new Random(random.nextLong());
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                generateLoop(generatorRandom);
+            }
+        }, "sim-event-generate"));
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        return server.socket().getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                break;
+            }
+            if (getConnectionCount() >= maxConnections) {
+                refused.incrementAndGet();
+                close(channel);
+                continue;
+            }
+            try {
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                close(channel);
+                continue;
+            }
+            accepted.incrementAndGet();
+            Connection c = new Connection(channel);
+
+            Writer least = writers.get(0);
+            for (Writer w : writers) {
+                if (w.connections.size() < least.connections.size()) {
+                    least = w;
+                }
+            }
+            synchronized (historyLock) {
+                // Under the lock, so that the next batch follows on from it
+                c.greeting = replayedHistory();
+                least.connections.add(c);
+            }
+        }
+    }
+
+    private byte[] replayedHistory() {
+        if (history.isEmpty()) {
+            return null;
+        }
+        int length = 0;
+        for (byte[] m : history) {
+            length += m.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        int n = history.size();
+        for (int i = 0; i < n; i++) {
+            // Oldest first
+            byte[] m = history.get((historyNext + i) % n);
+            System.arraycopy(m, 0, all, offset, m.length);
+            offset += m.length;
+        }
+        return all;
+    }
+
+    private void generateLoop(Random random) {
+        MessageBuilder builder = new MessageBuilder(endpointCount);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        double rate = getTargetRate();
+        double credit = 0;
+        long last = System.nanoTime();
+        long nextBurst = last + burstIntervalMillis * 1000000L;
+        long nextDisconnect = last + disconnectIntervalMillis * 1000000L;
+        int endpoint = 0;
+
+        while (running) {
+            long now = System.nanoTime();
+            credit += rate * (now - last) / 1e9;
+            last = now;
+            int count = (int) credit;
+            credit -= count;
+            if (burstSize > 0 && now - nextBurst >= 0) {
+                count += burstSize;
+                nextBurst += burstIntervalMillis * 1000000L;
+            }
+
+            if (count > 0) {
+                builder.start(format.format(new Date()));
+                for (int i = 0; i < count; i++) {
+                    boolean alarm = alarmFraction > 0 && random.nextDouble() < alarmFraction;
+                    builder.add(endpoint, alarm);
+                    if (alarm) {
+                        alarmsGenerated++;
+                    }
+                    endpoint = (endpoint + 1) % endpointCount;
+                }
+                generated += count;
+                Batch batch = new Batch(builder.toByteArray(), count);
+                try {
+                    synchronized (historyLock) {
+                        remember(builder);
+                        for (Writer w : writers) {
+                            w.queue.put(batch);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            if (disconnectIntervalMillis > 0 && now - nextDisconnect >= 0) {
+                nextDisconnect += disconnectIntervalMillis * 1000000L;
+                for (Writer w : writers) {
+                    for (Connection c : w.connections) {
+                        w.connections.remove(c);
+                        close(c.channel);
+                        disconnects.incrementAndGet();
+                    }
+                }
+            }
+
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void remember(MessageBuilder builder) {
+        if (replayOnConnect <= 0) {
+            return;
+        }
+        for (int i = Math.max(0, builder.count() - replayOnConnect); i < builder.count(); i++) {
+            byte[] m = builder.message(i);
+            if (history.size() < replayOnConnect) {
+                history.add(m);
+            } else {
+                history.set(historyNext, m);
+                historyNext = (historyNext + 1) % replayOnConnect;
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections currently being served
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (Writer w : writers) {
+            count += w.connections.size();
+        }
+        return count;
+    }
+
+    /**
+     * Waits until at least the given number of connections are being
+     * served.
+     *
+     * @return false if they were not before the timeout
+     */
+    public boolean awaitConnections(int count, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (getConnectionCount() < count) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * @return what has been sent since the server was started
+     */
+    public SendStats getStats() {
+        return new SendStats(System.nanoTime() - startNanos, getTargetRate(),
+                getConnectionCount(), accepted.get(), refused.get(), disconnects.get(),
+                generated, alarmsGenerated, messagesSent.get(), bytesSent.get());
+    }
+
+    /**
+     * @return the IDs of the server's threads, so that their CPU time can be
+     *         left out of measurements
+     */
+    public long[] getThreadIds() {
+        long[] ids = new long[threads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads.get(i).getId();
+        }
+        return ids;
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (server != null) {
+            close(server);
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        for (Writer w : writers) {
+            for (Connection c : w.connections) {
+                close(c.channel);
+            }
+            w.connections.clear();
+        }
+    }
+
+    private static void close(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Events generated in one tick, written to every connection.
+     */
+    private static final class Batch {
+        final byte[] data;
+        final int messages;
+
+        Batch(byte[] data, int messages) {
+            this.data = data;
+            this.messages = messages;
+        }
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        byte[] greeting;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Writes each batch to its share of the connections.
+     */
+    private final class Writer implements Runnable {
+        final BlockingQueue<Batch> queue = new LinkedBlockingQueue<Batch>(QUEUED_BATCHES);
+        final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+        final Random random;
+
+        Writer(long seed) {
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Connection c : connections) {
+                    try {
+                        if (c.greeting != null) {
+                            write(c.channel, c.greeting);
+                            c.greeting = null;
+                        }
+                        write(c.channel, batch.data);
+                        messagesSent.addAndGet(batch.messages);
+                    } catch (IOException e) {
+                        connections.remove(c);
+                        close(c.channel);
+                    }
+                }
+            }
+        }
+
+        private void write(SocketChannel channel, byte[] data) throws IOException {
+            int offset = 0;
+            while (offset < data.length) {
+                int length = data.length - offset;
+                if (maxSegment > 0) {
+                    length = Math.min(length, minSegment + random.nextInt(maxSegment - minSegment + 1));
+                }
+                ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                offset += length;
+                bytesSent.addAndGet(length);
+            }
+        }
+    }
+
+    /**
+     * Builds the messages of one batch in WVA format.
+     */
+    private static final class MessageBuilder {
+        private final String[] names;
+        private final long[] sequence;
+        private final StringBuilder text = new StringBuilder();
+        private final List<Integer> offsets = new ArrayList<Integer>();
+        private byte[] bytes;
+        private String timestamp;
+
+        MessageBuilder(int endpointCount) {
+            names = new String[endpointCount];
+            for (int i = 0; i < endpointCount; i++) {
+                names[i] = endpointName(i);
+            }
+            sequence = new long[endpointCount];
+        }
+
+        void start(String timestamp) {
+            this.timestamp = timestamp;
+            text.setLength(0);
+            offsets.clear();
+            bytes = null;
+        }
+
+        void add(int endpoint, boolean alarm) {
+            String name = names[endpoint];
+            offsets.add(text.length());
+            text.append(alarm ? "{\"alarm\": {\"" : "{\"data\": {\"").append(name)
+                .append("\": {\"timestamp\": \"").append(timestamp)
+                .append("\", \"value\": ").append(sequence[endpoint]++)
+                .append("}, \"timestamp\": \"").append(timestamp)
+                .append("\", \"uri\": \"vehicle/data/").append(name)
+                .append("\", \"short_name\": \"").append(name)
+                .append(alarm ? "~above\"}}\r\n" : "~sub\"}}\r\n");
+        }
+
+        int count() {
+            return offsets.size();
+        }
+
+        byte[] toByteArray() {
+            if (bytes == null) {
+                try {
+                    bytes = text.toString().getBytes("US-ASCII");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return bytes;
+        }
+
+        byte[] message(int i) {
+            byte[] all = toByteArray();
+            int start = offsets.get(i);
+            int end = (i + 1 < offsets.size()) ? offsets.get(i + 1) : all.length;
+            byte[] m = new byte[end - start];
+            System.arraycopy(all, start, m, 0, m.length);
+            return m;
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.sim;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays the WVA's web services over real HTTP, for measuring the library
+ * against genuine round trips. Point a WvaHttpClient at
+ * {@code "127.0.0.1:" + server.start()}.
+ *
+ * <p>It serves the resources the library uses, with payloads shaped like a
+ * WVA's: {@code vehicle/data}, {@code vehicle/ecus}, {@code subscriptions},
+ * {@code alarms}, {@code hw/leds}, {@code hw/buttons}, {@code hw/time} and
+ * {@code config}. Subscriptions, alarms, LED states and configuration are
+ * kept as PUT, and can be read back and deleted.</p>
+ *
+ * <p>Responses can be slowed down and made to fail with
+ * {@link #setFault(String, long, long, double)}, per route, and the number
+ * of connections served at once can be limited with
+ * {@link #setMaxConnections(int)}; further connections wait in the
+ * listen backlog, as they would on a busy device, until an open one is
+ * closed or sits idle for longer than {@link #setKeepAliveTimeout(int)}. HTTPS and authentication
+ * are not supported; credentials are ignored.</p>
+ *
+ * <p>Configure the server before calling {@link #start()}.</p>
+ */
+public class RestServer {
+    private static final String[] DEFAULT_ENDPOINTS = {
+        "EngineSpeed", "VehicleSpeed", "EngineCoolantTemp", "FuelLevel",
+        "Odometer", "ThrottlePosition", "AccelPedalPosition", "BatteryVoltage"
+    };
+    private static final String[] DEFAULT_ECUS = { "can0ecu0", "can0ecu1", "can1ecu0" };
+    private static final String[] ECU_ENDPOINTS = { "VIN", "Make", "Model", "SerialNumber" };
+    private static final String[] LEDS = { "left", "right" };
+    private static final String[] BUTTONS = { "reset" };
+
+    private String bindAddress = "127.0.0.1";
+    private int port;
+    private int maxConnections = Integer.MAX_VALUE;
+    private int keepAliveMillis = 5000;
+    private int errorStatus = 500;
+    private long seed = 1;
+    private String[] endpoints = DEFAULT_ENDPOINTS;
+    private String[] ecus = DEFAULT_ECUS;
+    private final Map<String, Fault> faults = new LinkedHashMap<String, Fault>();
+
+    private final Map<String, String> subscriptions = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> alarms = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> leds = new ConcurrentHashMap<String, String>();
+    private final Map<String, String> config = new ConcurrentHashMap<String, String>();
+
+    private ServerSocket server;
+    private Thread acceptor;
+    private volatile boolean running;
+    private Semaphore connectionSlots;
+    private ExecutorService workers;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private Random random;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicLong> routeRequests =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * How one route misbehaves.
+     */
+    private static final class Fault {
+        final long latencyMillis;
+        final long jitterMillis;
+        final double errorRate;
+
+        Fault(long latencyMillis, long jitterMillis, double errorRate) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.errorRate = errorRate;
+        }
+    }
+
+    public RestServer() {
+        for (String led : LEDS) {
+            leds.put(led, "{\"led\": \"off\"}");
+        }
+    }
+
+    /**
+     * @param address the address to listen on; the loopback interface by
+     *                default
+     */
+    public void setBindAddress(String address) {
+        this.bindAddress = address;
+    }
+
+    /**
+     * @param port the port to listen on; by default, any free port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param endpoints the names of the vehicle data endpoints served
+     */
+    public void setEndpoints(String... endpoints) {
+        this.endpoints = endpoints.clone();
+    }
+
+    /**
+     * @param ecus the names of the ECUs served
+     */
+    public void setEcus(String... ecus) {
+        this.ecus = ecus.clone();
+    }
+
+    /**
+     * Slows down and fails the requests to a route. The route is the path
+     * below {@code /ws/}, without a trailing slash; the fault applies to it
+     * and everything below it, unless something below it has its own. The
+     * route "" applies to everything.
+     *
+     * @param route for instance "vehicle/data" or "subscriptions"
+     * @param latencyMillis how long to wait before responding
+     * @param jitterMillis the most by which the wait is randomly lengthened
+     *                     or shortened
+     * @param errorRate the share of requests answered with the error
+     *                  status, from 0 to 1
+     */
+    public synchronized void setFault(String route, long latencyMillis, long jitterMillis,
+                                      double errorRate) {
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("errorRate must be between 0 and 1");
+        }
+        faults.put(trim(route), new Fault(latencyMillis, jitterMillis, errorRate));
+    }
+
+    /**
+     * Removes every fault set with {@link #setFault}.
+     */
+    public synchronized void clearFaults() {
+        faults.clear();
+    }
+
+    /**
+     * @param status the HTTP status of injected errors; 500 by default
+     */
+    public void setErrorStatus(int status) {
+        this.errorStatus = status;
+    }
+
+    /**
+     * @param max the number of connections served at once
+     */
+    public void setMaxConnections(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1");
+        }
+        this.maxConnections = max;
+    }
+
+    /**
+     * @param millis how long a kept-alive connection may sit idle before the
+     *               server closes it; 5 seconds by default, and 0 never
+     */
+    public void setKeepAliveTimeout(int millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis must not be negative");
+        }
+        this.keepAliveMillis = millis;
+    }
+
+    /**
+     * @param seed seeds the latencies, errors and values, so that runs can
+     *             be repeated
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @return the port listened on
+     */
+    public synchronized int start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("Already started");
+        }
+        random = new Random(seed);
+        server = new ServerSocket(port, 1024, InetAddress.getByName(bindAddress));
+        connectionSlots = new Semaphore(maxConnections);
+        workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sim-rest-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "sim-rest-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                // Connections over the limit wait in the backlog
+                connectionSlots.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                connectionSlots.release();
+                return;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+            accepted.incrementAndGet();
+            int now = connections.incrementAndGet();
+            int peak;
+            while (now > (peak = peakConnections.get())
+                    && !peakConnections.compareAndSet(peak, now)) { }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } finally {
+                        close(socket);
+                        synchronized (sockets) {
+                            sockets.remove(socket);
+                        }
+                        connections.decrementAndGet();
+                        connectionSlots.release();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(keepAliveMillis);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (running) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+                int contentLength = 0;
+                boolean keepAlive = !requestLine.endsWith("HTTP/1.0");
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    int colon = header.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = header.substring(0, colon).trim();
+                    String value = header.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        contentLength = Integer.parseInt(value);
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        keepAlive = value.equalsIgnoreCase("keep-alive")
+                                || (keepAlive && !value.equalsIgnoreCase("close"));
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+
+                String[] parts = requestLine.split(" ");
+                if (parts.length < 2) {
+                    respond(out, 400, "Bad Request", false);
+                    return;
+                }
+                Response r = handle(parts[0], parts[1], new String(body, "UTF-8"));
+                respond(out, r.status, r.body, keepAlive);
+                if (!keepAlive) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle for too long; free the slot for a waiting connection
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void respond(OutputStream out, int status, String body, boolean keepAlive)
+            throws IOException {
+        byte[] content = body.getBytes("UTF-8");
+        String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        out.write(head.getBytes("ISO-8859-1"));
+        out.write(content);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response ok(String body) {
+        return new Response(200, body);
+    }
+
+    private static Response notFound() {
+        return new Response(404, "{\"error\": \"not found\"}");
+    }
+
+    private static String trim(String path) {
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    /**
+     * Applies the route's fault, then answers the request.
+     */
+    private Response handle(String method, String uri, String body) {
+        int query = uri.indexOf('?');
+        String path = trim((query < 0) ? uri : uri.substring(0, query));
+        if (!path.equals("ws") && !path.startsWith("ws/")) {
+            return notFound();
+        }
+        path = (path.length() > 3) ? path.substring(3) : "";
+        requests.incrementAndGet();
+
+        String route = routeOf(path);
+        AtomicLong count = routeRequests.get(route);
+        if (count == null) {
+            routeRequests.putIfAbsent(route, new AtomicLong());
+            count = routeRequests.get(route);
+        }
+        count.incrementAndGet();
+
+        Fault fault = faultFor(path);
+        if (fault != null) {
+            long delay;
+            boolean fail;
+            synchronized (random) {
+                delay = fault.latencyMillis;
+                if (fault.jitterMillis > 0) {
+                    delay += (long) ((random.nextDouble() * 2 - 1) * fault.jitterMillis);
+                }
+                fail = fault.errorRate > 0 && random.nextDouble() < fault.errorRate;
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (fail) {
+                errors.incrementAndGet();
+                return new Response(errorStatus, "{\"error\": \"injected\"}");
+            }
+        }
+        return resource(method, path, body);
+    }
+
+    private synchronized Fault faultFor(String path) {
+        // The longest route which path is, or is below
+        Fault best = null;
+        int bestLength = -1;
+        for (Map.Entry<String, Fault> e : faults.entrySet()) {
+            String route = e.getKey();
+            boolean matches = route.length() == 0 || path.equals(route)
+                    || path.startsWith(route + "/");
+            if (matches && route.length() > bestLength) {
+                best = e.getValue();
+                bestLength = route.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the path with anything naming a particular item removed, such
+     *         as "vehicle/data" for "vehicle/data/EngineSpeed"
+     */
+    private static String routeOf(String path) {
+        String[] p = path.split("/");
+        if (p.length >= 2 && (p[0].equals("vehicle") || p[0].equals("hw"))) {
+            return p[0] + "/" + p[1];
+        }
+        return p[0];
+    }
+
+    private Response resource(String method, String path, String body) {
+        String[] p = path.length() == 0 ? new String[0] : path.split("/");
+        boolean get = method.equals("GET");
+        boolean put = method.equals("PUT") || method.equals("POST");
+        boolean delete = method.equals("DELETE");
+
+        if (p.length == 0) {
+            return get ? ok(list("ws", "vehicle", "hw", "config", "subscriptions", "alarms"))
+                    : notAllowed();
+        }
+        String top = p[0];
+        if (top.equals("vehicle")) {
+            if (!get) {
+                return notAllowed();
+            }
+            if (p.length == 1) {
+                return ok(list("vehicle", "vehicle/data", "vehicle/ecus"));
+            }
+            if (p[1].equals("data")) {
+                if (p.length == 2) {
+                    return ok(list("data", prefixed("vehicle/data/", endpoints)));
+                }
+                if (p.length == 3 && contains(endpoints, p[2])) {
+                    return ok("{\"" + p[2] + "\": {\"timestamp\": \"" + now()
+                            + "\", \"value\": " + nextValue() + "}}");
+                }
+            } else if (p[1].equals("ecus")) {
+                if (p.length == 2) {
+                    return ok(list("ecus", prefixed("vehicle/ecus/", ecus)));
+                }
+                if (contains(ecus, p[2])) {
+                    if (p.length == 3) {
+                        return ok(list(p[2], prefixed("vehicle/ecus/" + p[2] + "/", ECU_ENDPOINTS)));
+                    }
+                    if (p.length == 4 && contains(ECU_ENDPOINTS, p[3])) {
+                        return ok("{\"" + p[3] + "\": \"" + p[2] + "-" + p[3] + "\"}");
+                    }
+                }
+            }
+            return notFound();
+        }
+        if (top.equals("subscriptions") || top.equals("alarms")) {
+            Map<String, String> items = top.equals("alarms") ? alarms : subscriptions;
+            if (p.length == 1) {
+                return get ? ok(list(top, prefixed(top + "/", items.keySet().toArray(new String[0]))))
+                        : notAllowed();
+            }
+            return stored(items, p[1], get, put, delete, body);
+        }
+        if (top.equals("hw")) {
+            if (p.length == 1) {
+                return get ? ok(list("hw", "hw/leds", "hw/buttons", "hw/time")) : notAllowed();
+            }
+            if (p[1].equals("leds")) {
+                if (p.length == 2) {
+                    return get ? ok(list("leds", prefixed("hw/leds/", LEDS))) : notAllowed();
+                }
+                if (!contains(LEDS, p[2]) || delete) {
+                    return notFound();
+                }
+                return stored(leds, p[2], get, put, false, body);
+            }
+            if (p[1].equals("buttons")) {
+                if (p.length == 2) {
+                    return get ? ok(list("buttons", prefixed("hw/buttons/", BUTTONS))) : notAllowed();
+                }
+                if (contains(BUTTONS, p[2]) && get) {
+                    return ok("{\"button\": \"up\"}");
+                }
+                return notFound();
+            }
+            if (p[1].equals("time") && p.length == 2) {
+                return (get || put) ? ok("{\"time\": \"" + now() + "\"}") : notAllowed();
+            }
+            return notFound();
+        }
+        if (top.equals("config")) {
+            if (p.length == 1) {
+                return get ? ok(list("config", prefixed("config/",
+                        config.keySet().toArray(new String[0])))) : notAllowed();
+            }
+            return stored(config, path.substring("config/".length()), get, put, delete, body);
+        }
+        return notFound();
+    }
+
+    private static Response stored(Map<String, String> items, String name, boolean get,
+                                   boolean put, boolean delete, String body) {
+        if (put) {
+            items.put(name, body);
+            return ok(body);
+        }
+        String value = delete ? items.remove(name) : items.get(name);
+        if (value == null) {
+            return notFound();
+        }
+        return (get || delete) ? ok(value) : notAllowed();
+    }
+
+    private static Response notAllowed() {
+        return new Response(405, "{\"error\": \"method not allowed\"}");
+    }
+
+    private static boolean contains(String[] names, String name) {
+        return Arrays.asList(names).contains(name);
+    }
+
+    private static String[] prefixed(String prefix, String[] names) {
+        String[] uris = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            uris[i] = prefix + names[i];
+        }
+        return uris;
+    }
+
+    private static String list(String key, String... uris) {
+        StringBuilder sb = new StringBuilder("{\"").append(key).append("\": [");
+        for (int i = 0; i < uris.length; i++) {
+            sb.append(i == 0 ? "\"" : ", \"").append(uris[i]).append('"');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static String now() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+
+    private String nextValue() {
+        synchronized (random) {
+            return Double.toString(Math.round(random.nextDouble() * 100000) / 100.0);
+        }
+    }
+
+    /**
+     * @return the number of requests answered, including injected errors
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @param route for instance "vehicle/data", "vehicle/ecus",
+     *              "subscriptions", "alarms", "hw/leds" or "config"
+     * @return the number of requests to the route and everything below it
+     */
+    public long getRequestCount(String route) {
+        AtomicLong count = routeRequests.get(trim(route));
+        return (count == null) ? 0 : count.get();
+    }
+
+    /**
+     * @return the number of errors injected
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of connections accepted since the server started
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of connections open now
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return the largest number of connections open at once
+     */
+    public int getPeakConnectionCount() {
+        return peakConnections.get();
+    }
+
+    /**
+     * @return the short names of the subscriptions currently made
+     */
+    public List<String> getSubscriptions() {
+        return new ArrayList<String>(subscriptions.keySet());
+    }
+
+    /**
+     * @return the short names of the alarms currently made
+     */
+    public List<String> getAlarms() {
+        return new ArrayList<String>(alarms.keySet());
+    }
+
+    /**
+     * @return the body of the last PUT to a config resource, such as
+     *         "ws_events", or null
+     */
+    public String getConfig(String name) {
+        return config.get(trim(name));
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) { }
+        acceptor.interrupt();
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                close(s);
+            }
+        }
+        workers.shutdownNow();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
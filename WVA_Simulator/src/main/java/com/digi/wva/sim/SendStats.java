@@ -0,0 +1,142 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.sim;
+
+/**
+ * What an {@link EventServer} has sent, at one moment. Rates over an
+ * interval are found by comparing two of these with
+ * {@link #getMessagesPerSecondSince(SendStats)}.
+ */
+public final class SendStats {
+    private final long elapsedNanos;
+    private final double targetRate;
+    private final int connections;
+    private final long accepted;
+    private final long refused;
+    private final long disconnects;
+    private final long generated;
+    private final long alarms;
+    private final long messagesSent;
+    private final long bytesSent;
+
+    SendStats(long elapsedNanos, double targetRate, int connections, long accepted,
+              long refused, long disconnects, long generated, long alarms,
+              long messagesSent, long bytesSent) {
+        this.elapsedNanos = elapsedNanos;
+        this.targetRate = targetRate;
+        this.connections = connections;
+        this.accepted = accepted;
+        this.refused = refused;
+        this.disconnects = disconnects;
+        this.generated = generated;
+        this.alarms = alarms;
+        this.messagesSent = messagesSent;
+        this.bytesSent = bytesSent;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000;
+    }
+
+    /**
+     * @return the number of events meant to be sent to each connection every
+     *         second, not counting bursts
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * @return the number of connections being served
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    /**
+     * @return the number of connections closed for going over the maximum
+     */
+    public long getRefused() {
+        return refused;
+    }
+
+    /**
+     * @return the number of connections closed by the disconnect interval
+     */
+    public long getDisconnects() {
+        return disconnects;
+    }
+
+    /**
+     * @return the number of events generated, each of which is sent to
+     *         every connection
+     */
+    public long getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return how many of the generated events were alarms
+     */
+    public long getAlarms() {
+        return alarms;
+    }
+
+    /**
+     * @return the number of events written, over all connections; replayed
+     *         events are not counted
+     */
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /**
+     * @return the number of bytes written, over all connections
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return events written per second, over all connections, since the
+     *         server started
+     */
+    public double getMessagesPerSecond() {
+        return (elapsedNanos > 0) ? messagesSent * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return events written per second, over all connections, since the
+     *         earlier stats were taken
+     */
+    public double getMessagesPerSecondSince(SendStats earlier) {
+        long nanos = elapsedNanos - earlier.elapsedNanos;
+        return (nanos > 0) ? (messagesSent - earlier.messagesSent) * 1e9 / nanos : 0;
+    }
+
+    /**
+     * @return bytes written per second, over all connections, since the
+     *         earlier stats were taken
+     */
+    public double getBytesPerSecondSince(SendStats earlier) {
+        long nanos = elapsedNanos - earlier.elapsedNanos;
+        return (nanos > 0) ? (bytesSent - earlier.bytesSent) * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ms: %d connections, %d events generated (%d alarms), "
+                + "%d sent (%.0f/s, target %.0f/s per connection), %d bytes",
+                getElapsedMillis(), connections, generated, alarms, messagesSent,
+                getMessagesPerSecond(), targetRate, bytesSent);
+    }
+}
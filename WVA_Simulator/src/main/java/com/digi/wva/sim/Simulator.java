@@ -0,0 +1,143 @@
+/* 
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * 
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved. 
+ */
+ 
+package com.digi.wva.sim;
+
+/**
+ * Runs an {@link EventServer} from the command line, printing the rate it
+ * achieves every second, and optionally a {@link RestServer} alongside it.
+ *
+ * <p>Arguments are optional {@code key=value} pairs:</p>
+ * <pre>
+ *   port=5000          port to listen on
+ *   bind=0.0.0.0       address to listen on
+ *   endpoints=4        number of endpoints
+ *   hz=5               events per second per endpoint
+ *   alarms=0.1         share of events sent as alarms
+ *   split=1-64         cut the stream into pieces of 1 to 64 bytes
+ *   burst=500/2000     500 extra events every 2000 ms
+ *   replay=100         send the last 100 events to each new connection
+ *   disconnect=30000   close every connection every 30 s
+ *   sockets=1000       maximum connections served at once
+ *   writers=2          writer threads
+ *   seed=1             seed for alarms and splitting
+ *   seconds=60         stop after this long; by default, run until killed
+ *
+ *   rest=8080          also serve the web services on this port
+ *   latency=50/20      web service responses take 50 ms, give or take 20
+ *   errors=0.01        share of web service requests which fail
+ *   connections=4      web service connections served at once
+ * </pre>
+ */
+public final class Simulator {
+    private Simulator() { }
+
+    public static void main(String[] args) throws Exception {
+        EventServer events = new EventServer();
+        events.setPort(5000);
+        events.setBindAddress("0.0.0.0");
+        int seconds = 0;
+        RestServer rest = null;
+        long latency = 0;
+        long jitter = 0;
+        double errorRate = 0;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            String key = kv[0];
+            String value = kv[1];
+            if (key.equals("port")) {
+                events.setPort(Integer.parseInt(value));
+            } else if (key.equals("bind")) {
+                events.setBindAddress(value);
+            } else if (key.equals("endpoints")) {
+                events.setEndpointCount(Integer.parseInt(value));
+            } else if (key.equals("hz")) {
+                events.setHz(Double.parseDouble(value));
+            } else if (key.equals("alarms")) {
+                events.setAlarmFraction(Double.parseDouble(value));
+            } else if (key.equals("split")) {
+                String[] range = value.split("-", 2);
+                int min = Integer.parseInt(range[0]);
+                events.setSegmentSize(min, (range.length == 2) ? Integer.parseInt(range[1]) : min);
+            } else if (key.equals("burst")) {
+                String[] sizeInterval = value.split("/", 2);
+                if (sizeInterval.length != 2) {
+                    throw new IllegalArgumentException("Expected burst=size/millis");
+                }
+                events.setBurst(Integer.parseInt(sizeInterval[0]),
+                        Long.parseLong(sizeInterval[1]));
+            } else if (key.equals("replay")) {
+                events.setReplayOnConnect(Integer.parseInt(value));
+            } else if (key.equals("disconnect")) {
+                events.setDisconnectInterval(Long.parseLong(value));
+            } else if (key.equals("sockets")) {
+                events.setMaxConnections(Integer.parseInt(value));
+            } else if (key.equals("writers")) {
+                events.setWriterThreads(Integer.parseInt(value));
+            } else if (key.equals("seed")) {
+                events.setSeed(Long.parseLong(value));
+            } else if (key.equals("seconds")) {
+                seconds = Integer.parseInt(value);
+            } else if (key.equals("rest")) {
+                rest = rest(rest);
+                rest.setPort(Integer.parseInt(value));
+            } else if (key.equals("latency")) {
+                String[] latencyJitter = value.split("/", 2);
+                latency = Long.parseLong(latencyJitter[0]);
+                jitter = (latencyJitter.length == 2) ? Long.parseLong(latencyJitter[1]) : 0;
+            } else if (key.equals("errors")) {
+                errorRate = Double.parseDouble(value);
+            } else if (key.equals("connections")) {
+                rest = rest(rest);
+                rest.setMaxConnections(Integer.parseInt(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + key);
+            }
+        }
+
+        if (rest != null) {
+            rest.setFault("", latency, jitter, errorRate);
+            System.out.printf("Web services on port %d%n", rest.start());
+        }
+        int port = events.start();
+        System.out.printf("Event server on port %d: %d endpoints, %.0f events/s per connection%n",
+                port, events.getEndpointNames().length, events.getTargetRate());
+        System.out.printf("%8s %6s %12s %12s %12s%n",
+                "seconds", "conns", "events/s", "per conn/s", "KB/s");
+        SendStats last = events.getStats();
+        for (int s = 1; seconds == 0 || s <= seconds; s++) {
+            Thread.sleep(1000);
+            SendStats now = events.getStats();
+            double rate = now.getMessagesPerSecondSince(last);
+            System.out.printf("%8d %6d %12.0f %12.0f %12.1f%n", s, now.getConnections(), rate,
+                    (now.getConnections() > 0) ? rate / now.getConnections() : 0.0,
+                    now.getBytesPerSecondSince(last) / 1024);
+            last = now;
+        }
+        events.stop();
+        if (rest != null) {
+            rest.stop();
+            System.out.printf("%d web service requests, %d failed%n",
+                    rest.getRequestCount(), rest.getErrorCount());
+        }
+        System.out.println(last);
+    }
+
+    private static RestServer rest(RestServer rest) {
+        if (rest != null) {
+            return rest;
+        }
+        rest = new RestServer();
+        rest.setBindAddress("0.0.0.0");
+        rest.setPort(80);
+        return rest;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.sim;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class EventServerTest extends TestCase {
+    private static final Pattern EVENT = Pattern.compile(
+            "\\{\"(data|alarm)\": \\{\"(Endpoint\\d+)\": \\{\"timestamp\": \"[-0-9T:.]+Z\", "
+            + "\"value\": (\\d+)\\}, \"timestamp\": \"[-0-9T:.]+Z\", "
+            + "\"uri\": \"vehicle/data/\\2\", \"short_name\": \"\\2~(sub|above)\"\\}\\}");
+
+    EventServer server;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new EventServer();
+        server.setEndpointCount(3);
+        server.setHz(200);
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    private BufferedReader connect(int port) throws Exception {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+    }
+
+    /**
+     * A subscriber receives one event per line, for each endpoint in turn,
+     * valued with the number of events sent for the endpoint before it
+     */
+    public void testSubscriptionStream() throws Exception {
+        BufferedReader in = connect(server.start());
+        assertTrue(server.awaitConnections(1, 5, TimeUnit.SECONDS));
+
+        long[] last = { -1, -1, -1 };
+        for (int i = 0; i < 60; i++) {
+            String line = in.readLine();
+            Matcher m = EVENT.matcher(line);
+            assertTrue(line, m.matches());
+            assertEquals("data", m.group(1));
+            assertEquals("sub", m.group(4));
+            int endpoint = Integer.parseInt(m.group(2).substring("Endpoint".length()));
+            long value = Long.parseLong(m.group(3));
+            if (last[endpoint] >= 0) {
+                assertEquals(last[endpoint] + 1, value);
+            }
+            last[endpoint] = value;
+        }
+        SendStats stats = server.getStats();
+        assertEquals(1, stats.getAccepted());
+        assertTrue(stats.getGenerated() >= 60);
+    }
+
+    /**
+     * Events cut into small segments still arrive whole, and alarms are
+     * sent as such
+     */
+    public void testSegmentsAndAlarms() throws Exception {
+        server.setSegmentSize(1, 7);
+        server.setAlarmFraction(1);
+        BufferedReader in = connect(server.start());
+        for (int i = 0; i < 20; i++) {
+            String line = in.readLine();
+            Matcher m = EVENT.matcher(line);
+            assertTrue(line, m.matches());
+            assertEquals("alarm", m.group(1));
+            assertEquals("above", m.group(4));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v. 2.0. If a copy of
+ * the MPL was not distributed with this file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Copyright (c) 2013 Digi International Inc., All Rights Reserved.
+ */
+
+package com.digi.wva.sim;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+public class RestServerTest extends TestCase {
+    RestServer server;
+    int port;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new RestServer();
+        server.setEndpoints("EngineSpeed", "VehicleSpeed");
+        port = server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    /**
+     * The status and body of one response
+     */
+    private static final class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Reply request(String method, String path, String body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/ws/" + path)
+                .openConnection();
+        c.setRequestMethod(method);
+        if (body != null) {
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = c.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+        }
+        int status = c.getResponseCode();
+        InputStream in = (status < 400) ? c.getInputStream() : c.getErrorStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        in.close();
+        return new Reply(status, bytes.toString("UTF-8"));
+    }
+
+    public void testGetData() throws Exception {
+        Reply list = request("GET", "vehicle/data", null);
+        assertEquals(200, list.status);
+        assertEquals("{\"data\": [\"vehicle/data/EngineSpeed\", \"vehicle/data/VehicleSpeed\"]}",
+                list.body);
+
+        Reply value = request("GET", "vehicle/data/EngineSpeed", null);
+        assertEquals(200, value.status);
+        assertTrue(value.body, value.body.matches(
+                "\\{\"EngineSpeed\": \\{\"timestamp\": \"[-0-9T:]+Z\", \"value\": [0-9.]+\\}\\}"));
+
+        assertEquals(404, request("GET", "vehicle/data/Odometer", null).status);
+        assertEquals(405, request("PUT", "vehicle/data/EngineSpeed", "{}").status);
+        assertEquals(4, server.getRequestCount("vehicle/data"));
+    }
+
+    /**
+     * Subscriptions are kept as PUT, read back and deleted
+     */
+    public void testPutSubscription() throws Exception {
+        String subscription = "{\"subscription\": {\"uri\": \"vehicle/data/EngineSpeed\", \"interval\": 10}}";
+        Reply put = request("PUT", "subscriptions/EngineSpeed~sub", subscription);
+        assertEquals(200, put.status);
+        assertEquals(Arrays.asList("EngineSpeed~sub"), server.getSubscriptions());
+
+        Reply get = request("GET", "subscriptions/EngineSpeed~sub", null);
+        assertEquals(200, get.status);
+        assertEquals(subscription, get.body);
+        assertEquals("{\"subscriptions\": [\"subscriptions/EngineSpeed~sub\"]}",
+                request("GET", "subscriptions", null).body);
+
+        assertEquals(200, request("DELETE", "subscriptions/EngineSpeed~sub", null).status);
+        assertEquals(404, request("GET", "subscriptions/EngineSpeed~sub", null).status);
+        assertTrue(server.getSubscriptions().isEmpty());
+    }
+
+    /**
+     * A fault fails its route and those below it, and nothing else
+     */
+    public void testFault() throws Exception {
+        server.setErrorStatus(503);
+        server.setFault("vehicle/data", 0, 0, 1.0);
+        assertEquals(503, request("GET", "vehicle/data/EngineSpeed", null).status);
+        assertEquals(200, request("GET", "vehicle/ecus", null).status);
+        assertEquals(1, server.getErrorCount());
+        assertEquals(2, server.getRequestCount());
+
+        server.clearFaults();
+        assertEquals(200, request("GET", "vehicle/data/EngineSpeed", null).status);
+    }
+}